@@ -4,6 +4,7 @@ plugins {
 	idea
 	java
 	kotlin("jvm") version "1.6.21"
+	id("me.champeau.jmh") version "0.6.8"
 	`maven-publish`
 	signing
 }
@@ -39,10 +40,87 @@ sourceSets {
 			
 			testImplementation(group="org.junit.jupiter", name="junit-jupiter-api", version="5.8.1")
 			testRuntimeOnly(group="org.junit.jupiter", name="junit-jupiter-engine", version="5.8.1")
+			testImplementation(group="org.openjdk.jol", name="jol-core", version="0.17")
 		}
 	}
 }
 
+jmh {
+	jmhVersion.set("1.35")
+	// Reports gc.alloc.rate.norm (bytes per operation) next to every score
+	profilers.add("gc")
+	resultFormat.set("JSON")
+	// e.g. ./gradlew jmh -PjmhIncludes=WebsocketParserBenchmark
+	(project.findProperty("jmhIncludes") as String?)?.let { includes.add(it) }
+}
+
+val jmhResults = layout.buildDirectory.file("results/jmh/results.json")
+val jmhBaseline = layout.projectDirectory.file("src/jmh/baseline.json")
+
+tasks.register<Copy>("jmhSaveBaseline") {
+	group = "benchmark"
+	description = "Checks in the last JMH results as the baseline that jmhCompare measures against"
+	from(jmhResults)
+	into(jmhBaseline.asFile.parentFile)
+	rename { jmhBaseline.asFile.name }
+}
+
+tasks.register("jmhCompare") {
+	group = "benchmark"
+	description = "Compares the last JMH results against the checked-in baseline. -PjmhThreshold=10 sets the percentage " +
+			"that counts as a regression, and -PjmhFailOnRegression fails the build on one."
+	doLast {
+		val threshold = (project.findProperty("jmhThreshold") as String?)?.toDouble() ?: 10.0
+		val failOnRegression = project.hasProperty("jmhFailOnRegression")
+		
+		@Suppress("UNCHECKED_CAST")
+		fun load(file: File): Map<String, Map<String, Any?>> {
+			if (!file.isFile)
+				throw GradleException("missing ${file.relativeTo(projectDir)} - run jmh (and jmhSaveBaseline for a baseline) first")
+			val results = groovy.json.JsonSlurper().parse(file) as List<Map<String, Any?>>
+			return results.associateBy { result ->
+				val params = (result["params"] as Map<String, Any?>?)?.toSortedMap()?.entries?.joinToString(",") ?: ""
+				"${(result["benchmark"] as String).removePrefix("me.joshlarson.websocket.benchmark.")}($params)"
+			}
+		}
+		
+		@Suppress("UNCHECKED_CAST")
+		fun metric(result: Map<String, Any?>, name: String?): Double? {
+			val metric = if (name == null) {
+				result["primaryMetric"]
+			} else {
+				(result["secondaryMetrics"] as Map<String, Any?>?)?.entries?.firstOrNull { it.key.endsWith(name) }?.value
+			}
+			return ((metric as Map<String, Any?>?)?.get("score") as Number?)?.toDouble()
+		}
+		
+		val baseline = load(jmhBaseline.asFile)
+		val current = load(jmhResults.get().asFile)
+		val regressions = ArrayList<String>()
+		for ((key, result) in current.toSortedMap()) {
+			val previous = baseline[key] ?: continue
+			// Throughput goes up when it improves, everything else (time, bytes) goes down
+			val higherIsBetter = result["mode"] == "thrpt"
+			for ((label, name, higher) in listOf(Triple("score", null, higherIsBetter), Triple("alloc", "gc.alloc.rate.norm", false))) {
+				val before = metric(previous, name) ?: continue
+				val after = metric(result, name) ?: continue
+				if (before == 0.0)
+					continue
+				val change = (after - before) / before * 100
+				val regressed = if (higher) change < -threshold else change > threshold
+				val line = String.format("%-90s %-5s %14.3f -> %14.3f (%+.1f%%)", key, label, before, after, change)
+				println(if (regressed) "$line  REGRESSION" else line)
+				if (regressed)
+					regressions.add(line)
+			}
+		}
+		for (key in baseline.keys - current.keys)
+			println("$key: not in the current results")
+		if (regressions.isNotEmpty() && failOnRegression)
+			throw GradleException("${regressions.size} benchmark results regressed by more than $threshold%")
+	}
+}
+
 val compileTestKotlin: KotlinCompile by tasks
 compileTestKotlin.kotlinOptions {
 	jvmTarget = kotlinTargetVersion
@@ -94,6 +172,11 @@ publishing {
 }
 
 tasks {
+	test {
+		// Lets JOL attach to the test JVM to measure connection footprints
+		jvmArgs("-Djdk.attach.allowAttachSelf=true", "-Djol.magicFieldOffset=true")
+	}
+	
 	javadoc {
 		if (JavaVersion.current().isJava9Compatible) {
 			(options as StandardJavadocDocletOptions).addBooleanOption("html5", true)
@@ -0,0 +1,132 @@
+package me.joshlarson.websocket.benchmark;
+
+import me.joshlarson.websocket.blocking.BlockingWebSocketClient;
+import me.joshlarson.websocket.blocking.BlockingWebSocketServer;
+import me.joshlarson.websocket.client.WebSocketClientCallback;
+import me.joshlarson.websocket.common.WebSocketHandler;
+import me.joshlarson.websocket.common.parser.http.HttpResponse;
+import me.joshlarson.websocket.server.WebSocketServerCallback;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Echo round trips over loopback on one of {@code connections} otherwise idle connections, with both ends running a
+ * thread per connection. Sample mode reports the latency percentiles (p99 included). Setup prints the heap retained per
+ * connection - platform thread stacks live outside the heap and aren't part of that number.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss256k")
+public class BlockingTransportBenchmark {
+	
+	@Param({"virtual", "platform"})
+	public String threads;
+	
+	@Param({"100", "2000"})
+	public int connections;
+	
+	private BlockingWebSocketServer server;
+	private List<BlockingWebSocketClient> clients;
+	private WebSocketHandler [] handlers;
+	private List<BlockingQueue<byte []>> responses;
+	private byte [] payload;
+	private int nextConnection;
+	
+	@Setup
+	public void setup() throws IOException, InterruptedException {
+		ThreadFactory threadFactory;
+		if (threads.equals("virtual")) {
+			if (!BlockingWebSocketServer.isVirtualThreadSupported())
+				throw new IllegalStateException("virtual threads need a Java 21+ runtime");
+			threadFactory = null;
+		} else {
+			threadFactory = runnable -> {
+				Thread thread = new Thread(runnable);
+				thread.setDaemon(true);
+				return thread;
+			};
+		}
+		
+		long heapBefore = usedHeap();
+		server = new BlockingWebSocketServer(new WebSocketServerCallback() {
+			@Override
+			public void onBinaryMessage(@NotNull WebSocketHandler obj, @NotNull byte [] data) {
+				obj.sendBinary(data);
+			}
+		}, new InetSocketAddress("127.0.0.1", 0));
+		if (threadFactory != null)
+			server.setThreadFactory(threadFactory);
+		server.start();
+		
+		clients = new ArrayList<>(connections);
+		handlers = new WebSocketHandler[connections];
+		responses = new ArrayList<>(connections);
+		CountDownLatch upgraded = new CountDownLatch(connections);
+		for (int i = 0; i < connections; i++) {
+			int index = i;
+			BlockingQueue<byte []> response = new ArrayBlockingQueue<>(1);
+			responses.add(response);
+			BlockingWebSocketClient client = new BlockingWebSocketClient(new WebSocketClientCallback() {
+				@Override
+				public void onUpgrade(@NotNull WebSocketHandler obj, @NotNull HttpResponse httpResponse) {
+					handlers[index] = obj;
+					upgraded.countDown();
+				}
+				
+				@Override
+				public void onBinaryMessage(@NotNull WebSocketHandler obj, @NotNull byte [] data) {
+					response.add(data);
+				}
+			}, server.getLocalAddress(), "/");
+			if (threadFactory != null)
+				client.setThreadFactory(threadFactory);
+			client.connect();
+			clients.add(client);
+		}
+		if (!upgraded.await(60, TimeUnit.SECONDS))
+			throw new IllegalStateException("connections did not upgrade in time");
+		
+		long heapAfter = usedHeap();
+		System.out.printf("%n%s threads, %d connections: %d heap bytes per connection (client and server)%n", threads, connections, (heapAfter - heapBefore) / connections);
+		payload = new byte[64];
+		nextConnection = 0;
+	}
+	
+	@TearDown
+	public void tearDown() {
+		for (BlockingWebSocketClient client : clients)
+			client.close();
+		server.close();
+	}
+	
+	@Benchmark
+	public byte [] roundTrip() throws InterruptedException {
+		int connection = nextConnection;
+		nextConnection = (connection + 1) % connections;
+		handlers[connection].sendBinary(payload);
+		return responses.get(connection).take();
+	}
+	
+	private static long usedHeap() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+	
+}
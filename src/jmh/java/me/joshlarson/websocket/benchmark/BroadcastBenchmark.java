@@ -0,0 +1,73 @@
+package me.joshlarson.websocket.benchmark;
+
+import me.joshlarson.websocket.common.WebSocketHandler;
+import me.joshlarson.websocket.common.WebSocketWriter;
+import me.joshlarson.websocket.common.parser.http.HttpRequest;
+import me.joshlarson.websocket.common.parser.websocket.PreparedWebsocketFrame;
+import me.joshlarson.websocket.server.WebSocketServerCallback;
+import me.joshlarson.websocket.server.WebSocketServerProtocol;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fans one text message out to {@code recipients} upgraded connections whose writers only consume the buffers, so the
+ * score is the per-broadcast encoding and allocation cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+	
+	@Param({"1000"})
+	public int recipients;
+	
+	@Param({"64", "4096"})
+	public int messageSize;
+	
+	private WebSocketHandler [] handlers;
+	private String message;
+	
+	@Setup
+	public void setup(Blackhole blackhole) {
+		byte [] upgradeRequest = ("GET / HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+		handlers = new WebSocketHandler[recipients];
+		for (int i = 0; i < recipients; i++) {
+			int index = i;
+			WebSocketServerProtocol protocol = new WebSocketServerProtocol(new WebSocketServerCallback() {
+				@Override
+				public void onUpgrade(@NotNull WebSocketHandler obj, @NotNull HttpRequest request) {
+					handlers[index] = obj;
+				}
+			}, (WebSocketWriter) buffers -> {
+				for (ByteBuffer buffer : buffers) {
+					blackhole.consume(buffer);
+					buffer.position(buffer.limit());
+				}
+			}, () -> {});
+			protocol.onRead(upgradeRequest, 0, upgradeRequest.length);
+		}
+		message = "x".repeat(messageSize);
+	}
+	
+	@Benchmark
+	public void sendText() {
+		for (WebSocketHandler handler : handlers)
+			handler.sendText(message);
+	}
+	
+	@Benchmark
+	public void sendPrepared() {
+		PreparedWebsocketFrame frame = PreparedWebsocketFrame.text(message);
+		for (WebSocketHandler handler : handlers)
+			handler.send(frame);
+	}
+	
+}
@@ -0,0 +1,83 @@
+package me.joshlarson.websocket.benchmark;
+
+import me.joshlarson.websocket.common.WebSocketHandler;
+import me.joshlarson.websocket.common.WebSocketWriter;
+import me.joshlarson.websocket.common.buffer.PooledBufferAllocator;
+import me.joshlarson.websocket.common.parser.http.HttpRequest;
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrame;
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType;
+import me.joshlarson.websocket.common.parser.websocket.WebsocketParser;
+import me.joshlarson.websocket.common.parser.websocket.WebsocketParserException;
+import me.joshlarson.websocket.server.WebSocketServerCallback;
+import me.joshlarson.websocket.server.WebSocketServerProtocol;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends small frames and parses fragmented messages with and without a pooled allocator. Run with {@code -prof gc} -
+ * the interesting number is the allocation rate per operation rather than the time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferAllocatorBenchmark {
+	
+	@Param({"false", "true"})
+	public boolean pooled;
+	
+	@Param({"128", "4096"})
+	public int messageSize;
+	
+	private WebSocketHandler handler;
+	private WebsocketParser parser;
+	private byte [] message;
+	private byte [] fragmentedMessage;
+	
+	@Setup
+	public void setup(Blackhole blackhole) {
+		byte [] upgradeRequest = ("GET / HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+		WebSocketServerProtocol protocol = new WebSocketServerProtocol(new WebSocketServerCallback() {
+			@Override
+			public void onUpgrade(@NotNull WebSocketHandler obj, @NotNull HttpRequest request) {
+				handler = obj;
+			}
+		}, (WebSocketWriter) buffers -> {
+			for (ByteBuffer buffer : buffers) {
+				blackhole.consume(buffer);
+				buffer.position(buffer.limit());
+			}
+		}, () -> {});
+		parser = new WebsocketParser();
+		if (pooled) {
+			protocol.setBufferAllocator(PooledBufferAllocator.HEAP);
+			parser.setBufferAllocator(PooledBufferAllocator.HEAP);
+		}
+		protocol.onRead(upgradeRequest, 0, upgradeRequest.length);
+		
+		message = new byte[messageSize];
+		ByteArrayOutputStream fragments = new ByteArrayOutputStream();
+		for (byte [] fragment : new WebsocketFrame(WebsocketFrameType.BINARY, message).encodeFragmented(true, 0x1A2B3C4D, messageSize / 4))
+			fragments.writeBytes(fragment);
+		fragmentedMessage = fragments.toByteArray();
+	}
+	
+	@Benchmark
+	public void sendBinary() {
+		handler.sendBinary(message);
+	}
+	
+	@Benchmark
+	public WebsocketFrame parseFragmented() throws WebsocketParserException {
+		return parser.parseChunk(fragmentedMessage, 0, fragmentedMessage.length);
+	}
+	
+}
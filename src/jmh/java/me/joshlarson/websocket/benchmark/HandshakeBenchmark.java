@@ -0,0 +1,114 @@
+package me.joshlarson.websocket.benchmark;
+
+import me.joshlarson.websocket.common.WebSocketHandshake;
+import me.joshlarson.websocket.common.WebSocketWriter;
+import me.joshlarson.websocket.common.parser.http.HttpResponse;
+import me.joshlarson.websocket.server.WebSocketServerCallback;
+import me.joshlarson.websocket.server.WebSocketServerProtocol;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Handshakes per second: the accept key alone, the 101 response, and a whole server-side upgrade from request bytes to
+ * response bytes. The legacy variants reproduce the shared, locked digest and the map-built response, and the
+ * contended variants run four threads to show what the lock costs during a reconnect storm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandshakeBenchmark {
+	
+	private static final String KEY = "dGhlIHNhbXBsZSBub25jZQ==";
+	private static final byte [] UPGRADE_REQUEST = ("GET /chat HTTP/1.1\r\n" +
+			"Host: server.example.com\r\n" +
+			"Upgrade: websocket\r\n" +
+			"Connection: Upgrade\r\n" +
+			"Sec-WebSocket-Key: " + KEY + "\r\n" +
+			"Sec-WebSocket-Version: 13\r\n" +
+			"\r\n").getBytes(StandardCharsets.US_ASCII);
+	
+	private final ReentrantLock legacyLock = new ReentrantLock();
+	private final MessageDigest legacyDigest;
+	
+	public HandshakeBenchmark() {
+		try {
+			legacyDigest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	@Benchmark
+	public String acceptKey() {
+		return WebSocketHandshake.getAcceptKey(KEY);
+	}
+	
+	@Benchmark
+	public String acceptKeyLegacy() {
+		return legacyAcceptKey();
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public String acceptKeyContended() {
+		return WebSocketHandshake.getAcceptKey(KEY);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public String acceptKeyLegacyContended() {
+		return legacyAcceptKey();
+	}
+	
+	@Benchmark
+	public byte [] upgradeResponse() {
+		return WebSocketHandshake.encodeUpgradeResponse(KEY, null);
+	}
+	
+	@Benchmark
+	public byte [] upgradeResponseLegacy() {
+		Map<String, String> responseHeaders = new HashMap<>();
+		responseHeaders.put("Upgrade", "websocket");
+		responseHeaders.put("Connection", "Upgrade");
+		responseHeaders.put("Sec-WebSocket-Accept", legacyAcceptKey());
+		responseHeaders.put("Sec-WebSocket-Protocol", "");
+		return new HttpResponse("HTTP/1.1", 101, "Switching Protocols", responseHeaders, new byte[0]).encode();
+	}
+	
+	@Benchmark
+	public void serverHandshake(Blackhole blackhole) {
+		WebSocketWriter writer = buffers -> {
+			for (ByteBuffer buffer : buffers)
+				blackhole.consume(buffer);
+		};
+		WebSocketServerProtocol protocol = new WebSocketServerProtocol(new WebSocketServerCallback() {}, writer, () -> {});
+		protocol.onRead(UPGRADE_REQUEST, 0, UPGRADE_REQUEST.length);
+	}
+	
+	private String legacyAcceptKey() {
+		byte [] acceptPreDigest = (KEY + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes(StandardCharsets.UTF_8);
+		byte [] acceptDigest;
+		legacyLock.lock();
+		try {
+			legacyDigest.reset();
+			acceptDigest = legacyDigest.digest(acceptPreDigest);
+		} finally {
+			legacyLock.unlock();
+		}
+		return Base64.getEncoder().encodeToString(acceptDigest);
+	}
+	
+}
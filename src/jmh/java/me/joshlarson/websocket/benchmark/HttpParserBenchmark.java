@@ -0,0 +1,78 @@
+package me.joshlarson.websocket.benchmark;
+
+import me.joshlarson.websocket.common.parser.http.HttpFrame;
+import me.joshlarson.websocket.common.parser.http.HttpParser;
+import me.joshlarson.websocket.common.parser.http.HttpParserException;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses a browser-sized upgrade request, either all at once or split into small segments the way a slow client
+ * delivers it. {@code extraHeaders} pads it with further headers, as proxies and cookies do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpParserBenchmark {
+	
+	private static final String HANDSHAKE = "GET /chat?room=lobby HTTP/1.1\r\n" +
+			"Host: server.example.com\r\n" +
+			"Connection: Upgrade\r\n" +
+			"Pragma: no-cache\r\n" +
+			"Cache-Control: no-cache\r\n" +
+			"User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36\r\n" +
+			"Upgrade: websocket\r\n" +
+			"Origin: http://example.com\r\n" +
+			"Sec-WebSocket-Version: 13\r\n" +
+			"Accept-Encoding: gzip, deflate, br\r\n" +
+			"Accept-Language: en-US,en;q=0.9\r\n" +
+			"Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+			"Sec-WebSocket-Extensions: permessage-deflate; client_max_window_bits\r\n";
+	
+	@Param({"0", "16", "1"})
+	public int segmentSize;
+	
+	@Param({"0", "16", "64"})
+	public int extraHeaders;
+	
+	private HttpParser parser;
+	private byte [] request;
+	
+	@Setup
+	public void setup() {
+		StringBuilder builder = new StringBuilder(HANDSHAKE);
+		for (int i = 0; i < extraHeaders; i++)
+			builder.append("X-Forwarded-Header-").append(i).append(": value-").append(i).append("\r\n");
+		builder.append("\r\n");
+		request = builder.toString().getBytes(StandardCharsets.US_ASCII);
+		parser = new HttpParser();
+	}
+	
+	@Benchmark
+	public HttpFrame parseHandshake() throws HttpParserException {
+		if (segmentSize == 0)
+			return parser.parseChunk(request, 0, request.length);
+		
+		HttpFrame frame = null;
+		for (int offset = 0; offset < request.length; offset += segmentSize)
+			frame = parser.parseChunk(request, offset, Math.min(segmentSize, request.length - offset));
+		return frame;
+	}
+	
+	@Benchmark
+	public void parseAndReadHandshakeHeaders(Blackhole blackhole) throws HttpParserException {
+		// Only what the server reads during the upgrade gets decoded
+		HttpFrame frame = parseHandshake();
+		blackhole.consume(frame.getHeaderValue("Connection"));
+		blackhole.consume(frame.getHeaderValue("Upgrade"));
+		blackhole.consume(frame.getHeaderValue("Sec-WebSocket-Key"));
+		blackhole.consume(frame.getHeaderValue("Sec-WebSocket-Extensions"));
+	}
+	
+}
@@ -0,0 +1,80 @@
+package me.joshlarson.websocket.benchmark;
+
+import me.joshlarson.websocket.common.parser.websocket.WebsocketMask;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the previous byte-at-a-time unmasking loop against the word-at-a-time kernels. Throughput is reported per
+ * payload, so divide by {@code payloadSize} for bytes per microsecond.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MaskingBenchmark {
+	
+	private static final int MASK_KEY = 0x1A2B3C4D;
+	
+	@Param({"16", "125", "1024", "16384", "1048576"})
+	public int payloadSize;
+	
+	private byte [] payload;
+	private byte [] destination;
+	private ByteBuffer directPayload;
+	
+	@Setup
+	public void setup() {
+		payload = new byte[payloadSize];
+		destination = new byte[payloadSize];
+		ThreadLocalRandom.current().nextBytes(payload);
+		directPayload = ByteBuffer.allocateDirect(payloadSize).put(payload).flip();
+	}
+	
+	@Benchmark
+	public byte [] scalarInPlace() {
+		// The byte at a time loop the parser used before the kernels existed
+		int maskByte1 = (MASK_KEY >> 24) & 0xFF;
+		int maskByte2 = (MASK_KEY >> 16) & 0xFF;
+		int maskByte3 = (MASK_KEY >> 8) & 0xFF;
+		int maskByte4 = MASK_KEY & 0xFF;
+		int maskXorIndex = 0;
+		while (maskXorIndex < payload.length - (payload.length % 4)) {
+			payload[maskXorIndex++] ^= maskByte1;
+			payload[maskXorIndex++] ^= maskByte2;
+			payload[maskXorIndex++] ^= maskByte3;
+			payload[maskXorIndex++] ^= maskByte4;
+		}
+		if (maskXorIndex < payload.length)
+			payload[maskXorIndex++] ^= maskByte1;
+		if (maskXorIndex < payload.length)
+			payload[maskXorIndex++] ^= maskByte2;
+		if (maskXorIndex < payload.length)
+			payload[maskXorIndex] ^= maskByte3;
+		return payload;
+	}
+	
+	@Benchmark
+	public byte [] swarInPlace() {
+		WebsocketMask.mask(payload, 0, payloadSize, MASK_KEY);
+		return payload;
+	}
+	
+	@Benchmark
+	public byte [] swarCopy() {
+		WebsocketMask.mask(payload, 0, destination, 0, payloadSize, MASK_KEY);
+		return destination;
+	}
+	
+	@Benchmark
+	public ByteBuffer swarDirectInPlace() {
+		WebsocketMask.mask(directPayload, 0, payloadSize, MASK_KEY);
+		return directPayload;
+	}
+	
+}
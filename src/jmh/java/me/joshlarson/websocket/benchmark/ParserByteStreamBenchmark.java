@@ -0,0 +1,58 @@
+package me.joshlarson.websocket.benchmark;
+
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrame;
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType;
+import me.joshlarson.websocket.common.parser.websocket.WebsocketParser;
+import me.joshlarson.websocket.common.parser.websocket.WebsocketParserException;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses the same number of small frames per invocation, delivered in reads of {@code framesPerRead} frames each. The
+ * score is per frame, so it should stay flat as more frames share a single read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserByteStreamBenchmark {
+	
+	private static final int FRAMES_PER_INVOCATION = 1024;
+	
+	@Param({"1", "16", "128", "1024"})
+	public int framesPerRead;
+	
+	@Param({"16", "256"})
+	public int frameSize;
+	
+	private WebsocketParser parser;
+	private byte [] read;
+	
+	@Setup
+	public void setup() {
+		byte [] frame = new WebsocketFrame(WebsocketFrameType.BINARY, new byte[frameSize]).encode();
+		ByteArrayOutputStream readBuilder = new ByteArrayOutputStream();
+		for (int i = 0; i < framesPerRead; i++)
+			readBuilder.writeBytes(frame);
+		parser = new WebsocketParser();
+		read = readBuilder.toByteArray();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(FRAMES_PER_INVOCATION)
+	public void parsePipelinedReads(Blackhole blackhole) throws WebsocketParserException {
+		for (int i = 0; i < FRAMES_PER_INVOCATION / framesPerRead; i++) {
+			WebsocketFrame frame = parser.parseChunk(read, 0, read.length);
+			while (frame != null) {
+				blackhole.consume(frame);
+				frame = parser.parseChunk(null, 0, 0);
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,62 @@
+package me.joshlarson.websocket.benchmark;
+
+import me.joshlarson.websocket.common.parser.websocket.Utf8Validator;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns a TEXT payload into a String the way the protocol used to (a bare UTF-8 decode, with no validation) and the way
+ * it does now (validated as it arrives, then copied as Latin-1 when it was all ASCII).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextDecodeBenchmark {
+	
+	@Param({"ascii", "mixed"})
+	public String content;
+	
+	@Param({"128", "4096"})
+	public int messageSize;
+	
+	private byte [] payload;
+	private Utf8Validator validator;
+	
+	@Setup
+	public void setup() {
+		String unit = content.equals("ascii") ? "{\"id\":12345,\"name\":\"player\",\"pos\":[1.5,2.5]}," : "{\"id\":12345,\"name\":\"jo\u00ebl \u4e2d\u6587\"},";
+		StringBuilder builder = new StringBuilder();
+		while (builder.length() < messageSize)
+			builder.append(unit);
+		payload = builder.substring(0, messageSize).getBytes(StandardCharsets.UTF_8);
+		validator = new Utf8Validator();
+	}
+	
+	@Benchmark
+	public String decodeUnvalidated() {
+		return new String(payload, StandardCharsets.UTF_8);
+	}
+	
+	@Benchmark
+	public String validateAndDecode() {
+		validator.reset();
+		validator.update(payload, 0, payload.length);
+		return new String(payload, validator.isAscii() ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+	}
+	
+	@Benchmark
+	public String validateWithDecoder() {
+		// What strict validation costs without the DFA: a reporting decoder
+		try {
+			return StandardCharsets.UTF_8.newDecoder().decode(java.nio.ByteBuffer.wrap(payload)).toString();
+		} catch (java.nio.charset.CharacterCodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+}
@@ -0,0 +1,69 @@
+package me.joshlarson.websocket.benchmark;
+
+import me.joshlarson.websocket.common.buffer.PooledBuffer;
+import me.joshlarson.websocket.common.buffer.PooledBufferAllocator;
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrame;
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes one BINARY message as {@code fragments} frames, masked the way a client sends or unmasked the way a server
+ * does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebsocketFrameBenchmark {
+	
+	private static final int MASK_KEY = 0x1A2B3C4D;
+	
+	@Param({"16", "1024", "65536"})
+	public int payloadSize;
+	
+	@Param({"true", "false"})
+	public boolean masked;
+	
+	@Param({"1", "4"})
+	public int fragments;
+	
+	private WebsocketFrame frame;
+	private int fragmentSize;
+	
+	@Setup
+	public void setup() {
+		byte [] payload = new byte[payloadSize];
+		ThreadLocalRandom.current().nextBytes(payload);
+		frame = new WebsocketFrame(WebsocketFrameType.BINARY, payload);
+		fragmentSize = Math.max(1, (payloadSize + fragments - 1) / fragments);
+	}
+	
+	@Benchmark
+	public Object encode() {
+		if (fragments == 1)
+			return frame.encode(masked, MASK_KEY);
+		return frame.encodeFragmented(masked, MASK_KEY, fragmentSize);
+	}
+	
+	@Benchmark
+	public Object encodeGathering() {
+		// Servers only: the payload is referenced rather than copied, which masking can't do
+		if (fragments == 1)
+			return frame.encodeGathering();
+		return frame.encodeFragmentedGathering(fragmentSize);
+	}
+	
+	@Benchmark
+	public int encodePooled() {
+		PooledBuffer buffer = frame.encode(PooledBufferAllocator.HEAP, masked, MASK_KEY);
+		int length = buffer.buffer().remaining();
+		buffer.release();
+		return length;
+	}
+	
+}
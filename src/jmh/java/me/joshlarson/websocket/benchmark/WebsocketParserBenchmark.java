@@ -0,0 +1,77 @@
+package me.joshlarson.websocket.benchmark;
+
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrame;
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType;
+import me.joshlarson.websocket.common.parser.websocket.WebsocketParser;
+import me.joshlarson.websocket.common.parser.websocket.WebsocketParserException;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses one read's worth of BINARY messages: {@code framesPerRead} messages, each split into {@code fragments}
+ * frames, arriving as a single chunk. The score is per read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebsocketParserBenchmark {
+	
+	@Param({"16", "1024", "65536"})
+	public int payloadSize;
+	
+	@Param({"true", "false"})
+	public boolean masked;
+	
+	@Param({"1", "4"})
+	public int fragments;
+	
+	@Param({"1", "16"})
+	public int framesPerRead;
+	
+	private WebsocketParser parser;
+	private byte [] read;
+	private ByteBuffer directRead;
+	
+	@Setup
+	public void setup() {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		int fragmentSize = Math.max(1, (payloadSize + fragments - 1) / fragments);
+		for (int i = 0; i < framesPerRead; i++) {
+			byte [] payload = new byte[payloadSize];
+			ThreadLocalRandom.current().nextBytes(payload);
+			WebsocketFrame frame = new WebsocketFrame(WebsocketFrameType.BINARY, payload);
+			for (byte [] encoded : frame.encodeFragmented(masked, ThreadLocalRandom.current().nextInt(), fragmentSize))
+				stream.writeBytes(encoded);
+		}
+		read = stream.toByteArray();
+		directRead = ByteBuffer.allocateDirect(read.length).put(read).flip();
+		parser = new WebsocketParser();
+	}
+	
+	@Benchmark
+	public void parseChunk(Blackhole blackhole) throws WebsocketParserException {
+		WebsocketFrame frame = parser.parseChunk(read, 0, read.length);
+		while (frame != null) {
+			blackhole.consume(frame);
+			frame = parser.parseChunk(null, 0, 0);
+		}
+	}
+	
+	@Benchmark
+	public void parseDirectBuffer(Blackhole blackhole) throws WebsocketParserException {
+		// Without a message listener the source is only read, so the same buffer can be parsed again
+		ByteBuffer data = directRead.duplicate();
+		WebsocketFrame frame;
+		while ((frame = parser.parseChunk(data)) != null)
+			blackhole.consume(frame);
+	}
+	
+}
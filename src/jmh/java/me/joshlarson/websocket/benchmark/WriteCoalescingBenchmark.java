@@ -0,0 +1,94 @@
+package me.joshlarson.websocket.benchmark;
+
+import me.joshlarson.websocket.common.WebSocketHandler;
+import me.joshlarson.websocket.common.WebSocketWriter;
+import me.joshlarson.websocket.common.parser.http.HttpRequest;
+import me.joshlarson.websocket.server.WebSocketServerCallback;
+import me.joshlarson.websocket.server.WebSocketServerProtocol;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a burst of small text messages through a writer that does one gathering write to a pipe per call, the way a
+ * socket transport would, and drains the pipe afterwards - so a burst has to fit in the pipe's buffer. Uncorked, every
+ * message is its own syscall.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteCoalescingBenchmark {
+	
+	@Param({"200"})
+	public int burst;
+	
+	@Param({"32", "128"})
+	public int messageSize;
+	
+	private Pipe pipe;
+	private ByteBuffer drain;
+	private WebSocketHandler handler;
+	private String message;
+	
+	@Setup
+	public void setup() throws IOException {
+		pipe = Pipe.open();
+		pipe.source().configureBlocking(false);
+		drain = ByteBuffer.allocateDirect(1024 * 1024);
+		byte [] upgradeRequest = ("GET / HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+		WebSocketWriter writer = buffers -> {
+			try {
+				pipe.sink().write(buffers);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		};
+		WebSocketServerCallback callback = new WebSocketServerCallback() {
+			@Override
+			public void onUpgrade(@NotNull WebSocketHandler obj, @NotNull HttpRequest request) {
+				handler = obj;
+			}
+		};
+		WebSocketServerProtocol protocol = new WebSocketServerProtocol(callback, writer, () -> {});
+		protocol.onRead(upgradeRequest, 0, upgradeRequest.length);
+		message = "x".repeat(messageSize);
+		drain();
+	}
+	
+	@TearDown
+	public void tearDown() throws IOException {
+		pipe.sink().close();
+		pipe.source().close();
+	}
+	
+	@Benchmark
+	public void uncorked() throws IOException {
+		for (int i = 0; i < burst; i++)
+			handler.sendText(message);
+		drain();
+	}
+	
+	@Benchmark
+	public void corked() throws IOException {
+		handler.cork();
+		for (int i = 0; i < burst; i++)
+			handler.sendText(message);
+		handler.uncork();
+		drain();
+	}
+	
+	private void drain() throws IOException {
+		do {
+			drain.clear();
+		} while (pipe.source().read(drain) > 0);
+	}
+	
+}
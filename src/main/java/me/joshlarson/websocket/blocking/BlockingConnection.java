@@ -0,0 +1,109 @@
+package me.joshlarson.websocket.blocking;
+
+import me.joshlarson.websocket.common.WebSocketProtocol;
+import me.joshlarson.websocket.common.WebSocketWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Drives one protocol from a blocking socket on its own thread. Writes happen on the calling thread.
+ */
+class BlockingConnection implements Runnable {
+	
+	private static final int BUFFER_SIZE = 8 * 1024;
+	
+	private final Socket socket;
+	private final OutputStream output;
+	// Not synchronized, since a virtual thread blocked in a monitor pins its carrier thread
+	private final ReentrantLock outputLock;
+	private final WebSocketProtocol protocol;
+	private final Consumer<BlockingConnection> onFinished;
+	
+	BlockingConnection(Socket socket, Function<BlockingConnection, WebSocketProtocol> protocolFactory, Consumer<BlockingConnection> onFinished) throws IOException {
+		this.socket = socket;
+		this.outputLock = new ReentrantLock();
+		// Frame headers are coalesced with their payload, while large payloads bypass the buffer entirely
+		this.output = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+		this.protocol = protocolFactory.apply(this);
+		this.onFinished = onFinished;
+	}
+	
+	WebSocketProtocol getProtocol() {
+		return protocol;
+	}
+	
+	WebSocketWriter getWriter() {
+		return this::write;
+	}
+	
+	void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Already closing anyway
+		}
+	}
+	
+	@Override
+	public void run() {
+		try {
+			protocol.onConnect();
+			readUntilClosed();
+		} catch (IOException e) {
+			// Closed by either side
+		} finally {
+			close();
+			protocol.onDisconnect();
+			onFinished.accept(this);
+		}
+	}
+	
+	private void readUntilClosed() throws IOException {
+		byte [] buffer = new byte[BUFFER_SIZE];
+		InputStream input = socket.getInputStream();
+		while (true) {
+			int n = input.read(buffer);
+			if (n < 0)
+				return;
+			protocol.onRead(buffer, 0, n);
+		}
+	}
+	
+	private void write(ByteBuffer [] buffers) {
+		outputLock.lock();
+		try {
+			for (ByteBuffer buffer : buffers) {
+				writeBuffer(buffer);
+			}
+			output.flush();
+		} catch (IOException e) {
+			// The reading thread notices the broken socket and finishes the disconnect
+			close();
+		} finally {
+			outputLock.unlock();
+		}
+	}
+	
+	private void writeBuffer(ByteBuffer buffer) throws IOException {
+		if (buffer.hasArray()) {
+			output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			buffer.position(buffer.limit());
+			return;
+		}
+		byte [] data = new byte[Math.min(buffer.remaining(), BUFFER_SIZE)];
+		while (buffer.hasRemaining()) {
+			int length = Math.min(buffer.remaining(), data.length);
+			buffer.get(data, 0, length);
+			output.write(data, 0, length);
+		}
+	}
+	
+}
@@ -0,0 +1,76 @@
+package me.joshlarson.websocket.blocking;
+
+import me.joshlarson.websocket.client.WebSocketClientCallback;
+import me.joshlarson.websocket.client.WebSocketClientProtocol;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+
+/**
+ * Connects a {@link WebSocketClientProtocol} over a blocking socket, reading on its own (virtual, when supported)
+ * thread. Everything after {@link #connect()} is reported through the callback.
+ */
+public class BlockingWebSocketClient implements AutoCloseable {
+	
+	private final WebSocketClientCallback callback;
+	private final InetSocketAddress address;
+	private final String url;
+	
+	private ThreadFactory threadFactory;
+	private Consumer<WebSocketClientProtocol> protocolInitializer;
+	private BlockingConnection connection;
+	
+	public BlockingWebSocketClient(@NotNull WebSocketClientCallback callback, @NotNull InetSocketAddress address, @NotNull String url) {
+		this.callback = callback;
+		this.address = address;
+		this.url = url;
+		this.threadFactory = ConnectionThreads.newThreadFactory("websocket-client");
+		this.protocolInitializer = protocol -> {};
+		this.connection = null;
+	}
+	
+	public void setThreadFactory(@NotNull ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+	
+	public void setProtocolInitializer(@NotNull Consumer<WebSocketClientProtocol> protocolInitializer) {
+		this.protocolInitializer = protocolInitializer;
+	}
+	
+	public synchronized void connect() throws IOException {
+		if (connection != null)
+			throw new IllegalStateException("already connected");
+		
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(address);
+			connection = new BlockingConnection(socket, this::createProtocol, finished -> {});
+		} catch (IOException | RuntimeException e) {
+			socket.close();
+			throw e;
+		}
+		threadFactory.newThread(connection).start();
+	}
+	
+	/**
+	 * Drops the connection without a closing handshake - use the handler's close() for a clean close
+	 */
+	@Override
+	public synchronized void close() {
+		if (connection != null)
+			connection.close();
+	}
+	
+	private WebSocketClientProtocol createProtocol(BlockingConnection connection) {
+		String host = address.getHostString() + ":" + address.getPort();
+		WebSocketClientProtocol protocol = new WebSocketClientProtocol(callback, url, host, connection.getWriter(), connection::close);
+		protocolInitializer.accept(protocol);
+		return protocol;
+	}
+	
+}
@@ -0,0 +1,128 @@
+package me.joshlarson.websocket.blocking;
+
+import me.joshlarson.websocket.server.WebSocketServerCallback;
+import me.joshlarson.websocket.server.WebSocketServerProtocol;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Consumer;
+
+/**
+ * Thread-per-connection server using blocking sockets. Connections run on virtual threads when the runtime supports
+ * them, which keeps the simple blocking model usable for tens of thousands of connections.
+ */
+public class BlockingWebSocketServer implements AutoCloseable {
+	
+	private final WebSocketServerCallback callback;
+	private final InetSocketAddress address;
+	private final Set<BlockingConnection> connections;
+	
+	private ThreadFactory threadFactory;
+	private Consumer<WebSocketServerProtocol> protocolInitializer;
+	private ServerSocket serverSocket;
+	
+	public BlockingWebSocketServer(@NotNull WebSocketServerCallback callback, @NotNull InetSocketAddress address) {
+		this.callback = callback;
+		this.address = address;
+		this.connections = ConcurrentHashMap.newKeySet();
+		this.threadFactory = ConnectionThreads.newThreadFactory("websocket-server");
+		this.protocolInitializer = protocol -> {};
+		this.serverSocket = null;
+	}
+	
+	public static boolean isVirtualThreadSupported() {
+		return ConnectionThreads.isVirtualThreadSupported();
+	}
+	
+	/**
+	 * Overrides the threads connections run on, e.g. to compare against platform threads
+	 */
+	public void setThreadFactory(@NotNull ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+	
+	/**
+	 * Called for every new connection before it starts reading, e.g. to configure limits or streaming
+	 */
+	public void setProtocolInitializer(@NotNull Consumer<WebSocketServerProtocol> protocolInitializer) {
+		this.protocolInitializer = protocolInitializer;
+	}
+	
+	public synchronized void start() throws IOException {
+		if (serverSocket != null)
+			throw new IllegalStateException("server already started");
+		
+		ServerSocket socket = new ServerSocket();
+		try {
+			socket.bind(address, 1024);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		serverSocket = socket;
+		threadFactory.newThread(() -> acceptConnections(socket)).start();
+	}
+	
+	/**
+	 * Returns the bound address, which includes the actual port when started on port 0
+	 */
+	@NotNull
+	public synchronized InetSocketAddress getLocalAddress() {
+		if (serverSocket == null)
+			throw new IllegalStateException("server not started");
+		return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+	}
+	
+	@Override
+	public synchronized void close() {
+		if (serverSocket == null)
+			return;
+		
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// Nothing else can be done with it
+		}
+		serverSocket = null;
+		for (BlockingConnection connection : connections) {
+			connection.close();
+		}
+	}
+	
+	private void acceptConnections(ServerSocket serverSocket) {
+		while (!serverSocket.isClosed()) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				return;
+			}
+			
+			try {
+				socket.setTcpNoDelay(true);
+				BlockingConnection connection = new BlockingConnection(socket, this::createProtocol, connections::remove);
+				connections.add(connection);
+				threadFactory.newThread(connection).start();
+			} catch (IOException | RuntimeException e) {
+				try {
+					socket.close();
+				} catch (IOException closeException) {
+					// Dropping it either way
+				}
+			}
+		}
+	}
+	
+	private WebSocketServerProtocol createProtocol(BlockingConnection connection) {
+		WebSocketServerProtocol protocol = new WebSocketServerProtocol(callback, connection.getWriter(), connection::close);
+		protocolInitializer.accept(protocol);
+		return protocol;
+	}
+	
+}
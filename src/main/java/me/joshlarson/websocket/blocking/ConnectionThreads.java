@@ -0,0 +1,56 @@
+package me.joshlarson.websocket.blocking;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads when the runtime has them (Java 21+), and daemon platform threads otherwise. The library
+ * is compiled for Java 17, so the virtual thread builder can only be reached reflectively.
+ */
+final class ConnectionThreads {
+	
+	private static final MethodHandle OF_VIRTUAL = findOfVirtual();
+	
+	private ConnectionThreads() {}
+	
+	static boolean isVirtualThreadSupported() {
+		return OF_VIRTUAL != null;
+	}
+	
+	static ThreadFactory newThreadFactory(String name) {
+		if (OF_VIRTUAL != null) {
+			try {
+				return (ThreadFactory) OF_VIRTUAL.invoke(name);
+			} catch (Throwable t) {
+				// Fall back to platform threads below
+			}
+		}
+		return runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+	
+	private static MethodHandle findOfVirtual() {
+		// Virtual threads were a preview feature before 21
+		if (Runtime.version().feature() < 21)
+			return null;
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Class<?> virtualBuilderClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+			MethodHandle ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(virtualBuilderClass));
+			MethodHandle name = lookup.findVirtual(builderClass, "name", MethodType.methodType(builderClass, String.class));
+			MethodHandle factory = lookup.findVirtual(builderClass, "factory", MethodType.methodType(ThreadFactory.class));
+			// name -> Thread.ofVirtual().name(name).factory()
+			MethodHandle named = MethodHandles.collectArguments(name, 0, ofVirtual.asType(MethodType.methodType(builderClass)));
+			return MethodHandles.filterReturnValue(named, factory).asType(MethodType.methodType(ThreadFactory.class, String.class));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+	
+}
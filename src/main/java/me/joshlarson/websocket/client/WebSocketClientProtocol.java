@@ -1,6 +1,9 @@
 package me.joshlarson.websocket.client;
 
 import me.joshlarson.websocket.common.WebSocketProtocol;
+import me.joshlarson.websocket.common.WebSocketWriter;
+import me.joshlarson.websocket.common.extension.PerMessageDeflate;
+import me.joshlarson.websocket.common.extension.PerMessageDeflateOptions;
 import me.joshlarson.websocket.common.parser.http.HttpFrame;
 import me.joshlarson.websocket.common.parser.http.HttpRequest;
 import me.joshlarson.websocket.common.parser.http.HttpResponse;
@@ -26,20 +29,29 @@ public class WebSocketClientProtocol extends WebSocketProtocol {
 		this.callback = callback;
 		this.url = url;
 		this.host = host;
-		
-		// Generate this session's random key
-		byte [] websocketRequestKeyRaw = new byte[16];
-		new SecureRandom().nextBytes(websocketRequestKeyRaw);
-		this.websocketRequestKey = Base64.getEncoder().encodeToString(websocketRequestKeyRaw);
+		this.websocketRequestKey = generateRequestKey();
+	}
+	
+	public WebSocketClientProtocol(@NotNull WebSocketClientCallback callback, @NotNull String url, @Nullable String host, @NotNull WebSocketWriter writer, @NotNull Runnable closer) {
+		super(callback, writer, closer);
+		this.callback = callback;
+		this.url = url;
+		this.host = host;
+		this.websocketRequestKey = generateRequestKey();
 	}
 	
 	public WebSocketClientProtocol(@NotNull WebSocketClientCallback callback, @NotNull String url, @NotNull Consumer<byte []> writer, @NotNull Runnable closer) {
 		this(callback, url, null, writer, closer);
 	}
 	
+	public WebSocketClientProtocol(@NotNull WebSocketClientCallback callback, @NotNull String url, @NotNull WebSocketWriter writer, @NotNull Runnable closer) {
+		this(callback, url, null, writer, closer);
+	}
+	
 	@Override
 	public void onConnect() {
 		super.onConnect();
+		startHandshake();
 		
 		Map<String, String> requestHeaders = new HashMap<>();
 		requestHeaders.put("Upgrade", "websocket");
@@ -49,6 +61,9 @@ public class WebSocketClientProtocol extends WebSocketProtocol {
 		requestHeaders.put("Sec-WebSocket-Key", websocketRequestKey);
 		requestHeaders.put("Sec-WebSocket-Protocol", "");
 		requestHeaders.put("Sec-WebSocket-Version", "13");
+		PerMessageDeflateOptions perMessageDeflateOptions = getPerMessageDeflateOptions();
+		if (perMessageDeflateOptions != null)
+			requestHeaders.put("Sec-WebSocket-Extensions", PerMessageDeflate.createOffer(perMessageDeflateOptions));
 		send(new HttpRequest("GET", url, "HTTP/1.1", requestHeaders, new byte[0]));
 	}
 	
@@ -76,8 +91,27 @@ public class WebSocketClientProtocol extends WebSocketProtocol {
 			return;
 		}
 		
-		switchToWebsocket();
-		callback.onUpgrade(getHandler(), response);
+		String extensions = response.getHeaderValue("Sec-WebSocket-Extensions");
+		if (extensions != null && !extensions.isBlank()) {
+			// The server may only accept what was offered
+			PerMessageDeflateOptions perMessageDeflateOptions = getPerMessageDeflateOptions();
+			PerMessageDeflate perMessageDeflate = (perMessageDeflateOptions == null) ? null : PerMessageDeflate.acceptResponse(extensions, perMessageDeflateOptions);
+			if (perMessageDeflate == null) {
+				socketClose();
+				return;
+			}
+			enablePerMessageDeflate(perMessageDeflate);
+		}
+		
+		if (switchToWebsocket())
+			callback.onUpgrade(getHandler(), response);
+	}
+	
+	private static String generateRequestKey() {
+		// Generate this session's random key
+		byte [] websocketRequestKeyRaw = new byte[16];
+		new SecureRandom().nextBytes(websocketRequestKeyRaw);
+		return Base64.getEncoder().encodeToString(websocketRequestKeyRaw);
 	}
 	
 }
@@ -0,0 +1,217 @@
+package me.joshlarson.websocket.common;
+
+import me.joshlarson.websocket.common.buffer.BufferAllocator;
+import me.joshlarson.websocket.common.buffer.PooledBuffer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies writes into one batch buffer while corked or auto-flushing, and hands the batch to the real writer in a single
+ * call when flushed. Writes too large to be worth copying flush the batch and then go straight through, so everything
+ * still reaches the writer in order.
+ */
+final class CoalescingWriter implements WebSocketWriter {
+	
+	// Larger writes aren't copied
+	private static final int MAX_COALESCED_WRITE = 16 * 1024;
+	// The batch is flushed rather than grown past this
+	private static final int MAX_BATCH_SIZE = 64 * 1024;
+	private static final int INITIAL_BATCH_CAPACITY = 4 * 1024;
+	
+	private final WebSocketWriter writer;
+	private BufferAllocator allocator;
+	private ScheduledExecutorService scheduler;
+	private long maxDelayNanos;
+	private ScheduledFuture<?> scheduledFlush;
+	private PooledBuffer pooledBatch;
+	private ByteBuffer batch;
+	private int corks;
+	private boolean closed;
+	
+	CoalescingWriter(@NotNull WebSocketWriter writer, @Nullable BufferAllocator allocator) {
+		this.writer = writer;
+		this.allocator = allocator;
+		this.scheduler = null;
+		this.maxDelayNanos = 0;
+		this.scheduledFlush = null;
+		this.pooledBatch = null;
+		this.batch = null;
+		this.corks = 0;
+		this.closed = false;
+	}
+	
+	/**
+	 * Takes effect the next time a batch buffer is allocated
+	 */
+	synchronized void setAllocator(@Nullable BufferAllocator allocator) {
+		this.allocator = allocator;
+	}
+	
+	/**
+	 * Holds writes back for at most {@code maxDelayNanos} while not corked, flushing them from the scheduler. A null
+	 * scheduler flushes anything pending and stops holding writes back.
+	 */
+	synchronized void setAutoFlush(@Nullable ScheduledExecutorService scheduler, long maxDelayNanos) {
+		this.scheduler = scheduler;
+		this.maxDelayNanos = maxDelayNanos;
+		if (scheduler == null && corks == 0)
+			flush();
+	}
+	
+	synchronized void cork() {
+		corks++;
+	}
+	
+	/**
+	 * Flushes once every cork has been undone
+	 */
+	synchronized void uncork() {
+		if (corks == 0)
+			return;
+		corks--;
+		if (corks == 0)
+			flush();
+	}
+	
+	synchronized boolean isCoalescing() {
+		return !closed && (corks > 0 || scheduler != null);
+	}
+	
+	/**
+	 * A natural end to a burst when auto-flushing - replies to everything that was just read go out together
+	 */
+	synchronized void onReadComplete() {
+		if (corks == 0 && scheduler != null)
+			flush();
+	}
+	
+	synchronized void flush() {
+		if (scheduledFlush != null) {
+			scheduledFlush.cancel(false);
+			scheduledFlush = null;
+		}
+		if (batch == null)
+			return;
+		
+		ByteBuffer batch = this.batch;
+		PooledBuffer pooledBatch = this.pooledBatch;
+		this.batch = null;
+		this.pooledBatch = null;
+		batch.flip();
+		if (pooledBatch != null)
+			writer.write(pooledBatch);
+		else
+			writer.write(batch);
+	}
+	
+	private synchronized void flushScheduled() {
+		// Corked after the deadline was set, in which case the uncork flushes instead
+		if (corks == 0)
+			flush();
+		else
+			scheduledFlush = null;
+	}
+	
+	/**
+	 * Drops anything still pending - the connection is gone
+	 */
+	synchronized void close() {
+		closed = true;
+		if (scheduledFlush != null)
+			scheduledFlush.cancel(false);
+		if (pooledBatch != null)
+			pooledBatch.release();
+		scheduledFlush = null;
+		pooledBatch = null;
+		batch = null;
+	}
+	
+	@Override
+	public synchronized long getPendingBytes() {
+		return writer.getPendingBytes() + ((batch == null) ? 0 : batch.position());
+	}
+	
+	@Override
+	public boolean mayBlock() {
+		return writer.mayBlock();
+	}
+	
+	@Override
+	@Nullable
+	public Executor getOwner() {
+		return writer.getOwner();
+	}
+	
+	@Override
+	public synchronized void write(@NotNull ByteBuffer [] buffers) {
+		if (!isCoalescing()) {
+			writer.write(buffers);
+			return;
+		}
+		
+		long length = 0;
+		for (ByteBuffer buffer : buffers)
+			length += buffer.remaining();
+		if (length > MAX_COALESCED_WRITE) {
+			flush();
+			writer.write(buffers);
+			return;
+		}
+		ByteBuffer batch = reserve((int) length);
+		for (ByteBuffer buffer : buffers)
+			batch.put(buffer);
+	}
+	
+	@Override
+	public synchronized void write(@NotNull PooledBuffer buffer) {
+		if (!isCoalescing() || buffer.buffer().remaining() > MAX_COALESCED_WRITE) {
+			flush();
+			writer.write(buffer);
+			return;
+		}
+		
+		try {
+			reserve(buffer.buffer().remaining()).put(buffer.buffer());
+		} finally {
+			buffer.release();
+		}
+	}
+	
+	private ByteBuffer reserve(int length) {
+		int pending = (batch == null) ? 0 : batch.position();
+		if (batch != null && batch.remaining() >= length)
+			return batch;
+		if (pending + length > MAX_BATCH_SIZE) {
+			flush();
+			pending = 0;
+		}
+		
+		int capacity = Math.max(INITIAL_BATCH_CAPACITY, Integer.highestOneBit(pending + length - 1) << 1);
+		PooledBuffer newPooledBatch = null;
+		ByteBuffer newBatch;
+		if (allocator != null) {
+			newPooledBatch = allocator.allocate(capacity);
+			newBatch = newPooledBatch.buffer();
+		} else {
+			newBatch = ByteBuffer.allocate(capacity);
+		}
+		if (batch != null) {
+			newBatch.put(batch.flip());
+			if (pooledBatch != null)
+				pooledBatch.release();
+		} else if (scheduler != null && corks == 0) {
+			// The first write of a batch starts its deadline
+			scheduledFlush = scheduler.schedule(this::flushScheduled, maxDelayNanos, TimeUnit.NANOSECONDS);
+		}
+		this.pooledBatch = newPooledBatch;
+		this.batch = newBatch;
+		return newBatch;
+	}
+	
+}
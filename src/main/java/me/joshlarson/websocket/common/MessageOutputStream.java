@@ -0,0 +1,163 @@
+package me.joshlarson.websocket.common;
+
+import me.joshlarson.websocket.common.buffer.BufferAllocator;
+import me.joshlarson.websocket.common.buffer.PooledBuffer;
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrame;
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Writes a message one fragment at a time as its payload is produced. Each fragment is encoded in place, after room
+ * left for its header, and handed to the writer as is - writers may queue what they're given, so every fragment gets a
+ * new buffer, pooled when the protocol has an allocator.
+ */
+final class MessageOutputStream extends OutputStream {
+	
+	private final WebSocketProtocol protocol;
+	private final WebsocketFrameType type;
+	private final int fragmentSize;
+	private final int headerSpace;
+	private final BufferAllocator allocator;
+	private PooledBuffer pooledFragment;
+	private ByteBuffer fragment;
+	private boolean started;
+	private boolean closing;
+	private boolean closed;
+	private long size;
+	
+	MessageOutputStream(@NotNull WebSocketProtocol protocol, @NotNull WebsocketFrameType type, int fragmentSize, @Nullable BufferAllocator allocator) {
+		this.protocol = protocol;
+		this.type = type;
+		this.fragmentSize = fragmentSize;
+		this.headerSpace = WebsocketFrame.getHeaderLength(false, fragmentSize);
+		this.allocator = allocator;
+		this.pooledFragment = null;
+		this.fragment = null;
+		this.started = false;
+		this.closing = false;
+		this.closed = false;
+		this.size = 0;
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		reserve().put((byte) b);
+	}
+	
+	@Override
+	public void write(@NotNull byte [] b, int off, int len) throws IOException {
+		Objects.checkFromIndexSize(off, len, b.length);
+		while (len > 0) {
+			ByteBuffer fragment = reserve();
+			int count = Math.min(len, fragment.remaining());
+			fragment.put(b, off, count);
+			off += count;
+			len -= count;
+		}
+	}
+	
+	/**
+	 * Sends whatever has been written so far as a fragment of its own
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (!closing && !closed && fragment != null && fragment.position() > headerSpace)
+			writeFragment(false);
+	}
+	
+	/**
+	 * Sends the last fragment, ending the message
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		try {
+			writeFragment(true);
+		} finally {
+			finish();
+		}
+	}
+	
+	/**
+	 * A UTF-8 writer over this stream, which ends the message when closed
+	 */
+	@NotNull
+	Writer openTextWriter() {
+		return new OutputStreamWriter(this, StandardCharsets.UTF_8) {
+			@Override
+			public void close() throws IOException {
+				// The writer flushes the stream right before closing it, which would send the tail as a fragment of its
+				// own and then an empty one to end the message
+				closing = true;
+				super.close();
+			}
+		};
+	}
+	
+	/**
+	 * Returns the current fragment with room for at least one more byte, sending it first if it is already full
+	 */
+	private ByteBuffer reserve() throws IOException {
+		if (closed)
+			throw new IOException("stream closed");
+		if (fragment != null && !fragment.hasRemaining())
+			writeFragment(false);
+		if (fragment == null)
+			allocateFragment();
+		return fragment;
+	}
+	
+	private void allocateFragment() {
+		int capacity = headerSpace + fragmentSize;
+		if (allocator != null) {
+			pooledFragment = allocator.allocate(capacity);
+			fragment = pooledFragment.buffer();
+		} else {
+			fragment = ByteBuffer.allocate(capacity);
+		}
+		fragment.clear().limit(capacity).position(headerSpace);
+	}
+	
+	private void writeFragment(boolean fin) throws IOException {
+		if (fragment == null)
+			allocateFragment();
+		ByteBuffer encoded = fragment;
+		PooledBuffer pooled = pooledFragment;
+		fragment = null;
+		pooledFragment = null;
+		
+		// The header goes right in front of the payload, so it starts wherever its length leaves room for
+		int length = encoded.position() - headerSpace;
+		int start = headerSpace - WebsocketFrame.getHeaderLength(false, length);
+		encoded.limit(encoded.position()).position(start);
+		WebsocketFrame.encodeHeader(encoded.duplicate(), started ? WebsocketFrameType.CONTINUATION : type, fin, false, 0, length);
+		started = true;
+		size += length;
+		if (!protocol.writeStreamedFragment(encoded, pooled)) {
+			finish();
+			throw new IOException("connection closed");
+		}
+	}
+	
+	private void finish() {
+		if (closed)
+			return;
+		closed = true;
+		if (pooledFragment != null)
+			pooledFragment.release();
+		pooledFragment = null;
+		fragment = null;
+		protocol.finishStreamedMessage(type, size);
+	}
+	
+}
@@ -0,0 +1,135 @@
+package me.joshlarson.websocket.common;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * A multi-producer, single-consumer queue of outgoing writes. Producers link their item in with a single atomic swap
+ * and never wait for each other. The first to find the queue idle starts a drain - on the owner when there is one,
+ * otherwise right there - which hands every item to the consumer in order, including any added while it runs.
+ */
+final class OutboundQueue<T> {
+	
+	private static final VarHandle TAIL;
+	private static final VarHandle WORK;
+	private static final VarHandle QUEUED_BYTES;
+	private static final VarHandle NEXT;
+	
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			TAIL = lookup.findVarHandle(OutboundQueue.class, "tail", Node.class);
+			WORK = lookup.findVarHandle(OutboundQueue.class, "work", int.class);
+			QUEUED_BYTES = lookup.findVarHandle(OutboundQueue.class, "queuedBytes", long.class);
+			NEXT = lookup.findVarHandle(Node.class, "next", Node.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	private final Consumer<T> consumer;
+	private final Executor owner;
+	private final Runnable drainTask;
+	// Only touched by the draining thread
+	private Node<T> head;
+	@SuppressWarnings("unused") // accessed through TAIL
+	private volatile Node<T> tail;
+	// Items added but not yet handed to the consumer
+	@SuppressWarnings("unused") // accessed through WORK
+	private volatile int work;
+	@SuppressWarnings("unused") // accessed through QUEUED_BYTES
+	private volatile long queuedBytes;
+	
+	OutboundQueue(@NotNull Consumer<T> consumer, @Nullable Executor owner) {
+		this.consumer = consumer;
+		this.owner = owner;
+		this.drainTask = this::drain;
+		this.head = new Node<>(null, 0);
+		this.tail = head;
+		this.work = 0;
+		this.queuedBytes = 0;
+	}
+	
+	/**
+	 * Safe to call from any thread. The length only counts towards {@link #getQueuedBytes()}.
+	 */
+	void add(@NotNull T item, long length) {
+		Node<T> node = new Node<>(item, length);
+		if (length > 0)
+			QUEUED_BYTES.getAndAdd(this, length);
+		@SuppressWarnings("unchecked")
+		Node<T> previous = (Node<T>) TAIL.getAndSet(this, node);
+		NEXT.setRelease(previous, node);
+		// Counted only once linked in, so the drain that sees the count finds the item once earlier ones are linked too
+		if ((int) WORK.getAndAdd(this, 1) == 0) {
+			if (owner != null)
+				owner.execute(drainTask);
+			else
+				drain();
+		}
+	}
+	
+	long getQueuedBytes() {
+		return queuedBytes;
+	}
+	
+	private void drain() {
+		RuntimeException failure = null;
+		int missed = 1;
+		do {
+			for (int i = 0; i < missed; i++) {
+				Node<T> next = awaitNext(head);
+				T item = next.item;
+				next.item = null;
+				head = next;
+				if (next.length > 0)
+					QUEUED_BYTES.getAndAdd(this, -next.length);
+				// Stopping part way would leave the rest queued with nobody left to drain it
+				try {
+					consumer.accept(item);
+				} catch (RuntimeException e) {
+					if (failure == null)
+						failure = e;
+					else
+						failure.addSuppressed(e);
+				}
+			}
+			missed = (int) WORK.getAndAdd(this, -missed) - missed;
+		} while (missed != 0);
+		if (failure != null)
+			throw failure;
+	}
+	
+	/**
+	 * A later item being counted doesn't mean this one is linked in yet - its producer may still be between the swap
+	 * and the link, which it is bound to finish shortly
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> Node<T> awaitNext(Node<T> node) {
+		Node<T> next;
+		while ((next = (Node<T>) NEXT.getAcquire(node)) == null)
+			Thread.onSpinWait();
+		return next;
+	}
+	
+	private static final class Node<T> {
+		
+		private final long length;
+		private T item;
+		@SuppressWarnings("unused") // accessed through NEXT
+		private volatile Node<T> next;
+		
+		Node(T item, long length) {
+			this.item = item;
+			this.length = length;
+			this.next = null;
+		}
+		
+	}
+	
+}
@@ -1,8 +1,11 @@
 package me.joshlarson.websocket.common;
 
 
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType;
 import org.jetbrains.annotations.NotNull;
 
+import java.nio.ByteBuffer;
+
 public interface WebSocketCallback {
 	
 	default void onConnect(@NotNull WebSocketHandler obj) {}
@@ -13,6 +16,33 @@ public interface WebSocketCallback {
 	
 	default void onBinaryMessage(@NotNull WebSocketHandler obj, @NotNull byte [] data) {}
 	
+	/**
+	 * Only called when streaming messages are enabled on the protocol. Text arrives as UTF-8 bytes, and a chunk may end
+	 * part way through a character.
+	 */
+	default void onMessageStart(@NotNull WebSocketHandler obj, @NotNull WebsocketFrameType type) {}
+	
+	/**
+	 * The buffer is only valid until this returns
+	 */
+	default void onMessageData(@NotNull WebSocketHandler obj, @NotNull ByteBuffer data) {}
+	
+	default void onMessageEnd(@NotNull WebSocketHandler obj) {}
+	
+	/**
+	 * Only called when streaming HTTP bodies are enabled on the protocol, following the request or response the body
+	 * belongs to. The buffer is only valid until this returns.
+	 */
+	default void onHttpBodyData(@NotNull WebSocketHandler obj, @NotNull ByteBuffer data) {}
+	
+	default void onHttpBodyEnd(@NotNull WebSocketHandler obj) {}
+	
+	/**
+	 * Only called once write buffer watermarks are set on the protocol: false when the write backlog reaches the high
+	 * watermark, and true again once it drains to the low watermark
+	 */
+	default void onWritabilityChanged(@NotNull WebSocketHandler obj, boolean writable) {}
+	
 	default void onPing(@NotNull WebSocketHandler obj, @NotNull byte [] data) {}
 	
 	default void onPong(@NotNull WebSocketHandler obj, @NotNull byte [] data) {}
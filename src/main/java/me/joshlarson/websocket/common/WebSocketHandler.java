@@ -1,10 +1,13 @@
 package me.joshlarson.websocket.common;
 
 import me.joshlarson.websocket.common.parser.http.HttpFrame;
+import me.joshlarson.websocket.common.parser.websocket.PreparedWebsocketFrame;
 import me.joshlarson.websocket.common.parser.websocket.WebsocketFrame;
 import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.OutputStream;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 
 public record WebSocketHandler(@NotNull WebSocketProtocol protocol) {
@@ -33,8 +36,84 @@ public record WebSocketHandler(@NotNull WebSocketProtocol protocol) {
 		protocol.send(new WebsocketFrame(WebsocketFrameType.PONG, data));
 	}
 	
+	/**
+	 * Sends a frame prepared once for many connections, e.g. {@code PreparedWebsocketFrame.text(...)} for a broadcast
+	 */
+	public void send(@NotNull PreparedWebsocketFrame frame) {
+		protocol.send(frame);
+	}
+	
+	/**
+	 * Starts a binary message that is sent in fragments as it is written, and ended by closing the stream - see
+	 * {@link WebSocketProtocol#openMessageStream}
+	 */
+	@NotNull
+	public OutputStream openBinaryStream() {
+		return protocol.openMessageStream(WebsocketFrameType.BINARY, 0);
+	}
+	
+	@NotNull
+	public OutputStream openBinaryStream(int fragmentSize) {
+		return protocol.openMessageStream(WebsocketFrameType.BINARY, fragmentSize);
+	}
+	
+	/**
+	 * Starts a text message that is sent in fragments as it is written, and ended by closing the writer
+	 */
+	@NotNull
+	public Writer openTextWriter() {
+		return openTextWriter(0);
+	}
+	
+	@NotNull
+	public Writer openTextWriter(int fragmentSize) {
+		return ((MessageOutputStream) protocol.openMessageStream(WebsocketFrameType.TEXT, fragmentSize)).openTextWriter();
+	}
+	
+	/**
+	 * Sends everything the batch sends as one write, see {@link WebSocketProtocol#cork()}
+	 */
+	public void batch(@NotNull Runnable batch) {
+		protocol.cork();
+		try {
+			batch.run();
+		} finally {
+			protocol.uncork();
+		}
+	}
+	
+	/**
+	 * False while the write backlog is above the protocol's high watermark
+	 */
+	public boolean isWritable() {
+		return protocol.isWritable();
+	}
+	
+	public void cork() {
+		protocol.cork();
+	}
+	
+	public void uncork() {
+		protocol.uncork();
+	}
+	
+	public void flush() {
+		protocol.flush();
+	}
+	
 	public void sendHttpFrame(HttpFrame frame) {
 		protocol.send(frame);
 	}
 	
+	/**
+	 * Sends one chunk of a body, after a frame sent with a {@code Transfer-Encoding: chunked} header
+	 */
+	public void sendHttpChunk(@NotNull byte [] data) {
+		protocol.sendHttpChunk(data, 0, data.length);
+	}
+	
+	public void finishHttpChunks() {
+		protocol.sendHttpLastChunk();
+	}
+	
 }
@@ -0,0 +1,143 @@
+package me.joshlarson.websocket.common;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Server side of the opening handshake. Each thread hashes with its own SHA-1 digest and scratch buffers, the accept key
+ * is Base64 encoded straight into the response bytes, and the 101 response is a pre-encoded template with only the
+ * accept key patched in.
+ */
+public final class WebSocketHandshake {
+	
+	private static final byte [] GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11".getBytes(StandardCharsets.US_ASCII);
+	private static final byte [] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+	private static final int SHA1_LENGTH = 20;
+	private static final int ACCEPT_KEY_LENGTH = 28;
+	private static final String ACCEPT_KEY_PLACEHOLDER = "=".repeat(ACCEPT_KEY_LENGTH);
+	private static final byte [] UPGRADE_RESPONSE = ("HTTP/1.1 101 Switching Protocols\r\n" +
+			"Upgrade: websocket\r\n" +
+			"Connection: Upgrade\r\n" +
+			"Sec-WebSocket-Protocol: \r\n" +
+			"Sec-WebSocket-Accept: " + ACCEPT_KEY_PLACEHOLDER + "\r\n" +
+			"\r\n").getBytes(StandardCharsets.US_ASCII);
+	private static final int ACCEPT_KEY_OFFSET = new String(UPGRADE_RESPONSE, StandardCharsets.US_ASCII).indexOf(ACCEPT_KEY_PLACEHOLDER);
+	private static final byte [] EXTENSIONS_HEADER = "Sec-WebSocket-Extensions: ".getBytes(StandardCharsets.US_ASCII);
+	private static final ThreadLocal<DigestState> DIGEST_STATE = ThreadLocal.withInitial(DigestState::new);
+	
+	private WebSocketHandshake() {}
+	
+	/**
+	 * Returns the Sec-WebSocket-Accept value for the request's Sec-WebSocket-Key
+	 */
+	@NotNull
+	public static String getAcceptKey(@NotNull String websocketKey) {
+		byte [] acceptKey = new byte[ACCEPT_KEY_LENGTH];
+		encodeAcceptKey(websocketKey, acceptKey, 0);
+		return new String(acceptKey, StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * Writes the 28 ASCII bytes of the Sec-WebSocket-Accept value for the request's Sec-WebSocket-Key
+	 */
+	public static void encodeAcceptKey(@NotNull String websocketKey, @NotNull byte [] destination, int offset) {
+		DigestState state = DIGEST_STATE.get();
+		byte [] digest = state.digest(websocketKey);
+		
+		for (int i = 0; i < SHA1_LENGTH - 2; i += 3, offset += 4) {
+			int group = ((digest[i] & 0xFF) << 16) | ((digest[i+1] & 0xFF) << 8) | (digest[i+2] & 0xFF);
+			destination[offset] = BASE64[group >>> 18];
+			destination[offset+1] = BASE64[(group >>> 12) & 0x3F];
+			destination[offset+2] = BASE64[(group >>> 6) & 0x3F];
+			destination[offset+3] = BASE64[group & 0x3F];
+		}
+		// 20 bytes leave two over, which encode as three characters and one pad
+		int group = ((digest[18] & 0xFF) << 8) | (digest[19] & 0xFF);
+		destination[offset] = BASE64[group >>> 10];
+		destination[offset+1] = BASE64[(group >>> 4) & 0x3F];
+		destination[offset+2] = BASE64[(group << 2) & 0x3F];
+		destination[offset+3] = '=';
+	}
+	
+	/**
+	 * Returns the complete 101 Switching Protocols response, including the negotiated extensions when there are any
+	 */
+	@NotNull
+	public static byte [] encodeUpgradeResponse(@NotNull String websocketKey, @Nullable String extensions) {
+		byte [] response;
+		if (extensions == null) {
+			response = UPGRADE_RESPONSE.clone();
+		} else {
+			// Inserted before the blank line that ends the template
+			byte [] encodedExtensions = extensions.getBytes(StandardCharsets.UTF_8);
+			int headersEnd = UPGRADE_RESPONSE.length - 2;
+			response = Arrays.copyOf(UPGRADE_RESPONSE, UPGRADE_RESPONSE.length + EXTENSIONS_HEADER.length + encodedExtensions.length + 2);
+			int offset = headersEnd;
+			System.arraycopy(EXTENSIONS_HEADER, 0, response, offset, EXTENSIONS_HEADER.length);
+			offset += EXTENSIONS_HEADER.length;
+			System.arraycopy(encodedExtensions, 0, response, offset, encodedExtensions.length);
+			offset += encodedExtensions.length;
+			response[offset++] = '\r';
+			response[offset++] = '\n';
+			response[offset++] = '\r';
+			response[offset] = '\n';
+		}
+		encodeAcceptKey(websocketKey, response, ACCEPT_KEY_OFFSET);
+		return response;
+	}
+	
+	private static final class DigestState {
+		
+		private final MessageDigest sha1;
+		private final byte [] digest;
+		private byte [] input;
+		
+		public DigestState() {
+			try {
+				this.sha1 = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-1 is required by every Java platform", e);
+			}
+			this.digest = new byte[SHA1_LENGTH];
+			this.input = new byte[24 + GUID.length];
+		}
+		
+		public byte [] digest(String websocketKey) {
+			int length = websocketKey.length();
+			byte [] key = null;
+			for (int i = 0; i < length; i++) {
+				if (websocketKey.charAt(i) >= 0x80) {
+					// Never a valid key, but hashed as UTF-8 all the same
+					key = websocketKey.getBytes(StandardCharsets.UTF_8);
+					length = key.length;
+					break;
+				}
+			}
+			if (input.length < length + GUID.length)
+				input = new byte[length + GUID.length];
+			if (key != null) {
+				System.arraycopy(key, 0, input, 0, length);
+			} else {
+				for (int i = 0; i < length; i++)
+					input[i] = (byte) websocketKey.charAt(i);
+			}
+			System.arraycopy(GUID, 0, input, length, GUID.length);
+			
+			sha1.update(input, 0, length + GUID.length);
+			try {
+				sha1.digest(digest, 0, SHA1_LENGTH);
+			} catch (DigestException e) {
+				throw new IllegalStateException(e);
+			}
+			return digest;
+		}
+		
+	}
+	
+}
@@ -1,100 +1,538 @@
 package me.joshlarson.websocket.common;
 
+import me.joshlarson.websocket.common.buffer.BufferAllocator;
+import me.joshlarson.websocket.common.buffer.PooledBuffer;
+import me.joshlarson.websocket.common.extension.PerMessageDeflate;
+import me.joshlarson.websocket.common.extension.PerMessageDeflateOptions;
+import me.joshlarson.websocket.common.metrics.WebSocketMetrics;
 import me.joshlarson.websocket.common.parser.ParserByteStream;
 import me.joshlarson.websocket.common.parser.http.*;
 import me.joshlarson.websocket.common.parser.websocket.*;
+import me.joshlarson.websocket.common.timer.HashedWheelTimer;
+import me.joshlarson.websocket.common.timer.Timeout;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 
+/**
+ * Once upgraded, an idle connection retains about 1.5 KB, 1 KiB of which is the buffer incoming frames are staged in,
+ * and under 450 bytes once a buffer trim timeout has released it - measured with JOL on a 64-bit JVM with compressed
+ * references, leaving out the writer and anything shared with other connections. The HTTP parser is dropped with the
+ * upgrade, and the locks and queue used by concurrent or fragmented sends are only created once something needs them.
+ */
 public abstract class WebSocketProtocol {
 	
-	private static final ReentrantLock DIGEST_LOCK = new ReentrantLock();
-	private static MessageDigest SHA1_DIGEST;
+	// Larger frames are written straight from their payload array rather than copied into a pooled buffer
+	private static final int MAX_POOLED_FRAME_SIZE = 16 * 1024;
+	private static final int DEFAULT_STREAM_FRAGMENT_SIZE = 16 * 1024;
+	private static final VarHandle CLOSING;
+	private static final VarHandle HANDSHAKING;
+	private static final VarHandle HANDSHAKE_SETTLED;
+	private static final VarHandle WRITABILITY_LOCK;
+	private static final VarHandle MESSAGE_LOCK;
+	private static final VarHandle FRAME_LOCK;
+	private static final VarHandle CONTROL_FRAMES;
 	
 	static {
 		try {
-			SHA1_DIGEST = MessageDigest.getInstance("SHA-1");
-		} catch (NoSuchAlgorithmException e) {
-			e.printStackTrace();
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			CLOSING = lookup.findVarHandle(WebSocketProtocol.class, "closing", boolean.class);
+			HANDSHAKING = lookup.findVarHandle(WebSocketProtocol.class, "handshaking", boolean.class);
+			HANDSHAKE_SETTLED = lookup.findVarHandle(WebSocketProtocol.class, "handshakeSettled", boolean.class);
+			WRITABILITY_LOCK = lookup.findVarHandle(WebSocketProtocol.class, "writabilityLock", Object.class);
+			MESSAGE_LOCK = lookup.findVarHandle(WebSocketProtocol.class, "messageLock", ReentrantLock.class);
+			FRAME_LOCK = lookup.findVarHandle(WebSocketProtocol.class, "frameLock", ReentrantLock.class);
+			CONTROL_FRAMES = lookup.findVarHandle(WebSocketProtocol.class, "controlFrames", Queue.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
 		}
 	}
 	
-	private final Consumer<byte []> writer;
 	private final Runnable closer;
-	private final HttpParser httpParser;
 	private final WebsocketParser websocketParser;
 	
 	private final WebSocketCallback callback;
 	private final WebSocketHandler handler;
+	// Created by whichever thread first needs them, since most connections never block, fragment or interleave
+	private volatile Object writabilityLock;
+	private volatile ReentrantLock messageLock;
+	private volatile ReentrantLock frameLock;
+	private volatile Queue<WebsocketFrame> controlFrames;
 	
+	// Dropped once the connection upgrades, along with anything it buffered
+	private HttpParser httpParser;
+	private WebSocketWriter writer;
+	private CoalescingWriter coalescingWriter;
+	private OutboundQueue<Object> outbound;
+	// Only touched by whichever thread drains the outbound queue
+	private ArrayDeque<Object> deferredMessages;
+	private boolean outboundStreaming;
+	private boolean outboundClosed;
+	private BufferAllocator bufferAllocator;
+	private PerMessageDeflateOptions perMessageDeflateOptions;
+	private PerMessageDeflate perMessageDeflate;
+	private WebSocketMetrics metrics;
+	private WriteOverflowPolicy writeOverflowPolicy;
+	private long lowWatermark;
+	private long highWatermark;
+	private int fragmentSize;
+	private HashedWheelTimer timer;
+	private long pingIntervalNanos;
+	private long pongTimeoutNanos;
+	private long handshakeTimeoutNanos;
+	private long idleTimeoutNanos;
+	private long closeTimeoutNanos;
+	private long bufferTrimNanos;
+	// Keeps the timer from trimming the parser's buffers part way through a read, and only exists when it might
+	private ReentrantLock readLock;
+	private volatile Timeout handshakeDeadline;
+	private volatile Timeout pingDeadline;
+	private volatile Timeout pongDeadline;
+	private volatile Timeout idleDeadline;
+	private volatile Timeout closeDeadline;
+	private volatile Timeout bufferDeadline;
+	private volatile long lastReadTime;
+	private volatile long lastMessageTime;
+	private volatile long pingSentTime;
+	private volatile boolean writable;
+	private volatile boolean disconnected;
+	private long connectTime;
+	private int bufferHighWaterMark;
+	// Published by the write that sets it, so whichever thread clears it can read the connect time
+	private volatile boolean handshaking;
+	// Set once, by whichever of the upgrade or the handshake timeout gets there first
+	private volatile boolean handshakeSettled;
 	private boolean websocketMode;
-	private boolean closing;
+	// Set once, by whichever of a CLOSE or the disconnect gets there first
+	private volatile boolean closing;
 	
 	public WebSocketProtocol(WebSocketCallback callback, Consumer<byte []> writer, Runnable closer) {
+		this(callback, wrapWriter(writer), closer);
+	}
+	
+	public WebSocketProtocol(WebSocketCallback callback, WebSocketWriter writer, Runnable closer) {
 		this.httpParser = new HttpParser();
 		this.websocketParser = new WebsocketParser();
 		this.writer = writer;
 		this.closer = closer;
 		this.callback = callback;
 		this.handler = new WebSocketHandler(this);
+		this.writabilityLock = null;
+		this.messageLock = null;
+		this.frameLock = null;
+		this.controlFrames = null;
 		
+		this.coalescingWriter = null;
+		this.outbound = null;
+		this.deferredMessages = null;
+		this.outboundStreaming = false;
+		this.outboundClosed = false;
+		this.bufferAllocator = null;
+		this.perMessageDeflateOptions = null;
+		this.perMessageDeflate = null;
+		this.metrics = WebSocketMetrics.NONE;
+		this.writeOverflowPolicy = WriteOverflowPolicy.QUEUE;
+		this.lowWatermark = 0;
+		this.highWatermark = 0;
+		this.fragmentSize = 0;
+		this.timer = null;
+		this.pingIntervalNanos = 0;
+		this.pongTimeoutNanos = 0;
+		this.handshakeTimeoutNanos = 0;
+		this.idleTimeoutNanos = 0;
+		this.closeTimeoutNanos = 0;
+		this.bufferTrimNanos = 0;
+		this.readLock = null;
+		this.handshakeDeadline = null;
+		this.pingDeadline = null;
+		this.pongDeadline = null;
+		this.idleDeadline = null;
+		this.closeDeadline = null;
+		this.bufferDeadline = null;
+		this.lastReadTime = 0;
+		this.lastMessageTime = 0;
+		this.pingSentTime = 0;
+		this.writable = true;
+		this.disconnected = false;
+		this.connectTime = 0;
+		this.bufferHighWaterMark = 0;
+		this.handshaking = false;
+		this.handshakeSettled = false;
 		this.websocketMode = false;
 		this.closing = false;
 	}
 	
 	public void onConnect() {
+		connectTime = System.nanoTime();
+		lastReadTime = connectTime;
+		handshakeDeadline = schedule(this::onHandshakeTimeout, handshakeTimeoutNanos);
 		callback.onConnect(handler);
 	}
 	
 	public void onDisconnect() {
+		if (!websocketMode) {
+			onHttpEndOfStream();
+			finishHandshake(false);
+		}
 		// A possibly atypical close method - ideally this happens via websocket packets first
-		if (!closing)
+		if (CLOSING.compareAndSet(this, false, true)) {
+			metrics.onClose(1006);
 			callback.onDisconnect(handler, 1006, "");
-		closing = true;
+		}
+		// A sender that creates the lock after this checks the flag before waiting on it
+		disconnected = true;
+		Object writabilityLock = this.writabilityLock;
+		if (writabilityLock != null) {
+			synchronized (writabilityLock) {
+				writabilityLock.notifyAll();
+			}
+		}
+		cancelTimeouts();
+		Queue<WebsocketFrame> controlFrames = this.controlFrames;
+		if (controlFrames != null)
+			controlFrames.clear();
+		if (coalescingWriter != null)
+			coalescingWriter.close();
+		if (perMessageDeflate != null)
+			perMessageDeflate.close();
+		ReentrantLock readLock = this.readLock;
+		if (readLock != null)
+			readLock.lock();
+		try {
+			HttpParser httpParser = this.httpParser;
+			if (httpParser != null)
+				httpParser.release();
+			websocketParser.release();
+		} finally {
+			if (readLock != null)
+				readLock.unlock();
+		}
 	}
 	
 	public void onRead(byte [] data, int start, int length) {
-		if (this.websocketMode) {
-			try {
-				onWebsocketRead(data, start, length);
-			} catch (WebsocketParserException e) {
-				socketClose();
+		metrics.onBytesRead(length);
+		ReentrantLock readLock = this.readLock;
+		if (readLock != null)
+			readLock.lock();
+		try {
+			read(data, start, length);
+			finishRead();
+		} finally {
+			if (readLock != null)
+				readLock.unlock();
+		}
+	}
+	
+	public void onRead(@NotNull ByteBuffer data) {
+		metrics.onBytesRead(data.remaining());
+		ReentrantLock readLock = this.readLock;
+		if (readLock != null)
+			readLock.lock();
+		try {
+			if (this.websocketMode) {
+				try {
+					onWebsocketRead(data);
+				} catch (WebsocketParserException e) {
+					failWebsocket(e);
+				}
+			} else {
+				try {
+					onHttpRead(data);
+				} catch (HttpParserException e) {
+					failHttp();
+				}
 			}
+			finishRead();
+		} finally {
+			if (readLock != null)
+				readLock.unlock();
+		}
+	}
+	
+	public void onRead(@NotNull ByteBuffer [] data) {
+		for (ByteBuffer buffer : data) {
+			onRead(buffer);
+		}
+	}
+	
+	/**
+	 * When enabled, TEXT and BINARY messages are delivered through {@link WebSocketCallback#onMessageStart},
+	 * {@link WebSocketCallback#onMessageData} and {@link WebSocketCallback#onMessageEnd} as they arrive, instead of
+	 * being reassembled for onTextMessage/onBinaryMessage.
+	 */
+	public void setStreamingMessages(boolean streamingMessages) {
+		websocketParser.setMessageListener(streamingMessages ? new StreamingMessageListener() : null);
+	}
+	
+	/**
+	 * When enabled, HTTP bodies are delivered through {@link WebSocketCallback#onHttpBodyData} and
+	 * {@link WebSocketCallback#onHttpBodyEnd} as they arrive, after the request or response itself was handled with an
+	 * empty body, instead of being collected into it. Has no effect once the connection has upgraded.
+	 */
+	public void setStreamingHttpBodies(boolean streamingHttpBodies) {
+		if (httpParser != null)
+			httpParser.setBodyListener(streamingHttpBodies ? new StreamingBodyListener() : null);
+	}
+	
+	/**
+	 * Incoming frames announcing a larger payload close the connection with MESSAGE_TOO_BIG (1009) before any of it is
+	 * buffered
+	 */
+	public void setMaxFrameSize(long maxFrameSize) {
+		websocketParser.setMaxFrameSize(maxFrameSize);
+	}
+	
+	/**
+	 * Incoming messages whose fragments add up to more than this close the connection with MESSAGE_TOO_BIG (1009)
+	 */
+	public void setMaxMessageSize(long maxMessageSize) {
+		websocketParser.setMaxMessageSize(maxMessageSize);
+	}
+	
+	/**
+	 * HTTP messages whose leading line and headers exceed this many bytes close the connection
+	 */
+	public void setMaxHttpHeaderSize(int maxHttpHeaderSize) {
+		if (httpParser != null)
+			httpParser.setMaxHeaderSize(maxHttpHeaderSize);
+	}
+	
+	/**
+	 * Stages parser input in buffers from the allocator, and encodes outgoing frames up to 16 KiB into them. They are
+	 * returned once the writer has written them and, for the parsers, on disconnect. Null, the default, allocates
+	 * plain arrays.
+	 */
+	public void setBufferAllocator(@Nullable BufferAllocator bufferAllocator) {
+		this.bufferAllocator = bufferAllocator;
+		if (coalescingWriter != null)
+			coalescingWriter.setAllocator(bufferAllocator);
+		if (httpParser != null)
+			httpParser.setBufferAllocator(bufferAllocator);
+		websocketParser.setBufferAllocator(bufferAllocator);
+	}
+	
+	/**
+	 * Reports this connection's traffic, handshake, errors and close code to the given metrics, which may be shared with
+	 * other connections. Null, the default, reports nothing.
+	 */
+	public void setMetrics(@Nullable WebSocketMetrics metrics) {
+		this.metrics = (metrics == null) ? WebSocketMetrics.NONE : metrics;
+	}
+	
+	/**
+	 * Holds outgoing frames and HTTP messages back, copying them into one buffer, until the matching {@link #uncork()}
+	 * or a {@link #flush()}. Corks nest, and a burst of small messages then reaches the writer as a single write.
+	 * Writes over 16 KiB flush what is held and go out on their own, as does anything past 64 KiB held back.
+	 */
+	public void cork() {
+		CoalescingWriter coalescingWriter = getCoalescingWriter();
+		if (outbound != null)
+			outbound.add((Runnable) coalescingWriter::cork, 0);
+		else
+			coalescingWriter.cork();
+	}
+	
+	/**
+	 * Undoes one {@link #cork()}, flushing once none are left
+	 */
+	public void uncork() {
+		CoalescingWriter coalescingWriter = this.coalescingWriter;
+		if (coalescingWriter == null)
+			return;
+		if (outbound != null)
+			outbound.add((Runnable) coalescingWriter::uncork, 0);
+		else
+			coalescingWriter.uncork();
+	}
+	
+	/**
+	 * Writes whatever is held back, corked or not
+	 */
+	public void flush() {
+		CoalescingWriter coalescingWriter = this.coalescingWriter;
+		if (coalescingWriter == null)
+			return;
+		if (outbound != null)
+			outbound.add((Runnable) coalescingWriter::flush, 0);
+		else
+			coalescingWriter.flush();
+	}
+	
+	/**
+	 * Holds writes back like {@link #cork()} does without being asked, for at most {@code maxDelay} before the
+	 * scheduler flushes them. Anything written while handling a read goes out once the read has been handled. A null
+	 * scheduler, the default, writes everything immediately.
+	 */
+	public void setAutoFlush(@Nullable ScheduledExecutorService scheduler, long maxDelay, @NotNull TimeUnit unit) {
+		if (scheduler == null && coalescingWriter == null)
+			return;
+		getCoalescingWriter().setAutoFlush(scheduler, unit.toNanos(maxDelay));
+	}
+	
+	/**
+	 * Bounds the writer's backlog: once it reaches {@code highWatermark} bytes the connection stops being writable, and
+	 * TEXT or BINARY messages sent before it drains back to {@code lowWatermark} are handled by the overflow policy. The
+	 * check happens after each write, so the backlog can exceed the high watermark by one message. Zero, the default,
+	 * leaves the backlog unbounded.
+	 */
+	public void setWriteBufferWatermarks(long lowWatermark, long highWatermark) {
+		if (lowWatermark < 0 || lowWatermark > highWatermark)
+			throw new IllegalArgumentException("watermarks must satisfy 0 <= low <= high");
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+	}
+	
+	/**
+	 * Defaults to {@link WriteOverflowPolicy#QUEUE}
+	 */
+	public void setWriteOverflowPolicy(@NotNull WriteOverflowPolicy writeOverflowPolicy) {
+		this.writeOverflowPolicy = writeOverflowPolicy;
+	}
+	
+	/**
+	 * False while the write backlog is above the high watermark
+	 */
+	public boolean isWritable() {
+		return writable;
+	}
+	
+	/**
+	 * Called by writers that queue whenever part of their backlog has been written out
+	 */
+	public void onWritesDrained() {
+		if (highWatermark > 0)
+			updateWritability();
+	}
+	
+	/**
+	 * Splits outgoing TEXT and BINARY messages larger than this into fragments that are written one at a time, so PING,
+	 * PONG and CLOSE frames sent meanwhile go out between two fragments instead of behind the whole message. With write
+	 * buffer watermarks set, a sender that is allowed to block also waits for the backlog to drain between fragments.
+	 * Zero, the default, sends every message as a single frame.
+	 */
+	public void setOutgoingFragmentSize(int fragmentSize) {
+		if (fragmentSize < 0)
+			throw new IllegalArgumentException("fragment size must not be negative");
+		this.fragmentSize = fragmentSize;
+	}
+	
+	/**
+	 * Keeps the given deadlines on a timer that is usually shared by every connection, so each costs one wheel entry
+	 * rather than a scheduled task. Set before the connection starts. Null, the default, keeps none.
+	 * <p>
+	 * Keepalive PINGs and idle CLOSEs are sent from the timer's thread, so either of those turns on thread-safe sends
+	 * to keep their frames from being written over the application's.
+	 */
+	public void setTimeouts(@Nullable HashedWheelTimer timer, @NotNull WebSocketTimeouts timeouts) {
+		this.timer = timer;
+		this.pingIntervalNanos = toNanos(timeouts.pingInterval());
+		this.pongTimeoutNanos = toNanos(timeouts.pongTimeout());
+		this.handshakeTimeoutNanos = toNanos(timeouts.handshakeTimeout());
+		this.idleTimeoutNanos = toNanos(timeouts.idleTimeout());
+		this.closeTimeoutNanos = toNanos(timeouts.closeTimeout());
+		this.bufferTrimNanos = toNanos(timeouts.bufferTrimTimeout());
+		if (timer != null && bufferTrimNanos > 0 && readLock == null)
+			this.readLock = new ReentrantLock();
+		if (sendsFromTimer() && outbound == null)
+			setThreadSafeSends(true);
+	}
+	
+	/**
+	 * Lets any thread send at any time. Sends only queue their frame, without locking, and the queue is written in
+	 * order by the thread that owns the writer's I/O - or, when it has no owner, by whichever sender finds nothing else
+	 * being written. Set before the connection starts. Off by default, in which case callers have to keep their sends
+	 * from overlapping - unless keepalive PINGs or an idle timeout are set, which keep it on.
+	 * <p>
+	 * Messages sent while a message stream is open go out after it, and nothing goes out after a CLOSE.
+	 */
+	public void setThreadSafeSends(boolean threadSafe) {
+		if (threadSafe || sendsFromTimer()) {
+			this.outbound = new OutboundQueue<>(this::writeOutbound, writer.getOwner());
+			this.deferredMessages = new ArrayDeque<>();
 		} else {
-			try {
-				onHttpRead(data, start, length);
-			} catch (HttpParserException e) {
-				socketClose();
-			}
+			this.outbound = null;
+			this.deferredMessages = null;
 		}
 	}
 	
+	/**
+	 * Offers (client) or accepts (server) the permessage-deflate extension during the handshake. Null, the default,
+	 * disables compression.
+	 */
+	public void setPerMessageDeflate(@Nullable PerMessageDeflateOptions options) {
+		this.perMessageDeflateOptions = options;
+	}
+	
 	public void send(WebsocketFrame frame) {
-		if (!websocketMode)
-			throw new IllegalStateException("cannot send websocket frame in HTTP mode");
-		boolean nowClosing = !closing && (frame.type() == WebsocketFrameType.CLOSE);
-		if (nowClosing)
-			closing = true;
-		
-		this.writer.accept(frame.encode());
+		sendWebsocket(frame);
+	}
+	
+	/**
+	 * Writes a frame that was encoded once for many connections, without encoding or copying it again
+	 */
+	public void send(@NotNull PreparedWebsocketFrame frame) {
+		if (!writable && !admitOverflow(frame.type(), frame.getPayloadLength()))
+			return;
+		boolean nowClosing = startWebsocketSend(frame.type());
+		if (!nowClosing && frame.type() == WebsocketFrameType.CLOSE)
+			return;
 		
-		if (nowClosing) {
-			int closeCode = getWebSocketCloseCode(frame.data());
-			String closeReason = getWebSocketCloseReason(frame.data());
-			callback.onDisconnect(handler, closeCode, closeReason);
+		onMessageActivity(frame.type());
+		if (outbound != null) {
+			checkNotStreaming(frame.type());
+			queueOutbound(frame, frame.getEncodedLength());
+		} else if (fragmentSize > 0) {
+			writeScheduled(frame);
+		} else {
+			checkNotStreaming(frame.type());
+			writePreparedFrame(frame);
 		}
+		afterWrite();
+		
+		if (nowClosing)
+			finishClosing(frame.getPayload());
+	}
+	
+	/**
+	 * Starts a TEXT or BINARY message whose payload is written to the returned stream, and sent one fragment of
+	 * {@code fragmentSize} bytes at a time as it fills up - or of the outgoing fragment size, or 16 KiB, when zero.
+	 * Closing the stream ends the message. Control frames still go out between its fragments. Messages sent by other
+	 * threads meanwhile wait for it once an outgoing fragment size is set - otherwise, as with any other send, the
+	 * caller has to keep them from overlapping.
+	 * <p>
+	 * The stream must be written and closed by the thread that opened it. Its fragments are paced by the write buffer
+	 * watermarks instead of the overflow policy, since part of a message can't be dropped, and aren't compressed.
+	 * Writes fail with an IOException once the connection is closing.
+	 */
+	@NotNull
+	public OutputStream openMessageStream(@NotNull WebsocketFrameType type, int fragmentSize) {
+		if (!websocketMode)
+			throw new IllegalStateException("cannot send websocket frame in HTTP mode");
+		if (type != WebsocketFrameType.TEXT && type != WebsocketFrameType.BINARY)
+			throw new IllegalArgumentException("only TEXT and BINARY messages can be streamed");
+		if (fragmentSize < 0)
+			throw new IllegalArgumentException("fragment size must not be negative");
+		if (fragmentSize == 0)
+			fragmentSize = (this.fragmentSize > 0) ? this.fragmentSize : DEFAULT_STREAM_FRAGMENT_SIZE;
+		lockMessage();
+		return new MessageOutputStream(this, type, fragmentSize, bufferAllocator);
 	}
 	
 	public void send(HttpFrame frame) {
-		if (websocketMode)
-			throw new IllegalStateException("cannot send HTTP frame in websocket mode");
-		this.writer.accept(frame.encode());
+		sendHttp(frame.encode());
 	}
 	
 	public void sendClose() {
@@ -111,10 +549,42 @@ public abstract class WebSocketProtocol {
 		send(new WebsocketFrame(WebsocketFrameType.CLOSE, closeData));
 	}
 	
+	/**
+	 * Sends one chunk of a body, after a message sent with a {@code Transfer-Encoding: chunked} header
+	 */
+	public void sendHttpChunk(@NotNull byte [] data, int offset, int length) {
+		if (websocketMode)
+			throw new IllegalStateException("cannot send HTTP frame in websocket mode");
+		if (length > 0)
+			writeHttp(HttpChunkEncoder.encodeChunk(data, offset, length));
+	}
+	
+	/**
+	 * Ends a chunked body
+	 */
+	public void sendHttpLastChunk() {
+		if (websocketMode)
+			throw new IllegalStateException("cannot send HTTP frame in websocket mode");
+		writeHttp(HttpChunkEncoder.encodeLastChunk());
+	}
+	
+	/**
+	 * Writes an HTTP message that is already encoded
+	 */
+	protected void sendHttp(@NotNull byte [] encoded) {
+		if (websocketMode)
+			throw new IllegalStateException("cannot send HTTP frame in websocket mode");
+		writeHttp(ByteBuffer.wrap(encoded));
+	}
+	
 	protected abstract void onWebsocketFrame(WebsocketFrame frame);
 	protected abstract void onHttpFrame(HttpFrame frame);
 	
 	protected void socketClose() {
+		// Does nothing once upgraded, and doesn't read the mode since the timer's thread closes connections too
+		finishHandshake(false);
+		// Whatever was held back has to go out ahead of the close
+		flush();
 		this.closer.run();
 	}
 	
@@ -122,10 +592,696 @@ public abstract class WebSocketProtocol {
 		return handler;
 	}
 	
-	protected void switchToWebsocket() {
+	@Nullable
+	protected PerMessageDeflateOptions getPerMessageDeflateOptions() {
+		return perMessageDeflateOptions;
+	}
+	
+	/**
+	 * Compresses outgoing messages and inflates incoming ones from here on - called once the handshake negotiated it
+	 */
+	protected void enablePerMessageDeflate(@NotNull PerMessageDeflate perMessageDeflate) {
+		this.perMessageDeflate = perMessageDeflate;
+		websocketParser.setInflater(perMessageDeflate);
+	}
+	
+	/**
+	 * Marks the start of an opening handshake, which is reported to the metrics once it upgrades or fails
+	 */
+	protected void startHandshake() {
+		if (connectTime == 0)
+			connectTime = System.nanoTime();
+		handshaking = true;
+	}
+	
+	/**
+	 * Returns false, leaving the connection to be closed, if the handshake timed out first
+	 */
+	protected boolean switchToWebsocket() {
+		if (!HANDSHAKE_SETTLED.compareAndSet(this, false, true))
+			return false;
 		ParserByteStream buffer = httpParser.getBuffer();
+		finishHandshake(true);
 		this.websocketMode = true;
-		onRead(buffer.getByteArray(), 0, buffer.getSize());
+		startWebsocketTimeouts();
+		read(buffer.getByteArray(), buffer.getStart(), buffer.getSize());
+		httpParser.release();
+		httpParser = null;
+		return true;
+	}
+	
+	private void finishHandshake(boolean upgraded) {
+		if (handshaking && HANDSHAKING.compareAndSet(this, true, false))
+			metrics.onHandshake(upgraded, System.nanoTime() - connectTime);
+	}
+	
+	private void read(byte [] data, int start, int length) {
+		if (this.websocketMode) {
+			try {
+				onWebsocketRead(data, start, length);
+			} catch (WebsocketParserException e) {
+				failWebsocket(e);
+			}
+		} else {
+			try {
+				onHttpRead(data, start, length);
+			} catch (HttpParserException e) {
+				failHttp();
+			}
+		}
+	}
+	
+	private void finishRead() {
+		if (pingIntervalNanos > 0 || bufferTrimNanos > 0)
+			lastReadTime = System.nanoTime();
+		if (coalescingWriter != null)
+			coalescingWriter.onReadComplete();
+		updateBufferHighWaterMark();
+	}
+	
+	private CoalescingWriter getCoalescingWriter() {
+		if (coalescingWriter == null) {
+			coalescingWriter = new CoalescingWriter(writer, bufferAllocator);
+			writer = coalescingWriter;
+		}
+		return coalescingWriter;
+	}
+	
+	private void updateBufferHighWaterMark() {
+		int highWaterMark = websocketMode ? websocketParser.getBufferHighWaterMark() : httpParser.getBufferHighWaterMark();
+		if (highWaterMark > bufferHighWaterMark) {
+			bufferHighWaterMark = highWaterMark;
+			metrics.onBufferHighWaterMark(highWaterMark);
+		}
+	}
+	
+	/**
+	 * Returns false if the frame was dropped - by the overflow policy, or since it was a CLOSE and one was already sent
+	 */
+	private boolean sendWebsocket(WebsocketFrame frame) {
+		if (!writable && !admitOverflow(frame.type(), frame.data().length))
+			return false;
+		boolean nowClosing = startWebsocketSend(frame.type());
+		if (!nowClosing && frame.type() == WebsocketFrameType.CLOSE)
+			return false;
+		
+		onMessageActivity(frame.type());
+		if (outbound != null) {
+			checkNotStreaming(frame.type());
+			queueOutbound(frame);
+		} else if (fragmentSize > 0) {
+			writeScheduled(frame, nowClosing);
+		} else {
+			checkNotStreaming(frame.type());
+			writeWebsocketFrame(frame);
+		}
+		afterWrite();
+		
+		if (nowClosing)
+			finishClosing(frame.data());
+		return true;
+	}
+	
+	private boolean startWebsocketSend(WebsocketFrameType type) {
+		if (!websocketMode)
+			throw new IllegalStateException("cannot send websocket frame in HTTP mode");
+		// Only one CLOSE is ever sent, however many threads try at once
+		return type == WebsocketFrameType.CLOSE && CLOSING.compareAndSet(this, false, true);
+	}
+	
+	/**
+	 * With thread-safe sends, PINGs and PONGs can still go out between the fragments of a message that is being written
+	 */
+	private void queueOutbound(WebsocketFrame frame) {
+		WebsocketFrameType type = frame.type();
+		if (fragmentSize > 0 && (type == WebsocketFrameType.PING || type == WebsocketFrameType.PONG)) {
+			controlFrames().add(frame);
+			outbound.add((Runnable) this::writeOutboundControlFrames, 0);
+		} else {
+			queueOutbound(frame, frame.data().length);
+		}
+	}
+	
+	private void queueOutbound(Object item, long length) {
+		// Queued bytes only matter to the watermarks, and counting them costs two more atomic updates
+		outbound.add(item, (highWatermark > 0) ? length : 0);
+	}
+	
+	/**
+	 * Writes one item from the outbound queue, on whichever thread is draining it
+	 */
+	private void writeOutbound(Object item) {
+		// Most items are frames, so they are checked for first
+		if (item instanceof WebsocketFrame frame) {
+			if (!admitOutbound(frame, frame.type()))
+				return;
+			if (fragmentSize > 0 && frame.type().getOpcode() < 8)
+				writeFragments(frame);
+			else
+				writeWebsocketFrame(frame);
+		} else if (item instanceof PreparedWebsocketFrame frame) {
+			if (admitOutbound(frame, frame.type()))
+				writePreparedFrame(frame);
+		} else if (item instanceof StreamedFragment fragment) {
+			if (admitOutbound(fragment, null))
+				writeOutboundFragment(fragment);
+			else if (fragment.pooled() != null)
+				fragment.pooled().release();
+		} else if (item instanceof ByteBuffer [] encoded) {
+			if (!disconnected)
+				this.writer.write(encoded);
+		} else {
+			((Runnable) item).run();
+		}
+	}
+	
+	/**
+	 * Whether a frame from the outbound queue goes out now. Nothing does after a CLOSE, and messages sent while a stream
+	 * is being written are held back until it ends. The type is null for the stream's own fragments.
+	 */
+	private boolean admitOutbound(Object item, @Nullable WebsocketFrameType type) {
+		if (disconnected || outboundClosed)
+			return false;
+		if (outboundStreaming && type != null && type.getOpcode() < 8) {
+			deferredMessages.add(item);
+			return false;
+		}
+		outboundClosed = type == WebsocketFrameType.CLOSE;
+		return true;
+	}
+	
+	private void writeOutboundFragment(StreamedFragment fragment) {
+		ByteBuffer encoded = fragment.encoded();
+		boolean fin = (encoded.get(encoded.position()) & 0x80) != 0;
+		metrics.onBytesWritten(encoded.remaining());
+		if (fragment.pooled() != null)
+			this.writer.write(fragment.pooled());
+		else
+			this.writer.write(encoded);
+		
+		outboundStreaming = !fin;
+		if (fin) {
+			Object message;
+			while ((message = deferredMessages.poll()) != null)
+				writeOutbound(message);
+		}
+	}
+	
+	private void writeOutboundControlFrames() {
+		if (outboundClosed)
+			controlFrames().clear();
+		else
+			drainControlFrames();
+	}
+	
+	/**
+	 * Control frames are queued and written by whichever thread gets the frame lock, between two fragments at the
+	 * latest. Messages hold the message lock for all of their fragments, so they never interleave with each other.
+	 */
+	private void writeScheduled(WebsocketFrame frame, boolean nowClosing) {
+		if (frame.type().getOpcode() >= 8) {
+			controlFrames().add(frame);
+			if (nowClosing) {
+				// Nothing may follow the close, and the disconnect is reported once it has been written
+				ReentrantLock frameLock = frameLock();
+				frameLock.lock();
+				try {
+					writeControlFrames();
+				} finally {
+					frameLock.unlock();
+				}
+			} else {
+				drainControlFrames();
+			}
+			return;
+		}
+		
+		lockMessage();
+		try {
+			writeFragments(frame);
+		} finally {
+			messageLock.unlock();
+		}
+	}
+	
+	private void writeScheduled(PreparedWebsocketFrame frame) {
+		// Already encoded whole, so it only has to wait its turn
+		boolean message = frame.type().getOpcode() < 8;
+		if (message)
+			lockMessage();
+		try {
+			ReentrantLock frameLock = frameLock();
+			frameLock.lock();
+			try {
+				writeControlFrames();
+				writePreparedFrame(frame);
+			} finally {
+				frameLock.unlock();
+			}
+		} finally {
+			if (message)
+				messageLock.unlock();
+		}
+		drainControlFrames();
+	}
+	
+	private void checkNotStreaming(WebsocketFrameType type) {
+		ReentrantLock messageLock = this.messageLock;
+		if (type.getOpcode() < 8 && messageLock != null && messageLock.isHeldByCurrentThread())
+			throw new IllegalStateException("cannot send a message while another is being fragmented");
+	}
+	
+	/**
+	 * Held for all of a message's fragments. Being reentrant, it wouldn't stop the same thread from starting another
+	 * message part way through, so that is refused instead.
+	 */
+	private void lockMessage() {
+		ReentrantLock messageLock = messageLock();
+		if (messageLock.isHeldByCurrentThread())
+			throw new IllegalStateException("cannot send a message while another is being fragmented");
+		messageLock.lock();
+	}
+	
+	private void writeFragments(WebsocketFrame frame) {
+		metrics.onFrameWritten(frame.type(), frame.data().length);
+		// The whole message is compressed first, and only the first fragment is marked as compressed
+		WebsocketFrame compressedFrame = compress(frame);
+		boolean compressed = compressedFrame != null;
+		if (compressed)
+			frame = compressedFrame;
+		
+		int fragmentSize = this.fragmentSize;
+		ReentrantLock frameLock = frameLock();
+		int dataIndex = 0;
+		do {
+			if (dataIndex > 0 && !awaitFragmentWritable())
+				return;
+			frameLock.lock();
+			try {
+				writeControlFrames();
+				// A close that went out part way through leaves the message unfinishable
+				if (dataIndex > 0 && (closing || disconnected))
+					return;
+				if (frame.data().length <= fragmentSize) {
+					writeWebsocketFrame(frame, compressed);
+				} else {
+					ByteBuffer [] encoded = frame.encodeFragmentGathering(dataIndex, fragmentSize);
+					if (compressed && dataIndex == 0)
+						setCompressedBit(encoded[0]);
+					long length = 0;
+					for (ByteBuffer buffer : encoded)
+						length += buffer.remaining();
+					metrics.onBytesWritten(length);
+					this.writer.write(encoded);
+				}
+			} finally {
+				frameLock.unlock();
+			}
+			drainControlFrames();
+			if (dataIndex + fragmentSize < frame.data().length)
+				afterWrite();
+			dataIndex += fragmentSize;
+		} while (dataIndex < frame.data().length);
+	}
+	
+	/**
+	 * Writes one fragment of a streamed message, already encoded, for a {@link MessageOutputStream} that holds the
+	 * message lock. Returns false, having released the buffer, once the connection is closing.
+	 */
+	boolean writeStreamedFragment(@NotNull ByteBuffer encoded, @Nullable PooledBuffer pooled) {
+		if (!awaitFragmentWritable() || closing) {
+			if (pooled != null)
+				pooled.release();
+			return false;
+		}
+		if (outbound != null) {
+			queueOutbound(new StreamedFragment(encoded, pooled), encoded.remaining());
+			afterWrite();
+			return true;
+		}
+		ReentrantLock frameLock = frameLock();
+		frameLock.lock();
+		try {
+			writeControlFrames();
+			if (closing || disconnected) {
+				if (pooled != null)
+					pooled.release();
+				return false;
+			}
+			metrics.onBytesWritten(encoded.remaining());
+			if (pooled != null)
+				this.writer.write(pooled);
+			else
+				this.writer.write(encoded);
+		} finally {
+			frameLock.unlock();
+		}
+		drainControlFrames();
+		afterWrite();
+		return true;
+	}
+	
+	/**
+	 * Called once by a {@link MessageOutputStream} when it is closed, whether or not the message was finished
+	 */
+	void finishStreamedMessage(@NotNull WebsocketFrameType type, long size) {
+		onMessageActivity(type);
+		metrics.onFrameWritten(type, size);
+		messageLock.unlock();
+	}
+	
+	/**
+	 * Keeps a fragmented message from running ahead of the writer, so control frames never queue up behind much more
+	 * than the high watermark. Returns false once disconnected.
+	 */
+	private boolean awaitFragmentWritable() {
+		if (!writable)
+			awaitWritable();
+		return !disconnected;
+	}
+	
+	/**
+	 * Called with the frame lock held, before every frame written under it
+	 */
+	private void writeControlFrames() {
+		Queue<WebsocketFrame> controlFrames = this.controlFrames;
+		if (controlFrames == null)
+			return;
+		WebsocketFrame frame;
+		while ((frame = controlFrames.poll()) != null) {
+			metrics.onFrameWritten(frame.type(), frame.data().length);
+			writeWebsocketFrame(frame, false);
+		}
+	}
+	
+	/**
+	 * Writes queued control frames unless another thread holds the frame lock, in which case that thread writes them.
+	 * Checking again after each attempt means none are left behind when the lock is released just as they are queued.
+	 */
+	private void drainControlFrames() {
+		Queue<WebsocketFrame> controlFrames = this.controlFrames;
+		if (controlFrames == null)
+			return;
+		ReentrantLock frameLock = frameLock();
+		while (!controlFrames.isEmpty() && frameLock.tryLock()) {
+			try {
+				writeControlFrames();
+			} finally {
+				frameLock.unlock();
+			}
+		}
+	}
+	
+	/*
+	 * Frames are counted as written here, once they are handed to the writer, rather than when they are sent - with
+	 * thread-safe sends they may still be dropped from the queue after a CLOSE.
+	 */
+	
+	private void writePreparedFrame(PreparedWebsocketFrame frame) {
+		metrics.onFrameWritten(frame.type(), frame.getPayloadLength());
+		metrics.onBytesWritten(frame.getEncodedLength());
+		this.writer.write(frame.encodeGathering());
+	}
+	
+	@Nullable
+	private WebsocketFrame compress(WebsocketFrame frame) {
+		PerMessageDeflate perMessageDeflate = this.perMessageDeflate;
+		boolean dataFrame = frame.type() == WebsocketFrameType.TEXT || frame.type() == WebsocketFrameType.BINARY;
+		if (perMessageDeflate == null || !dataFrame || frame.data().length < perMessageDeflate.getMinCompressSize())
+			return null;
+		byte [] compressedData = perMessageDeflate.compress(frame.data());
+		return (compressedData == null) ? null : new WebsocketFrame(frame.type(), compressedData);
+	}
+	
+	private void writeWebsocketFrame(WebsocketFrame frame) {
+		metrics.onFrameWritten(frame.type(), frame.data().length);
+		WebsocketFrame compressedFrame = compress(frame);
+		if (compressedFrame != null)
+			writeWebsocketFrame(compressedFrame, true);
+		else
+			writeWebsocketFrame(frame, false);
+	}
+	
+	private void writeWebsocketFrame(WebsocketFrame frame, boolean compressed) {
+		BufferAllocator bufferAllocator = this.bufferAllocator;
+		// A coalescing writer copies small frames anyway, so encoding them into a pooled buffer first would copy twice
+		boolean coalescing = coalescingWriter != null && coalescingWriter.isCoalescing();
+		if (bufferAllocator != null && !coalescing && frame.getEncodedLength(false) <= MAX_POOLED_FRAME_SIZE) {
+			PooledBuffer encoded = frame.encode(bufferAllocator, false, 0);
+			if (compressed)
+				setCompressedBit(encoded.buffer());
+			metrics.onBytesWritten(encoded.buffer().remaining());
+			this.writer.write(encoded);
+		} else {
+			ByteBuffer [] encoded = frame.encodeGathering();
+			if (compressed)
+				setCompressedBit(encoded[0]);
+			metrics.onBytesWritten(frame.getEncodedLength(false));
+			this.writer.write(encoded);
+		}
+	}
+	
+	private void writeHttp(ByteBuffer [] encoded) {
+		long length = 0;
+		for (ByteBuffer buffer : encoded)
+			length += buffer.remaining();
+		metrics.onBytesWritten(length);
+		if (outbound != null)
+			queueOutbound(encoded, length);
+		else
+			this.writer.write(encoded);
+		afterWrite();
+	}
+	
+	private void writeHttp(ByteBuffer encoded) {
+		metrics.onBytesWritten(encoded.remaining());
+		if (outbound != null)
+			queueOutbound(new ByteBuffer[]{encoded}, encoded.remaining());
+		else
+			this.writer.write(encoded);
+		afterWrite();
+	}
+	
+	private void afterWrite() {
+		if (highWatermark > 0)
+			updateWritability();
+	}
+	
+	private void updateWritability() {
+		long pendingBytes = writer.getPendingBytes();
+		if (outbound != null)
+			pendingBytes += outbound.getQueuedBytes();
+		boolean nowWritable;
+		Object writabilityLock = writabilityLock();
+		synchronized (writabilityLock) {
+			if (writable && pendingBytes >= highWatermark) {
+				nowWritable = false;
+			} else if (!writable && pendingBytes <= lowWatermark) {
+				nowWritable = true;
+				writabilityLock.notifyAll();
+			} else {
+				return;
+			}
+			writable = nowWritable;
+		}
+		callback.onWritabilityChanged(handler, nowWritable);
+	}
+	
+	/**
+	 * Applies the overflow policy to a message sent while not writable, returning whether it should still be written
+	 */
+	private boolean admitOverflow(WebsocketFrameType type, long payloadLength) {
+		// Control frames keep the connection alive, or close it, so they always go out
+		if (type != WebsocketFrameType.TEXT && type != WebsocketFrameType.BINARY)
+			return true;
+		
+		boolean admitted = switch (writeOverflowPolicy) {
+			case QUEUE -> true;
+			case DROP -> false;
+			case BLOCK -> awaitWritable();
+			case CLOSE -> {
+				if (!closing)
+					sendClose(WebSocketCloseReason.POLICY_VIOLATION.getStatusCode(), "write buffer overflow");
+				socketClose();
+				yield false;
+			}
+		};
+		if (!admitted)
+			metrics.onFrameDropped(type, payloadLength);
+		return admitted;
+	}
+	
+	private boolean awaitWritable() {
+		// Anything held back by a cork only drains once it has been handed to the writer
+		flush();
+		updateWritability();
+		if (!writer.mayBlock())
+			return true;
+		
+		Object writabilityLock = writabilityLock();
+		synchronized (writabilityLock) {
+			try {
+				while (!writable && !disconnected)
+					writabilityLock.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			return !disconnected;
+		}
+	}
+	
+	private Object writabilityLock() {
+		Object lock = writabilityLock;
+		if (lock == null && !WRITABILITY_LOCK.compareAndSet(this, null, lock = new Object()))
+			lock = writabilityLock;
+		return lock;
+	}
+	
+	private ReentrantLock messageLock() {
+		ReentrantLock lock = messageLock;
+		if (lock == null && !MESSAGE_LOCK.compareAndSet(this, null, lock = new ReentrantLock()))
+			lock = messageLock;
+		return lock;
+	}
+	
+	private ReentrantLock frameLock() {
+		ReentrantLock lock = frameLock;
+		if (lock == null && !FRAME_LOCK.compareAndSet(this, null, lock = new ReentrantLock()))
+			lock = frameLock;
+		return lock;
+	}
+	
+	private Queue<WebsocketFrame> controlFrames() {
+		Queue<WebsocketFrame> queue = controlFrames;
+		if (queue == null && !CONTROL_FRAMES.compareAndSet(this, null, queue = new ConcurrentLinkedQueue<WebsocketFrame>()))
+			queue = controlFrames;
+		return queue;
+	}
+	
+	private void finishClosing(byte [] closeData) {
+		int closeCode = getWebSocketCloseCode(closeData);
+		String closeReason = getWebSocketCloseReason(closeData);
+		// The close frame shouldn't wait behind a cork
+		flush();
+		closeDeadline = schedule(this::onCloseTimeout, closeTimeoutNanos);
+		metrics.onClose(closeCode);
+		callback.onDisconnect(handler, closeCode, closeReason);
+	}
+	
+	private boolean sendsFromTimer() {
+		return timer != null && (pingIntervalNanos > 0 || idleTimeoutNanos > 0);
+	}
+	
+	private void startWebsocketTimeouts() {
+		Timeout handshakeDeadline = this.handshakeDeadline;
+		if (handshakeDeadline != null)
+			handshakeDeadline.cancel();
+		lastMessageTime = System.nanoTime();
+		pingDeadline = schedule(this::onPingTimer, pingIntervalNanos);
+		idleDeadline = schedule(this::onIdleTimer, idleTimeoutNanos);
+		bufferDeadline = schedule(this::onBufferTimer, bufferTrimNanos);
+	}
+	
+	@Nullable
+	private Timeout schedule(Runnable task, long delayNanos) {
+		HashedWheelTimer timer = this.timer;
+		if (timer == null || delayNanos <= 0)
+			return null;
+		return timer.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+	}
+	
+	private void cancelTimeouts() {
+		for (Timeout timeout : new Timeout[]{handshakeDeadline, pingDeadline, pongDeadline, idleDeadline, closeDeadline, bufferDeadline}) {
+			if (timeout != null)
+				timeout.cancel();
+		}
+	}
+	
+	private void onMessageActivity(WebsocketFrameType type) {
+		if (idleTimeoutNanos > 0 && (type == WebsocketFrameType.TEXT || type == WebsocketFrameType.BINARY))
+			lastMessageTime = System.nanoTime();
+	}
+	
+	/*
+	 * The timeouts below run on the timer's thread. Rather than being rescheduled on every read or message, each one
+	 * checks how long it has really been when it expires, and waits out the rest if that isn't long enough.
+	 */
+	
+	private void onHandshakeTimeout() {
+		// Settling the handshake here keeps a connection that is upgrading at this moment from being dropped
+		if (HANDSHAKE_SETTLED.compareAndSet(this, false, true) && !disconnected)
+			socketClose();
+	}
+	
+	private void onPingTimer() {
+		if (closing || disconnected)
+			return;
+		long silence = System.nanoTime() - lastReadTime;
+		if (silence < pingIntervalNanos) {
+			pingDeadline = schedule(this::onPingTimer, pingIntervalNanos - silence);
+			return;
+		}
+		pingSentTime = System.nanoTime();
+		send(new WebsocketFrame(WebsocketFrameType.PING, new byte[0]));
+		pongDeadline = schedule(this::onPongTimeout, pongTimeoutNanos);
+		pingDeadline = schedule(this::onPingTimer, pingIntervalNanos);
+	}
+	
+	private void onPongTimeout() {
+		if (!disconnected && lastReadTime - pingSentTime < 0)
+			socketClose();
+	}
+	
+	private void onIdleTimer() {
+		if (closing || disconnected)
+			return;
+		long idle = System.nanoTime() - lastMessageTime;
+		if (idle < idleTimeoutNanos) {
+			idleDeadline = schedule(this::onIdleTimer, idleTimeoutNanos - idle);
+			return;
+		}
+		sendClose(WebSocketCloseReason.GOING_AWAY.getStatusCode(), "idle timeout");
+	}
+	
+	private void onCloseTimeout() {
+		if (!disconnected)
+			socketClose();
+	}
+	
+	private void onBufferTimer() {
+		if (disconnected)
+			return;
+		long silence = System.nanoTime() - lastReadTime;
+		if (silence < bufferTrimNanos) {
+			bufferDeadline = schedule(this::onBufferTimer, bufferTrimNanos - silence);
+			return;
+		}
+		// A read in progress means the peer isn't silent after all, so this waits for another period
+		if (readLock.tryLock()) {
+			try {
+				if (!disconnected)
+					websocketParser.trim();
+			} finally {
+				readLock.unlock();
+			}
+		}
+		bufferDeadline = schedule(this::onBufferTimer, bufferTrimNanos);
+	}
+	
+	private void failWebsocket(WebsocketParserException e) {
+		metrics.onWebsocketParseError(e.getCloseReason());
+		// The close frame tells the peer why, but the connection can't be trusted to finish the closing handshake
+		if (!closing)
+			sendClose(e.getCloseReason().getStatusCode(), e.getMessage());
+		socketClose();
+	}
+	
+	private void failHttp() {
+		metrics.onHttpParseError();
+		// Nothing after the malformed message can be parsed, including at the end of the stream
+		httpParser.release();
+		socketClose();
 	}
 	
 	private void onWebsocketRead(byte [] data, int start, int length) throws WebsocketParserException {
@@ -137,29 +1293,47 @@ public abstract class WebSocketProtocol {
 			if (frame == null)
 				break;
 			
-			switch (frame.type()) {
-				case TEXT -> callback.onTextMessage(handler, new String(frame.data(), StandardCharsets.UTF_8));
-				case BINARY -> callback.onBinaryMessage(handler, frame.data());
-				case PING -> {
-					send(new WebsocketFrame(WebsocketFrameType.PONG, frame.data()));
-					callback.onPing(handler, frame.data());
-				}
-				case PONG -> callback.onPong(handler, frame.data());
-				case CLOSE -> {
-					if (!this.closing) {
-						send(new WebsocketFrame(WebsocketFrameType.CLOSE, frame.data()));
-					} else {
-						socketClose();
-					}
-				}
-			}
+			handleWebsocketFrame(frame);
+		}
+	}
+	
+	private void onWebsocketRead(ByteBuffer data) throws WebsocketParserException {
+		while (true) {
+			WebsocketFrame frame = websocketParser.parseChunk(data);
+			if (frame == null)
+				break;
 			
-			onWebsocketFrame(frame);
+			handleWebsocketFrame(frame);
 		}
 	}
 	
+	private void handleWebsocketFrame(WebsocketFrame frame) {
+		onMessageActivity(frame.type());
+		metrics.onFrameRead(frame.type(), frame.data().length);
+		if (websocketParser.getFragmentCount() > 1 && frame.type().getOpcode() < 8)
+			metrics.onFragmentedMessage(frame.type(), websocketParser.getFragmentCount(), frame.data().length);
+		switch (frame.type()) {
+			// Already validated, and pure ASCII can be copied into a compact string without decoding
+			case TEXT -> callback.onTextMessage(handler, new String(frame.data(), websocketParser.isAsciiText() ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8));
+			case BINARY -> callback.onBinaryMessage(handler, frame.data());
+			case PING -> {
+				send(new WebsocketFrame(WebsocketFrameType.PONG, frame.data()));
+				callback.onPing(handler, frame.data());
+			}
+			case PONG -> callback.onPong(handler, frame.data());
+			case CLOSE -> {
+				// Unless a CLOSE was already sent, possibly by another thread just now, in which case this answers it
+				if (!sendWebsocket(new WebsocketFrame(WebsocketFrameType.CLOSE, frame.data())))
+					socketClose();
+			}
+		}
+		
+		onWebsocketFrame(frame);
+	}
+	
 	private void onHttpRead(byte [] data, int start, int length) throws HttpParserException {
-		while (true) {
+		// The handshake may switch modes part way through, in which case the remainder was handed to the websocket parser
+		while (!websocketMode) {
 			HttpFrame frame = httpParser.parseChunk(data, start, length);
 			data = null;
 			start = 0;
@@ -171,17 +1345,132 @@ public abstract class WebSocketProtocol {
 		}
 	}
 	
+	private void onHttpRead(ByteBuffer data) throws HttpParserException {
+		while (!websocketMode) {
+			HttpFrame frame = httpParser.parseChunk(data);
+			if (frame == null)
+				break;
+			
+			onHttpFrame(frame);
+		}
+	}
+	
+	private void onHttpEndOfStream() {
+		try {
+			HttpFrame frame = httpParser.endOfStream();
+			if (frame != null)
+				onHttpFrame(frame);
+		} catch (HttpParserException e) {
+			// Cut off part way through a message, which has nowhere to go
+			metrics.onHttpParseError();
+		}
+	}
+	
 	protected static String getWebSocketAcceptString(@NotNull String websocketKey) {
-		byte [] acceptPreDigest = (websocketKey + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes(StandardCharsets.UTF_8);
-		byte [] acceptDigest;
-		DIGEST_LOCK.lock();
+		return WebSocketHandshake.getAcceptKey(websocketKey);
+	}
+	
+	private class StreamingMessageListener implements WebsocketMessageListener {
+		
+		private WebsocketFrameType type = null;
+		private long size = 0;
+		
+		@Override
+		public void onMessageStart(@NotNull WebsocketFrameType type) {
+			this.type = type;
+			this.size = 0;
+			callback.onMessageStart(handler, type);
+		}
+		
+		@Override
+		public void onMessageData(@NotNull ByteBuffer data) {
+			size += data.remaining();
+			callback.onMessageData(handler, data);
+		}
+		
+		@Override
+		public void onMessageEnd() {
+			onMessageActivity(type);
+			metrics.onFrameRead(type, size);
+			if (websocketParser.getFragmentCount() > 1)
+				metrics.onFragmentedMessage(type, websocketParser.getFragmentCount(), size);
+			callback.onMessageEnd(handler);
+		}
+		
+	}
+	
+	private class StreamingBodyListener implements HttpBodyListener {
+		
+		@Override
+		public void onBodyStart(@NotNull HttpFrame frame) {
+			onHttpFrame(frame);
+		}
+		
+		@Override
+		public void onBodyData(@NotNull ByteBuffer data) {
+			callback.onHttpBodyData(handler, data);
+		}
+		
+		@Override
+		public void onBodyEnd() {
+			callback.onHttpBodyEnd(handler);
+		}
+		
+	}
+	
+	private static WebSocketWriter wrapWriter(Consumer<byte []> writer) {
+		return new WebSocketWriter() {
+			@Override
+			public void write(@NotNull ByteBuffer [] buffers) {
+				if (buffers.length == 1) {
+					writer.accept(toByteArray(buffers[0]));
+					return;
+				}
+				
+				int length = 0;
+				for (ByteBuffer buffer : buffers)
+					length += buffer.remaining();
+				byte [] data = new byte[length];
+				int index = 0;
+				for (ByteBuffer buffer : buffers) {
+					int remaining = buffer.remaining();
+					buffer.get(data, index, remaining);
+					index += remaining;
+				}
+				writer.accept(data);
+			}
+			
+			@Override
+			public void write(@NotNull PooledBuffer buffer) {
+				// The consumer may keep the array, which goes back to the pool as soon as this returns
+				try {
+					writer.accept(toByteArray(buffer.buffer()));
+				} finally {
+					buffer.release();
+				}
+			}
+		};
+	}
+	
+	private static byte [] toByteArray(ByteBuffer buffer) {
+		// Always a copy - the consumer may keep or modify the array, and buffers may share theirs, e.g. with a prepared
+		// frame, a constant or the pool
+		byte [] data = new byte[buffer.remaining()];
+		buffer.get(data);
+		return data;
+	}
+	
+	private static long toNanos(Duration duration) {
 		try {
-			SHA1_DIGEST.reset();
-			acceptDigest = SHA1_DIGEST.digest(acceptPreDigest);
-		} finally {
-			DIGEST_LOCK.unlock();
+			return duration.toNanos();
+		} catch (ArithmeticException e) {
+			return Long.MAX_VALUE;
 		}
-		return Base64.getEncoder().encodeToString(acceptDigest);
+	}
+	
+	private static void setCompressedBit(ByteBuffer header) {
+		// RSV1 on the first frame marks the message as compressed
+		header.put(0, (byte) (header.get(0) | 0x40));
 	}
 	
 	private static int getWebSocketCloseCode(byte [] closeData) {
@@ -198,4 +1487,9 @@ public abstract class WebSocketProtocol {
 		return new String(closeData, 2, closeData.length-2, StandardCharsets.UTF_8);
 	}
 	
+	/**
+	 * A fragment of a streamed message, already encoded, waiting in the outbound queue
+	 */
+	private record StreamedFragment(@NotNull ByteBuffer encoded, @Nullable PooledBuffer pooled) { }
+	
 }
@@ -0,0 +1,49 @@
+package me.joshlarson.websocket.common;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Deadlines a {@link WebSocketProtocol} keeps on a shared timer. Zero disables each of them.
+ * <ul>
+ *     <li>{@code pingInterval} - a PING is sent whenever the peer has been silent this long</li>
+ *     <li>{@code pongTimeout} - the connection is dropped if the peer is still silent this long after a PING. Anything
+ *     it sends counts, since a PONG may be queued behind a large message.</li>
+ *     <li>{@code handshakeTimeout} - connections still speaking HTTP this long after connecting are dropped, which
+ *     covers clients that open connections and never finish their request</li>
+ *     <li>{@code idleTimeout} - connections that haven't sent or received a TEXT or BINARY message for this long are
+ *     closed with GOING_AWAY (1001)</li>
+ *     <li>{@code closeTimeout} - connections are dropped if the peer hasn't ended them this long after a CLOSE was
+ *     sent</li>
+ *     <li>{@code bufferTrimTimeout} - the parser's buffers are shrunk back to their initial size, or released, whenever
+ *     the peer has been silent this long, so idle connections don't hold on to the room a past burst needed</li>
+ * </ul>
+ */
+public record WebSocketTimeouts(
+		@NotNull Duration pingInterval,
+		@NotNull Duration pongTimeout,
+		@NotNull Duration handshakeTimeout,
+		@NotNull Duration idleTimeout,
+		@NotNull Duration closeTimeout,
+		@NotNull Duration bufferTrimTimeout
+) {
+	
+	public static final WebSocketTimeouts NONE = new WebSocketTimeouts(Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ZERO);
+	
+	public WebSocketTimeouts {
+		for (Duration duration : new Duration[]{pingInterval, pongTimeout, handshakeTimeout, idleTimeout, closeTimeout, bufferTrimTimeout}) {
+			if (Objects.requireNonNull(duration, "timeouts must not be null").isNegative())
+				throw new IllegalArgumentException("timeouts must not be negative");
+		}
+	}
+	
+	/**
+	 * Never trims the parser's buffers
+	 */
+	public WebSocketTimeouts(@NotNull Duration pingInterval, @NotNull Duration pongTimeout, @NotNull Duration handshakeTimeout, @NotNull Duration idleTimeout, @NotNull Duration closeTimeout) {
+		this(pingInterval, pongTimeout, handshakeTimeout, idleTimeout, closeTimeout, Duration.ZERO);
+	}
+	
+}
@@ -0,0 +1,60 @@
+package me.joshlarson.websocket.common;
+
+import me.joshlarson.websocket.common.buffer.PooledBuffer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+/**
+ * Gathering output for a {@link WebSocketProtocol}. Each call holds whole frames, and the buffers may share memory
+ * with the data they were encoded from - they can be written or queued, but never modified.
+ */
+@FunctionalInterface
+public interface WebSocketWriter {
+	
+	void write(@NotNull ByteBuffer [] buffers);
+	
+	default void write(@NotNull ByteBuffer buffer) {
+		write(new ByteBuffer[]{buffer});
+	}
+	
+	/**
+	 * Takes over the buffer, releasing it once its bytes are written. The default suits writers that are done with
+	 * their buffers by the time {@link #write(ByteBuffer[])} returns - writers that queue them have to override this.
+	 */
+	default void write(@NotNull PooledBuffer buffer) {
+		try {
+			write(buffer.buffer());
+		} finally {
+			buffer.release();
+		}
+	}
+	
+	/**
+	 * Bytes accepted but not yet written out. Writers that are done by the time write returns never have any, while
+	 * writers that queue should call {@link WebSocketProtocol#onWritesDrained()} as their queue empties.
+	 */
+	default long getPendingBytes() {
+		return 0;
+	}
+	
+	/**
+	 * Whether the calling thread may wait for pending bytes to be written - false on a thread the writer itself needs in
+	 * order to make progress
+	 */
+	default boolean mayBlock() {
+		return true;
+	}
+	
+	/**
+	 * Runs tasks in order on the thread that owns the connection's I/O, which is where thread-safe sends are written
+	 * from. Null, the default, has them written by whichever sending thread finds nothing else being written.
+	 */
+	@Nullable
+	default Executor getOwner() {
+		return null;
+	}
+	
+}
@@ -0,0 +1,16 @@
+package me.joshlarson.websocket.common;
+
+/**
+ * What happens to a TEXT or BINARY message sent while the connection's write backlog is above its high watermark.
+ * Control frames and HTTP messages are always written.
+ */
+public enum WriteOverflowPolicy {
+	/** Queued anyway - only isWritable() and onWritabilityChanged report the backlog */
+	QUEUE,
+	/** Discarded */
+	DROP,
+	/** Discarded, and the connection is closed with POLICY_VIOLATION (1008) */
+	CLOSE,
+	/** The sending thread waits until the backlog drains to the low watermark, unless the writer can't drain without it */
+	BLOCK
+}
@@ -0,0 +1,24 @@
+package me.joshlarson.websocket.common.buffer;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Source of the buffers used to stage parser input and encode outgoing frames. Every buffer handed out has to be
+ * released exactly once by whoever ends up owning it.
+ */
+public interface BufferAllocator {
+	
+	/**
+	 * Returns a buffer with its position at zero and its limit at {@code capacity}. It may be direct, depending on the
+	 * allocator.
+	 */
+	@NotNull
+	PooledBuffer allocate(int capacity);
+	
+	/**
+	 * Like {@link #allocate(int)}, but always backed by an array - the parsers work on arrays
+	 */
+	@NotNull
+	PooledBuffer allocateHeap(int capacity);
+	
+}
@@ -0,0 +1,90 @@
+package me.joshlarson.websocket.common.buffer;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+
+/**
+ * A reference counted buffer. It starts with one reference, and goes back to its allocator once the last one is
+ * released - after that neither the buffer nor anything sliced from it may be touched.
+ */
+public final class PooledBuffer {
+	
+	private static final VarHandle REFERENCE_COUNT;
+	
+	static {
+		try {
+			REFERENCE_COUNT = MethodHandles.lookup().findVarHandle(PooledBuffer.class, "referenceCount", int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	private final ByteBuffer buffer;
+	private final Recycler recycler;
+	@SuppressWarnings("unused") // accessed through REFERENCE_COUNT
+	private volatile int referenceCount;
+	
+	public PooledBuffer(@NotNull ByteBuffer buffer, @NotNull Recycler recycler) {
+		this.buffer = buffer;
+		this.recycler = recycler;
+		this.referenceCount = 1;
+	}
+	
+	@NotNull
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+	
+	/**
+	 * Returns the backing array, which may be larger than the requested capacity
+	 */
+	@NotNull
+	public byte [] array() {
+		if (!buffer.hasArray())
+			throw new UnsupportedOperationException("direct buffers have no array");
+		return buffer.array();
+	}
+	
+	public boolean isDirect() {
+		return buffer.isDirect();
+	}
+	
+	public int referenceCount() {
+		return (int) REFERENCE_COUNT.getVolatile(this);
+	}
+	
+	@NotNull
+	public PooledBuffer retain() {
+		while (true) {
+			int count = (int) REFERENCE_COUNT.getVolatile(this);
+			if (count <= 0)
+				throw new IllegalStateException("buffer already released");
+			if (REFERENCE_COUNT.compareAndSet(this, count, count + 1))
+				return this;
+		}
+	}
+	
+	/**
+	 * Drops one reference, returning true if that was the last one and the buffer went back to its allocator
+	 */
+	public boolean release() {
+		int count = (int) REFERENCE_COUNT.getAndAdd(this, -1) - 1;
+		if (count < 0)
+			throw new IllegalStateException("buffer already released");
+		if (count > 0)
+			return false;
+		recycler.recycle(this);
+		return true;
+	}
+	
+	@FunctionalInterface
+	public interface Recycler {
+		
+		void recycle(@NotNull PooledBuffer buffer);
+		
+	}
+	
+}
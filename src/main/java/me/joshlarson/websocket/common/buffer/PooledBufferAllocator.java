@@ -0,0 +1,146 @@
+package me.joshlarson.websocket.common.buffer;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pools buffers in power of two size classes from 256 bytes to 1 MiB, cached per thread so the common case of a
+ * buffer being allocated and released on the same event loop takes no locks. A buffer released on another thread joins
+ * that thread's cache instead. Larger requests are allocated and dropped as usual.
+ * <p>
+ * With leak detection, the allocation site of every buffer is recorded until it is released, so a test can check that
+ * nothing was left behind.
+ */
+public final class PooledBufferAllocator implements BufferAllocator {
+	
+	/** A shared heap allocator without leak detection */
+	public static final PooledBufferAllocator HEAP = new PooledBufferAllocator(false);
+	
+	private static final int MIN_SHIFT = 8;
+	private static final int MAX_SHIFT = 20;
+	private static final int SIZE_CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+	// Bounds each thread's cache to about this many bytes per size class
+	private static final int CACHE_BYTES_PER_CLASS = 256 * 1024;
+	private static final int MAX_CACHED_PER_CLASS = 64;
+	
+	private final boolean direct;
+	private final ThreadLocal<ThreadCache> caches;
+	private final PooledBuffer.Recycler recycler;
+	private final Map<PooledBuffer, Throwable> unreleased;
+	
+	public PooledBufferAllocator(boolean direct) {
+		this(direct, false);
+	}
+	
+	/**
+	 * @param direct whether {@link #allocate(int)} returns off-heap buffers
+	 * @param leakDetection whether to record where each unreleased buffer was allocated
+	 */
+	public PooledBufferAllocator(boolean direct, boolean leakDetection) {
+		this.direct = direct;
+		this.caches = ThreadLocal.withInitial(ThreadCache::new);
+		this.recycler = this::recycle;
+		this.unreleased = leakDetection ? new ConcurrentHashMap<>() : null;
+	}
+	
+	@NotNull
+	@Override
+	public PooledBuffer allocate(int capacity) {
+		return allocate(capacity, direct);
+	}
+	
+	@NotNull
+	@Override
+	public PooledBuffer allocateHeap(int capacity) {
+		return allocate(capacity, false);
+	}
+	
+	/**
+	 * Returns the allocation sites of every buffer that hasn't been released yet. Only available with leak detection.
+	 */
+	@NotNull
+	public List<Throwable> getUnreleasedAllocations() {
+		if (unreleased == null)
+			throw new IllegalStateException("leak detection is disabled");
+		return new ArrayList<>(unreleased.values());
+	}
+	
+	private PooledBuffer allocate(int capacity, boolean direct) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity must not be negative");
+		
+		int sizeClass = getSizeClass(capacity);
+		ByteBuffer buffer = null;
+		if (sizeClass >= 0)
+			buffer = caches.get().poll(sizeClass, direct);
+		if (buffer == null) {
+			int allocatedCapacity = (sizeClass >= 0) ? 1 << (sizeClass + MIN_SHIFT) : capacity;
+			buffer = direct ? ByteBuffer.allocateDirect(allocatedCapacity) : ByteBuffer.allocate(allocatedCapacity);
+		}
+		buffer.clear().limit(capacity);
+		
+		PooledBuffer pooled = new PooledBuffer(buffer, recycler);
+		if (unreleased != null)
+			unreleased.put(pooled, new Throwable("buffer allocated here"));
+		return pooled;
+	}
+	
+	private void recycle(PooledBuffer pooled) {
+		if (unreleased != null)
+			unreleased.remove(pooled);
+		
+		ByteBuffer buffer = pooled.buffer();
+		int capacity = buffer.capacity();
+		// Only buffers that were allocated for a size class can go back into one
+		if (Integer.bitCount(capacity) != 1 || capacity > 1 << MAX_SHIFT || capacity < 1 << MIN_SHIFT)
+			return;
+		caches.get().offer(getSizeClass(capacity), buffer);
+	}
+	
+	private static int getSizeClass(int capacity) {
+		if (capacity > 1 << MAX_SHIFT)
+			return -1;
+		if (capacity <= 1 << MIN_SHIFT)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+	}
+	
+	private static class ThreadCache {
+		
+		private final ArrayDeque<ByteBuffer> [] heap;
+		private final ArrayDeque<ByteBuffer> [] direct;
+		
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		public ThreadCache() {
+			this.heap = new ArrayDeque[SIZE_CLASSES];
+			this.direct = new ArrayDeque[SIZE_CLASSES];
+			for (int i = 0; i < SIZE_CLASSES; i++) {
+				int limit = getCacheLimit(i);
+				heap[i] = new ArrayDeque<>(limit);
+				direct[i] = new ArrayDeque<>(limit);
+			}
+		}
+		
+		public ByteBuffer poll(int sizeClass, boolean direct) {
+			return (direct ? this.direct : this.heap)[sizeClass].pollLast();
+		}
+		
+		public void offer(int sizeClass, ByteBuffer buffer) {
+			ArrayDeque<ByteBuffer> cache = (buffer.isDirect() ? this.direct : this.heap)[sizeClass];
+			if (cache.size() < getCacheLimit(sizeClass))
+				cache.addLast(buffer);
+		}
+		
+		private static int getCacheLimit(int sizeClass) {
+			return Math.max(2, Math.min(MAX_CACHED_PER_CLASS, CACHE_BYTES_PER_CLASS >> (sizeClass + MIN_SHIFT)));
+		}
+		
+	}
+	
+}
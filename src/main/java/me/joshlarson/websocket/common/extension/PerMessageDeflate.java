@@ -0,0 +1,303 @@
+package me.joshlarson.websocket.common.extension;
+
+import me.joshlarson.websocket.common.parser.websocket.WebSocketCloseReason;
+import me.joshlarson.websocket.common.parser.websocket.WebsocketInflater;
+import me.joshlarson.websocket.common.parser.websocket.WebsocketParserException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The negotiated permessage-deflate state of one connection (RFC 7692). Compressors are borrowed from a shared pool;
+ * without context takeover they go back after every message, so idle connections hold no native zlib memory.
+ */
+public final class PerMessageDeflate implements WebsocketInflater {
+	
+	public static final String EXTENSION_NAME = "permessage-deflate";
+	
+	// Every flushed message ends with an empty stored block, which is stripped on send and appended back on receive
+	private static final byte [] TAIL = {0x00, 0x00, (byte) 0xFF, (byte) 0xFF};
+	private static final ThreadLocal<byte []> INFLATE_OUTPUT = ThreadLocal.withInitial(() -> new byte[16 * 1024]);
+	
+	private final PerMessageDeflateOptions options;
+	private final boolean deflateNoContextTakeover;
+	private final boolean inflateNoContextTakeover;
+	private final String negotiatedHeader;
+	
+	private Deflater deflater;
+	private Inflater inflater;
+	private boolean closed;
+	
+	private PerMessageDeflate(PerMessageDeflateOptions options, boolean deflateNoContextTakeover, boolean inflateNoContextTakeover, String negotiatedHeader) {
+		this.options = options;
+		this.deflateNoContextTakeover = deflateNoContextTakeover;
+		this.inflateNoContextTakeover = inflateNoContextTakeover;
+		this.negotiatedHeader = negotiatedHeader;
+		this.deflater = null;
+		this.inflater = null;
+		this.closed = false;
+	}
+	
+	/**
+	 * Accepts the first permessage-deflate offer in a client's Sec-WebSocket-Extensions header that this side can
+	 * honor, or returns null if there is none
+	 */
+	@Nullable
+	public static PerMessageDeflate acceptOffer(@Nullable String extensions, @NotNull PerMessageDeflateOptions options) {
+		if (extensions == null)
+			return null;
+		
+		for (Extension offer : parseExtensions(extensions)) {
+			if (!offer.name().equalsIgnoreCase(EXTENSION_NAME) || !offer.valid())
+				continue;
+			
+			boolean serverNoContextTakeover = options.serverNoContextTakeover();
+			boolean clientNoContextTakeover = options.clientNoContextTakeover();
+			boolean acceptable = true;
+			for (Map.Entry<String, String> parameter : offer.parameters().entrySet()) {
+				String value = parameter.getValue();
+				switch (parameter.getKey()) {
+					case "server_no_context_takeover" -> {
+						acceptable &= value.isEmpty();
+						serverNoContextTakeover = true;
+					}
+					case "client_no_context_takeover" -> {
+						acceptable &= value.isEmpty();
+						clientNoContextTakeover = true;
+					}
+					// Deflater always uses a 15 bit window, so a smaller one can't be promised
+					case "server_max_window_bits" -> acceptable &= parseWindowBits(value) == 15;
+					// Inflater accepts any window up to 15 bits, so there's nothing to limit
+					case "client_max_window_bits" -> acceptable &= value.isEmpty() || parseWindowBits(value) > 0;
+					default -> acceptable = false;
+				}
+			}
+			if (!acceptable)
+				continue;
+			
+			StringBuilder response = new StringBuilder(EXTENSION_NAME);
+			if (serverNoContextTakeover)
+				response.append("; server_no_context_takeover");
+			if (clientNoContextTakeover)
+				response.append("; client_no_context_takeover");
+			return new PerMessageDeflate(options, serverNoContextTakeover, clientNoContextTakeover, response.toString());
+		}
+		return null;
+	}
+	
+	/**
+	 * Builds the Sec-WebSocket-Extensions header a client sends to offer compression
+	 */
+	@NotNull
+	public static String createOffer(@NotNull PerMessageDeflateOptions options) {
+		StringBuilder offer = new StringBuilder(EXTENSION_NAME);
+		if (options.serverNoContextTakeover())
+			offer.append("; server_no_context_takeover");
+		if (options.clientNoContextTakeover())
+			offer.append("; client_no_context_takeover");
+		return offer.toString();
+	}
+	
+	/**
+	 * Validates the server's answer to {@link #createOffer}. Returns null if the server accepted anything that wasn't
+	 * offered, in which case the client has to fail the connection.
+	 */
+	@Nullable
+	public static PerMessageDeflate acceptResponse(@NotNull String extensions, @NotNull PerMessageDeflateOptions options) {
+		List<Extension> accepted = parseExtensions(extensions);
+		if (accepted.size() != 1)
+			return null;
+		Extension response = accepted.get(0);
+		if (!response.name().equalsIgnoreCase(EXTENSION_NAME) || !response.valid())
+			return null;
+		
+		boolean serverNoContextTakeover = false;
+		boolean clientNoContextTakeover = options.clientNoContextTakeover();
+		for (Map.Entry<String, String> parameter : response.parameters().entrySet()) {
+			String value = parameter.getValue();
+			switch (parameter.getKey()) {
+				case "server_no_context_takeover" -> {
+					if (!value.isEmpty())
+						return null;
+					serverNoContextTakeover = true;
+				}
+				case "client_no_context_takeover" -> {
+					if (!value.isEmpty())
+						return null;
+					clientNoContextTakeover = true;
+				}
+				case "server_max_window_bits" -> {
+					if (parseWindowBits(value) < 0)
+						return null;
+				}
+				// Never offered, since Deflater can't shrink its window
+				default -> {
+					return null;
+				}
+			}
+		}
+		return new PerMessageDeflate(options, clientNoContextTakeover, serverNoContextTakeover, extensions);
+	}
+	
+	/**
+	 * The extension as negotiated - for a server, the Sec-WebSocket-Extensions value to respond with
+	 */
+	@NotNull
+	public String getNegotiatedHeader() {
+		return negotiatedHeader;
+	}
+	
+	public int getMinCompressSize() {
+		return options.minCompressSize();
+	}
+	
+	/**
+	 * Compresses one whole message payload, or returns null once the connection has closed
+	 */
+	@Nullable
+	public synchronized byte [] compress(@NotNull byte [] data) {
+		if (closed)
+			return null;
+		// zlib can't flush without new input, so an empty message is sent as the header of an empty stored block
+		if (data.length == 0)
+			return new byte[1];
+		
+		if (deflater == null)
+			deflater = ZlibPool.borrowDeflater(options.compressionLevel());
+		deflater.setInput(data);
+		byte [] output = new byte[Math.max(64, data.length / 2)];
+		int size = 0;
+		while (true) {
+			size += deflater.deflate(output, size, output.length - size, Deflater.SYNC_FLUSH);
+			// A completely filled buffer may still have output pending
+			if (size == output.length)
+				output = Arrays.copyOf(output, output.length * 2);
+			else if (deflater.needsInput())
+				break;
+		}
+		if (deflateNoContextTakeover) {
+			ZlibPool.returnDeflater(deflater);
+			deflater = null;
+		}
+		return Arrays.copyOf(output, size - TAIL.length);
+	}
+	
+	@Override
+	public synchronized long inflate(@NotNull ByteBuffer compressed, long outputLimit, @NotNull Consumer<ByteBuffer> output) throws WebsocketParserException {
+		Inflater inflater = getInflater();
+		inflater.setInput(compressed);
+		return drainInflater(inflater, outputLimit, output);
+	}
+	
+	@Override
+	public synchronized long finishMessage(long outputLimit, @NotNull Consumer<ByteBuffer> output) throws WebsocketParserException {
+		Inflater inflater = getInflater();
+		inflater.setInput(TAIL);
+		long produced = drainInflater(inflater, outputLimit, output);
+		if (inflateNoContextTakeover) {
+			ZlibPool.returnInflater(inflater);
+			this.inflater = null;
+		}
+		return produced;
+	}
+	
+	/**
+	 * Returns the compressors to the pool - called once the connection is gone
+	 */
+	public synchronized void close() {
+		closed = true;
+		if (deflater != null) {
+			ZlibPool.returnDeflater(deflater);
+			deflater = null;
+		}
+		if (inflater != null) {
+			ZlibPool.returnInflater(inflater);
+			inflater = null;
+		}
+	}
+	
+	private Inflater getInflater() throws WebsocketParserException {
+		if (closed)
+			throw new WebsocketParserException("connection closed");
+		if (inflater == null)
+			inflater = ZlibPool.borrowInflater();
+		return inflater;
+	}
+	
+	private static long drainInflater(Inflater inflater, long outputLimit, Consumer<ByteBuffer> output) throws WebsocketParserException {
+		byte [] buffer = INFLATE_OUTPUT.get();
+		long produced = 0;
+		try {
+			while (true) {
+				int n = inflater.inflate(buffer);
+				if (n == 0) {
+					if (inflater.needsDictionary())
+						throw new WebsocketParserException("invalid compressed data");
+					// A final deflate block ends the stream, so the next message has to start a new one
+					if (inflater.finished())
+						inflater.reset();
+					break;
+				}
+				produced += n;
+				if (produced > outputLimit)
+					throw new WebsocketParserException("message size is too large", WebSocketCloseReason.MESSAGE_TOO_BIG);
+				output.accept(ByteBuffer.wrap(buffer, 0, n));
+			}
+		} catch (DataFormatException e) {
+			throw new WebsocketParserException("invalid compressed data");
+		}
+		return produced;
+	}
+	
+	private static int parseWindowBits(String value) {
+		try {
+			int bits = Integer.parseInt(value);
+			return (bits >= 8 && bits <= 15) ? bits : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	private static List<Extension> parseExtensions(String header) {
+		List<Extension> extensions = new ArrayList<>();
+		for (String element : header.split(",")) {
+			String [] parts = element.split(";");
+			String name = parts[0].strip();
+			if (name.isEmpty())
+				continue;
+			
+			Map<String, String> parameters = new LinkedHashMap<>();
+			boolean valid = true;
+			for (int i = 1; i < parts.length; i++) {
+				String [] keyValue = parts[i].split("=", 2);
+				String key = keyValue[0].strip().toLowerCase(Locale.US);
+				String value = (keyValue.length == 2) ? unquote(keyValue[1].strip()) : "";
+				// Repeating a parameter makes the whole offer invalid
+				if (parameters.put(key, value) != null)
+					valid = false;
+			}
+			extensions.add(new Extension(name, parameters, valid));
+		}
+		return extensions;
+	}
+	
+	private static String unquote(String value) {
+		if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+			return value.substring(1, value.length() - 1);
+		return value;
+	}
+	
+	private record Extension(String name, Map<String, String> parameters, boolean valid) { }
+	
+}
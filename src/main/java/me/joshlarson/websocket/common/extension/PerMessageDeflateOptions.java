@@ -0,0 +1,34 @@
+package me.joshlarson.websocket.common.extension;
+
+import java.util.zip.Deflater;
+
+/**
+ * Local preferences for permessage-deflate (RFC 7692).
+ * <ul>
+ *     <li>{@code serverNoContextTakeover} - the server resets its compressor after every message. A server with this
+ *     set always answers with it, so its compressors can go back to the pool between messages; a client requests it.</li>
+ *     <li>{@code clientNoContextTakeover} - the client resets its compressor after every message. A client offers
+ *     this, and a server asks for it, so the receiving side can pool its decompressors too. Without it the receiving
+ *     side holds an inflater and its 32 KiB window for as long as the connection is open.</li>
+ *     <li>{@code minCompressSize} - smaller messages are sent uncompressed, since deflate can only make them bigger</li>
+ * </ul>
+ * Window sizes below 15 bits can't be produced by {@link Deflater}, so an offer that requires one from this side is
+ * declined rather than accepted and then violated.
+ */
+public record PerMessageDeflateOptions(
+		int compressionLevel,
+		boolean serverNoContextTakeover,
+		boolean clientNoContextTakeover,
+		int minCompressSize
+) {
+	
+	public static final PerMessageDeflateOptions DEFAULT = new PerMessageDeflateOptions(Deflater.DEFAULT_COMPRESSION, true, true, 64);
+	
+	public PerMessageDeflateOptions {
+		if ((compressionLevel < 0 || compressionLevel > 9) && compressionLevel != Deflater.DEFAULT_COMPRESSION)
+			throw new IllegalArgumentException("invalid compression level: " + compressionLevel);
+		if (minCompressSize < 0)
+			throw new IllegalArgumentException("minimum compression size must not be negative");
+	}
+	
+}
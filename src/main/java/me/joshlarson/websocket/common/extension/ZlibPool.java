@@ -0,0 +1,45 @@
+package me.joshlarson.websocket.common.extension;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Shared raw deflate streams. Each one holds native zlib memory (a deflater a few hundred KiB, an inflater around
+ * 40 KiB), so connections only borrow them while they need them, and anything beyond the pool size is freed.
+ */
+final class ZlibPool {
+	
+	private static final int MAX_POOLED = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+	private static final BlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(MAX_POOLED);
+	private static final BlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(MAX_POOLED);
+	
+	private ZlibPool() {}
+	
+	static Deflater borrowDeflater(int compressionLevel) {
+		Deflater deflater = DEFLATERS.poll();
+		if (deflater == null)
+			return new Deflater(compressionLevel, true);
+		deflater.setLevel(compressionLevel);
+		return deflater;
+	}
+	
+	static void returnDeflater(Deflater deflater) {
+		deflater.reset();
+		if (!DEFLATERS.offer(deflater))
+			deflater.end();
+	}
+	
+	static Inflater borrowInflater() {
+		Inflater inflater = INFLATERS.poll();
+		return (inflater == null) ? new Inflater(true) : inflater;
+	}
+	
+	static void returnInflater(Inflater inflater) {
+		inflater.reset();
+		if (!INFLATERS.offer(inflater))
+			inflater.end();
+	}
+	
+}
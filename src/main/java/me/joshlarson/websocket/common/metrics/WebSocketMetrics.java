@@ -0,0 +1,59 @@
+package me.joshlarson.websocket.common.metrics;
+
+import me.joshlarson.websocket.common.parser.websocket.WebSocketCloseReason;
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Counters reported by a WebSocketProtocol as it reads and writes. Every method does nothing by default, and protocols
+ * start out with {@link #NONE}, whose empty calls inline away. One instance may be shared by many connections, so
+ * implementations are called from every thread that reads or writes any of them.
+ */
+public interface WebSocketMetrics {
+	
+	WebSocketMetrics NONE = new WebSocketMetrics() {};
+	
+	default void onBytesRead(int bytes) {}
+	
+	default void onBytesWritten(long bytes) {}
+	
+	/**
+	 * A control frame or a complete TEXT/BINARY message, with its payload length after decompression
+	 */
+	default void onFrameRead(@NotNull WebsocketFrameType type, long payloadLength) {}
+	
+	/**
+	 * A control frame or a complete TEXT/BINARY message, with its payload length before compression
+	 */
+	default void onFrameWritten(@NotNull WebsocketFrameType type, long payloadLength) {}
+	
+	/**
+	 * A message discarded by the write overflow policy
+	 */
+	default void onFrameDropped(@NotNull WebsocketFrameType type, long payloadLength) {}
+	
+	/**
+	 * An incoming message that arrived in more than one frame, after it was reassembled or streamed to its end
+	 */
+	default void onFragmentedMessage(@NotNull WebsocketFrameType type, int fragments, long size) {}
+	
+	/**
+	 * An opening handshake that either switched to websocket mode or ended without doing so, timed from the connect
+	 */
+	default void onHandshake(boolean upgraded, long durationNanos) {}
+	
+	default void onHttpParseError() {}
+	
+	default void onWebsocketParseError(@NotNull WebSocketCloseReason reason) {}
+	
+	/**
+	 * The close code passed to onDisconnect - 1006 when the connection dropped without a close frame
+	 */
+	default void onClose(int closeCode) {}
+	
+	/**
+	 * The parser's staging buffers grew to a new largest combined capacity on this connection
+	 */
+	default void onBufferHighWaterMark(int capacity) {}
+	
+}
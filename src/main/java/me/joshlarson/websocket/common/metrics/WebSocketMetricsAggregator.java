@@ -0,0 +1,251 @@
+package me.joshlarson.websocket.common.metrics;
+
+import me.joshlarson.websocket.common.parser.websocket.WebSocketCloseReason;
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Totals across every connection it is set on. Counters are striped {@link LongAdder}s, so connections on different
+ * threads don't contend on them, and reading a total while they are being updated gives a recent value rather than an
+ * exact one.
+ */
+public final class WebSocketMetricsAggregator implements WebSocketMetrics {
+	
+	private static final WebsocketFrameType [] FRAME_TYPES = WebsocketFrameType.values();
+	private static final WebSocketCloseReason [] CLOSE_REASONS = WebSocketCloseReason.values();
+	
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder [] framesRead = createAdders(FRAME_TYPES.length);
+	private final LongAdder [] framesWritten = createAdders(FRAME_TYPES.length);
+	private final LongAdder [] payloadBytesRead = createAdders(FRAME_TYPES.length);
+	private final LongAdder [] payloadBytesWritten = createAdders(FRAME_TYPES.length);
+	private final LongAdder [] framesDropped = createAdders(FRAME_TYPES.length);
+	private final LongAdder [] payloadBytesDropped = createAdders(FRAME_TYPES.length);
+	private final LongAdder fragmentedMessages = new LongAdder();
+	private final LongAdder fragments = new LongAdder();
+	private final LongAdder fragmentedBytes = new LongAdder();
+	private final LongAccumulator largestFragmentedMessage = new LongAccumulator(Math::max, 0);
+	private final LongAdder handshakesUpgraded = new LongAdder();
+	private final LongAdder handshakesFailed = new LongAdder();
+	private final LongAdder handshakeNanos = new LongAdder();
+	private final LongAccumulator slowestHandshakeNanos = new LongAccumulator(Math::max, 0);
+	private final LongAdder httpParseErrors = new LongAdder();
+	private final LongAdder [] websocketParseErrors = createAdders(CLOSE_REASONS.length);
+	private final Map<Integer, LongAdder> closeCodes = new ConcurrentHashMap<>();
+	private final LongAccumulator bufferHighWaterMark = new LongAccumulator(Math::max, 0);
+	
+	@Override
+	public void onBytesRead(int bytes) {
+		bytesRead.add(bytes);
+	}
+	
+	@Override
+	public void onBytesWritten(long bytes) {
+		bytesWritten.add(bytes);
+	}
+	
+	@Override
+	public void onFrameRead(@NotNull WebsocketFrameType type, long payloadLength) {
+		framesRead[type.ordinal()].increment();
+		payloadBytesRead[type.ordinal()].add(payloadLength);
+	}
+	
+	@Override
+	public void onFrameWritten(@NotNull WebsocketFrameType type, long payloadLength) {
+		framesWritten[type.ordinal()].increment();
+		payloadBytesWritten[type.ordinal()].add(payloadLength);
+	}
+	
+	@Override
+	public void onFrameDropped(@NotNull WebsocketFrameType type, long payloadLength) {
+		framesDropped[type.ordinal()].increment();
+		payloadBytesDropped[type.ordinal()].add(payloadLength);
+	}
+	
+	@Override
+	public void onFragmentedMessage(@NotNull WebsocketFrameType type, int fragments, long size) {
+		this.fragmentedMessages.increment();
+		this.fragments.add(fragments);
+		this.fragmentedBytes.add(size);
+		this.largestFragmentedMessage.accumulate(size);
+	}
+	
+	@Override
+	public void onHandshake(boolean upgraded, long durationNanos) {
+		(upgraded ? handshakesUpgraded : handshakesFailed).increment();
+		handshakeNanos.add(durationNanos);
+		slowestHandshakeNanos.accumulate(durationNanos);
+	}
+	
+	@Override
+	public void onHttpParseError() {
+		httpParseErrors.increment();
+	}
+	
+	@Override
+	public void onWebsocketParseError(@NotNull WebSocketCloseReason reason) {
+		websocketParseErrors[reason.ordinal()].increment();
+	}
+	
+	@Override
+	public void onClose(int closeCode) {
+		closeCodes.computeIfAbsent(closeCode, c -> new LongAdder()).increment();
+	}
+	
+	@Override
+	public void onBufferHighWaterMark(int capacity) {
+		bufferHighWaterMark.accumulate(capacity);
+	}
+	
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+	
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+	
+	public long getFramesRead(@NotNull WebsocketFrameType type) {
+		return framesRead[type.ordinal()].sum();
+	}
+	
+	public long getFramesWritten(@NotNull WebsocketFrameType type) {
+		return framesWritten[type.ordinal()].sum();
+	}
+	
+	public long getPayloadBytesRead(@NotNull WebsocketFrameType type) {
+		return payloadBytesRead[type.ordinal()].sum();
+	}
+	
+	public long getPayloadBytesWritten(@NotNull WebsocketFrameType type) {
+		return payloadBytesWritten[type.ordinal()].sum();
+	}
+	
+	public long getFramesDropped(@NotNull WebsocketFrameType type) {
+		return framesDropped[type.ordinal()].sum();
+	}
+	
+	public long getPayloadBytesDropped(@NotNull WebsocketFrameType type) {
+		return payloadBytesDropped[type.ordinal()].sum();
+	}
+	
+	public long getFragmentedMessages() {
+		return fragmentedMessages.sum();
+	}
+	
+	/**
+	 * The number of frames all fragmented messages arrived in
+	 */
+	public long getFragments() {
+		return fragments.sum();
+	}
+	
+	public long getFragmentedBytes() {
+		return fragmentedBytes.sum();
+	}
+	
+	public long getLargestFragmentedMessage() {
+		return largestFragmentedMessage.get();
+	}
+	
+	public long getHandshakes(boolean upgraded) {
+		return (upgraded ? handshakesUpgraded : handshakesFailed).sum();
+	}
+	
+	/**
+	 * The time spent in every handshake, successful or not
+	 */
+	public long getHandshakeNanos() {
+		return handshakeNanos.sum();
+	}
+	
+	public long getSlowestHandshakeNanos() {
+		return slowestHandshakeNanos.get();
+	}
+	
+	public long getHttpParseErrors() {
+		return httpParseErrors.sum();
+	}
+	
+	public long getWebsocketParseErrors(@NotNull WebSocketCloseReason reason) {
+		return websocketParseErrors[reason.ordinal()].sum();
+	}
+	
+	public long getCloseCount(int closeCode) {
+		LongAdder count = closeCodes.get(closeCode);
+		return (count == null) ? 0 : count.sum();
+	}
+	
+	/**
+	 * The number of connections closed with each code seen so far, ordered by code
+	 */
+	@NotNull
+	public Map<Integer, Long> getCloseCodes() {
+		Map<Integer, Long> counts = new TreeMap<>();
+		closeCodes.forEach((code, count) -> counts.put(code, count.sum()));
+		return counts;
+	}
+	
+	/**
+	 * The largest combined parser buffer capacity any one connection reached
+	 */
+	public long getBufferHighWaterMark() {
+		return bufferHighWaterMark.get();
+	}
+	
+	/**
+	 * Every counter under a dotted name, such as {@code frames.read.text} or {@code close.1000}, for exporting as-is.
+	 * Counters broken down by frame type, parse error or close code only appear once they are non-zero.
+	 */
+	@NotNull
+	public Map<String, Long> snapshot() {
+		Map<String, Long> snapshot = new LinkedHashMap<>();
+		snapshot.put("bytes.read", getBytesRead());
+		snapshot.put("bytes.written", getBytesWritten());
+		for (WebsocketFrameType type : FRAME_TYPES) {
+			String name = type.name().toLowerCase(Locale.US);
+			putNonZero(snapshot, "frames.read." + name, getFramesRead(type));
+			putNonZero(snapshot, "frames.written." + name, getFramesWritten(type));
+			putNonZero(snapshot, "payload.read." + name, getPayloadBytesRead(type));
+			putNonZero(snapshot, "payload.written." + name, getPayloadBytesWritten(type));
+			putNonZero(snapshot, "frames.dropped." + name, getFramesDropped(type));
+			putNonZero(snapshot, "payload.dropped." + name, getPayloadBytesDropped(type));
+		}
+		snapshot.put("fragmented.messages", getFragmentedMessages());
+		snapshot.put("fragmented.frames", getFragments());
+		snapshot.put("fragmented.bytes", getFragmentedBytes());
+		snapshot.put("fragmented.largest", getLargestFragmentedMessage());
+		snapshot.put("handshake.upgraded", getHandshakes(true));
+		snapshot.put("handshake.failed", getHandshakes(false));
+		snapshot.put("handshake.nanos", getHandshakeNanos());
+		snapshot.put("handshake.slowest", getSlowestHandshakeNanos());
+		snapshot.put("errors.http", getHttpParseErrors());
+		for (WebSocketCloseReason reason : CLOSE_REASONS)
+			putNonZero(snapshot, "errors.websocket." + reason.name().toLowerCase(Locale.US), getWebsocketParseErrors(reason));
+		getCloseCodes().forEach((code, count) -> snapshot.put("close." + code, count));
+		snapshot.put("buffer.highWaterMark", getBufferHighWaterMark());
+		return snapshot;
+	}
+	
+	private static void putNonZero(Map<String, Long> snapshot, String name, long value) {
+		if (value != 0)
+			snapshot.put(name, value);
+	}
+	
+	private static LongAdder [] createAdders(int count) {
+		LongAdder [] adders = new LongAdder[count];
+		for (int i = 0; i < count; i++)
+			adders[i] = new LongAdder();
+		return adders;
+	}
+	
+}
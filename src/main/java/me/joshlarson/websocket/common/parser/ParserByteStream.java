@@ -1,58 +1,251 @@
 package me.joshlarson.websocket.common.parser;
 
+import me.joshlarson.websocket.common.buffer.BufferAllocator;
+import me.joshlarson.websocket.common.buffer.PooledBuffer;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.nio.ByteBuffer;
+
+/**
+ * Growable byte queue used by the parsers. Consuming bytes only advances a read index - the readable bytes are moved
+ * back to the start of the array when a write needs the room, and the array is replaced with a smaller one once a run
+ * of bursts has left most of it unused. With an allocator the arrays are borrowed from it, and go back when they are replaced or the
+ * stream is released. No array is allocated until the first write, so idle streams cost only the object itself.
+ */
 public class ParserByteStream {
 	
+	// A buffer at least this many times larger than its initial capacity, and filled to no more than that fraction of
+	// itself by several bursts in a row, goes back to the initial capacity
+	private static final int SHRINK_FACTOR = 4;
+	private static final int SHRINK_AFTER_DRAINS = 16;
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+	private static final byte[] EMPTY = new byte[0];
+	
+	private final int initialCapacity;
+	private BufferAllocator allocator;
+	private PooledBuffer pooledData;
 	private byte[] data;
-	private int size;
+	private int start;
+	private int end;
+	private int peakCapacity;
+	private int underusedDrains;
 	
 	public ParserByteStream(int capacity) {
-		this.data = new byte[capacity];
-		this.size = 0;
+		this(capacity, null);
+	}
+	
+	public ParserByteStream(int capacity, @Nullable BufferAllocator allocator) {
+		this.initialCapacity = capacity;
+		this.allocator = allocator;
+		this.pooledData = null;
+		this.data = EMPTY;
+		this.start = 0;
+		this.end = 0;
+		this.peakCapacity = 0;
+		this.underusedDrains = 0;
+	}
+	
+	/**
+	 * Takes effect the next time the array is replaced
+	 */
+	public void setAllocator(@Nullable BufferAllocator allocator) {
+		this.allocator = allocator;
 	}
 	
 	public void write(@NotNull byte[] chunk, int chunkStart, int chunkLength) {
-		if (size + chunkLength > data.length) {
-			byte[] newData = new byte[(int) Math.pow(2, Math.ceil(Math.log(size + chunkLength) / Math.log(2)))];
-			System.arraycopy(data, 0, newData, 0, size);
-			this.data = newData;
-		}
-		
-		System.arraycopy(chunk, chunkStart, data, size, chunkLength);
-		size += chunkLength;
+		ensureWritable(chunkLength);
+		System.arraycopy(chunk, chunkStart, data, end, chunkLength);
+		end += chunkLength;
+	}
+	
+	public void write(@NotNull ByteBuffer chunk) {
+		write(chunk, chunk.remaining());
+	}
+	
+	public void write(@NotNull ByteBuffer chunk, int chunkLength) {
+		ensureWritable(chunkLength);
+		chunk.get(data, end, chunkLength);
+		end += chunkLength;
 	}
 	
+	/**
+	 * Reading everything from an array of our own that it exactly fills hands the array over instead of copying it
+	 */
 	@NotNull
 	public byte[] read(int count) {
-		if (count > size) throw new ArrayIndexOutOfBoundsException(count);
-		
+		if (count == data.length && start == 0 && end == count && pooledData == null && count > 0) {
+			byte[] ret = data;
+			this.data = EMPTY;
+			this.start = 0;
+			this.end = 0;
+			return ret;
+		}
 		byte[] ret = new byte[count];
-		System.arraycopy(data, 0, ret, 0, count);
-		removeFromStart(count);
+		read(ret, 0, count);
 		return ret;
 	}
 	
+	public void read(@NotNull byte[] destination, int destinationStart, int count) {
+		if (count > getSize()) throw new ArrayIndexOutOfBoundsException(count);
+		
+		System.arraycopy(data, start, destination, destinationStart, count);
+		removeFromStart(count);
+	}
+	
+	public byte get(int index) {
+		if (index >= getSize()) throw new ArrayIndexOutOfBoundsException(index);
+		
+		return data[start + index];
+	}
+	
 	public void removeFromStart(int count) {
-		if (count >= size) {
-			size = 0;
+		if (count >= getSize()) {
+			reset();
 			return;
 		}
 		
-		System.arraycopy(data, count, data, 0, size - count);
-		size -= count;
+		start += count;
+	}
+	
+	/**
+	 * Returns a buffer over the readable bytes. Its position starts at an arbitrary offset; advancing it does not
+	 * consume anything until the caller removes those bytes.
+	 */
+	@NotNull
+	public ByteBuffer getByteBuffer() {
+		return ByteBuffer.wrap(data, start, getSize());
 	}
 	
+	/**
+	 * Returns the backing array, where the readable bytes begin at {@link #getStart()}
+	 */
 	@NotNull
 	public byte[] getByteArray() {
 		return data;
 	}
 	
+	public int getStart() {
+		return start;
+	}
+	
 	public int getSize() {
-		return size;
+		return end - start;
+	}
+	
+	public int getCapacity() {
+		return data.length;
+	}
+	
+	/**
+	 * The largest capacity this stream has had, which survives shrinking and releasing
+	 */
+	public int getPeakCapacity() {
+		return peakCapacity;
 	}
 	
 	public void reset() {
-		this.size = 0;
+		// Shrinking as soon as one small burst drains would reallocate on every read whose size sits just past the initial capacity
+		if (data.length >= initialCapacity * SHRINK_FACTOR && end <= data.length / SHRINK_FACTOR)
+			underusedDrains++;
+		else
+			underusedDrains = 0;
+		this.start = 0;
+		this.end = 0;
+		if (underusedDrains >= SHRINK_AFTER_DRAINS)
+			replaceData(initialCapacity);
+	}
+	
+	/**
+	 * Discards the readable bytes and gives the array back to the allocator. The stream stays usable, and allocates
+	 * again on the next write.
+	 */
+	public void release() {
+		this.start = 0;
+		this.end = 0;
+		if (pooledData != null)
+			pooledData.release();
+		this.pooledData = null;
+		this.data = EMPTY;
+	}
+	
+	/**
+	 * Shrinks the array back to the initial capacity, or as close as the readable bytes allow, and releases it when
+	 * there are none - for streams that are about to sit idle
+	 */
+	public void trim() {
+		int size = getSize();
+		if (size == 0)
+			release();
+		else if (data.length > Math.max(size, initialCapacity))
+			replaceData(Math.max(size, initialCapacity));
+	}
+	
+	/**
+	 * Makes room for {@code count} more bytes, growing by half at a time rather than doubling, and never past
+	 * {@code maxCapacity} unless the bytes themselves need more - for data whose final size is known or bounded
+	 */
+	public void reserve(int count, int maxCapacity) {
+		if (end + count <= data.length)
+			return;
+		
+		int size = getSize();
+		long required = (long) size + count;
+		if (required <= data.length) {
+			System.arraycopy(data, start, data, 0, size);
+		} else {
+			long grown = Math.max(required, Math.max(initialCapacity, data.length + (data.length >> 1)));
+			long newCapacity = Math.min(Math.max(Math.min(grown, maxCapacity), required), MAX_CAPACITY);
+			if (newCapacity < required)
+				throw new OutOfMemoryError("parser buffer exceeds the maximum array size");
+			replaceData((int) newCapacity);
+		}
+		this.start = 0;
+		this.end = size;
+	}
+	
+	private void ensureWritable(int chunkLength) {
+		if (end + chunkLength <= data.length)
+			return;
+		
+		int size = getSize();
+		// Only compact while at least half the array stays free afterwards, so the copies amortize over the writes
+		if (size + chunkLength <= data.length / 2) {
+			System.arraycopy(data, start, data, 0, size);
+		} else {
+			// The initial capacity while that fits, and otherwise the smallest power of two that holds the bytes
+			long required = (long) size + chunkLength;
+			int newCapacity = (required <= initialCapacity) ? initialCapacity : (int) Math.min(Long.highestOneBit(required - 1) << 1, MAX_CAPACITY);
+			if (newCapacity < required)
+				throw new OutOfMemoryError("parser buffer exceeds the maximum array size");
+			replaceData(newCapacity);
+		}
+		this.start = 0;
+		this.end = size;
+	}
+	
+	/**
+	 * Moves the readable bytes to the start of a new array with at least the given capacity
+	 */
+	private void replaceData(int capacity) {
+		PooledBuffer newPooledData = null;
+		byte[] newData;
+		if (allocator != null) {
+			newPooledData = allocator.allocateHeap(capacity);
+			newData = newPooledData.array();
+		} else {
+			newData = new byte[capacity];
+		}
+		int size = getSize();
+		System.arraycopy(data, start, newData, 0, size);
+		if (pooledData != null)
+			pooledData.release();
+		this.pooledData = newPooledData;
+		this.data = newData;
+		this.start = 0;
+		this.end = size;
+		this.underusedDrains = 0;
+		if (newData.length > peakCapacity)
+			peakCapacity = newData.length;
 	}
 }
@@ -0,0 +1,26 @@
+package me.joshlarson.websocket.common.parser.http;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives HTTP bodies from a {@link HttpParser} as they arrive, instead of collected into the returned frame. Chunked
+ * bodies arrive without their chunk framing.
+ */
+public interface HttpBodyListener {
+	
+	/**
+	 * Called once the headers are complete, with the request or response and an empty body
+	 */
+	void onBodyStart(@NotNull HttpFrame frame);
+	
+	/**
+	 * Called with the next part of the body. The buffer is only valid for the duration of the call and is a view of
+	 * the parser's buffer.
+	 */
+	void onBodyData(@NotNull ByteBuffer data);
+	
+	void onBodyEnd();
+	
+}
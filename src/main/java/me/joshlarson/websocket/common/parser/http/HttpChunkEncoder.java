@@ -0,0 +1,46 @@
+package me.joshlarson.websocket.common.parser.http;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Chunked transfer-coding for outgoing bodies. Each chunk is written as its size line, the data itself and a CRLF, so
+ * the data is never copied; the body ends with {@link #encodeLastChunk()}. The returned buffers may share constant
+ * arrays, which writers only read from.
+ */
+public final class HttpChunkEncoder {
+	
+	private static final byte [] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	private static final byte [] CRLF = {'\r', '\n'};
+	private static final byte [] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+	
+	private HttpChunkEncoder() {}
+	
+	/**
+	 * Returns the buffers to write for one chunk. An empty chunk would end the body, so it encodes as nothing.
+	 */
+	@NotNull
+	public static ByteBuffer [] encodeChunk(@NotNull byte [] data, int offset, int length) {
+		if (length == 0)
+			return new ByteBuffer[0];
+		return new ByteBuffer[] {encodeSizeLine(length), ByteBuffer.wrap(data, offset, length), ByteBuffer.wrap(CRLF)};
+	}
+	
+	@NotNull
+	public static ByteBuffer encodeLastChunk() {
+		return ByteBuffer.wrap(LAST_CHUNK);
+	}
+	
+	private static ByteBuffer encodeSizeLine(int size) {
+		int digits = Math.max(1, (Integer.SIZE - Integer.numberOfLeadingZeros(size) + 3) / 4);
+		byte [] line = new byte[digits + 2];
+		for (int i = digits - 1; i >= 0; i--, size >>>= 4)
+			line[i] = HEX[size & 0xF];
+		line[digits] = '\r';
+		line[digits + 1] = '\n';
+		return ByteBuffer.wrap(line);
+	}
+	
+}
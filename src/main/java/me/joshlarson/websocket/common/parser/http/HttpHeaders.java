@@ -0,0 +1,383 @@
+package me.joshlarson.websocket.common.parser.http;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Case-insensitive view of a parsed header block. The raw bytes are kept as they arrived, alongside the offsets of each
+ * name and value; a hash table over the names gives constant time lookups, and values are only decoded the first time
+ * they are read. Repeated headers are joined with ", " on that first read, in the order they arrived.
+ * <p>
+ * Iteration follows the order in which each name first appeared, using that first spelling of the name. The first
+ * change copies the headers into a {@link LinkedHashMap} that serves everything from then on - lookups stay
+ * case-insensitive, and a name that is put again keeps the spelling it already had.
+ */
+public final class HttpHeaders extends AbstractMap<String, String> {
+	
+	private static final String [] KNOWN_NAMES = {
+		"Host", "Upgrade", "Connection", "Origin", "User-Agent", "Pragma", "Cache-Control", "Cookie",
+		"Accept-Encoding", "Accept-Language", "Content-Length", "Content-Type", "Transfer-Encoding",
+		"Sec-WebSocket-Key", "Sec-WebSocket-Version", "Sec-WebSocket-Extensions", "Sec-WebSocket-Protocol",
+		"Sec-WebSocket-Accept"
+	};
+	private static final String [] KNOWN_VALUES = {"websocket", "Upgrade", "13", "keep-alive, Upgrade", "no-cache"};
+	private static final String [] KNOWN_NAME_TABLE = new String[64];
+	private static final int [] KNOWN_NAME_HASHES = new int[64];
+	
+	static {
+		// Pre-hashed with the same case-insensitive hash as the lookups, probing linearly on collisions
+		for (String name : KNOWN_NAMES) {
+			int hash = hashIgnoreCase(name);
+			int slot = hash & (KNOWN_NAME_TABLE.length - 1);
+			while (KNOWN_NAME_TABLE[slot] != null)
+				slot = (slot + 1) & (KNOWN_NAME_TABLE.length - 1);
+			KNOWN_NAME_TABLE[slot] = name;
+			KNOWN_NAME_HASHES[slot] = hash;
+		}
+	}
+	
+	private final byte [] raw;
+	// Name start, name end, value start and value end of each header line
+	private final int [] fields;
+	private final int [] hashes;
+	// The next line with the same name, or -1
+	private final int [] next;
+	// The first line with each name plus one, so that zero is an empty slot
+	private final int [] table;
+	private final String [] names;
+	private final String [] values;
+	private final int distinct;
+	// Everything from the first change on, or null while the headers are as they were parsed
+	private Map<String, String> edited;
+	
+	/**
+	 * @param raw the header lines, which the offsets in {@code fields} point into
+	 * @param fields four offsets per header line: name start, name end, value start and value end
+	 * @param count the number of header lines
+	 */
+	public HttpHeaders(@NotNull byte [] raw, @NotNull int [] fields, int count) {
+		this.raw = raw;
+		this.fields = fields;
+		this.hashes = new int[count];
+		this.next = new int[count];
+		this.table = new int[tableSize(count)];
+		this.names = new String[count];
+		this.values = new String[count];
+		
+		int [] last = new int[count];
+		int distinct = 0;
+		int mask = table.length - 1;
+		for (int line = 0; line < count; line++) {
+			int hash = hashIgnoreCase(raw, fields[line*4], fields[line*4+1]);
+			hashes[line] = hash;
+			next[line] = -1;
+			for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+				int first = table[slot] - 1;
+				if (first < 0) {
+					table[slot] = line + 1;
+					last[line] = line;
+					distinct++;
+					break;
+				}
+				if (hashes[first] == hash && namesEqual(first, line)) {
+					next[last[first]] = line;
+					last[first] = line;
+					break;
+				}
+			}
+		}
+		this.distinct = distinct;
+		this.edited = null;
+	}
+	
+	@Override
+	@Nullable
+	public String get(Object key) {
+		if (edited != null)
+			return (key instanceof String) ? edited.get(spelling((String) key)) : null;
+		int line = (key instanceof String) ? find((String) key) : -1;
+		return (line < 0) ? null : value(line);
+	}
+	
+	@Override
+	public boolean containsKey(Object key) {
+		if (edited != null)
+			return key instanceof String && spelling((String) key) != null;
+		return key instanceof String && find((String) key) >= 0;
+	}
+	
+	@Override
+	public int size() {
+		return (edited != null) ? edited.size() : distinct;
+	}
+	
+	@Override
+	@Nullable
+	public String put(String key, String value) {
+		Map<String, String> edited = edit();
+		String spelling = spelling(key);
+		return edited.put((spelling == null) ? key : spelling, value);
+	}
+	
+	@Override
+	@Nullable
+	public String remove(Object key) {
+		String spelling = (key instanceof String) ? spelling((String) key) : null;
+		return (spelling == null) ? null : edit().remove(spelling);
+	}
+	
+	@Override
+	public void clear() {
+		edit().clear();
+	}
+	
+	@Override
+	@NotNull
+	public Set<Entry<String, String>> entrySet() {
+		if (edited != null)
+			return edited.entrySet();
+		return new AbstractSet<>() {
+			@Override
+			public Iterator<Entry<String, String>> iterator() {
+				return new HeaderIterator();
+			}
+			
+			@Override
+			public int size() {
+				return distinct;
+			}
+		};
+	}
+	
+	/**
+	 * Case-insensitive lookup that works on any header map, taking the fast path for parsed headers
+	 */
+	@Nullable
+	static String getIgnoreCase(@NotNull Map<String, String> headers, @NotNull String key) {
+		if (headers instanceof HttpHeaders)
+			return headers.get(key);
+		for (Map.Entry<String, String> e : headers.entrySet()) {
+			if (e.getKey().equalsIgnoreCase(key))
+				return e.getValue();
+		}
+		return null;
+	}
+	
+	private Map<String, String> edit() {
+		if (edited == null) {
+			Map<String, String> copy = new LinkedHashMap<>();
+			for (Iterator<Entry<String, String>> it = new HeaderIterator(); it.hasNext(); ) {
+				Entry<String, String> entry = it.next();
+				copy.put(entry.getKey(), entry.getValue());
+			}
+			edited = copy;
+		}
+		return edited;
+	}
+	
+	/**
+	 * The name as it is spelled in these headers, or null if there is no header by that name
+	 */
+	@Nullable
+	private String spelling(String key) {
+		if (edited == null) {
+			int line = find(key);
+			return (line < 0) ? null : name(line);
+		}
+		if (edited.containsKey(key))
+			return key;
+		for (String name : edited.keySet()) {
+			if (name.equalsIgnoreCase(key))
+				return name;
+		}
+		return null;
+	}
+	
+	private int find(String key) {
+		int hash = hashIgnoreCase(key);
+		int mask = table.length - 1;
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int line = table[slot] - 1;
+			if (line < 0)
+				return -1;
+			if (hashes[line] == hash && nameEquals(line, key))
+				return line;
+		}
+	}
+	
+	private String name(int line) {
+		String name = names[line];
+		if (name == null) {
+			name = decodeName(line);
+			names[line] = name;
+		}
+		return name;
+	}
+	
+	private String value(int line) {
+		String value = values[line];
+		if (value != null)
+			return value;
+		
+		if (next[line] < 0) {
+			value = decodeValue(line);
+		} else {
+			StringBuilder joined = new StringBuilder(decodeValue(line));
+			for (int duplicate = next[line]; duplicate >= 0; duplicate = next[duplicate])
+				joined.append(", ").append(decodeValue(duplicate));
+			value = joined.toString();
+		}
+		values[line] = value;
+		return value;
+	}
+	
+	private String decodeName(int line) {
+		int start = fields[line*4];
+		int end = fields[line*4+1];
+		int mask = KNOWN_NAME_TABLE.length - 1;
+		for (int slot = hashes[line] & mask; KNOWN_NAME_TABLE[slot] != null; slot = (slot + 1) & mask) {
+			if (KNOWN_NAME_HASHES[slot] == hashes[line] && matches(start, end, KNOWN_NAME_TABLE[slot]))
+				return KNOWN_NAME_TABLE[slot];
+		}
+		return new String(raw, start, end - start, StandardCharsets.UTF_8);
+	}
+	
+	private String decodeValue(int line) {
+		int start = fields[line*4+2];
+		int end = fields[line*4+3];
+		for (String candidate : KNOWN_VALUES) {
+			if (matches(start, end, candidate))
+				return candidate;
+		}
+		return new String(raw, start, end - start, StandardCharsets.UTF_8);
+	}
+	
+	private boolean matches(int start, int end, String candidate) {
+		if (candidate.length() != end - start)
+			return false;
+		for (int i = 0; i < candidate.length(); i++) {
+			if (raw[start + i] != candidate.charAt(i))
+				return false;
+		}
+		return true;
+	}
+	
+	private boolean namesEqual(int a, int b) {
+		int aStart = fields[a*4];
+		int bStart = fields[b*4];
+		int length = fields[a*4+1] - aStart;
+		if (length != fields[b*4+1] - bStart)
+			return false;
+		for (int i = 0; i < length; i++) {
+			if (!equalsIgnoreCase(raw[aStart + i], raw[bStart + i] & 0xFF))
+				return false;
+		}
+		return true;
+	}
+	
+	private boolean nameEquals(int line, String key) {
+		int start = fields[line*4];
+		if (key.length() != fields[line*4+1] - start)
+			return false;
+		for (int i = 0; i < key.length(); i++) {
+			if (!equalsIgnoreCase(raw[start + i], key.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+	
+	private static boolean equalsIgnoreCase(byte b, int c) {
+		int lower = (b & 0xFF) | 0x20;
+		return (b & 0xFF) == c || (lower == (c | 0x20) && lower >= 'a' && lower <= 'z');
+	}
+	
+	private static int hashIgnoreCase(byte [] data, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++)
+			hash = 31 * hash + ((data[i] & 0xFF) | 0x20);
+		return hash;
+	}
+	
+	private static int hashIgnoreCase(String key) {
+		int hash = 0;
+		for (int i = 0; i < key.length(); i++)
+			hash = 31 * hash + (key.charAt(i) | 0x20);
+		return hash;
+	}
+	
+	private static int tableSize(int count) {
+		// At most half full
+		return Math.max(8, Integer.highestOneBit(Math.max(1, count) * 4 - 1));
+	}
+	
+	private class HeaderIterator implements Iterator<Entry<String, String>> {
+		
+		private int line = nextFirstLine(0);
+		private String lastName = null;
+		
+		@Override
+		public boolean hasNext() {
+			return line < names.length;
+		}
+		
+		@Override
+		public Entry<String, String> next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Entry<String, String> entry = new HeaderEntry(name(line), value(line));
+			lastName = entry.getKey();
+			line = nextFirstLine(line + 1);
+			return entry;
+		}
+		
+		@Override
+		public void remove() {
+			if (lastName == null)
+				throw new IllegalStateException();
+			// The lines still to come are unchanged, so iterating them can carry on
+			edit().remove(lastName);
+			lastName = null;
+		}
+		
+		private int nextFirstLine(int line) {
+			// Skips lines that repeat an earlier name
+			while (line < names.length && firstWithName(line) != line)
+				line++;
+			return line;
+		}
+		
+		private int firstWithName(int line) {
+			int mask = table.length - 1;
+			for (int slot = hashes[line] & mask; ; slot = (slot + 1) & mask) {
+				int first = table[slot] - 1;
+				if (hashes[first] == hashes[line] && namesEqual(first, line))
+					return first;
+			}
+		}
+		
+	}
+	
+	private class HeaderEntry extends SimpleEntry<String, String> {
+		
+		HeaderEntry(String name, String value) {
+			super(name, value);
+		}
+		
+		@Override
+		public String setValue(String value) {
+			edit().put(getKey(), value);
+			return super.setValue(value);
+		}
+		
+	}
+	
+}
@@ -1,27 +1,114 @@
 package me.joshlarson.websocket.common.parser.http;
 
+import me.joshlarson.websocket.common.buffer.BufferAllocator;
 import me.joshlarson.websocket.common.parser.ParserByteStream;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+/**
+ * Byte-level HTTP/1.x parser. Input is buffered until a line ends, and the search for the line ending resumes where the
+ * previous chunk left off, so a message trickling in a few bytes at a time is still scanned only once. Header lines
+ * stay in the buffer until the blank line, and are then handed to {@link HttpHeaders} as one block with the offsets of
+ * each name and value, so nothing is decoded until it is read.
+ * <p>
+ * Bodies are framed by Content-Length, chunked transfer-coding or, for responses, the end of the connection - which the
+ * caller signals with {@link #endOfStream()}. They are collected into the returned frame, or handed to a
+ * {@link HttpBodyListener} as they arrive.
+ */
 public class HttpParser {
 	
-	private final Map<String, String> headers;
+	private static final int DEFAULT_MAX_HEADER_SIZE = 64 * 1024;
+	private static final String [] KNOWN_METHODS = {"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH"};
+	private static final String [] KNOWN_VERSIONS = {"HTTP/1.1", "HTTP/1.0"};
+	private static final int MAX_BUFFERED_BODY_SIZE = Integer.MAX_VALUE - 8;
+	private static final byte [] EMPTY = new byte[0];
+	
 	private final ParserByteStream buffer;
 	
+	private int maxHeaderSize;
+	private HttpBodyListener bodyListener;
+	private BufferAllocator bufferAllocator;
+	private ParserByteStream bodyBuffer;
+	
 	// Transient State
 	private String [] leadingLine;
+	private int statusCode;
 	private HttpParserState state;
+	private int headerSize;
+	private int scanIndex;
+	private int lineStart;
+	private int [] headerFields;
+	private int headerCount;
+	private HttpHeaders headers;
+	private long bodyRemaining;
 	
 	public HttpParser() {
-		this.headers = new LinkedHashMap<>();
 		this.buffer = new ParserByteStream(1024);
+		this.maxHeaderSize = DEFAULT_MAX_HEADER_SIZE;
+		this.bodyListener = null;
+		this.bufferAllocator = null;
+		this.bodyBuffer = null;
 		
 		this.leadingLine = null;
+		this.statusCode = -1;
 		this.state = HttpParserState.LEADING_LINE;
+		this.headerSize = 0;
+		this.scanIndex = 0;
+		this.lineStart = 0;
+		this.headerFields = null;
+		this.headerCount = 0;
+		this.headers = null;
+		this.bodyRemaining = 0;
+	}
+	
+	/**
+	 * Limits the leading line plus headers of a single message, including line endings. Defaults to 64 KiB.
+	 */
+	public void setMaxHeaderSize(int maxHeaderSize) {
+		if (maxHeaderSize <= 0)
+			throw new IllegalArgumentException("max header size must be positive");
+		this.maxHeaderSize = maxHeaderSize;
+	}
+	
+	/**
+	 * With a listener, messages that have a body are handed to it as they arrive instead of being returned from
+	 * {@link #parseChunk}. Messages without one are still returned.
+	 */
+	public void setBodyListener(@Nullable HttpBodyListener bodyListener) {
+		if (state.ordinal() >= HttpParserState.BODY.ordinal())
+			throw new IllegalStateException("cannot change the body listener in the middle of a body");
+		this.bodyListener = bodyListener;
+	}
+	
+	/**
+	 * Borrows the line and body buffers from the allocator from now on, until {@link #release()}
+	 */
+	public void setBufferAllocator(@Nullable BufferAllocator bufferAllocator) {
+		this.bufferAllocator = bufferAllocator;
+		buffer.setAllocator(bufferAllocator);
+		if (bodyBuffer != null)
+			bodyBuffer.setAllocator(bufferAllocator);
+	}
+	
+	/**
+	 * Drops any partially parsed message and returns the buffer to its allocator
+	 */
+	public void release() {
+		buffer.release();
+		if (bodyBuffer != null)
+			bodyBuffer.release();
+		resetInternalState();
+	}
+	
+	/**
+	 * The largest capacity the staging buffers have reached between them
+	 */
+	public int getBufferHighWaterMark() {
+		return buffer.getPeakCapacity() + ((bodyBuffer == null) ? 0 : bodyBuffer.getPeakCapacity());
 	}
 	
 	public ParserByteStream getBuffer() {
@@ -34,150 +121,430 @@ public class HttpParser {
 		if (chunk != null)
 			this.buffer.write(chunk, start, length);
 		
+		return parseBuffered();
+	}
+	
+	@Nullable
+	public HttpFrame parseChunk(@NotNull ByteBuffer chunk) throws HttpParserException {
+		// Lines are assembled in the internal buffer, so the chunk is always consumed completely
+		this.buffer.write(chunk);
+		
+		return parseBuffered();
+	}
+	
+	/**
+	 * Signals that the connection has closed. This ends a response body that runs until the connection closes, which
+	 * is returned like any other complete message (or ended on the listener). Closing part way through any other
+	 * message is an error.
+	 */
+	@Nullable
+	public HttpFrame endOfStream() throws HttpParserException {
+		if (state == HttpParserState.BODY_UNTIL_CLOSE)
+			return finishBody();
+		if (state == HttpParserState.LEADING_LINE && buffer.getSize() == 0)
+			return null;
+		resetInternalState();
+		throw new HttpParserException("connection closed before the message ended");
+	}
+	
+	@Nullable
+	private HttpFrame parseBuffered() throws HttpParserException {
 		while (true) {
 			switch (this.state) {
 				case LEADING_LINE: {
-					String line = readLine();
-					if (line == null)
+					int lineEnd = findLineEnd();
+					if (lineEnd < 0)
 						return null;
 					
-					handleLeadingLine(line);
+					handleLeadingLine(buffer.getByteArray(), buffer.getStart(), buffer.getStart() + lineEnd);
+					buffer.removeFromStart(lineEnd + 2);
+					this.headerSize = lineEnd + 2;
+					this.scanIndex = 0;
 					break;
 				}
 				case HEADERS: {
-					String line = readLine();
-					if (line == null)
+					int lineEnd = findLineEnd();
+					if (lineEnd < 0)
+						return null;
+					
+					if (lineEnd == lineStart) {
+						HttpFrame frame = handleHeadersEnd();
+						if (frame != null)
+							return frame;
+					} else {
+						handleHeaderLine(buffer.getByteArray(), buffer.getStart(), lineEnd);
+					}
+					break;
+				}
+				case BODY: {
+					HttpFrame frame = handleBody();
+					if (frame != null || state == HttpParserState.BODY)
+						return frame;
+					break;
+				}
+				case BODY_UNTIL_CLOSE: {
+					consumeBody(buffer.getSize());
+					return null;
+				}
+				case CHUNK_SIZE: {
+					int lineEnd = findLineEnd();
+					if (lineEnd < 0)
+						return null;
+					
+					handleChunkSize(buffer.getByteArray(), buffer.getStart(), lineEnd);
+					break;
+				}
+				case CHUNK_DATA: {
+					if (!handleChunkData())
+						return null;
+					break;
+				}
+				case TRAILERS: {
+					int lineEnd = findLineEnd();
+					if (lineEnd < 0)
 						return null;
 					
-					handleHeaderLine(line);
+					// Trailer fields are allowed, but nothing here has a use for them
+					buffer.removeFromStart(lineEnd + 2);
+					this.headerSize += lineEnd + 2;
+					this.scanIndex = 0;
+					if (lineEnd == 0) {
+						HttpFrame frame = finishBody();
+						if (frame != null)
+							return frame;
+					}
 					break;
 				}
-				case DATA: return handleData();
 			}
 		}
 	}
 	
 	private void resetInternalState() {
-		this.headers.clear();
-		this.buffer.reset();
-		
+		// Anything left in the buffer belongs to the next pipelined message
 		this.leadingLine = null;
+		this.statusCode = -1;
 		this.state = HttpParserState.LEADING_LINE;
+		this.headerSize = 0;
+		this.scanIndex = 0;
+		this.lineStart = 0;
+		this.headerCount = 0;
+		this.headers = null;
+		this.bodyRemaining = 0;
+		if (bodyBuffer != null)
+			bodyBuffer.reset();
 	}
 	
-	private void handleLeadingLine(String leadingLine) throws HttpParserException {
-		if (leadingLine == null)
-			throw new HttpParserException("expected leading line");
-		
-		String [] parsed = leadingLine.split(" ", 3);
-		if (parsed.length != 3)
+	private void handleLeadingLine(byte [] data, int start, int end) throws HttpParserException {
+		int firstSpace = indexOf(data, start, end, (byte) ' ');
+		int secondSpace = (firstSpace < 0) ? -1 : indexOf(data, firstSpace + 1, end, (byte) ' ');
+		if (secondSpace < 0)
 			throw new HttpParserException("expected 3 parts to the leading line");
 		
-		if (!parsed[0].startsWith("HTTP/") && !parsed[2].startsWith("HTTP/"))
+		if (startsWithProtocol(data, start, firstSpace)) {
+			// Response: version, status code, reason phrase - the status code is kept as a number
+			this.statusCode = parseStatusCode(data, firstSpace + 1, secondSpace);
+			this.leadingLine = new String[] {
+				decodeToken(data, start, firstSpace, KNOWN_VERSIONS),
+				null,
+				new String(data, secondSpace + 1, end - secondSpace - 1, StandardCharsets.UTF_8)
+			};
+		} else if (startsWithProtocol(data, secondSpace + 1, end)) {
+			// Request: method, target, version
+			this.leadingLine = new String[] {
+				decodeToken(data, start, firstSpace, KNOWN_METHODS),
+				new String(data, firstSpace + 1, secondSpace - firstSpace - 1, StandardCharsets.UTF_8),
+				decodeToken(data, secondSpace + 1, end, KNOWN_VERSIONS)
+			};
+		} else {
 			throw new HttpParserException("expected protocol in the leading line");
-		
-		this.leadingLine = parsed;
+		}
 		this.state = HttpParserState.HEADERS;
 	}
 	
-	private void handleHeaderLine(String headerLine) throws HttpParserException {
-		if (headerLine.isEmpty()) {
-			this.state = HttpParserState.DATA;
-			return;
-		}
-		
-		String [] keyValue = headerLine.split(":", 2);
-		if (keyValue.length < 2)
+	/**
+	 * Records the offsets of one header line, relative to the start of the header block
+	 */
+	private void handleHeaderLine(byte [] data, int base, int lineEnd) throws HttpParserException {
+		int colon = indexOf(data, base + lineStart, base + lineEnd, (byte) ':') - base;
+		if (colon < 0)
 			throw new HttpParserException("expected colon in header line");
 		
-		keyValue[1] = keyValue[1].strip();
+		int valueStart = colon + 1;
+		int valueEnd = lineEnd;
+		while (valueStart < valueEnd && isWhitespace(data[base + valueStart]))
+			valueStart++;
+		while (valueEnd > valueStart && isWhitespace(data[base + valueEnd - 1]))
+			valueEnd--;
 		
-		Map.Entry<String, String> existingHeader = getHeader(keyValue[0]);
-		if (existingHeader != null) {
-			existingHeader.setValue(existingHeader.getValue() + ", " + keyValue[1]);
-			return;
-		}
+		// Allocated with the first header, since most parsers only ever see a single handshake
+		if (headerFields == null)
+			headerFields = new int[16 * 4];
+		else if (headerFields.length < (headerCount + 1) * 4)
+			headerFields = Arrays.copyOf(headerFields, headerFields.length * 2);
+		int field = headerCount * 4;
+		headerFields[field] = lineStart;
+		headerFields[field+1] = colon;
+		headerFields[field+2] = valueStart;
+		headerFields[field+3] = valueEnd;
+		headerCount++;
 		
-		headers.put(keyValue[0], keyValue[1]);
+		this.lineStart = lineEnd + 2;
+		this.scanIndex = lineStart;
 	}
 	
+	/**
+	 * Works out how the body is framed, and returns the message straight away when it doesn't have one
+	 */
 	@Nullable
-	private HttpFrame handleData() {
-		Map.Entry<String, String> contentLengthHeader = getHeader("Content-Length");
-		if (leadingLine[0].startsWith("HTTP/")) {
-			// Response
-			if (contentLengthHeader != null) {
-				int contentLength = Integer.parseInt(contentLengthHeader.getValue());
-				if (buffer.getSize() < contentLength)
-					return null;
-				byte [] body = buffer.read(contentLength);
-				int statusCode = Integer.parseInt(leadingLine[1]);
-				HttpResponse ret = new HttpResponse(leadingLine[0], statusCode, leadingLine[2], new LinkedHashMap<>(headers), body);
-				
-				resetInternalState();
-				return ret;
-			}
-			
-			int statusCode = Integer.parseInt(leadingLine[1]);
-			if ((statusCode >= 100 && statusCode < 200) || statusCode == 204 || statusCode == 304) {
-				// None of these messages are allowed to include a message body
-				HttpResponse ret = new HttpResponse(leadingLine[0], statusCode, leadingLine[2], new LinkedHashMap<>(headers), new byte[0]);
-				
-				resetInternalState();
-				return ret;
+	private HttpFrame handleHeadersEnd() throws HttpParserException {
+		byte [] data = buffer.getByteArray();
+		int start = buffer.getStart();
+		this.headers = new HttpHeaders(Arrays.copyOfRange(data, start, start + lineStart), (headerCount == 0) ? new int[0] : Arrays.copyOf(headerFields, headerCount * 4), headerCount);
+		buffer.removeFromStart(lineStart + 2);
+		this.lineStart = 0;
+		this.scanIndex = 0;
+		
+		String transferEncoding = headers.get("Transfer-Encoding");
+		String contentLength = headers.get("Content-Length");
+		boolean response = statusCode >= 0;
+		if (response && ((statusCode >= 100 && statusCode < 200) || statusCode == 204 || statusCode == 304)) {
+			// None of these messages are allowed to include a message body
+			return finishMessage(EMPTY);
+		} else if (transferEncoding != null) {
+			// Takes precedence over Content-Length, and chunked has to be the final coding
+			if (isChunked(transferEncoding)) {
+				startBody(HttpParserState.CHUNK_SIZE);
+				this.headerSize = 0;
+			} else if (response) {
+				startBody(HttpParserState.BODY_UNTIL_CLOSE);
+			} else {
+				throw new HttpParserException("unsupported transfer encoding");
 			}
-			
+		} else if (contentLength != null) {
+			this.bodyRemaining = parseContentLength(contentLength);
+			if (bodyRemaining == 0)
+				return finishMessage(EMPTY);
+			if (bodyListener == null && bodyRemaining > MAX_BUFFERED_BODY_SIZE)
+				throw new HttpParserException("body is too large to buffer");
+			startBody(HttpParserState.BODY);
+		} else if (response) {
 			// Can't know when this will end due to backwards compatibility with HTTP/1.0
-			// TODO: Add function for manually ending the read
+			startBody(HttpParserState.BODY_UNTIL_CLOSE);
+		} else {
+			return finishMessage(EMPTY);
+		}
+		return null;
+	}
+	
+	private void startBody(HttpParserState bodyState) {
+		this.state = bodyState;
+		if (bodyListener != null)
+			bodyListener.onBodyStart(createFrame(EMPTY));
+	}
+	
+	/**
+	 * Consumes a Content-Length body. Without a listener it is read in one piece once it has all arrived.
+	 */
+	@Nullable
+	private HttpFrame handleBody() {
+		if (bodyListener != null) {
+			int available = (int) Math.min(bodyRemaining, buffer.getSize());
+			consumeBody(available);
+			bodyRemaining -= available;
+			return (bodyRemaining == 0) ? finishBody() : null;
+		}
+		if (buffer.getSize() < bodyRemaining)
 			return null;
+		HttpFrame frame = createFrame(buffer.read((int) bodyRemaining));
+		resetInternalState();
+		return frame;
+	}
+	
+	private void handleChunkSize(byte [] data, int base, int lineEnd) throws HttpParserException {
+		long chunkSize = 0;
+		int index = base;
+		int end = base + lineEnd;
+		// Anything after the hex digits is a chunk extension, which is ignored
+		for (; index < end; index++) {
+			int digit = Character.digit(data[index], 16);
+			if (digit < 0)
+				break;
+			if (chunkSize > (Long.MAX_VALUE >> 4))
+				throw new HttpParserException("chunk size is too large");
+			chunkSize = (chunkSize << 4) | digit;
+		}
+		if (index == base || (index < end && data[index] != ';' && !isWhitespace(data[index])))
+			throw new HttpParserException("invalid chunk size");
+		
+		buffer.removeFromStart(lineEnd + 2);
+		this.scanIndex = 0;
+		this.headerSize = 0;
+		if (chunkSize == 0) {
+			this.state = HttpParserState.TRAILERS;
+			return;
+		}
+		this.bodyRemaining = chunkSize;
+		this.state = HttpParserState.CHUNK_DATA;
+	}
+	
+	/**
+	 * Consumes chunk data followed by its CRLF, returning false until both have arrived
+	 */
+	private boolean handleChunkData() throws HttpParserException {
+		if (bodyRemaining > 0) {
+			int available = (int) Math.min(bodyRemaining, buffer.getSize());
+			consumeBody(available);
+			bodyRemaining -= available;
+			if (bodyRemaining > 0)
+				return false;
+		}
+		if (buffer.getSize() < 2)
+			return false;
+		if (buffer.get(0) != '\r' || buffer.get(1) != '\n')
+			throw new HttpParserException("expected CRLF after chunk data");
+		buffer.removeFromStart(2);
+		this.state = HttpParserState.CHUNK_SIZE;
+		return true;
+	}
+	
+	/**
+	 * Hands the next part of the body to the listener, or collects it for the returned frame
+	 */
+	private void consumeBody(int length) {
+		if (length == 0)
+			return;
+		if (bodyListener != null) {
+			bodyListener.onBodyData(ByteBuffer.wrap(buffer.getByteArray(), buffer.getStart(), length));
 		} else {
-			// Request
-			if (contentLengthHeader != null) {
-				int contentLength = Integer.parseInt(contentLengthHeader.getValue());
-				if (buffer.getSize() < contentLength)
-					return null;
-				
-				byte [] body = buffer.read(contentLength);
-				HttpRequest ret = new HttpRequest(leadingLine[0], leadingLine[1], leadingLine[2], new LinkedHashMap<>(headers), body);
-				resetInternalState();
-				return ret;
-			}
-			
-			HttpRequest ret = new HttpRequest(leadingLine[0], leadingLine[1], leadingLine[2], new LinkedHashMap<>(headers), new byte[0]);
-			resetInternalState();
-			return ret;
+			if (bodyBuffer == null)
+				bodyBuffer = new ParserByteStream(1024, bufferAllocator);
+			bodyBuffer.write(buffer.getByteArray(), buffer.getStart(), length);
 		}
+		buffer.removeFromStart(length);
 	}
 	
 	@Nullable
-	private String readLine() {
+	private HttpFrame finishBody() {
+		if (bodyListener != null) {
+			resetInternalState();
+			bodyListener.onBodyEnd();
+			return null;
+		}
+		byte [] body = (bodyBuffer == null) ? EMPTY : bodyBuffer.read(bodyBuffer.getSize());
+		return finishMessage(body);
+	}
+	
+	private HttpFrame finishMessage(byte [] body) {
+		HttpFrame frame = createFrame(body);
+		resetInternalState();
+		return frame;
+	}
+	
+	private HttpFrame createFrame(byte [] body) {
+		if (statusCode >= 0)
+			return new HttpResponse(leadingLine[0], statusCode, leadingLine[2], headers, body);
+		return new HttpRequest(leadingLine[0], leadingLine[1], leadingLine[2], headers, body);
+	}
+	
+	/**
+	 * Returns the offset of the CRLF ending the current line, relative to the buffer's start, or -1 if it hasn't ended
+	 * yet. Bytes that were already searched are skipped, and the header size limit applies to a line that never ends
+	 * just the same.
+	 */
+	private int findLineEnd() throws HttpParserException {
 		byte [] data = buffer.getByteArray();
+		int start = buffer.getStart();
 		int size = buffer.getSize();
-		
-		for (int i = 1; i < size; i++) {
-			if (data[i-1] == '\r' && data[i] == '\n') {
-				String line = new String(data, 0, i-1, StandardCharsets.UTF_8);
-				buffer.removeFromStart(i+1);
-				return line;
+		for (int i = Math.max(scanIndex, lineStart + 1); i < size; i++) {
+			if (data[start + i] == '\n' && data[start + i - 1] == '\r') {
+				if ((long) headerSize + i + 1 > maxHeaderSize)
+					throw new HttpParserException("header size is too large");
+				return i - 1;
 			}
 		}
-		
-		return null;
+		// Checked whether or not a line ended, so a peer can't grow the buffer by never sending one
+		if ((long) headerSize + size > maxHeaderSize)
+			throw new HttpParserException("header size is too large");
+		this.scanIndex = size;
+		return -1;
 	}
 	
-	private Map.Entry<String, String> getHeader(String key) {
-		for (Map.Entry<String, String> e : headers.entrySet()) {
-			if (e.getKey().equalsIgnoreCase(key)) {
-				return e;
-			}
+	private static int indexOf(byte [] data, int start, int end, byte b) {
+		for (int i = start; i < end; i++) {
+			if (data[i] == b)
+				return i;
 		}
-		return null;
+		return -1;
+	}
+	
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+	
+	private static boolean startsWithProtocol(byte [] data, int start, int end) {
+		return end - start >= 5 && data[start] == 'H' && data[start+1] == 'T' && data[start+2] == 'T' && data[start+3] == 'P' && data[start+4] == '/';
+	}
+	
+	private static boolean isChunked(String transferEncoding) {
+		int lastComma = transferEncoding.lastIndexOf(',');
+		return transferEncoding.substring(lastComma + 1).strip().equalsIgnoreCase("chunked");
+	}
+	
+	private static long parseContentLength(String contentLength) throws HttpParserException {
+		// Digits only - Long.parseLong would accept a sign
+		if (contentLength.isEmpty() || contentLength.length() > 18)
+			throw new HttpParserException("invalid Content-Length");
+		long length = 0;
+		for (int i = 0; i < contentLength.length(); i++) {
+			char c = contentLength.charAt(i);
+			if (c < '0' || c > '9')
+				throw new HttpParserException("invalid Content-Length");
+			length = length * 10 + (c - '0');
+		}
+		return length;
+	}
+	
+	private static int parseStatusCode(byte [] data, int start, int end) throws HttpParserException {
+		if (end - start != 3)
+			throw new HttpParserException("expected a three digit status code");
+		int statusCode = 0;
+		for (int i = start; i < end; i++) {
+			if (data[i] < '0' || data[i] > '9')
+				throw new HttpParserException("expected a three digit status code");
+			statusCode = statusCode * 10 + (data[i] - '0');
+		}
+		return statusCode;
+	}
+	
+	/**
+	 * Returns the matching constant when the bytes spell one exactly, so the common cases don't allocate
+	 */
+	private static String decodeToken(byte [] data, int start, int end, String [] known) {
+		int length = end - start;
+		for (String candidate : known) {
+			if (candidate.length() == length && matches(data, start, candidate))
+				return candidate;
+		}
+		return new String(data, start, length, StandardCharsets.UTF_8);
+	}
+	
+	private static boolean matches(byte [] data, int start, String candidate) {
+		for (int i = 0; i < candidate.length(); i++) {
+			if (data[start + i] != candidate.charAt(i))
+				return false;
+		}
+		return true;
 	}
 	
 	private enum HttpParserState {
 		LEADING_LINE,
 		HEADERS,
-		DATA
+		// Everything from here on is part of a body
+		BODY,
+		BODY_UNTIL_CLOSE,
+		CHUNK_SIZE,
+		CHUNK_DATA,
+		TRAILERS
 	}
 	
 }
@@ -22,11 +22,7 @@ public record HttpRequest(
 	@Override
 	@Nullable
 	public String getHeaderValue(String key) {
-		for (Map.Entry<String, String> e : headers.entrySet()) {
-			if (e.getKey().equalsIgnoreCase(key))
-				return e.getValue();
-		}
-		return null;
+		return HttpHeaders.getIgnoreCase(headers, key);
 	}
 	
 	@NotNull
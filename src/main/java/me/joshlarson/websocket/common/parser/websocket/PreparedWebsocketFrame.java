@@ -0,0 +1,65 @@
+package me.joshlarson.websocket.common.parser.websocket;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A frame that is encoded once and can then be sent to any number of connections. Every send writes its own view of
+ * the same encoded bytes, so fan-out costs neither re-encoding nor a copy per recipient. Like
+ * {@link WebsocketFrame#encodeGathering()}, the encoded frame is unmasked.
+ */
+public final class PreparedWebsocketFrame {
+	
+	private final WebsocketFrameType type;
+	private final byte [] encoded;
+	private final int payloadOffset;
+	
+	public PreparedWebsocketFrame(@NotNull WebsocketFrame frame) {
+		this.type = frame.type();
+		this.encoded = frame.encode();
+		this.payloadOffset = encoded.length - frame.data().length;
+	}
+	
+	@NotNull
+	public static PreparedWebsocketFrame text(@NotNull String text) {
+		return new PreparedWebsocketFrame(new WebsocketFrame(WebsocketFrameType.TEXT, text.getBytes(StandardCharsets.UTF_8)));
+	}
+	
+	@NotNull
+	public static PreparedWebsocketFrame binary(@NotNull byte [] data) {
+		return new PreparedWebsocketFrame(new WebsocketFrame(WebsocketFrameType.BINARY, data));
+	}
+	
+	@NotNull
+	public WebsocketFrameType type() {
+		return type;
+	}
+	
+	/**
+	 * Returns a copy of the payload - {@link #getPayloadLength()} is enough where only its size matters
+	 */
+	@NotNull
+	public byte [] getPayload() {
+		return Arrays.copyOfRange(encoded, payloadOffset, encoded.length);
+	}
+	
+	public int getPayloadLength() {
+		return encoded.length - payloadOffset;
+	}
+	
+	public int getEncodedLength() {
+		return encoded.length;
+	}
+	
+	/**
+	 * Returns a new view of the shared encoded bytes - writers may consume it, but must never modify its contents
+	 */
+	@NotNull
+	public ByteBuffer [] encodeGathering() {
+		return new ByteBuffer[]{ByteBuffer.wrap(encoded)};
+	}
+	
+}
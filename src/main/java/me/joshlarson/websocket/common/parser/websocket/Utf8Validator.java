@@ -0,0 +1,157 @@
+package me.joshlarson.websocket.common.parser.websocket;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Incremental UTF-8 validation, fed one fragment at a time so that a message can be rejected as soon as it goes wrong
+ * rather than after it has been reassembled.
+ * <p>
+ * The automaton is Bjoern Hoehrmann's, re-encoded as a shift DFA: each byte maps to one long holding the next state
+ * for every current state, six bits apiece, so a step is a table load that doesn't depend on the state followed by a
+ * shift. Input is read eight bytes at a time, and runs of ASCII are skipped without stepping the automaton at all.
+ */
+public final class Utf8Validator {
+	
+	private static final VarHandle ARRAY_LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle BUFFER_LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final long HIGH_BITS = 0x8080808080808080L;
+	
+	// States are bit offsets into the transition rows
+	private static final int ACCEPT = 0;
+	private static final int REJECT = 6;
+	private static final long [] TRANSITIONS = createTransitions();
+	
+	private int state;
+	private boolean ascii;
+	
+	public Utf8Validator() {
+		reset();
+	}
+	
+	public void reset() {
+		this.state = ACCEPT;
+		this.ascii = true;
+	}
+	
+	/**
+	 * Returns false as soon as the input so far can no longer be valid UTF-8
+	 */
+	public boolean update(@NotNull byte [] data, int offset, int length) {
+		int state = this.state;
+		int index = offset;
+		int end = offset + length;
+		while (index + 8 <= end && state != REJECT) {
+			if (state == ACCEPT) {
+				while (index + 32 <= end && (((long) ARRAY_LONG.get(data, index) | (long) ARRAY_LONG.get(data, index + 8) | (long) ARRAY_LONG.get(data, index + 16) | (long) ARRAY_LONG.get(data, index + 24)) & HIGH_BITS) == 0)
+					index += 32;
+				if (index + 8 > end)
+					break;
+			}
+			long word = (long) ARRAY_LONG.get(data, index);
+			index += 8;
+			state = step(state, word);
+		}
+		for (; index < end && state != REJECT; index++)
+			state = step(state, data[index]);
+		this.state = state;
+		return state != REJECT;
+	}
+	
+	/**
+	 * Validates the remaining bytes without moving the buffer's position
+	 */
+	public boolean update(@NotNull ByteBuffer data) {
+		if (data.hasArray())
+			return update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		
+		int state = this.state;
+		int index = data.position();
+		int end = data.limit();
+		while (index + 8 <= end && state != REJECT) {
+			long word = (long) BUFFER_LONG.get(data, index);
+			index += 8;
+			state = step(state, word);
+		}
+		for (; index < end && state != REJECT; index++)
+			state = step(state, data.get(index));
+		this.state = state;
+		return state != REJECT;
+	}
+	
+	/**
+	 * Whether the input so far could still be the start of valid UTF-8
+	 */
+	public boolean isValidPrefix() {
+		return state != REJECT;
+	}
+	
+	/**
+	 * Whether everything so far was valid and didn't end part way through a character
+	 */
+	public boolean isComplete() {
+		return state == ACCEPT;
+	}
+	
+	/**
+	 * Whether everything so far was ASCII, which makes it valid Latin-1 as well
+	 */
+	public boolean isAscii() {
+		return ascii && state == ACCEPT;
+	}
+	
+	public static boolean isValid(@NotNull byte [] data, int offset, int length) {
+		Utf8Validator validator = new Utf8Validator();
+		return validator.update(data, offset, length) && validator.isComplete();
+	}
+	
+	private int step(int state, long word) {
+		if ((word & HIGH_BITS) == 0 && state == ACCEPT)
+			return ACCEPT;
+		if ((word & HIGH_BITS) != 0)
+			ascii = false;
+		// Little endian, so the lowest byte comes first
+		for (int shift = 0; shift < 64; shift += 8)
+			state = (int) (TRANSITIONS[(int) (word >>> shift) & 0xFF] >>> state) & 63;
+		return state;
+	}
+	
+	private int step(int state, byte b) {
+		if (b < 0)
+			ascii = false;
+		return (int) (TRANSITIONS[b & 0xFF] >>> state) & 63;
+	}
+	
+	private static long [] createTransitions() {
+		// Hoehrmann's byte classes, followed by his transitions indexed by state + class, with states numbered in 12s
+		byte [] dfa = {
+			0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+			0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+			0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+			0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+			1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9, 9,
+			7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+			8, 8, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2,
+			10, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3, 4, 3, 3, 11, 6, 6, 6, 5, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8, 8,
+			
+			0, 12, 24, 36, 60, 96, 84, 12, 12, 12, 48, 72, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12,
+			12, 0, 12, 12, 12, 12, 12, 0, 12, 0, 12, 12, 12, 24, 12, 12, 12, 12, 12, 24, 12, 24, 12, 12,
+			12, 12, 12, 12, 12, 12, 12, 24, 12, 12, 12, 12, 12, 24, 12, 12, 12, 12, 12, 12, 12, 24, 12, 12,
+			12, 12, 12, 12, 12, 12, 12, 36, 12, 36, 12, 12, 12, 36, 12, 12, 12, 12, 12, 36, 12, 36, 12, 12,
+			12, 36, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12
+		};
+		long [] transitions = new long[256];
+		for (int b = 0; b < 256; b++) {
+			for (int state = 0; state < 9; state++) {
+				int next = dfa[256 + state * 12 + dfa[b]] / 12;
+				transitions[b] |= (long) (next * 6) << (state * 6);
+			}
+		}
+		return transitions;
+	}
+	
+}
@@ -1,7 +1,10 @@
 package me.joshlarson.websocket.common.parser.websocket;
 
+import me.joshlarson.websocket.common.buffer.BufferAllocator;
+import me.joshlarson.websocket.common.buffer.PooledBuffer;
 import org.jetbrains.annotations.NotNull;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -20,11 +23,29 @@ public record WebsocketFrame(
 		List<byte []> fragments = new ArrayList<>();
 		for (int dataIndex = 0; dataIndex < data.length; dataIndex += fragmentSize) {
 			boolean lastFragment = dataIndex + fragmentSize >= data.length;
-			fragments.add(encode(lastFragment, masked, maskKey, dataIndex, Math.min(data.length - dataIndex, fragmentSize)));
+			fragments.add(encode(getFragmentType(dataIndex), lastFragment, masked, maskKey, dataIndex, Math.min(data.length - dataIndex, fragmentSize)));
 		}
 		return fragments;
 	}
 	
+	@NotNull
+	public List<ByteBuffer []> encodeFragmentedGathering(int fragmentSize) {
+		List<ByteBuffer []> fragments = new ArrayList<>();
+		for (int dataIndex = 0; dataIndex < data.length; dataIndex += fragmentSize)
+			fragments.add(encodeFragmentGathering(dataIndex, fragmentSize));
+		return fragments;
+	}
+	
+	/**
+	 * Encodes just the fragment starting at {@code dataIndex}, wrapping the payload like {@link #encodeGathering()}, so
+	 * a large message can be written one fragment at a time without encoding the rest up front
+	 */
+	@NotNull
+	public ByteBuffer [] encodeFragmentGathering(int dataIndex, int fragmentSize) {
+		int dataLength = Math.min(data.length - dataIndex, fragmentSize);
+		return encodeGathering(getFragmentType(dataIndex), dataIndex + dataLength >= data.length, dataIndex, dataLength);
+	}
+	
 	@NotNull
 	public byte [] encode() {
 		return encode(false, 0);
@@ -32,67 +53,130 @@ public record WebsocketFrame(
 	
 	@NotNull
 	public byte [] encode(boolean masked, int maskKey) {
-		return encode(true, masked, maskKey, 0, data.length);
+		return encode(type, true, masked, maskKey, 0, data.length);
 	}
 	
 	@NotNull
 	public byte [] encode(boolean fin, boolean masked, int maskKey) {
-		return encode(fin, masked, maskKey, 0, data.length);
+		return encode(type, fin, masked, maskKey, 0, data.length);
 	}
 	
+	/**
+	 * Encodes the whole frame into a buffer from the allocator, flipped and ready to write. The caller owns the
+	 * returned reference.
+	 */
 	@NotNull
-	private byte [] encode(boolean fin, boolean masked, int maskKey, int dataIndex, long dataLength) {
-		int headerLength = 2 + (masked ? 4 : 0) + ((dataLength > 65535) ? 8 : ((dataLength >= 126) ? 2 : 0));
-		byte [] returnData = new byte[headerLength + (int) dataLength];
-		
-		if (fin)
-			returnData[0] |= 0b10000000;
-		returnData[0] |= type.getOpcode() & 0xF;
+	public PooledBuffer encode(@NotNull BufferAllocator allocator, boolean masked, int maskKey) {
+		PooledBuffer encoded = allocator.allocate(getEncodedLength(masked));
+		ByteBuffer destination = encoded.buffer();
+		encode(destination, type, true, masked, maskKey, 0, data.length);
+		destination.flip();
+		return encoded;
+	}
+	
+	@NotNull
+	public ByteBuffer [] encodeGathering() {
+		return encodeGathering(true);
+	}
+	
+	/**
+	 * Encodes only the header, followed by a buffer that wraps the original payload array. Masking has to transform
+	 * the payload, so masked frames must go through {@link #encode(boolean, boolean, int)} instead.
+	 */
+	@NotNull
+	public ByteBuffer [] encodeGathering(boolean fin) {
+		return encodeGathering(type, fin, 0, data.length);
+	}
+	
+	@NotNull
+	public ByteBuffer encodeHeader(boolean fin, boolean masked, int maskKey) {
+		ByteBuffer header = ByteBuffer.allocate(getHeaderLength(masked, data.length));
+		encodeHeader(header, type, fin, masked, maskKey, data.length);
+		return header.flip();
+	}
+	
+	public int getEncodedLength(boolean masked) {
+		return getHeaderLength(masked, data.length) + data.length;
+	}
+	
+	/**
+	 * Encodes the whole frame straight into the destination, which must have at least
+	 * {@link #getEncodedLength(boolean)} bytes remaining
+	 */
+	public void encode(@NotNull ByteBuffer destination, boolean fin, boolean masked, int maskKey) {
+		encode(destination, type, fin, masked, maskKey, 0, data.length);
+	}
+	
+	@NotNull
+	private byte [] encode(WebsocketFrameType frameType, boolean fin, boolean masked, int maskKey, int dataIndex, int dataLength) {
+		byte [] returnData = new byte[getHeaderLength(masked, dataLength) + dataLength];
+		encode(ByteBuffer.wrap(returnData), frameType, fin, masked, maskKey, dataIndex, dataLength);
+		return returnData;
+	}
+	
+	@NotNull
+	private ByteBuffer [] encodeGathering(WebsocketFrameType frameType, boolean fin, int dataIndex, int dataLength) {
+		ByteBuffer header = ByteBuffer.allocate(getHeaderLength(false, dataLength));
+		encodeHeader(header, frameType, fin, false, 0, dataLength);
+		header.flip();
+		if (dataLength == 0)
+			return new ByteBuffer[]{header};
+		return new ByteBuffer[]{header, ByteBuffer.wrap(data, dataIndex, dataLength)};
+	}
+	
+	private void encode(ByteBuffer destination, WebsocketFrameType frameType, boolean fin, boolean masked, int maskKey, int dataIndex, int dataLength) {
+		encodeHeader(destination, frameType, fin, masked, maskKey, dataLength);
+		if (!masked) {
+			destination.put(data, dataIndex, dataLength);
+			return;
+		}
 		
-		if (masked) {
-			returnData[1] |= 0b10000000;
-			for (int i = 0; i < 4; i++) {
-				returnData[headerLength-i-1] = (byte) ((maskKey >> (8 * i)) & 0xFF);
-			}
+		if (destination.hasArray()) {
+			int destinationIndex = destination.arrayOffset() + destination.position();
+			WebsocketMask.mask(data, dataIndex, destination.array(), destinationIndex, dataLength, maskKey);
+			destination.position(destination.position() + dataLength);
+		} else {
+			int destinationIndex = destination.position();
+			destination.put(data, dataIndex, dataLength);
+			WebsocketMask.mask(destination, destinationIndex, dataLength, maskKey);
 		}
+	}
+	
+	private WebsocketFrameType getFragmentType(int dataIndex) {
+		return (dataIndex == 0) ? type : WebsocketFrameType.CONTINUATION;
+	}
+	
+	/**
+	 * Encodes a header for a payload that is written separately, e.g. one fragment of a message that is still being
+	 * produced
+	 */
+	public static void encodeHeader(@NotNull ByteBuffer destination, @NotNull WebsocketFrameType frameType, boolean fin, boolean masked, int maskKey, int dataLength) {
+		byte firstByte = (byte) (frameType.getOpcode() & 0xF);
+		if (fin)
+			firstByte |= 0b10000000;
+		destination.put(firstByte);
 		
+		byte maskBit = (byte) (masked ? 0b10000000 : 0);
 		if (dataLength > 65535) {
-			returnData[1] |= 0x7F;
-			for (int i = 0; i < 8; i++) {
-				returnData[9 - i] = (byte) ((dataLength >> (i * 8)) & 0xFF);
-			}
+			destination.put((byte) (maskBit | 0x7F));
+			for (int i = 7; i >= 0; i--)
+				destination.put((byte) (((long) dataLength >> (i * 8)) & 0xFF));
 		} else if (dataLength >= 126) {
-			returnData[1] |= 0x7E;
-			returnData[2] = (byte) ((dataLength >> 8) & 0xFF);
-			returnData[3] = (byte) (dataLength & 0xFF);
+			destination.put((byte) (maskBit | 0x7E));
+			destination.put((byte) ((dataLength >> 8) & 0xFF));
+			destination.put((byte) (dataLength & 0xFF));
 		} else {
-			returnData[1] |= (byte) dataLength;
+			destination.put((byte) (maskBit | dataLength));
 		}
 		
-		System.arraycopy(data, dataIndex, returnData, headerLength, (int) dataLength);
 		if (masked) {
-			int maskByte1 = (maskKey >> 24) & 0xFF;
-			int maskByte2 = (maskKey >> 16) & 0xFF;
-			int maskByte3 = (maskKey >> 8) & 0xFF;
-			int maskByte4 = maskKey & 0xFF;
-			
-			int maskXorIndex = headerLength;
-			while (maskXorIndex+3 < returnData.length) {
-				returnData[maskXorIndex++] ^= maskByte1;
-				returnData[maskXorIndex++] ^= maskByte2;
-				returnData[maskXorIndex++] ^= maskByte3;
-				returnData[maskXorIndex++] ^= maskByte4;
-			}
-			
-			if (maskXorIndex < returnData.length)
-				returnData[maskXorIndex++] ^= maskByte1;
-			if (maskXorIndex < returnData.length)
-				returnData[maskXorIndex++] ^= maskByte2;
-			if (maskXorIndex < returnData.length)
-				returnData[maskXorIndex] ^= maskByte3;
+			for (int i = 3; i >= 0; i--)
+				destination.put((byte) ((maskKey >> (i * 8)) & 0xFF));
 		}
-		
-		return returnData;
+	}
+	
+	public static int getHeaderLength(boolean masked, int dataLength) {
+		return 2 + (masked ? 4 : 0) + ((dataLength > 65535) ? 8 : ((dataLength >= 126) ? 2 : 0));
 	}
 	
 }
@@ -2,6 +2,7 @@ package me.joshlarson.websocket.common.parser.websocket;
 
 public record WebsocketFrameHeader(
 		boolean fin,
+		boolean rsv1,
 		boolean mask,
 		byte opcode,
 		long payloadLength,
@@ -0,0 +1,25 @@
+package me.joshlarson.websocket.common.parser.websocket;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * Decompresses messages whose first frame has RSV1 set, as negotiated by an extension like permessage-deflate. Output
+ * is handed over in pieces that are only valid for the duration of the consumer call.
+ */
+public interface WebsocketInflater {
+	
+	/**
+	 * Inflates the next part of the current message's payload, failing with MESSAGE_TOO_BIG as soon as more than
+	 * {@code outputLimit} bytes would be produced. Returns the number of bytes produced.
+	 */
+	long inflate(@NotNull ByteBuffer compressed, long outputLimit, @NotNull Consumer<ByteBuffer> output) throws WebsocketParserException;
+	
+	/**
+	 * Called after the final frame of a compressed message, to flush whatever output is left
+	 */
+	long finishMessage(long outputLimit, @NotNull Consumer<ByteBuffer> output) throws WebsocketParserException;
+	
+}
@@ -0,0 +1,77 @@
+package me.joshlarson.websocket.common.parser.websocket;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * XOR masking shared by the encoder and the parser. Masking is its own inverse, so the same calls unmask. The mask key
+ * is the big endian integer from the frame header, and payloads are processed eight bytes at a time against the key
+ * replicated into a long.
+ */
+public final class WebsocketMask {
+	
+	private static final VarHandle ARRAY_LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+	private static final VarHandle BUFFER_LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+	
+	private WebsocketMask() {}
+	
+	/**
+	 * Returns the key to continue masking with once {@code payloadOffset} bytes of the payload have been processed
+	 */
+	public static int rotateKey(int maskKey, long payloadOffset) {
+		return Integer.rotateLeft(maskKey, (int) (payloadOffset & 3) * 8);
+	}
+	
+	public static void mask(@NotNull byte [] data, int offset, int length, int maskKey) {
+		long longMask = replicate(maskKey);
+		int index = offset;
+		int end = offset + length;
+		for (; index + 8 <= end; index += 8) {
+			ARRAY_LONG.set(data, index, (long) ARRAY_LONG.get(data, index) ^ longMask);
+		}
+		for (int shift = 56; index < end; index++, shift -= 8) {
+			data[index] ^= (byte) (longMask >>> shift);
+		}
+	}
+	
+	public static void mask(@NotNull byte [] source, int sourceOffset, @NotNull byte [] destination, int destinationOffset, int length, int maskKey) {
+		long longMask = replicate(maskKey);
+		int index = 0;
+		for (; index + 8 <= length; index += 8) {
+			ARRAY_LONG.set(destination, destinationOffset + index, (long) ARRAY_LONG.get(source, sourceOffset + index) ^ longMask);
+		}
+		for (int shift = 56; index < length; index++, shift -= 8) {
+			destination[destinationOffset + index] = (byte) (source[sourceOffset + index] ^ (longMask >>> shift));
+		}
+	}
+	
+	/**
+	 * Masks the bytes at the absolute indices {@code [offset, offset + length)} without moving the buffer's position,
+	 * so heap and direct receive buffers can be unmasked where they are
+	 */
+	public static void mask(@NotNull ByteBuffer buffer, int offset, int length, int maskKey) {
+		if (buffer.hasArray()) {
+			mask(buffer.array(), buffer.arrayOffset() + offset, length, maskKey);
+			return;
+		}
+		
+		long longMask = replicate(maskKey);
+		int index = offset;
+		int end = offset + length;
+		for (; index + 8 <= end; index += 8) {
+			BUFFER_LONG.set(buffer, index, (long) BUFFER_LONG.get(buffer, index) ^ longMask);
+		}
+		for (int shift = 56; index < end; index++, shift -= 8) {
+			buffer.put(index, (byte) (buffer.get(index) ^ (longMask >>> shift)));
+		}
+	}
+	
+	private static long replicate(int maskKey) {
+		return ((long) maskKey << 32) | (maskKey & 0xFFFFFFFFL);
+	}
+	
+}
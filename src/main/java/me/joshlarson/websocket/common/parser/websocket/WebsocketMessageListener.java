@@ -0,0 +1,23 @@
+package me.joshlarson.websocket.common.parser.websocket;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives TEXT and BINARY messages from a {@link WebsocketParser} as their payload arrives, instead of as one
+ * reassembled frame. Control frames are still returned from the parser as usual, even in the middle of a message.
+ */
+public interface WebsocketMessageListener {
+	
+	void onMessageStart(@NotNull WebsocketFrameType type);
+	
+	/**
+	 * Called with the next unmasked part of the current message. The buffer is only valid for the duration of the call
+	 * and may be a view of the parser's (or the caller's) read buffer.
+	 */
+	void onMessageData(@NotNull ByteBuffer data);
+	
+	void onMessageEnd();
+	
+}
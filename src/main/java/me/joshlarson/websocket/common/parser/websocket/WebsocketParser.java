@@ -1,26 +1,155 @@
 package me.joshlarson.websocket.common.parser.websocket;
 
+import me.joshlarson.websocket.common.buffer.BufferAllocator;
 import me.joshlarson.websocket.common.parser.ParserByteStream;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
 
 public class WebsocketParser {
 	
+	private static final int INITIAL_PAYLOAD_CAPACITY = 64 * 1024;
+	// Largest payload a byte array can hold
+	private static final long MAX_PAYLOAD_SIZE = Integer.MAX_VALUE - 8;
+	
 	private final ParserByteStream buffer;
-	private final List<byte[]> fragmentBuffer;
 	
+	private ParserByteStream fragmentBuffer;
+	private BufferAllocator bufferAllocator;
 	private WebsocketFrameHeader currentFrameHeader;
+	private byte [] currentPayload;
+	private int currentPayloadSize;
 	private WebsocketFrameType fragmentedOpcode;
 	private long fragmentedSize;
+	private int fragmentCount;
+	private WebsocketMessageListener messageListener;
+	private WebsocketInflater inflater;
+	private boolean compressedMessage;
+	private long inflatedSize;
+	private boolean textMessage;
+	private final Utf8Validator textValidator;
+	private long maxFrameSize;
+	private long maxMessageSize;
 	
 	public WebsocketParser() {
 		this.buffer = new ParserByteStream(1024);
-		this.fragmentBuffer = new ArrayList<>();
+		this.fragmentBuffer = null;
+		this.bufferAllocator = null;
 		this.currentFrameHeader = null;
+		this.currentPayload = null;
+		this.currentPayloadSize = 0;
 		this.fragmentedOpcode = null;
 		this.fragmentedSize = 0;
+		this.fragmentCount = 0;
+		this.messageListener = null;
+		this.inflater = null;
+		this.compressedMessage = false;
+		this.inflatedSize = 0;
+		this.textMessage = false;
+		this.textValidator = new Utf8Validator();
+		this.maxFrameSize = MAX_PAYLOAD_SIZE;
+		this.maxMessageSize = MAX_PAYLOAD_SIZE;
+	}
+	
+	/**
+	 * Allows RSV1 on the first frame of a message, and decompresses those messages with the given inflater. Like the
+	 * message listener, this can't be changed while a message is in progress.
+	 */
+	public void setInflater(@Nullable WebsocketInflater inflater) {
+		if (fragmentedOpcode != null || (currentFrameHeader != null && currentFrameHeader.opcode() < 8))
+			throw new IllegalStateException("cannot change compression in the middle of a message");
+		this.inflater = inflater;
+	}
+	
+	/**
+	 * Borrows the parser's staging buffers from the allocator from now on. They are only returned by {@link #release()},
+	 * so that has to be called once the parser is done.
+	 */
+	public void setBufferAllocator(@Nullable BufferAllocator bufferAllocator) {
+		this.bufferAllocator = bufferAllocator;
+		buffer.setAllocator(bufferAllocator);
+		if (fragmentBuffer != null)
+			fragmentBuffer.setAllocator(bufferAllocator);
+	}
+	
+	/**
+	 * Drops any partially parsed data and returns the staging buffers to their allocator
+	 */
+	public void release() {
+		buffer.release();
+		if (fragmentBuffer != null)
+			fragmentBuffer.release();
+		currentFrameHeader = null;
+		currentPayload = null;
+		currentPayloadSize = 0;
+		fragmentedOpcode = null;
+		fragmentedSize = 0;
+	}
+	
+	/**
+	 * Shrinks the staging buffers back to their initial size, releasing the ones that hold nothing. A frame or message
+	 * that is part way through keeps what it has received so far.
+	 */
+	public void trim() {
+		buffer.trim();
+		if (fragmentBuffer != null)
+			fragmentBuffer.trim();
+	}
+	
+	/**
+	 * Frames announcing a larger payload fail with MESSAGE_TOO_BIG as soon as their header is read. Defaults to the
+	 * largest array size.
+	 */
+	public void setMaxFrameSize(long maxFrameSize) {
+		if (maxFrameSize < 125)
+			throw new IllegalArgumentException("max frame size must allow control frames");
+		this.maxFrameSize = Math.min(maxFrameSize, MAX_PAYLOAD_SIZE);
+	}
+	
+	/**
+	 * Limits the total payload of a fragmented message, checked against each header as it is read. Defaults to the
+	 * largest array size, since messages are reassembled into one - streamed messages may raise it further.
+	 */
+	public void setMaxMessageSize(long maxMessageSize) {
+		if (maxMessageSize < 0)
+			throw new IllegalArgumentException("max message size must not be negative");
+		this.maxMessageSize = maxMessageSize;
+	}
+	
+	/**
+	 * Streams TEXT and BINARY payloads to the listener as they arrive rather than returning them as reassembled frames.
+	 * Passing null goes back to returning whole messages. Can't be changed while a message is in progress.
+	 */
+	public void setMessageListener(@Nullable WebsocketMessageListener messageListener) {
+		if (fragmentedOpcode != null || (currentFrameHeader != null && currentFrameHeader.opcode() < 8))
+			throw new IllegalStateException("cannot change message delivery in the middle of a message");
+		this.messageListener = messageListener;
+	}
+	
+	/**
+	 * Whether the TEXT frame just returned by parseChunk was entirely ASCII, in which case it can be decoded as Latin-1
+	 * without going through the UTF-8 decoder
+	 */
+	public boolean isAsciiText() {
+		return textValidator.isAscii();
+	}
+	
+	/**
+	 * How many frames the TEXT or BINARY message just returned by parseChunk, or just ended on the message listener,
+	 * arrived in
+	 */
+	public int getFragmentCount() {
+		return fragmentCount;
+	}
+	
+	/**
+	 * The largest capacity the staging buffers have reached between them
+	 */
+	public int getBufferHighWaterMark() {
+		return buffer.getPeakCapacity() + ((fragmentBuffer == null) ? 0 : fragmentBuffer.getPeakCapacity());
 	}
 	
 	@Nullable
@@ -29,17 +158,57 @@ public class WebsocketParser {
 		if (chunk != null)
 			this.buffer.write(chunk, start, length);
 		
+		return parseBuffered();
+	}
+	
+	/**
+	 * Parses directly out of the supplied buffer, advancing its position past everything that was consumed. Returns
+	 * as soon as a frame completes, so callers should keep calling until this returns null - at that point the whole
+	 * chunk has been consumed and only a partial header (at most 13 bytes) was copied into the parser. With a message
+	 * listener, masked payloads are unmasked in place unless the chunk is read-only.
+	 */
+	@Nullable
+	public WebsocketFrame parseChunk(@NotNull ByteBuffer chunk) throws WebsocketParserException {
+		// Bytes left over from a previous read have to be handled first
+		if (buffer.getSize() > 0) {
+			if (currentFrameHeader == null)
+				fillHeader(chunk);
+			
+			WebsocketFrame frame = parseBuffered();
+			if (frame != null || buffer.getSize() > 0)
+				return frame;
+		}
+		
+		WebsocketFrame frame = parse(chunk);
+		if (frame == null && chunk.hasRemaining())
+			buffer.write(chunk);
+		return frame;
+	}
+	
+	@Nullable
+	private WebsocketFrame parseBuffered() throws WebsocketParserException {
+		ByteBuffer bufferView = buffer.getByteBuffer();
+		int start = bufferView.position();
+		try {
+			return parse(bufferView);
+		} finally {
+			buffer.removeFromStart(bufferView.position() - start);
+		}
+	}
+	
+	@Nullable
+	private WebsocketFrame parse(ByteBuffer source) throws WebsocketParserException {
 		while (true) {
 			// Need a new packet
 			if (currentFrameHeader == null)
-				parseHeaderInProgress();
+				parseHeaderInProgress(source);
 			
 			// Didn't generate a new packet to process
 			if (currentFrameHeader == null)
 				break;
 			
 			// May reset the internal currentFrameHeader to null
-			WebsocketFrame frame = parseWebsocketFrame();
+			WebsocketFrame frame = parseWebsocketFrame(source);
 			if (frame != null)
 				return frame;
 			
@@ -51,119 +220,315 @@ public class WebsocketParser {
 		return null;
 	}
 	
-	private void parseHeaderInProgress() throws WebsocketParserException {
-		if (buffer.getSize() < 2)
+	/**
+	 * Moves just enough bytes from the chunk into the internal buffer to complete the partial header stored there
+	 */
+	private void fillHeader(ByteBuffer chunk) {
+		while (chunk.hasRemaining()) {
+			int required = (buffer.getSize() < 2) ? 2 : getHeaderLength(buffer.get(1));
+			if (buffer.getSize() >= required)
+				break;
+			buffer.write(chunk, Math.min(required - buffer.getSize(), chunk.remaining()));
+		}
+	}
+	
+	private void parseHeaderInProgress(ByteBuffer source) throws WebsocketParserException {
+		if (source.remaining() < 2)
 			return;
 		
-		byte [] bufferData = buffer.getByteArray();
-		byte firstByte = bufferData[0];
-		byte secondByte = bufferData[1];
+		int position = source.position();
+		byte firstByte = source.get(position);
+		byte secondByte = source.get(position+1);
 		boolean fin = (firstByte & 0b10000000) != 0;
+		boolean rsv1 = (firstByte & 0b01000000) != 0;
 		boolean mask = (secondByte & 0b10000000) != 0;
 		byte opcode = (byte) (firstByte & 0x0F);
 		byte payloadLengthInitial = (byte) (secondByte & 0x7F);
-		int headerLength = 2 + (mask ? 4 : 0) + (payloadLengthInitial == 0x7E ? 2 : (payloadLengthInitial == 0x7F ? 8 : 0));
+		int headerLength = getHeaderLength(secondByte);
 		
-		if (buffer.getSize() < headerLength)
+		if (source.remaining() < headerLength)
 			return;
 		
-		if ((bufferData[0] & 0b01110000) != 0)
+		if ((firstByte & 0b00110000) != 0 || (rsv1 && inflater == null))
 			throw new WebsocketParserException("undefined use of reserved bits");
+		// Compression applies to whole messages, so only their first frame may say so
+		if (rsv1 && (opcode == WebsocketFrameType.CONTINUATION.getOpcode() || opcode >= 8))
+			throw new WebsocketParserException("invalid use of the compression bit");
 		
 		long payloadLength = switch(payloadLengthInitial) {
-			case 0x7F -> (((long) bufferData[2] & 0xFF) << (8*7)) | (((long) bufferData[3] & 0xFF) << (8*6)) |
-						 (((long) bufferData[4] & 0xFF) << (8*5)) | (((long) bufferData[5] & 0xFF) << (8*4)) |
-						 (((long) bufferData[6] & 0xFF) << (8*3)) | (((long) bufferData[7] & 0xFF) << (8*2)) |
-						 (((long) bufferData[8] & 0xFF) << 8)     | (((long) bufferData[9] & 0xFF));
-			case 0x7E -> (((long) bufferData[2] & 0xFF) << 8) | ((long) bufferData[3] & 0xFF);
+			case 0x7F -> {
+				long extendedLength = 0;
+				for (int i = 2; i < 10; i++)
+					extendedLength = (extendedLength << 8) | (source.get(position + i) & 0xFF);
+				yield extendedLength;
+			}
+			case 0x7E -> ((source.get(position + 2) & 0xFF) << 8) | (source.get(position + 3) & 0xFF);
 			default -> payloadLengthInitial;
 		};
 		
+		// Rules for control frames
+		if (opcode >= 8) {
+			if (!fin)
+				throw new WebsocketParserException("invalid fragmented frame type");
+			if (payloadLength > 125)
+				throw new WebsocketParserException("invalid control frame length");
+		}
+		// Reject oversized payloads before any of them is buffered
+		if (payloadLength < 0 || payloadLength > maxFrameSize)
+			throw new WebsocketParserException("frame size is too large", WebSocketCloseReason.MESSAGE_TOO_BIG);
+		long messageSize = (opcode == WebsocketFrameType.CONTINUATION.getOpcode()) ? fragmentedSize + payloadLength : payloadLength;
+		if (opcode < 8 && messageSize > maxMessageSize)
+			throw new WebsocketParserException("message size is too large", WebSocketCloseReason.MESSAGE_TOO_BIG);
+		// Checked before any message state is reset below - a new message can't start part way through another, which
+		// would otherwise keep adding to it unchecked and skip validating the rest of a text message
+		if ((opcode == WebsocketFrameType.TEXT.getOpcode() || opcode == WebsocketFrameType.BINARY.getOpcode()) && fragmentedOpcode != null)
+			throw new WebsocketParserException("expected continuation frame");
+		if (opcode == WebsocketFrameType.CONTINUATION.getOpcode() && fragmentedOpcode == null)
+			throw new WebsocketParserException("unexpected continuation frame");
+		
 		int maskKey = 0;
 		if (mask) {
 			for (int m = headerLength-4; m < headerLength; m++) {
-				maskKey = (maskKey << 8) | (bufferData[m] & 0xFF);
+				maskKey = (maskKey << 8) | (source.get(position + m) & 0xFF);
 			}
 		}
 		
-		buffer.removeFromStart(headerLength);
-		currentFrameHeader = new WebsocketFrameHeader(fin, mask, opcode, payloadLength, maskKey);
+		source.position(position + headerLength);
+		currentFrameHeader = new WebsocketFrameHeader(fin, rsv1, mask, opcode, payloadLength, maskKey);
+		currentPayload = null;
+		currentPayloadSize = 0;
+		if (opcode == WebsocketFrameType.CONTINUATION.getOpcode())
+			fragmentCount++;
+		if (opcode == WebsocketFrameType.TEXT.getOpcode() || opcode == WebsocketFrameType.BINARY.getOpcode()) {
+			fragmentCount = 1;
+			compressedMessage = rsv1;
+			inflatedSize = 0;
+			textMessage = opcode == WebsocketFrameType.TEXT.getOpcode();
+			textValidator.reset();
+		}
+		
+		if (isStreamed(opcode))
+			startStreamedFrame(opcode);
 	}
 	
-	private WebsocketFrame parseWebsocketFrame() throws WebsocketParserException {
-		if (buffer.getSize() < currentFrameHeader.payloadLength())
+	private WebsocketFrame parseWebsocketFrame(ByteBuffer source) throws WebsocketParserException {
+		if (isStreamed(currentFrameHeader.opcode())) {
+			streamWebsocketFrame(source);
 			return null;
+		}
+		if (!currentFrameHeader.fin() || currentFrameHeader.opcode() == WebsocketFrameType.CONTINUATION.getOpcode())
+			return parseFragment(source);
 		
-		// TODO: Handle long size
-		byte [] bufferData = buffer.read((int) currentFrameHeader.payloadLength());
+		int payloadLength = (int) currentFrameHeader.payloadLength();
+		int count = Math.min(source.remaining(), payloadLength - currentPayloadSize);
 		
-		// Rules for control frames
-		if (currentFrameHeader.opcode() >= 8) {
-			if (!currentFrameHeader.fin())
-				throw new WebsocketParserException("invalid fragmented frame type");
-			if (bufferData.length > 125)
-				throw new WebsocketParserException("invalid control frame length");
+		// The payload array only grows as data actually arrives, so an announced length alone can't allocate it all
+		if (currentPayload == null) {
+			currentPayload = new byte[Math.min(payloadLength, Math.max(count, INITIAL_PAYLOAD_CAPACITY))];
+		} else if (currentPayloadSize + count > currentPayload.length) {
+			int newCapacity = (int) Math.min(payloadLength, Math.max(currentPayloadSize + count, 2L * currentPayload.length));
+			currentPayload = Arrays.copyOf(currentPayload, newCapacity);
 		}
+		int offset = currentPayloadSize;
+		source.get(currentPayload, offset, count);
+		currentPayloadSize += count;
+		// Unmask (booo websocket spec) as the payload arrives, so text can be rejected before the rest of it shows up
+		if (currentFrameHeader.mask())
+			WebsocketMask.mask(currentPayload, offset, count, WebsocketMask.rotateKey(currentFrameHeader.maskingKey(), offset));
+		if (currentFrameHeader.opcode() < 8 && textMessage && !compressedMessage)
+			validateText(currentPayload, offset, count);
 		
-		// Unmask (booo websocket spec)
-		if (currentFrameHeader.mask()) {
-			int maskByte1 = (currentFrameHeader.maskingKey() >> 24) & 0xFF;
-			int maskByte2 = (currentFrameHeader.maskingKey() >> 16) & 0xFF;
-			int maskByte3 = (currentFrameHeader.maskingKey() >> 8) & 0xFF;
-			int maskByte4 = currentFrameHeader.maskingKey() & 0xFF;
-			
-			int maskXorIndex = 0;
-			while (maskXorIndex < bufferData.length - (bufferData.length % 4)) {
-				bufferData[maskXorIndex++] ^= maskByte1;
-				bufferData[maskXorIndex++] ^= maskByte2;
-				bufferData[maskXorIndex++] ^= maskByte3;
-				bufferData[maskXorIndex++] ^= maskByte4;
-			}
-			
-			if (maskXorIndex < bufferData.length)
-				bufferData[maskXorIndex++] ^= maskByte1;
-			if (maskXorIndex < bufferData.length)
-				bufferData[maskXorIndex++] ^= maskByte2;
-			if (maskXorIndex < bufferData.length)
-				bufferData[maskXorIndex] ^= maskByte3;
-		}
+		if (currentPayloadSize < payloadLength)
+			return null;
+		
+		byte [] bufferData = currentPayload;
+		currentPayload = null;
+		currentPayloadSize = 0;
 		
 		WebsocketFrameType opcode = WebsocketFrameType.getTypeForOpcode(currentFrameHeader.opcode());
-		boolean finalFrame = currentFrameHeader.fin();
 		currentFrameHeader = null;
+		byte [] data = inflateMessage(opcode, bufferData);
+		if (opcode == WebsocketFrameType.TEXT)
+			finishText();
+		else if (opcode == WebsocketFrameType.CLOSE && data.length > 2 && !Utf8Validator.isValid(data, 2, data.length - 2))
+			throw new WebsocketParserException("invalid UTF-8 in close reason", WebSocketCloseReason.BAD_TEXT);
+		return new WebsocketFrame(opcode, data);
+	}
+	
+	/**
+	 * Unmasks each fragment straight into the fragment buffer, so only the reassembled message needs its own array
+	 */
+	private WebsocketFrame parseFragment(ByteBuffer source) throws WebsocketParserException {
+		int payloadLength = (int) currentFrameHeader.payloadLength();
+		if (currentPayloadSize == 0) {
+			// The header checks keep this under maxMessageSize, but it still has to fit an array
+			if (fragmentedSize + payloadLength > MAX_PAYLOAD_SIZE)
+				throw new WebsocketParserException("fragmented size is too large", WebSocketCloseReason.MESSAGE_TOO_BIG);
+			if (fragmentBuffer == null)
+				fragmentBuffer = new ParserByteStream(1024, bufferAllocator);
+		}
 		
-		if (opcode != WebsocketFrameType.CONTINUATION && finalFrame)
-			return new WebsocketFrame(opcode, bufferData);
+		int count = Math.min(source.remaining(), payloadLength - currentPayloadSize);
+		if (count > 0) {
+			// Grows with the data that actually arrives, but stops at the announced size on the last fragment, so a
+			// message that needed the room at the end is handed over in the array it filled rather than copied
+			long sizeLimit = currentFrameHeader.fin() ? fragmentedSize + payloadLength : Math.min(maxMessageSize, MAX_PAYLOAD_SIZE);
+			fragmentBuffer.reserve(count, (int) sizeLimit);
+			fragmentBuffer.write(source, count);
+			int index = fragmentBuffer.getStart() + fragmentBuffer.getSize() - count;
+			if (currentFrameHeader.mask())
+				WebsocketMask.mask(fragmentBuffer.getByteArray(), index, count, WebsocketMask.rotateKey(currentFrameHeader.maskingKey(), currentPayloadSize));
+			if (textMessage && !compressedMessage)
+				validateText(fragmentBuffer.getByteArray(), index, count);
+			currentPayloadSize += count;
+		}
+		if (currentPayloadSize < payloadLength)
+			return null;
 		
-		// Fragmented segment
-		this.fragmentBuffer.add(bufferData);
-		this.fragmentedSize += bufferData.length;
+		WebsocketFrameType opcode = WebsocketFrameType.getTypeForOpcode(currentFrameHeader.opcode());
+		boolean finalFrame = currentFrameHeader.fin();
+		currentFrameHeader = null;
+		currentPayloadSize = 0;
+		fragmentedSize += payloadLength;
 		
 		// First fragmented segment
 		if (opcode != WebsocketFrameType.CONTINUATION) {
 			fragmentedOpcode = opcode;
 			return null;
 		}
+		if (!finalFrame)
+			return null;
 		
 		// Last fragmented segment
-		if (finalFrame) {
-			if (fragmentedSize > Integer.MAX_VALUE)
-				throw new WebsocketParserException("fragmented size is too large");
-			
-			byte [] accumulatedData = new byte[(int) fragmentedSize];
-			int currentIndex = 0;
-			for (byte [] fragment : fragmentBuffer) {
-				System.arraycopy(fragment, 0, accumulatedData, currentIndex, fragment.length);
-				currentIndex += fragment.length;
+		WebsocketFrameType fragmentedOpcode = this.fragmentedOpcode;
+		this.fragmentedOpcode = null;
+		this.fragmentedSize = 0;
+		byte [] data;
+		if (compressedMessage) {
+			data = inflateMessage(fragmentBuffer.getByteBuffer());
+		} else {
+			data = fragmentBuffer.read(fragmentBuffer.getSize());
+		}
+		fragmentBuffer.reset();
+		if (textMessage)
+			finishText();
+		return new WebsocketFrame(fragmentedOpcode, data);
+	}
+	
+	private boolean isStreamed(byte opcode) {
+		return messageListener != null && opcode <= WebsocketFrameType.BINARY.getOpcode();
+	}
+	
+	private void startStreamedFrame(byte opcode) throws WebsocketParserException {
+		// The header already checked that continuations and new messages come in the right order
+		WebsocketFrameType type = WebsocketFrameType.getTypeForOpcode(opcode);
+		if (type == WebsocketFrameType.CONTINUATION)
+			return;
+		
+		fragmentedOpcode = type;
+		fragmentedSize = 0;
+		messageListener.onMessageStart(type);
+	}
+	
+	private byte [] inflateMessage(WebsocketFrameType type, byte [] data) throws WebsocketParserException {
+		// Control frames can arrive in the middle of a compressed message, but are never compressed themselves
+		if (!compressedMessage || type.getOpcode() >= 8)
+			return data;
+		return inflateMessage(ByteBuffer.wrap(data));
+	}
+	
+	private byte [] inflateMessage(ByteBuffer data) throws WebsocketParserException {
+		compressedMessage = false;
+		ParserByteStream output = new ParserByteStream((int) Math.min(MAX_PAYLOAD_SIZE, Math.max(1024, 4L * data.remaining())), bufferAllocator);
+		Consumer<ByteBuffer> outputWriter = inflated -> {
+			if (textMessage)
+				textValidator.update(inflated);
+			output.write(inflated);
+		};
+		try {
+			long limit = Math.min(maxMessageSize, MAX_PAYLOAD_SIZE);
+			long size = inflater.inflate(data, limit, outputWriter);
+			inflater.finishMessage(limit - size, outputWriter);
+			return output.read(output.getSize());
+		} finally {
+			output.release();
+		}
+	}
+	
+	private void streamWebsocketFrame(ByteBuffer source) throws WebsocketParserException {
+		int payloadLength = (int) currentFrameHeader.payloadLength();
+		int count = Math.min(source.remaining(), payloadLength - currentPayloadSize);
+		
+		if (count > 0) {
+			int position = source.position();
+			ByteBuffer data = source.slice(position, count);
+			source.position(position + count);
+			if (currentFrameHeader.mask()) {
+				if (data.isReadOnly()) {
+					byte [] copy = new byte[count];
+					data.get(copy);
+					data = ByteBuffer.wrap(copy);
+				}
+				// Partial payloads pick the key up where the previous part left off
+				WebsocketMask.mask(data, 0, count, WebsocketMask.rotateKey(currentFrameHeader.maskingKey(), currentPayloadSize));
+			}
+			currentPayloadSize += count;
+			if (compressedMessage) {
+				inflatedSize += inflater.inflate(data, maxMessageSize - inflatedSize, this::onInflatedData);
+				if (!textValidator.isValidPrefix())
+					throw invalidText();
+			} else {
+				if (textMessage && !textValidator.update(data))
+					throw invalidText();
+				messageListener.onMessageData(data);
 			}
-			WebsocketFrameType fragmentedOpcode = this.fragmentedOpcode;
-			this.fragmentedOpcode = null;
-			fragmentBuffer.clear();
-			
-			return new WebsocketFrame(fragmentedOpcode, accumulatedData);
 		}
 		
-		return null;
+		if (currentPayloadSize < payloadLength)
+			return;
+		
+		boolean finalFrame = currentFrameHeader.fin();
+		fragmentedSize += payloadLength;
+		currentFrameHeader = null;
+		currentPayloadSize = 0;
+		if (finalFrame) {
+			if (compressedMessage) {
+				compressedMessage = false;
+				inflater.finishMessage(maxMessageSize - inflatedSize, this::onInflatedData);
+			}
+			if (textMessage)
+				finishText();
+			fragmentedOpcode = null;
+			fragmentedSize = 0;
+			messageListener.onMessageEnd();
+		}
+	}
+	
+	private void onInflatedData(ByteBuffer data) {
+		// The output callback can't throw, so a failure is picked up once the inflater returns
+		if (!textMessage || textValidator.update(data))
+			messageListener.onMessageData(data);
+	}
+	
+	private void validateText(byte [] data, int offset, int length) throws WebsocketParserException {
+		if (!textValidator.update(data, offset, length))
+			throw invalidText();
+	}
+	
+	private void finishText() throws WebsocketParserException {
+		// Also catches a message that ends part way through a character
+		if (!textValidator.isComplete())
+			throw invalidText();
+	}
+	
+	private static WebsocketParserException invalidText() {
+		return new WebsocketParserException("invalid UTF-8 in text message", WebSocketCloseReason.BAD_TEXT);
+	}
+	
+	private static int getHeaderLength(byte secondByte) {
+		boolean mask = (secondByte & 0b10000000) != 0;
+		byte payloadLengthInitial = (byte) (secondByte & 0x7F);
+		return 2 + (mask ? 4 : 0) + (payloadLengthInitial == 0x7E ? 2 : (payloadLengthInitial == 0x7F ? 8 : 0));
 	}
 	
 }
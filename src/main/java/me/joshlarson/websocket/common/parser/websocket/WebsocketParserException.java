@@ -1,9 +1,26 @@
 package me.joshlarson.websocket.common.parser.websocket;
 
+import org.jetbrains.annotations.NotNull;
+
 public class WebsocketParserException extends Exception {
 	
+	private final WebSocketCloseReason closeReason;
+	
 	public WebsocketParserException(String message) {
+		this(message, WebSocketCloseReason.PROTOCOL_ERROR);
+	}
+	
+	public WebsocketParserException(String message, @NotNull WebSocketCloseReason closeReason) {
 		super(message);
+		this.closeReason = closeReason;
+	}
+	
+	/**
+	 * The close code the connection should be failed with
+	 */
+	@NotNull
+	public WebSocketCloseReason getCloseReason() {
+		return closeReason;
 	}
 	
 }
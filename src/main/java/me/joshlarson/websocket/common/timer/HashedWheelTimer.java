@@ -0,0 +1,234 @@
+package me.joshlarson.websocket.common.timer;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs many short timeouts, such as a few per connection, from a single thread. Time advances in fixed ticks, and each
+ * timeout is linked into the bucket for the tick it expires on, in a wheel that wraps around - later ones wait out
+ * whole rotations. Scheduling and cancelling are O(1) however many timeouts are pending, and each tick only looks at
+ * one bucket.
+ * <p>
+ * Timeouts expire up to one tick late. Their tasks run on the timer's thread, so they should be quick, unless the timer
+ * was given an executor for them.
+ */
+public final class HashedWheelTimer implements AutoCloseable {
+	
+	// Keeps a flood of new timeouts from delaying the tick that moves them into the wheel
+	private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+	
+	private final long tickNanos;
+	private final Bucket [] wheel;
+	private final int mask;
+	private final Executor executor;
+	private final Queue<Timeout> scheduled;
+	private final Queue<Timeout> cancelled;
+	private final AtomicInteger pendingTimeouts;
+	private final long startTime;
+	private final Thread thread;
+	
+	private volatile boolean closed;
+	private long tick;
+	
+	/**
+	 * A timer with 100 ms ticks and 512 buckets, running tasks on its own thread
+	 */
+	public HashedWheelTimer() {
+		this(100, TimeUnit.MILLISECONDS, 512, null);
+	}
+	
+	/**
+	 * @param ticksPerWheel rounded up to a power of two. Timeouts within one rotation never wait out a round.
+	 * @param executor runs expired tasks, e.g. when they might block. Null runs them on the timer's thread.
+	 */
+	public HashedWheelTimer(long tickDuration, @NotNull TimeUnit unit, int ticksPerWheel, @Nullable Executor executor) {
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException("tick duration must be positive");
+		if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30))
+			throw new IllegalArgumentException("ticks per wheel must be between 1 and 2^30");
+		int wheelSize = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+		if (wheelSize == 0)
+			wheelSize = 1;
+		this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+		this.wheel = new Bucket[wheelSize];
+		this.mask = wheelSize - 1;
+		this.executor = executor;
+		this.scheduled = new ConcurrentLinkedQueue<>();
+		this.cancelled = new ConcurrentLinkedQueue<>();
+		this.pendingTimeouts = new AtomicInteger(0);
+		this.closed = false;
+		this.tick = 0;
+		for (int i = 0; i < wheelSize; i++)
+			wheel[i] = new Bucket();
+		
+		this.startTime = System.nanoTime();
+		this.thread = new Thread(this::run, "websocket-timer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Runs the task once, no earlier than the delay from now
+	 */
+	@NotNull
+	public Timeout schedule(@NotNull Runnable task, long delay, @NotNull TimeUnit unit) {
+		if (closed)
+			throw new IllegalStateException("timer closed");
+		long now = System.nanoTime() - startTime;
+		long delayNanos = Math.max(0, unit.toNanos(delay));
+		// Saturates instead of wrapping for delays measured in centuries
+		long deadline = (delayNanos > Long.MAX_VALUE - now) ? Long.MAX_VALUE : now + delayNanos;
+		Timeout timeout = new Timeout(this, task, deadline);
+		pendingTimeouts.incrementAndGet();
+		scheduled.add(timeout);
+		return timeout;
+	}
+	
+	/**
+	 * Timeouts that have neither expired nor been cancelled
+	 */
+	public int getPendingTimeouts() {
+		return pendingTimeouts.get();
+	}
+	
+	/**
+	 * Stops the timer's thread. Pending timeouts never expire.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(thread);
+		if (Thread.currentThread() == thread)
+			return;
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	void onCancelled(Timeout timeout) {
+		pendingTimeouts.decrementAndGet();
+		cancelled.add(timeout);
+	}
+	
+	private void run() {
+		while (!closed) {
+			long deadline = tickNanos * (tick + 1);
+			if (!waitUntil(deadline))
+				break;
+			removeCancelled();
+			transferScheduled();
+			expire(wheel[(int) (tick & mask)], deadline);
+			tick++;
+		}
+		scheduled.clear();
+		cancelled.clear();
+	}
+	
+	private boolean waitUntil(long deadline) {
+		while (true) {
+			if (closed)
+				return false;
+			long remaining = deadline - (System.nanoTime() - startTime);
+			if (remaining <= 0)
+				return true;
+			LockSupport.parkNanos(this, remaining);
+		}
+	}
+	
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			// Cancelled before it reached the wheel, or expired from it already
+			if (timeout.bucket != null)
+				timeout.bucket.remove(timeout);
+		}
+	}
+	
+	private void transferScheduled() {
+		for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+			Timeout timeout = scheduled.poll();
+			if (timeout == null)
+				return;
+			if (!timeout.isPending())
+				continue;
+			
+			long expiryTick = timeout.getDeadline() / tickNanos;
+			timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+			// Already overdue, e.g. after a slow tick, expires on this one
+			wheel[(int) (Math.max(expiryTick, tick) & mask)].add(timeout);
+		}
+	}
+	
+	private void expire(Bucket bucket, long deadline) {
+		Timeout timeout = bucket.head;
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.remainingRounds <= 0 && timeout.getDeadline() <= deadline) {
+				bucket.remove(timeout);
+				if (timeout.markExpired()) {
+					pendingTimeouts.decrementAndGet();
+					run(timeout.getTask());
+				}
+			} else if (timeout.isCancelled()) {
+				bucket.remove(timeout);
+			} else {
+				timeout.remainingRounds--;
+			}
+			timeout = next;
+		}
+	}
+	
+	private void run(Runnable task) {
+		try {
+			if (executor != null)
+				executor.execute(task);
+			else
+				task.run();
+		} catch (RuntimeException e) {
+			// A failing task never stops the others from expiring
+			thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+		}
+	}
+	
+	static final class Bucket {
+		
+		private Timeout head = null;
+		private Timeout tail = null;
+		
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			timeout.previous = tail;
+			timeout.next = null;
+			if (tail == null)
+				head = timeout;
+			else
+				tail.next = timeout;
+			tail = timeout;
+		}
+		
+		void remove(Timeout timeout) {
+			if (timeout.previous == null)
+				head = timeout.next;
+			else
+				timeout.previous.next = timeout.next;
+			if (timeout.next == null)
+				tail = timeout.previous;
+			else
+				timeout.next.previous = timeout.previous;
+			timeout.bucket = null;
+			timeout.next = null;
+			timeout.previous = null;
+		}
+		
+	}
+	
+}
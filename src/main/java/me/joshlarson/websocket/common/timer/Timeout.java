@@ -0,0 +1,88 @@
+package me.joshlarson.websocket.common.timer;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A task scheduled on a {@link HashedWheelTimer}. It either expires, running the task once, or is cancelled first.
+ */
+public final class Timeout {
+	
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+	private static final VarHandle STATE;
+	
+	static {
+		try {
+			STATE = MethodHandles.lookup().findVarHandle(Timeout.class, "state", int.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	private final HashedWheelTimer timer;
+	private final Runnable task;
+	private final long deadline;
+	@SuppressWarnings("unused") // accessed through STATE
+	private volatile int state;
+	
+	// Only touched by the timer's thread
+	long remainingRounds;
+	Timeout next;
+	Timeout previous;
+	HashedWheelTimer.Bucket bucket;
+	
+	Timeout(@NotNull HashedWheelTimer timer, @NotNull Runnable task, long deadline) {
+		this.timer = timer;
+		this.task = task;
+		this.deadline = deadline;
+		this.state = PENDING;
+		this.remainingRounds = 0;
+		this.next = null;
+		this.previous = null;
+		this.bucket = null;
+	}
+	
+	/**
+	 * Stops the task from running, returning false if it already ran or was cancelled. The timeout is unlinked from the
+	 * wheel on the timer's next tick.
+	 */
+	public boolean cancel() {
+		if (!STATE.compareAndSet(this, PENDING, CANCELLED))
+			return false;
+		timer.onCancelled(this);
+		return true;
+	}
+	
+	public boolean isCancelled() {
+		return state == CANCELLED;
+	}
+	
+	public boolean isExpired() {
+		return state == EXPIRED;
+	}
+	
+	boolean isPending() {
+		return state == PENDING;
+	}
+	
+	/**
+	 * Nanoseconds after the timer started
+	 */
+	long getDeadline() {
+		return deadline;
+	}
+	
+	@NotNull
+	Runnable getTask() {
+		return task;
+	}
+	
+	boolean markExpired() {
+		return STATE.compareAndSet(this, PENDING, EXPIRED);
+	}
+	
+}
@@ -1,13 +1,16 @@
 package me.joshlarson.websocket.server;
 
+import me.joshlarson.websocket.common.WebSocketHandshake;
 import me.joshlarson.websocket.common.WebSocketProtocol;
+import me.joshlarson.websocket.common.WebSocketWriter;
+import me.joshlarson.websocket.common.extension.PerMessageDeflate;
+import me.joshlarson.websocket.common.extension.PerMessageDeflateOptions;
 import me.joshlarson.websocket.common.parser.http.HttpFrame;
 import me.joshlarson.websocket.common.parser.http.HttpRequest;
 import me.joshlarson.websocket.common.parser.http.HttpResponse;
 import me.joshlarson.websocket.common.parser.websocket.WebsocketFrame;
 
 import java.util.HashMap;
-import java.util.Map;
 import java.util.function.Consumer;
 
 public class WebSocketServerProtocol extends WebSocketProtocol {
@@ -19,6 +22,11 @@ public class WebSocketServerProtocol extends WebSocketProtocol {
 		this.callback = callback;
 	}
 	
+	public WebSocketServerProtocol(WebSocketServerCallback callback, WebSocketWriter writer, Runnable closer) {
+		super(callback, writer, closer);
+		this.callback = callback;
+	}
+	
 	@Override
 	protected void onWebsocketFrame(WebsocketFrame frame) {
 	
@@ -41,6 +49,7 @@ public class WebSocketServerProtocol extends WebSocketProtocol {
 			return;
 		}
 		
+		startHandshake();
 		String websocketKey = request.getHeaderValue("Sec-WebSocket-Key");
 		if (websocketKey == null) {
 			send(new HttpResponse("HTTP/1.1", 400, "Invalid Request", new HashMap<>(), new byte[0]));
@@ -48,15 +57,16 @@ public class WebSocketServerProtocol extends WebSocketProtocol {
 			return;
 		}
 		
-		Map<String, String> responseHeaders = new HashMap<>();
-		responseHeaders.put("Upgrade", "websocket");
-		responseHeaders.put("Connection", "Upgrade");
-		responseHeaders.put("Sec-WebSocket-Accept", getWebSocketAcceptString(websocketKey));
-		responseHeaders.put("Sec-WebSocket-Protocol", "");
-		send(new HttpResponse("HTTP/1.1", 101, "Switching Protocols", responseHeaders, new byte[0]));
+		PerMessageDeflateOptions perMessageDeflateOptions = getPerMessageDeflateOptions();
+		PerMessageDeflate perMessageDeflate = null;
+		if (perMessageDeflateOptions != null)
+			perMessageDeflate = PerMessageDeflate.acceptOffer(request.getHeaderValue("Sec-WebSocket-Extensions"), perMessageDeflateOptions);
+		sendHttp(WebSocketHandshake.encodeUpgradeResponse(websocketKey, (perMessageDeflate == null) ? null : perMessageDeflate.getNegotiatedHeader()));
 		
-		switchToWebsocket();
-		callback.onUpgrade(getHandler(), request);
+		if (perMessageDeflate != null)
+			enablePerMessageDeflate(perMessageDeflate);
+		if (switchToWebsocket())
+			callback.onUpgrade(getHandler(), request);
 	}
 	
 }
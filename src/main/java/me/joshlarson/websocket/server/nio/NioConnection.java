@@ -0,0 +1,249 @@
+package me.joshlarson.websocket.server.nio;
+
+import me.joshlarson.websocket.common.WebSocketWriter;
+import me.joshlarson.websocket.common.buffer.PooledBuffer;
+import me.joshlarson.websocket.server.WebSocketServerCallback;
+import me.joshlarson.websocket.server.WebSocketServerProtocol;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * Reads always happen on the owning event loop. Writes may come from any thread: they go straight to the socket while
+ * nothing is queued, and whatever the socket doesn't accept waits for OP_WRITE. Pooled buffers are released once
+ * they have been written completely.
+ */
+class NioConnection implements NioEventLoop.SelectionHandler, WebSocketWriter {
+	
+	// Bounds how long one busy connection can hold up the rest of the loop
+	private static final int MAX_READS_PER_WAKEUP = 16;
+	
+	private final NioEventLoop eventLoop;
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final WebSocketServerProtocol protocol;
+	private final ArrayDeque<PendingWrite> pendingWrites;
+	
+	private long pendingBytes;
+	private boolean closed;
+	private boolean closeAfterFlush;
+	
+	NioConnection(NioEventLoop eventLoop, SocketChannel channel, SelectionKey key, WebSocketServerCallback callback) {
+		this.eventLoop = eventLoop;
+		this.channel = channel;
+		this.key = key;
+		this.protocol = new WebSocketServerProtocol(callback, this, this::requestClose);
+		this.pendingWrites = new ArrayDeque<>(4);
+		this.pendingBytes = 0;
+		this.closed = false;
+		this.closeAfterFlush = false;
+	}
+	
+	WebSocketServerProtocol getProtocol() {
+		return protocol;
+	}
+	
+	@Override
+	public void onSelected(SelectionKey key) {
+		if (key.isWritable())
+			flush();
+		if (key.isValid() && key.isReadable())
+			read(eventLoop.getReadBuffer());
+	}
+	
+	void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			clearPendingWrites();
+		}
+		key.cancel();
+		NioWebSocketServer.closeQuietly(channel);
+		eventLoop.remove(this);
+		protocol.onDisconnect();
+	}
+	
+	private void read(ByteBuffer buffer) {
+		for (int i = 0; i < MAX_READS_PER_WAKEUP && !closed; i++) {
+			int n;
+			buffer.clear();
+			try {
+				n = channel.read(buffer);
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			if (n < 0) {
+				close();
+				return;
+			}
+			if (n == 0)
+				return;
+			
+			buffer.flip();
+			protocol.onRead(buffer);
+			// A partial read means the socket has been drained
+			if (n < buffer.capacity())
+				return;
+		}
+	}
+	
+	@Override
+	public void write(@NotNull ByteBuffer [] buffers) {
+		write(buffers, null);
+	}
+	
+	@Override
+	public void write(@NotNull PooledBuffer buffer) {
+		write(new ByteBuffer[]{buffer.buffer()}, buffer);
+	}
+	
+	@Override
+	public synchronized long getPendingBytes() {
+		return pendingBytes;
+	}
+	
+	@Override
+	public boolean mayBlock() {
+		// The event loop is what drains the queue
+		return !eventLoop.inEventLoop();
+	}
+	
+	@Override
+	@NotNull
+	public Executor getOwner() {
+		return eventLoop;
+	}
+	
+	private void write(ByteBuffer [] buffers, @Nullable PooledBuffer pooled) {
+		boolean failed = false;
+		synchronized (this) {
+			if (closed || closeAfterFlush) {
+				release(pooled);
+				return;
+			}
+			
+			if (pendingWrites.isEmpty()) {
+				try {
+					writeToChannel(buffers);
+				} catch (IOException e) {
+					failed = true;
+				}
+			}
+			if (failed)
+				release(pooled);
+			else
+				queueRemaining(buffers, pooled);
+		}
+		if (failed)
+			requestAbort();
+	}
+	
+	private void queueRemaining(ByteBuffer [] buffers, @Nullable PooledBuffer pooled) {
+		int queued = 0;
+		for (ByteBuffer buffer : buffers) {
+			if (buffer.hasRemaining()) {
+				pendingWrites.add(new PendingWrite(buffer, null));
+				pendingBytes += buffer.remaining();
+				queued++;
+			}
+		}
+		if (queued == 0) {
+			release(pooled);
+			return;
+		}
+		// The pooled buffer holds the last bytes of this write, so it goes with the last queued entry
+		if (pooled != null)
+			pendingWrites.add(new PendingWrite(pendingWrites.pollLast().buffer(), pooled));
+		
+		key.interestOpsOr(SelectionKey.OP_WRITE);
+		if (!eventLoop.inEventLoop())
+			eventLoop.wakeup();
+	}
+	
+	private void flush() {
+		boolean finished;
+		synchronized (this) {
+			ByteBuffer [] buffers = new ByteBuffer[pendingWrites.size()];
+			int index = 0;
+			for (PendingWrite pendingWrite : pendingWrites)
+				buffers[index++] = pendingWrite.buffer();
+			try {
+				pendingBytes -= writeToChannel(buffers);
+			} catch (IOException e) {
+				closeAfterFlush = true;
+				clearPendingWrites();
+			}
+			while (!pendingWrites.isEmpty() && !pendingWrites.peekFirst().buffer().hasRemaining())
+				release(pendingWrites.pollFirst().pooled());
+			finished = pendingWrites.isEmpty() && closeAfterFlush;
+			if (pendingWrites.isEmpty())
+				key.interestOpsAnd(~SelectionKey.OP_WRITE);
+		}
+		if (finished)
+			close();
+		else
+			protocol.onWritesDrained();
+	}
+	
+	private void requestClose() {
+		if (!eventLoop.inEventLoop()) {
+			eventLoop.execute(this::requestClose);
+			return;
+		}
+		
+		synchronized (this) {
+			// Let the close frame (or HTTP response) go out before the socket does
+			if (!pendingWrites.isEmpty()) {
+				closeAfterFlush = true;
+				return;
+			}
+		}
+		close();
+	}
+	
+	private void requestAbort() {
+		if (eventLoop.inEventLoop())
+			close();
+		else
+			eventLoop.execute(this::close);
+	}
+	
+	private void clearPendingWrites() {
+		for (PendingWrite pendingWrite : pendingWrites)
+			release(pendingWrite.pooled());
+		pendingWrites.clear();
+		pendingBytes = 0;
+	}
+	
+	private long writeToChannel(ByteBuffer [] buffers) throws IOException {
+		if (buffers.length == 0)
+			return 0;
+		
+		long written = 0;
+		ByteBuffer last = buffers[buffers.length - 1];
+		while (last.hasRemaining()) {
+			long n = channel.write(buffers);
+			if (n == 0)
+				break;
+			written += n;
+		}
+		return written;
+	}
+	
+	private static void release(@Nullable PooledBuffer pooled) {
+		if (pooled != null)
+			pooled.release();
+	}
+	
+	private record PendingWrite(ByteBuffer buffer, @Nullable PooledBuffer pooled) { }
+	
+}
@@ -0,0 +1,189 @@
+package me.joshlarson.websocket.server.nio;
+
+import me.joshlarson.websocket.server.WebSocketServerCallback;
+import me.joshlarson.websocket.server.WebSocketServerProtocol;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * A selector thread that owns a set of connections. Everything touching the selector or a connection's read side
+ * happens on this thread - other threads hand work over with {@link #execute(Runnable)}.
+ */
+class NioEventLoop implements Runnable, Executor {
+	
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+	
+	private final Selector selector;
+	private final Thread thread;
+	private final Queue<Runnable> tasks;
+	private final Set<NioConnection> connections;
+	// Only one connection reads at a time, and the parsers copy out anything they can't finish, so it can be shared
+	private final ByteBuffer readBuffer;
+	
+	private volatile boolean running;
+	
+	NioEventLoop(String name) throws IOException {
+		this.selector = Selector.open();
+		this.thread = new Thread(this, name);
+		this.tasks = new ConcurrentLinkedQueue<>();
+		this.connections = new HashSet<>();
+		this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		this.running = true;
+		
+		thread.setDaemon(true);
+	}
+	
+	void start() {
+		thread.start();
+	}
+	
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+		if (inEventLoop())
+			return;
+		
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+	
+	@Override
+	public void execute(@NotNull Runnable task) {
+		tasks.add(task);
+		if (!inEventLoop())
+			selector.wakeup();
+	}
+	
+	void wakeup() {
+		selector.wakeup();
+	}
+	
+	void register(SelectableChannel channel, int interestOps, SelectionHandler handler) {
+		execute(() -> registerNow(channel, interestOps, handler));
+	}
+	
+	void connect(SocketChannel channel, WebSocketServerCallback callback, Consumer<WebSocketServerProtocol> protocolInitializer) {
+		SelectionKey key;
+		try {
+			key = channel.register(selector, 0);
+		} catch (ClosedChannelException e) {
+			return;
+		}
+		
+		NioConnection connection = new NioConnection(this, channel, key, callback);
+		key.attach(connection);
+		connections.add(connection);
+		try {
+			protocolInitializer.accept(connection.getProtocol());
+		} catch (RuntimeException e) {
+			connection.close();
+			throw e;
+		}
+		key.interestOps(SelectionKey.OP_READ);
+		connection.getProtocol().onConnect();
+	}
+	
+	void remove(NioConnection connection) {
+		connections.remove(connection);
+	}
+	
+	ByteBuffer getReadBuffer() {
+		return readBuffer;
+	}
+	
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				// Tasks queued from this thread don't wake the selector, so they must not wait behind a blocking select
+				if (tasks.isEmpty())
+					selector.select();
+				else
+					selector.selectNow();
+				
+				Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+				while (selectedKeys.hasNext()) {
+					SelectionKey key = selectedKeys.next();
+					selectedKeys.remove();
+					if (key.isValid())
+						handleSelected(key);
+				}
+				runTasks();
+			}
+		} catch (IOException e) {
+			// The selector itself failed - nothing on this loop can make progress anymore
+		} finally {
+			for (NioConnection connection : new ArrayList<>(connections)) {
+				connection.close();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Shutting down regardless
+			}
+		}
+	}
+	
+	private void registerNow(SelectableChannel channel, int interestOps, SelectionHandler handler) {
+		try {
+			channel.register(selector, interestOps, handler);
+		} catch (ClosedChannelException e) {
+			// Closed before the loop got to it
+		}
+	}
+	
+	private void handleSelected(SelectionKey key) {
+		try {
+			((SelectionHandler) key.attachment()).onSelected(key);
+		} catch (RuntimeException e) {
+			// A failing callback only takes its own connection down, never the whole loop
+			if (key.attachment() instanceof NioConnection connection)
+				connection.close();
+			reportException(e);
+		}
+	}
+	
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				reportException(e);
+			}
+		}
+	}
+	
+	private void reportException(RuntimeException e) {
+		thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+	}
+	
+	interface SelectionHandler {
+		
+		void onSelected(SelectionKey key);
+		
+	}
+	
+}
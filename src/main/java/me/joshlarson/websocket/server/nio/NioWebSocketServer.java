@@ -0,0 +1,134 @@
+package me.joshlarson.websocket.server.nio;
+
+import me.joshlarson.websocket.server.WebSocketServerCallback;
+import me.joshlarson.websocket.server.WebSocketServerProtocol;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking server that runs a {@link WebSocketServerProtocol} per connection on a fixed set of selector threads.
+ * Connections are accepted by the first event loop and handed out round-robin, and each connection stays on its loop
+ * for its whole lifetime, so callbacks for one connection are never run concurrently.
+ */
+public class NioWebSocketServer implements AutoCloseable {
+	
+	private final WebSocketServerCallback callback;
+	private final InetSocketAddress address;
+	private final NioEventLoop [] eventLoops;
+	
+	private Consumer<WebSocketServerProtocol> protocolInitializer;
+	private ServerSocketChannel serverChannel;
+	private int nextEventLoop;
+	
+	public NioWebSocketServer(@NotNull WebSocketServerCallback callback, @NotNull InetSocketAddress address) {
+		this(callback, address, Runtime.getRuntime().availableProcessors());
+	}
+	
+	public NioWebSocketServer(@NotNull WebSocketServerCallback callback, @NotNull InetSocketAddress address, int eventLoopCount) {
+		if (eventLoopCount <= 0)
+			throw new IllegalArgumentException("at least one event loop is required");
+		this.callback = callback;
+		this.address = address;
+		this.eventLoops = new NioEventLoop[eventLoopCount];
+		this.protocolInitializer = protocol -> {};
+		this.serverChannel = null;
+		this.nextEventLoop = 0;
+	}
+	
+	/**
+	 * Called for every new connection before it starts reading, e.g. to configure limits or streaming
+	 */
+	public void setProtocolInitializer(@NotNull Consumer<WebSocketServerProtocol> protocolInitializer) {
+		this.protocolInitializer = protocolInitializer;
+	}
+	
+	public synchronized void start() throws IOException {
+		if (serverChannel != null)
+			throw new IllegalStateException("server already started");
+		
+		for (int i = 0; i < eventLoops.length; i++) {
+			eventLoops[i] = new NioEventLoop("websocket-nio-" + i);
+		}
+		serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.bind(address, 1024);
+			serverChannel.configureBlocking(false);
+			ServerSocketChannel acceptChannel = serverChannel;
+			eventLoops[0].register(acceptChannel, SelectionKey.OP_ACCEPT, key -> accept(acceptChannel));
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		for (NioEventLoop eventLoop : eventLoops) {
+			eventLoop.start();
+		}
+	}
+	
+	/**
+	 * Returns the bound address, which includes the actual port when started on port 0
+	 */
+	@NotNull
+	public synchronized InetSocketAddress getLocalAddress() throws IOException {
+		if (serverChannel == null)
+			throw new IllegalStateException("server not started");
+		return (InetSocketAddress) serverChannel.getLocalAddress();
+	}
+	
+	@Override
+	public synchronized void close() {
+		if (serverChannel == null)
+			return;
+		
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			// Nothing else can be done with it
+		}
+		serverChannel = null;
+		for (NioEventLoop eventLoop : eventLoops) {
+			if (eventLoop != null)
+				eventLoop.shutdown();
+		}
+	}
+	
+	private void accept(ServerSocketChannel acceptChannel) {
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = acceptChannel.accept();
+			} catch (IOException e) {
+				return;
+			}
+			if (channel == null)
+				return;
+			
+			try {
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			} catch (IOException e) {
+				closeQuietly(channel);
+				continue;
+			}
+			
+			NioEventLoop eventLoop = eventLoops[nextEventLoop];
+			nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+			eventLoop.execute(() -> eventLoop.connect(channel, callback, protocolInitializer));
+		}
+	}
+	
+	static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Already closing anyway
+		}
+	}
+	
+}
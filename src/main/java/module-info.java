@@ -2,10 +2,16 @@ module me.joshlarson.websocket {
 	requires kotlin.stdlib;
 	requires org.jetbrains.annotations;
 	
+	exports me.joshlarson.websocket.blocking;
 	exports me.joshlarson.websocket.client;
 	exports me.joshlarson.websocket.common;
 	exports me.joshlarson.websocket.server;
+	exports me.joshlarson.websocket.server.nio;
 	
+	exports me.joshlarson.websocket.common.buffer;
+	exports me.joshlarson.websocket.common.extension;
+	exports me.joshlarson.websocket.common.metrics;
 	exports me.joshlarson.websocket.common.parser.http;
 	exports me.joshlarson.websocket.common.parser.websocket;
+	exports me.joshlarson.websocket.common.timer;
 }
\ No newline at end of file
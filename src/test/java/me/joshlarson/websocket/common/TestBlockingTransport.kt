@@ -0,0 +1,82 @@
+package me.joshlarson.websocket.common
+
+import me.joshlarson.websocket.blocking.BlockingWebSocketClient
+import me.joshlarson.websocket.blocking.BlockingWebSocketServer
+import me.joshlarson.websocket.client.WebSocketClientCallback
+import me.joshlarson.websocket.common.parser.http.HttpResponse
+import me.joshlarson.websocket.server.WebSocketServerCallback
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.net.InetSocketAddress
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class TestBlockingTransport {
+	
+	@Test
+	fun testEcho() {
+		runEcho(null)
+	}
+	
+	@Test
+	fun testEchoOnPlatformThreads() {
+		runEcho { runnable -> Thread(runnable).apply { isDaemon = true } }
+	}
+	
+	private fun runEcho(threadFactory: ThreadFactory?) {
+		val serverCallback = object : WebSocketServerCallback {
+			override fun onTextMessage(obj: WebSocketHandler, text: String) {
+				obj.sendText(text)
+			}
+			
+			override fun onBinaryMessage(obj: WebSocketHandler, data: ByteArray) {
+				obj.sendBinary(data)
+			}
+		}
+		
+		BlockingWebSocketServer(serverCallback, InetSocketAddress("127.0.0.1", 0)).use { server ->
+			if (threadFactory != null)
+				server.setThreadFactory(threadFactory)
+			server.start()
+			
+			val clientCount = 8
+			val echoed = AtomicInteger(0)
+			val disconnected = CountDownLatch(clientCount)
+			val payload = ByteArray(256 * 1024) { it.toByte() }
+			val clientCallback = object : WebSocketClientCallback {
+				override fun onUpgrade(obj: WebSocketHandler, response: HttpResponse) {
+					obj.sendText("Hello Server!")
+				}
+				
+				override fun onTextMessage(obj: WebSocketHandler, text: String) {
+					assertEquals("Hello Server!", text)
+					obj.sendBinary(payload)
+				}
+				
+				override fun onBinaryMessage(obj: WebSocketHandler, data: ByteArray) {
+					assertArrayEquals(payload, data)
+					echoed.incrementAndGet()
+					obj.close()
+				}
+				
+				override fun onDisconnect(obj: WebSocketHandler, closeCode: Int, reason: String) {
+					disconnected.countDown()
+				}
+			}
+			
+			val clients = (0 until clientCount).map {
+				BlockingWebSocketClient(clientCallback, server.localAddress, "/").apply {
+					if (threadFactory != null)
+						setThreadFactory(threadFactory)
+					connect()
+				}
+			}
+			assertTrue(disconnected.await(30, TimeUnit.SECONDS))
+			assertEquals(clientCount, echoed.get())
+			clients.forEach { it.close() }
+		}
+	}
+	
+}
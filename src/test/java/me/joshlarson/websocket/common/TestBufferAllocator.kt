@@ -0,0 +1,152 @@
+package me.joshlarson.websocket.common
+
+import me.joshlarson.websocket.common.buffer.PooledBufferAllocator
+import me.joshlarson.websocket.common.parser.ParserByteStream
+import me.joshlarson.websocket.common.parser.websocket.PreparedWebsocketFrame
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrame
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType
+import me.joshlarson.websocket.common.parser.websocket.WebsocketParser
+import me.joshlarson.websocket.server.WebSocketServerCallback
+import me.joshlarson.websocket.server.WebSocketServerProtocol
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import kotlin.random.Random
+
+class TestBufferAllocator {
+	
+	@Test
+	fun testSizeClassReuse() {
+		val allocator = PooledBufferAllocator(false)
+		val first = allocator.allocate(300)
+		assertEquals(0, first.buffer().position())
+		assertEquals(300, first.buffer().limit())
+		assertEquals(512, first.buffer().capacity())
+		val buffer = first.buffer()
+		assertTrue(first.release())
+		
+		// Same thread and size class, so the buffer comes straight back
+		val second = allocator.allocate(400)
+		assertSame(buffer, second.buffer())
+		assertEquals(400, second.buffer().limit())
+		second.release()
+		
+		// Beyond the largest size class nothing is pooled
+		val large = allocator.allocate(2 * 1024 * 1024)
+		assertEquals(2 * 1024 * 1024, large.buffer().capacity())
+		large.release()
+	}
+	
+	@Test
+	fun testReferenceCounting() {
+		val allocator = PooledBufferAllocator(false, true)
+		val buffer = allocator.allocate(64)
+		buffer.retain()
+		assertFalse(buffer.release())
+		assertEquals(1, allocator.unreleasedAllocations.size)
+		assertTrue(buffer.release())
+		assertEquals(0, allocator.unreleasedAllocations.size)
+		assertThrows(IllegalStateException::class.java) { buffer.release() }
+		assertThrows(IllegalStateException::class.java) { buffer.retain() }
+	}
+	
+	@Test
+	fun testDirectAllocator() {
+		val allocator = PooledBufferAllocator(true, true)
+		val direct = allocator.allocate(1000)
+		val heap = allocator.allocateHeap(1000)
+		assertTrue(direct.isDirect)
+		assertThrows(UnsupportedOperationException::class.java) { direct.array() }
+		assertFalse(heap.isDirect)
+		assertEquals(1024, heap.array().size)
+		
+		// Encoded frames are ready to write
+		val frame = WebsocketFrame(WebsocketFrameType.BINARY, Random.nextBytes(200))
+		val encoded = frame.encode(allocator, false, 0)
+		val bytes = ByteArray(encoded.buffer().remaining())
+		encoded.buffer().get(bytes)
+		assertArrayEquals(frame.encode(), bytes)
+		
+		direct.release()
+		heap.release()
+		encoded.release()
+		assertEquals(0, allocator.unreleasedAllocations.size)
+	}
+	
+	@Test
+	fun testLegacyWriterCopiesPooledArrays() {
+		val writes = ArrayList<ByteArray>()
+		var handler: WebSocketHandler? = null
+		val callback = object : WebSocketServerCallback {
+			override fun onConnect(obj: WebSocketHandler) {
+				handler = obj
+			}
+		}
+		val protocol = WebSocketServerProtocol(callback, { data: ByteArray -> writes.add(data) }) { }
+		protocol.setBufferAllocator(PooledBufferAllocator.HEAP)
+		protocol.onConnect()
+		val upgrade = "GET / HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n".toByteArray()
+		protocol.onRead(upgrade, 0, upgrade.size)
+		
+		// 252 bytes and a 4 byte header exactly fill a 256 byte size class, the array the pool hands back out next
+		handler!!.sendBinary(ByteArray(252) { 1 })
+		handler!!.sendBinary(ByteArray(252) { 2 })
+		val first = writes[writes.size - 2]
+		val second = writes[writes.size - 1]
+		assertNotSame(first, second)
+		assertArrayEquals(WebsocketFrame(WebsocketFrameType.BINARY, ByteArray(252) { 1 }).encode(), first)
+		assertArrayEquals(WebsocketFrame(WebsocketFrameType.BINARY, ByteArray(252) { 2 }).encode(), second)
+	}
+	
+	@Test
+	fun testLegacyWriterCopiesSharedArrays() {
+		// A consumer that reuses its arrays mustn't reach the constant last chunk, or a prepared frame's encoding
+		val writes = ArrayList<ByteArray>()
+		var handler: WebSocketHandler? = null
+		val callback = object : WebSocketServerCallback {
+			override fun onConnect(obj: WebSocketHandler) {
+				handler = obj
+			}
+		}
+		val protocol = WebSocketServerProtocol(callback, { data: ByteArray -> writes.add(data.copyOf()); data.fill('x'.code.toByte()) }) { }
+		protocol.onConnect()
+		handler!!.finishHttpChunks()
+		handler!!.finishHttpChunks()
+		assertEquals(listOf("0\r\n\r\n", "0\r\n\r\n"), writes.map { String(it) })
+		
+		val upgrade = "GET / HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n".toByteArray()
+		protocol.onRead(upgrade, 0, upgrade.size)
+		val prepared = PreparedWebsocketFrame.text("shared")
+		handler!!.send(prepared)
+		handler!!.send(prepared)
+		assertArrayEquals(WebsocketFrame(WebsocketFrameType.TEXT, "shared".toByteArray()).encode(), writes.last())
+		assertArrayEquals("shared".toByteArray(), prepared.payload)
+	}
+	
+	@Test
+	fun testPooledParsers() {
+		val allocator = PooledBufferAllocator(false, true)
+		val stream = ParserByteStream(1024, allocator)
+		stream.write(ByteArray(5000), 0, 5000)
+		// Growing returns the smaller array
+		assertEquals(1, allocator.unreleasedAllocations.size)
+		stream.release()
+		assertEquals(0, allocator.unreleasedAllocations.size)
+		
+		val parser = WebsocketParser()
+		parser.setBufferAllocator(allocator)
+		val data = Random.nextBytes(100_000)
+		val fragments = WebsocketFrame(WebsocketFrameType.BINARY, data).encodeFragmented(true, 0x01020304, 7000)
+		val packets = fragments.reduce { a, b -> a + b }
+		var frame: WebsocketFrame? = null
+		var index = 0
+		while (index < packets.size) {
+			val length = minOf(1500, packets.size - index)
+			frame = parser.parseChunk(packets, index, length) ?: frame
+			index += length
+		}
+		assertArrayEquals(data, frame?.data)
+		parser.release()
+		assertEquals(0, allocator.unreleasedAllocations.size)
+	}
+	
+}
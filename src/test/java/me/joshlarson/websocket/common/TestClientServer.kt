@@ -2,9 +2,13 @@ package me.joshlarson.websocket.common
 
 import me.joshlarson.websocket.client.WebSocketClientCallback
 import me.joshlarson.websocket.client.WebSocketClientProtocol
+import me.joshlarson.websocket.common.extension.PerMessageDeflateOptions
 import me.joshlarson.websocket.common.parser.http.HttpRequest
 import me.joshlarson.websocket.common.parser.http.HttpResponse
+import me.joshlarson.websocket.common.parser.websocket.PreparedWebsocketFrame
 import me.joshlarson.websocket.common.parser.websocket.WebSocketCloseReason
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrame
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType
 import me.joshlarson.websocket.server.WebSocketServerCallback
 import me.joshlarson.websocket.server.WebSocketServerProtocol
 import org.junit.jupiter.api.Assertions.*
@@ -102,16 +106,183 @@ class TestClientServer {
 		assertTrue(success.get())
 	}
 	
-	private fun handleClientServerCommunication(clientCallback: WebSocketClientCallback, serverCallback: WebSocketServerCallback) {
+	@Test
+	fun testByteBufferTransport() {
+		val success = AtomicBoolean(false)
+		
+		val clientCallback = object : WebSocketClientCallback {
+			override fun onUpgrade(obj: WebSocketHandler, response: HttpResponse) {
+				obj.sendBinary(ByteArray(70000) { it.toByte() })
+			}
+		}
+		
+		val serverCallback = object : WebSocketServerCallback {
+			override fun onBinaryMessage(obj: WebSocketHandler, data: ByteArray) {
+				assertArrayEquals(ByteArray(70000) { it.toByte() }, data)
+				success.set(true)
+				obj.close()
+			}
+		}
+		
+		val clientToServerPipe = Pipe.open()
+		val serverToClientPipe = Pipe.open()
+		val stopRequest = AtomicBoolean(false)
+		val client = WebSocketClientProtocol(clientCallback, "/", WebSocketWriter { clientToServerPipe.sink().write(it) }) { stopRequest.set(true) }
+		val server = WebSocketServerProtocol(serverCallback, WebSocketWriter { serverToClientPipe.sink().write(it) }) { stopRequest.set(true) }
+		
+		runClientServerThreads(client, server, {
+			val data = ByteBuffer.allocateDirect(1024)
+			serverToClientPipe.source().read(data.clear())
+			client.onRead(data.flip())
+		}, {
+			val data = ByteBuffer.allocateDirect(1024)
+			clientToServerPipe.source().read(data.clear())
+			server.onRead(data.flip())
+		}, stopRequest)
+		assertTrue(success.get())
+	}
+	
+	@Test
+	fun testPreparedFrames() {
+		val success = AtomicBoolean(false)
+		val greeting = PreparedWebsocketFrame.text("Hello Client!")
+		val close = PreparedWebsocketFrame(WebsocketFrame(WebsocketFrameType.CLOSE, byteArrayOf(0x03, 0xE9.toByte()) + "Bye".encodeToByteArray()))
+		
+		val clientCallback = object : WebSocketClientCallback {
+			override fun onTextMessage(obj: WebSocketHandler, text: String) {
+				assertEquals("Hello Client!", text)
+				obj.sendText(text)
+			}
+		}
+		
+		val serverCallback = object : WebSocketServerCallback {
+			override fun onUpgrade(obj: WebSocketHandler, request: HttpRequest) {
+				obj.send(greeting)
+			}
+			
+			override fun onTextMessage(obj: WebSocketHandler, text: String) {
+				// The same prepared frame can be sent again, since every send gets its own view
+				assertEquals(13 + 2, greeting.encodedLength)
+				assertEquals(13, greeting.payloadLength)
+				obj.send(close)
+			}
+			
+			override fun onDisconnect(obj: WebSocketHandler, closeCode: Int, reason: String) {
+				assertEquals(WebSocketCloseReason.GOING_AWAY.statusCode.toInt(), closeCode)
+				assertEquals("Bye", reason)
+				success.set(true)
+			}
+		}
+		
+		handleClientServerCommunication(clientCallback, serverCallback)
+		assertTrue(success.get())
+	}
+	
+	@Test
+	fun testMessageTooBig() {
+		val success = AtomicBoolean(false)
+		val delivered = AtomicBoolean(false)
+		
+		val clientCallback = object : WebSocketClientCallback {
+			override fun onUpgrade(obj: WebSocketHandler, response: HttpResponse) {
+				obj.sendBinary(ByteArray(2048))
+			}
+		}
+		
+		val serverCallback = object : WebSocketServerCallback {
+			override fun onBinaryMessage(obj: WebSocketHandler, data: ByteArray) {
+				delivered.set(true)
+			}
+			
+			override fun onDisconnect(obj: WebSocketHandler, closeCode: Int, reason: String) {
+				// The server closes the socket right after sending this, so the client may never see the close frame
+				assertEquals(WebSocketCloseReason.MESSAGE_TOO_BIG.statusCode.toInt(), closeCode)
+				success.set(true)
+			}
+		}
+		
+		handleClientServerCommunication(clientCallback, serverCallback, configureServer = { it.setMaxMessageSize(1024) })
+		assertTrue(success.get())
+		assertFalse(delivered.get())
+	}
+	
+	@Test
+	fun testPerMessageDeflate() {
+		val success = AtomicBoolean(false)
+		val message = "compressible ".repeat(1000)
+		
+		val clientCallback = object : WebSocketClientCallback {
+			var echoes = 0
+			
+			override fun onUpgrade(obj: WebSocketHandler, response: HttpResponse) {
+				assertEquals("permessage-deflate; server_no_context_takeover; client_no_context_takeover", response.getHeaderValue("Sec-WebSocket-Extensions"))
+				obj.sendText(message)
+				obj.sendText(message)
+				obj.sendText("short")
+			}
+			
+			override fun onTextMessage(obj: WebSocketHandler, text: String) {
+				echoes++
+				assertEquals(if (echoes == 3) "short" else message, text)
+				if (echoes == 3)
+					obj.close()
+			}
+		}
+		
+		val serverCallback = object : WebSocketServerCallback {
+			override fun onTextMessage(obj: WebSocketHandler, text: String) {
+				obj.sendText(text)
+			}
+			
+			override fun onDisconnect(obj: WebSocketHandler, closeCode: Int, reason: String) {
+				assertEquals(WebSocketCloseReason.NORMAL.statusCode.toInt(), closeCode)
+				success.set(true)
+			}
+		}
+		
+		handleClientServerCommunication(clientCallback, serverCallback,
+				configureServer = { it.setPerMessageDeflate(PerMessageDeflateOptions.DEFAULT) },
+				configureClient = { it.setPerMessageDeflate(PerMessageDeflateOptions.DEFAULT) })
+		assertTrue(success.get())
+	}
+	
+	private fun handleClientServerCommunication(clientCallback: WebSocketClientCallback, serverCallback: WebSocketServerCallback, configureServer: (WebSocketServerProtocol) -> Unit = {}, configureClient: (WebSocketClientProtocol) -> Unit = {}) {
 		val clientToServerPipe = Pipe.open()
 		val serverToClientPipe = Pipe.open()
 		val stopRequest = AtomicBoolean(false)
 		val client = WebSocketClientProtocol(clientCallback, "/", buildOutputStream(clientToServerPipe)) { stopRequest.set(true) }
 		val server = WebSocketServerProtocol(serverCallback, buildOutputStream(serverToClientPipe)) { stopRequest.set(true) }
+		configureServer(server)
+		configureClient(client)
 		
 		val clientThread = Thread(createClientServerTestRunnable(client, serverToClientPipe, stopRequest))
 		val serverThread = Thread(createClientServerTestRunnable(server, clientToServerPipe, stopRequest))
 		
+		joinClientServerThreads(clientThread, serverThread, stopRequest)
+	}
+	
+	private fun runClientServerThreads(client: WebSocketProtocol, server: WebSocketProtocol, clientRead: () -> Unit, serverRead: () -> Unit, stopRequest: AtomicBoolean) {
+		val threadBody = { protocol: WebSocketProtocol, read: () -> Unit ->
+			{
+				try {
+					protocol.onConnect()
+					while (!stopRequest.get()) {
+						try {
+							read()
+						} catch (e: ClosedByInterruptException) {
+							break
+						}
+					}
+					protocol.onDisconnect()
+				} finally {
+					stopRequest.set(true)
+				}
+			}
+		}
+		joinClientServerThreads(Thread(threadBody(client, clientRead)), Thread(threadBody(server, serverRead)), stopRequest)
+	}
+	
+	private fun joinClientServerThreads(clientThread: Thread, serverThread: Thread, stopRequest: AtomicBoolean) {
 		serverThread.start()
 		clientThread.start()
 		
@@ -0,0 +1,85 @@
+package me.joshlarson.websocket.common
+
+import me.joshlarson.websocket.common.buffer.BufferAllocator
+import me.joshlarson.websocket.common.buffer.PooledBufferAllocator
+import me.joshlarson.websocket.common.parser.http.HttpParser
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrame
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType
+import me.joshlarson.websocket.common.timer.HashedWheelTimer
+import me.joshlarson.websocket.server.WebSocketServerCallback
+import me.joshlarson.websocket.server.WebSocketServerProtocol
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.openjdk.jol.info.GraphLayout
+import java.time.Duration
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+
+class TestConnectionFootprint {
+	
+	@Test
+	fun testUpgradedFootprint() {
+		val connections = List(2) { upgradedConnection(null, WebSocketTimeouts.NONE) }
+		connections.forEach { it.read(ByteArray(16)) }
+		val retained = retainedSize(connections)
+		
+		// The HTTP parser goes with the upgrade, the send locks are never needed, and what's left is mostly the 1 KiB read buffer
+		assertFalse(retained.classes.contains(HttpParser::class.java))
+		assertFalse(retained.classes.contains(ReentrantLock::class.java))
+		assertFalse(retained.classes.contains(ConcurrentLinkedQueue::class.java))
+		assertTrue(retained.totalSize() in 1400..1536, retained.toFootprint())
+	}
+	
+	@Test
+	fun testTrimWhenIdle() {
+		HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, null).use { timer ->
+			// The timer can reach every connection, so the allocator shows what they hold on to instead
+			val allocator = PooledBufferAllocator(false, true)
+			val timeouts = WebSocketTimeouts(Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ofMillis(20))
+			val messageSizes = ArrayList<Int>()
+			val callback = object : WebSocketServerCallback {
+				override fun onBinaryMessage(obj: WebSocketHandler, data: ByteArray) {
+					messageSizes.add(data.size)
+				}
+			}
+			val connection = upgradedConnection(timer, timeouts, allocator, callback)
+			connection.read(ByteArray(64 * 1024))
+			
+			val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5)
+			while (allocator.unreleasedAllocations.isNotEmpty() && System.nanoTime() < deadline)
+				Thread.sleep(10)
+			assertEquals(0, allocator.unreleasedAllocations.size)
+			
+			// The next frame allocates again, and is still parsed
+			connection.read(ByteArray(16))
+			connection.onDisconnect()
+			assertEquals(listOf(64 * 1024, 16), messageSizes)
+			assertEquals(0, allocator.unreleasedAllocations.size)
+		}
+	}
+	
+	/**
+	 * What the second connection adds to the first, which leaves out anything they share
+	 */
+	private fun retainedSize(connections: List<WebSocketServerProtocol>): GraphLayout {
+		return GraphLayout.parseInstance(*connections.toTypedArray()).subtract(GraphLayout.parseInstance(connections[0]))
+	}
+	
+	private fun WebSocketServerProtocol.read(payload: ByteArray) {
+		val encoded = WebsocketFrame(WebsocketFrameType.BINARY, payload).encode(true, 0x11223344)
+		onRead(encoded, 0, encoded.size)
+	}
+	
+	private fun upgradedConnection(timer: HashedWheelTimer?, timeouts: WebSocketTimeouts, allocator: BufferAllocator? = null, callback: WebSocketServerCallback = object : WebSocketServerCallback { }): WebSocketServerProtocol {
+		val writer = WebSocketWriter { buffers -> buffers.forEach { it.position(it.limit()) } }
+		val protocol = WebSocketServerProtocol(callback, writer) { }
+		protocol.setBufferAllocator(allocator)
+		protocol.setTimeouts(timer, timeouts)
+		protocol.onConnect()
+		val request = "GET / HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n".toByteArray()
+		protocol.onRead(request, 0, request.size)
+		return protocol
+	}
+	
+}
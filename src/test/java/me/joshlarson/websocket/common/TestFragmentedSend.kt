@@ -0,0 +1,196 @@
+package me.joshlarson.websocket.common
+
+import me.joshlarson.websocket.common.extension.PerMessageDeflate
+import me.joshlarson.websocket.common.extension.PerMessageDeflateOptions
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrame
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType
+import me.joshlarson.websocket.common.parser.websocket.WebsocketParser
+import me.joshlarson.websocket.server.WebSocketServerCallback
+import me.joshlarson.websocket.server.WebSocketServerProtocol
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+class TestFragmentedSend {
+	
+	@Test
+	fun testFragments() {
+		val connection = FragmentingConnection(1000)
+		val data = Random(1).nextBytes(10_500)
+		connection.handler.sendBinary(data)
+		connection.handler.sendText("small")
+		
+		val headers = connection.headers()
+		assertEquals(12, headers.size)
+		assertEquals(Header(WebsocketFrameType.BINARY, false), headers[0])
+		assertEquals(List(9) { Header(WebsocketFrameType.CONTINUATION, false) }, headers.subList(1, 10))
+		assertEquals(Header(WebsocketFrameType.CONTINUATION, true), headers[10])
+		assertEquals(Header(WebsocketFrameType.TEXT, true), headers[11])
+		
+		val frames = connection.frames()
+		assertArrayEquals(data, frames[0].data())
+		assertEquals("small", String(frames[1].data()))
+	}
+	
+	@Test
+	fun testControlFramesPreempt() {
+		val connection = FragmentingConnection(1000)
+		val blocked = CountDownLatch(1)
+		val release = CountDownLatch(1)
+		connection.onWrite = { index ->
+			if (index == 1) {
+				blocked.countDown()
+				release.await(5, TimeUnit.SECONDS)
+			}
+		}
+		val sender = Thread { connection.handler.sendBinary(ByteArray(5000)) }
+		sender.start()
+		assertTrue(blocked.await(5, TimeUnit.SECONDS))
+		
+		// Queued rather than waiting for the fragment being written
+		connection.handler.sendPing(byteArrayOf(1, 2, 3, 4))
+		release.countDown()
+		sender.join(5000)
+		
+		val types = connection.headers().map { it.type }
+		assertEquals(listOf(WebsocketFrameType.BINARY, WebsocketFrameType.CONTINUATION, WebsocketFrameType.PING), types.subList(0, 3))
+		assertEquals(List(3) { WebsocketFrameType.CONTINUATION }, types.subList(3, 6))
+		assertEquals(listOf(WebsocketFrameType.PING, WebsocketFrameType.BINARY), connection.frames().map { it.type() })
+	}
+	
+	@Test
+	fun testCloseEndsMessage() {
+		val connection = FragmentingConnection(1000)
+		val blocked = CountDownLatch(1)
+		val release = CountDownLatch(1)
+		connection.onWrite = { index ->
+			if (index == 1) {
+				blocked.countDown()
+				release.await(5, TimeUnit.SECONDS)
+			}
+		}
+		val sender = Thread { connection.handler.sendBinary(ByteArray(5000)) }
+		sender.start()
+		assertTrue(blocked.await(5, TimeUnit.SECONDS))
+		
+		val closer = Thread { connection.handler.close() }
+		closer.start()
+		Thread.sleep(50)
+		release.countDown()
+		closer.join(5000)
+		sender.join(5000)
+		assertFalse(sender.isAlive)
+		assertEquals(listOf(WebsocketFrameType.BINARY, WebsocketFrameType.CONTINUATION, WebsocketFrameType.CLOSE), connection.headers().map { it.type })
+	}
+	
+	@Test
+	fun testPacedByWatermarks() {
+		val connection = FragmentingConnection(1000)
+		connection.protocol.setWriteBufferWatermarks(1000, 3000)
+		val sender = Thread { connection.handler.sendBinary(ByteArray(10_000)) }
+		sender.start()
+		while (connection.protocol.isWritable)
+			Thread.sleep(1)
+		
+		// The rest of the message hasn't been queued yet, so the ping is next in line
+		connection.handler.sendPing(ByteArray(0))
+		assertEquals(WebsocketFrameType.PING, connection.headers().last().type)
+		assertTrue(connection.writes.size < 10)
+		
+		while (sender.isAlive) {
+			connection.drainAll()
+			sender.join(10)
+		}
+		assertEquals(listOf(WebsocketFrameType.PING, WebsocketFrameType.BINARY), connection.frames().map { it.type() })
+	}
+	
+	@Test
+	fun testCompressedFragments() {
+		val connection = FragmentingConnection(1000, "permessage-deflate")
+		val text = (0 until 2000).joinToString(" ") { "word$it" }
+		connection.handler.sendText(text)
+		
+		// Compressed as a whole, with RSV1 set only on the first fragment
+		val writes = connection.writes
+		assertTrue(writes.size > 1)
+		assertEquals(0x40, writes[0][0].toInt() and 0x40)
+		assertTrue(writes.drop(1).all { (it[0].toInt() and 0x40) == 0 })
+		
+		val parser = WebsocketParser()
+		parser.setInflater(PerMessageDeflate.acceptResponse("permessage-deflate", PerMessageDeflateOptions.DEFAULT))
+		assertEquals(listOf(text), connection.frames(parser).map { String(it.data()) })
+	}
+	
+	private data class Header(val type: WebsocketFrameType, val fin: Boolean)
+	
+	private class FragmentingConnection(fragmentSize: Int, extensions: String? = null) {
+		
+		var onWrite: (Int) -> Unit = {}
+		val writes = ArrayList<ByteArray>()
+		val protocol: WebSocketServerProtocol
+		lateinit var handler: WebSocketHandler
+		@Volatile var pendingBytes = 0L
+		
+		init {
+			val writer = object : WebSocketWriter {
+				override fun write(buffers: Array<ByteBuffer>) {
+					val data = ByteArray(buffers.sumOf { it.remaining() })
+					var offset = 0
+					for (buffer in buffers) {
+						val length = buffer.remaining()
+						buffer.get(data, offset, length)
+						offset += length
+					}
+					val index = synchronized(writes) {
+						writes.add(data)
+						this@FragmentingConnection.pendingBytes += data.size
+						writes.size - 1
+					}
+					onWrite(index)
+				}
+				
+				override fun getPendingBytes(): Long = this@FragmentingConnection.pendingBytes
+			}
+			val callback = object : WebSocketServerCallback {
+				override fun onConnect(obj: WebSocketHandler) {
+					handler = obj
+				}
+			}
+			protocol = WebSocketServerProtocol(callback, writer) { }
+			protocol.setPerMessageDeflate(PerMessageDeflateOptions.DEFAULT)
+			protocol.onConnect()
+			val extensionHeader = if (extensions == null) "" else "Sec-WebSocket-Extensions: $extensions\r\n"
+			val upgrade = "GET / HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n$extensionHeader\r\n".toByteArray()
+			protocol.onRead(upgrade, 0, upgrade.size)
+			writes.clear()
+			pendingBytes = 0
+			protocol.setOutgoingFragmentSize(fragmentSize)
+		}
+		
+		fun drainAll() {
+			synchronized(writes) { pendingBytes = 0 }
+			protocol.onWritesDrained()
+		}
+		
+		fun headers(): List<Header> {
+			return synchronized(writes) { writes.map { Header(WebsocketFrameType.getTypeForOpcode((it[0].toInt() and 0x0F).toByte()), (it[0].toInt() and 0x80) != 0) } }
+		}
+		
+		fun frames(parser: WebsocketParser = WebsocketParser()): List<WebsocketFrame> {
+			val frames = ArrayList<WebsocketFrame>()
+			for (write in synchronized(writes) { writes.toList() }) {
+				var frame = parser.parseChunk(write, 0, write.size)
+				while (frame != null) {
+					frames.add(frame)
+					frame = parser.parseChunk(null, 0, 0)
+				}
+			}
+			return frames
+		}
+		
+	}
+	
+}
@@ -0,0 +1,254 @@
+package me.joshlarson.websocket.common
+
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrame
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType
+import me.joshlarson.websocket.common.parser.websocket.WebsocketParser
+import me.joshlarson.websocket.common.timer.HashedWheelTimer
+import me.joshlarson.websocket.server.WebSocketServerCallback
+import me.joshlarson.websocket.server.WebSocketServerProtocol
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.time.Duration
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class TestHashedWheelTimer {
+	
+	@Test
+	fun testExpiresAfterDelay() {
+		HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, null).use { timer ->
+			val expired = CountDownLatch(1)
+			val start = System.nanoTime()
+			val timeout = timer.schedule({ expired.countDown() }, 30, TimeUnit.MILLISECONDS)
+			assertTrue(expired.await(5, TimeUnit.SECONDS))
+			assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(30))
+			assertTrue(timeout.isExpired)
+			assertFalse(timeout.cancel())
+			assertEquals(0, timer.pendingTimeouts)
+		}
+	}
+	
+	@Test
+	fun testMultipleRounds() {
+		HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, null).use { timer ->
+			// Eight 5 ms buckets make a 40 ms wheel, so this waits out a couple of rotations
+			val expired = CountDownLatch(1)
+			val start = System.nanoTime()
+			timer.schedule({ expired.countDown() }, 100, TimeUnit.MILLISECONDS)
+			assertTrue(expired.await(5, TimeUnit.SECONDS))
+			assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100))
+		}
+	}
+	
+	@Test
+	fun testCancel() {
+		HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, null).use { timer ->
+			val runs = AtomicInteger(0)
+			val timeouts = (1..10_000).map { timer.schedule({ runs.incrementAndGet() }, 1000L + it % 50, TimeUnit.MILLISECONDS) }
+			assertEquals(10_000, timer.pendingTimeouts)
+			for (timeout in timeouts)
+				assertTrue(timeout.cancel())
+			assertFalse(timeouts[0].cancel())
+			assertTrue(timeouts.all { it.isCancelled })
+			assertEquals(0, timer.pendingTimeouts)
+			
+			val expired = CountDownLatch(1)
+			timer.schedule({ expired.countDown() }, 60, TimeUnit.MILLISECONDS)
+			assertTrue(expired.await(5, TimeUnit.SECONDS))
+			assertEquals(0, runs.get())
+		}
+	}
+	
+	@Test
+	fun testFailingTask() {
+		HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, null).use { timer ->
+			val expired = CountDownLatch(1)
+			val previousHandler = Thread.getDefaultUncaughtExceptionHandler()
+			Thread.setDefaultUncaughtExceptionHandler { _, _ -> }
+			try {
+				timer.schedule({ throw IllegalStateException("failed") }, 5, TimeUnit.MILLISECONDS)
+				timer.schedule({ expired.countDown() }, 5, TimeUnit.MILLISECONDS)
+				assertTrue(expired.await(5, TimeUnit.SECONDS))
+			} finally {
+				Thread.setDefaultUncaughtExceptionHandler(previousHandler)
+			}
+		}
+	}
+	
+	@Test
+	fun testExecutor() {
+		val executor = Executors.newSingleThreadExecutor { Thread(it, "timeout-executor") }
+		HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, executor).use { executingTimer ->
+			val thread = arrayOfNulls<String>(1)
+			val expired = CountDownLatch(1)
+			executingTimer.schedule({ thread[0] = Thread.currentThread().name; expired.countDown() }, 5, TimeUnit.MILLISECONDS)
+			assertTrue(expired.await(5, TimeUnit.SECONDS))
+			assertEquals("timeout-executor", thread[0])
+		}
+		executor.shutdown()
+		assertThrows(IllegalStateException::class.java) { HashedWheelTimer().apply { close() }.schedule({ }, 1, TimeUnit.SECONDS) }
+	}
+	
+	@Test
+	fun testHandshakeTimeout() {
+		HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, null).use { timer ->
+			val connection = TimedConnection(timer, WebSocketTimeouts(Duration.ZERO, Duration.ZERO, Duration.ofMillis(20), Duration.ZERO, Duration.ZERO), false)
+			val partial = "GET / HTTP/1.1\r\nUpgrade: websocket\r\n".toByteArray()
+			connection.protocol.onRead(partial, 0, partial.size)
+			assertTrue(connection.closed.await(5, TimeUnit.SECONDS))
+			
+			// Finishing the handshake in time keeps the connection open
+			val upgraded = TimedConnection(timer, WebSocketTimeouts(Duration.ZERO, Duration.ZERO, Duration.ofMillis(20), Duration.ZERO, Duration.ZERO), true)
+			assertFalse(upgraded.closed.await(60, TimeUnit.MILLISECONDS))
+			assertEquals(0, timer.pendingTimeouts)
+		}
+	}
+	
+	@Test
+	fun testPingAndPongTimeout() {
+		HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, null).use { timer ->
+			val connection = TimedConnection(timer, WebSocketTimeouts(Duration.ofMillis(50), Duration.ofMillis(50), Duration.ZERO, Duration.ZERO, Duration.ZERO), true)
+			// Anything the peer sends postpones the ping
+			repeat(4) {
+				Thread.sleep(10)
+				connection.read(WebsocketFrame(WebsocketFrameType.BINARY, ByteArray(1)))
+			}
+			assertEquals(listOf<WebsocketFrameType>(), connection.frames().map { it.type() })
+			
+			assertFalse(connection.closed.await(75, TimeUnit.MILLISECONDS))
+			assertEquals(WebsocketFrameType.PING, connection.frames().first().type())
+			connection.read(WebsocketFrame(WebsocketFrameType.PONG, ByteArray(0)))
+			assertFalse(connection.closed.await(10, TimeUnit.MILLISECONDS))
+			
+			// Until it stops answering
+			assertTrue(connection.closed.await(5, TimeUnit.SECONDS))
+		}
+	}
+	
+	@Test
+	fun testTimerSendsDontOverlap() {
+		HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, null).use { timer ->
+			// Keepalive PINGs go out from the timer's thread while the application keeps sending from its own
+			val connection = TimedConnection(timer, WebSocketTimeouts(Duration.ofMillis(5), Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ZERO), true, slowWriter = true)
+			val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200)
+			while (System.nanoTime() < deadline)
+				connection.handler.sendText("busy ".repeat(200))
+			
+			assertEquals(0, connection.overlappingWrites.get())
+			val frames = connection.frames()
+			assertTrue(frames.any { it.type() == WebsocketFrameType.PING })
+			assertTrue(frames.filter { it.type() == WebsocketFrameType.TEXT }.all { it.data().size == 1000 })
+		}
+	}
+	
+	@Test
+	fun testIdleTimeout() {
+		HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, null).use { timer ->
+			val connection = TimedConnection(timer, WebSocketTimeouts(Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ofMillis(60), Duration.ZERO), true)
+			repeat(3) {
+				Thread.sleep(20)
+				connection.handler.sendText("still here")
+			}
+			assertFalse(connection.frames().any { it.type() == WebsocketFrameType.CLOSE })
+			// Pings don't count as activity
+			connection.read(WebsocketFrame(WebsocketFrameType.PING, ByteArray(0)))
+			
+			val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5)
+			while (connection.frames().none { it.type() == WebsocketFrameType.CLOSE } && System.nanoTime() < deadline)
+				Thread.sleep(5)
+			val close = connection.frames().last()
+			assertEquals(WebsocketFrameType.CLOSE, close.type())
+			assertEquals(1001, ((close.data()[0].toInt() and 0xFF) shl 8) or (close.data()[1].toInt() and 0xFF))
+		}
+	}
+	
+	@Test
+	fun testCloseTimeout() {
+		HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, null).use { timer ->
+			val connection = TimedConnection(timer, WebSocketTimeouts(Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ofMillis(20)), true)
+			connection.handler.close()
+			assertEquals(WebsocketFrameType.CLOSE, connection.frames().last().type())
+			assertTrue(connection.closed.await(5, TimeUnit.SECONDS))
+		}
+	}
+	
+	@Test
+	fun testDisconnectCancels() {
+		HashedWheelTimer(5, TimeUnit.MILLISECONDS, 8, null).use { timer ->
+			val connection = TimedConnection(timer, WebSocketTimeouts(Duration.ofSeconds(10), Duration.ofSeconds(10), Duration.ofSeconds(10), Duration.ofSeconds(10), Duration.ofSeconds(10)), true)
+			assertEquals(2, timer.pendingTimeouts)
+			connection.protocol.onDisconnect()
+			assertEquals(0, timer.pendingTimeouts)
+		}
+	}
+	
+	@Test
+	fun testInvalidTimeouts() {
+		assertThrows(IllegalArgumentException::class.java) { WebSocketTimeouts(Duration.ofSeconds(-1), Duration.ZERO, Duration.ZERO, Duration.ZERO, Duration.ZERO) }
+		assertThrows(IllegalArgumentException::class.java) { HashedWheelTimer(0, TimeUnit.MILLISECONDS, 8, null) }
+	}
+	
+	private class TimedConnection(timer: HashedWheelTimer, timeouts: WebSocketTimeouts, upgrade: Boolean, slowWriter: Boolean = false) {
+		
+		val writes = ArrayList<ByteArray>()
+		val overlappingWrites = AtomicInteger()
+		private val activeWrites = AtomicInteger()
+		val closed = CountDownLatch(1)
+		val protocol: WebSocketServerProtocol
+		lateinit var handler: WebSocketHandler
+		
+		init {
+			val writer = WebSocketWriter { buffers ->
+				if (activeWrites.incrementAndGet() > 1)
+					overlappingWrites.incrementAndGet()
+				// Holds the write open long enough for another thread to run into it
+				if (slowWriter)
+					Thread.sleep(0, 100_000)
+				val data = ByteArray(buffers.sumOf { it.remaining() })
+				var offset = 0
+				for (buffer in buffers) {
+					val length = buffer.remaining()
+					buffer.get(data, offset, length)
+					offset += length
+				}
+				synchronized(writes) { writes.add(data) }
+				activeWrites.decrementAndGet()
+			}
+			val callback = object : WebSocketServerCallback {
+				override fun onConnect(obj: WebSocketHandler) {
+					handler = obj
+				}
+			}
+			protocol = WebSocketServerProtocol(callback, writer) { closed.countDown() }
+			protocol.setTimeouts(timer, timeouts)
+			protocol.onConnect()
+			if (upgrade) {
+				val request = "GET / HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n".toByteArray()
+				protocol.onRead(request, 0, request.size)
+				writes.clear()
+			}
+		}
+		
+		fun read(frame: WebsocketFrame) {
+			val encoded = frame.encode(true, 0x11223344)
+			protocol.onRead(encoded, 0, encoded.size)
+		}
+		
+		fun frames(): List<WebsocketFrame> {
+			val parser = WebsocketParser()
+			val frames = ArrayList<WebsocketFrame>()
+			for (write in synchronized(writes) { writes.toList() }) {
+				var frame = parser.parseChunk(write, 0, write.size)
+				while (frame != null) {
+					frames.add(frame)
+					frame = parser.parseChunk(null, 0, 0)
+				}
+			}
+			return frames
+		}
+		
+	}
+	
+}
@@ -1,12 +1,23 @@
 package me.joshlarson.websocket.common
 
+import me.joshlarson.websocket.common.parser.http.HttpBodyListener
 import me.joshlarson.websocket.common.parser.http.HttpFrame
 import me.joshlarson.websocket.common.parser.http.HttpParser
+import me.joshlarson.websocket.common.parser.http.HttpParserException
 import me.joshlarson.websocket.common.parser.http.HttpRequest
 import me.joshlarson.websocket.common.parser.http.HttpResponse
 import org.junit.jupiter.api.Assertions.assertArrayEquals
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
+import me.joshlarson.websocket.server.WebSocketServerCallback
+import me.joshlarson.websocket.server.WebSocketServerProtocol
 import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import kotlin.random.Random
 
 class TestHttpParser {
 	
@@ -92,6 +103,199 @@ class TestHttpParser {
 		assertEquals(0, response.body.size)
 	}
 	
+	@Test
+	fun testPipelinedRequests() {
+		val requests = "GET /first HTTP/1.1\r\nHost: a\r\n\r\nGET /second HTTP/1.1\r\nHost: b\r\n\r\n".encodeToByteArray()
+		val parser = HttpParser()
+		val first = parser.parseChunk(requests, 0, requests.size) as HttpRequest
+		val second = parser.parseChunk(null, 0, 0) as HttpRequest
+		assertEquals("/first", first.path)
+		assertEquals("/second", second.path)
+		assertNull(parser.parseChunk(null, 0, 0))
+	}
+	
+	@Test
+	fun testMaxHeaderSize() {
+		val request = "GET / HTTP/1.1\r\nHost: a\r\n\r\n".encodeToByteArray()
+		val parser = HttpParser()
+		parser.setMaxHeaderSize(request.size)
+		assertEquals("/", (parser.parseChunk(request, 0, request.size) as HttpRequest).path)
+		
+		// A header line that never ends is rejected once it passes the limit
+		val endless = "GET / HTTP/1.1\r\nX-Padding: ".encodeToByteArray() + ByteArray(request.size) { 'a'.code.toByte() }
+		assertThrows(HttpParserException::class.java) { parser.parseChunk(endless, 0, endless.size) }
+	}
+	
+	@Test
+	fun testByteAtATime() {
+		val request = "GET /chat?x=1 HTTP/1.1\r\nHost: a\r\nX-Custom:  spaced value\t\r\nUpgrade: websocket\r\n\r\n".encodeToByteArray()
+		val parser = HttpParser()
+		for (i in 0 until request.size - 1)
+			assertNull(parser.parseChunk(request, i, 1))
+		val parsed = parser.parseChunk(request, request.size - 1, 1) as HttpRequest
+		assertEquals("GET", parsed.method)
+		assertEquals("/chat?x=1", parsed.path)
+		assertEquals("HTTP/1.1", parsed.version)
+		assertEquals(mapOf("Host" to "a", "X-Custom" to "spaced value", "Upgrade" to "websocket"), parsed.headers)
+		assertEquals(0, parser.buffer.size)
+	}
+	
+	@Test
+	fun testHeaderView() {
+		val extra = (1..20).joinToString("") { "X-Extra-$it: $it\r\n" }
+		val message = "GET / HTTP/1.1\r\nAccept: a\r\nhost: example.com\r\n${extra}ACCEPT: b\r\nUpgrade: websocket\r\naccept:c\r\n\r\n".encodeToByteArray()
+		val headers = (HttpParser().parseChunk(message, 0, message.size) as HttpRequest).headers
+		
+		assertEquals(23, headers.size)
+		assertEquals(listOf("Accept", "host") + (1..20).map { "X-Extra-$it" } + listOf("Upgrade"), headers.keys.toList())
+		assertEquals("a, b, c", headers["accept"])
+		assertEquals("example.com", headers["HOST"])
+		assertEquals("20", headers["x-extra-20"])
+		assertTrue(headers.containsKey("upgrade"))
+		assertFalse(headers.containsKey("Upgrade-Insecure-Requests"))
+		assertNull(headers["Accept-"])
+	}
+	
+	@Test
+	fun testEditHeaders() {
+		val message = "GET / HTTP/1.1\r\nHost: a\r\nAccept: x\r\naccept: y\r\nUpgrade: websocket\r\n\r\n".encodeToByteArray()
+		val request = HttpParser().parseChunk(message, 0, message.size) as HttpRequest
+		val headers = request.headers as MutableMap<String, String>
+		
+		// A name keeps its first spelling, and lookups stay case-insensitive after the first change
+		assertEquals("a", headers.put("HOST", "b"))
+		headers["X-Added"] = "1"
+		assertEquals("x, y", headers.remove("ACCEPT"))
+		assertEquals("b", request.getHeaderValue("host"))
+		assertEquals("1", headers["x-added"])
+		assertFalse(headers.containsKey("accept"))
+		assertEquals(listOf("Host", "Upgrade", "X-Added"), headers.keys.toList())
+		assertEquals("GET / HTTP/1.1\r\nHost: b\r\nUpgrade: websocket\r\nX-Added: 1\r\n\r\n", String(request.encode()))
+		
+		// Entries and iterators of the parsed view write through too
+		val other = (HttpParser().parseChunk(message, 0, message.size) as HttpRequest).headers as MutableMap<String, String>
+		val iterator = other.entries.iterator()
+		iterator.next().setValue("c")
+		iterator.next()
+		iterator.remove()
+		assertEquals(mapOf("Host" to "c", "Upgrade" to "websocket"), other)
+	}
+	
+	@Test
+	fun testMalformedLeadingLine() {
+		for (message in listOf("GET /\r\n\r\n", "HTTP/1.1 1O1 Switching Protocols\r\n\r\n", "GET / SPDY/3\r\n\r\n", "GET / HTTP/1.1\r\nHost\r\n\r\n")) {
+			val encoded = message.encodeToByteArray()
+			assertThrows(HttpParserException::class.java) { HttpParser().parseChunk(encoded, 0, encoded.size) }
+		}
+	}
+	
+	@Test
+	fun testChunkedBody() {
+		val message = ("POST /upload HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n" +
+				"5\r\nhello\r\n" +
+				"7;name=value\r\n, world\r\n" +
+				"0\r\nX-Trailer: ignored\r\n\r\n" +
+				"GET /next HTTP/1.1\r\n\r\n").encodeToByteArray()
+		val parser = HttpParser()
+		val requests = message.indices.mapNotNull { parser.parseChunk(message, it, 1) as HttpRequest? }
+		assertEquals(listOf("/upload", "/next"), requests.map { it.path })
+		assertArrayEquals("hello, world".encodeToByteArray(), requests[0].body)
+	}
+	
+	@Test
+	fun testStreamedBodies() {
+		val events = ArrayList<String>()
+		val parser = HttpParser()
+		parser.setBodyListener(object : HttpBodyListener {
+			override fun onBodyStart(frame: HttpFrame) {
+				events.add("start " + (frame as HttpRequest).path + " " + frame.body.size)
+			}
+			
+			override fun onBodyData(data: ByteBuffer) {
+				val bytes = ByteArray(data.remaining())
+				data.get(bytes)
+				events.add(bytes.decodeToString())
+			}
+			
+			override fun onBodyEnd() {
+				events.add("end")
+			}
+		})
+		val message = ("POST /a HTTP/1.1\r\nContent-Length: 6\r\n\r\nabcdef" +
+				"POST /b HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nghi\r\n2\r\njk\r\n0\r\n\r\n" +
+				"GET /c HTTP/1.1\r\n\r\n").encodeToByteArray()
+		val split = message.size / 2
+		assertNull(parser.parseChunk(message, 0, split))
+		assertEquals("/c", (parser.parseChunk(message, split, message.size - split) as HttpRequest).path)
+		assertEquals("abcdefghijk", events.filter { !it.startsWith("start") && it != "end" }.joinToString(""))
+		assertEquals(listOf("start /a 0", "end", "start /b 0", "end"), events.filter { it.startsWith("start") || it == "end" })
+	}
+	
+	@Test
+	fun testReadUntilClose() {
+		val message = "HTTP/1.0 200 OK\r\nContent-Type: text/plain\r\n\r\nuntil the end".encodeToByteArray()
+		val parser = HttpParser()
+		assertNull(parser.parseChunk(message, 0, message.size))
+		assertNull(parser.parseChunk("!".encodeToByteArray(), 0, 1))
+		val response = parser.endOfStream() as HttpResponse
+		assertEquals(200, response.statusCode)
+		assertArrayEquals("until the end!".encodeToByteArray(), response.body)
+		assertNull(parser.endOfStream())
+		
+		// Anything else that is cut off is an error
+		val truncated = "POST / HTTP/1.1\r\nContent-Length: 10\r\n\r\nabc".encodeToByteArray()
+		assertNull(parser.parseChunk(truncated, 0, truncated.size))
+		assertThrows(HttpParserException::class.java) { parser.endOfStream() }
+	}
+	
+	@Test
+	fun testInvalidBodyFraming() {
+		for (message in listOf(
+			"POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n",
+			"POST / HTTP/1.1\r\nContent-Length: ten\r\n\r\n",
+			"POST / HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 5\r\n\r\n",
+			"POST / HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n",
+			"POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nxyz\r\n",
+			"POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n2\r\nabcd\r\n"
+		)) {
+			val encoded = message.encodeToByteArray()
+			assertThrows(HttpParserException::class.java) { HttpParser().parseChunk(encoded, 0, encoded.size) }
+		}
+	}
+	
+	@Test
+	fun testChunkedResponseFromServer() {
+		val output = ByteArrayOutputStream()
+		val protocol = WebSocketServerProtocol(object : WebSocketServerCallback {
+			val received = ByteArrayOutputStream()
+			
+			override fun onHttpBodyData(obj: WebSocketHandler, data: ByteBuffer) {
+				val bytes = ByteArray(data.remaining())
+				data.get(bytes)
+				received.write(bytes)
+			}
+			
+			override fun onHttpBodyEnd(obj: WebSocketHandler) {
+				// Echoes the streamed request body back as a chunked response
+				obj.sendHttpFrame(HttpResponse("HTTP/1.1", 200, "OK", mapOf("Transfer-Encoding" to "chunked"), ByteArray(0)))
+				for (piece in received.toByteArray().toList().chunked(300))
+					obj.sendHttpChunk(piece.toByteArray())
+				obj.finishHttpChunks()
+			}
+		}, { data: ByteArray -> output.write(data) }, {})
+		protocol.setStreamingHttpBodies(true)
+		
+		val body = Random.nextBytes(1000)
+		val request = "POST /echo HTTP/1.1\r\nContent-Length: ${body.size}\r\n\r\n".encodeToByteArray() + body
+		for (piece in request.toList().chunked(97))
+			protocol.onRead(piece.toByteArray(), 0, piece.size)
+		
+		val encoded = output.toByteArray()
+		val response = HttpParser().parseChunk(encoded, 0, encoded.size) as HttpResponse
+		assertEquals(200, response.statusCode)
+		assertArrayEquals(body, response.body)
+	}
+	
 	private fun parseHttp(message: String): HttpFrame? {
 		val messageEncoded = message
 			.trimIndent()
@@ -0,0 +1,189 @@
+package me.joshlarson.websocket.common
+
+import me.joshlarson.websocket.common.buffer.PooledBufferAllocator
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrame
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType
+import me.joshlarson.websocket.common.parser.websocket.WebsocketParser
+import me.joshlarson.websocket.server.WebSocketServerCallback
+import me.joshlarson.websocket.server.WebSocketServerProtocol
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+class TestMessageStreams {
+	
+	@Test
+	fun testBinaryStream() {
+		val connection = StreamingConnection()
+		val data = Random(1).nextBytes(3500)
+		val stream = connection.handler.openBinaryStream(1000)
+		for (offset in 0 until 1200 step 300)
+			stream.write(data, offset, 300)
+		// Sent as soon as it fills up, while the rest is still being produced
+		assertEquals(1, connection.writes.size)
+		stream.write(data, 1200, data.size - 1200)
+		assertEquals(3, connection.writes.size)
+		stream.close()
+		
+		assertEquals(listOf(false, false, false, true), connection.writes.map { (it[0].toInt() and 0x80) != 0 })
+		assertEquals(listOf(WebsocketFrameType.BINARY, WebsocketFrameType.CONTINUATION, WebsocketFrameType.CONTINUATION, WebsocketFrameType.CONTINUATION), connection.writes.map { WebsocketFrameType.getTypeForOpcode((it[0].toInt() and 0x0F).toByte()) })
+		assertEquals(listOf(1004, 1004, 1004, 504), connection.writes.map { it.size })
+		val frames = connection.frames()
+		assertEquals(1, frames.size)
+		assertArrayEquals(data, frames[0].data())
+	}
+	
+	@Test
+	fun testTextWriter() {
+		val connection = StreamingConnection()
+		// Fragments this small split most characters between two of them
+		val text = "h\u00e9llo w\u00f6rld \u4e16\u754c \ud83d\ude00 ".repeat(200)
+		connection.handler.openTextWriter(7).use { writer ->
+			for (part in text.chunked(13))
+				writer.write(part)
+		}
+		// Full fragments only, then the tail ends the message - without an empty fragment after it
+		val size = text.toByteArray().size
+		assertEquals((size + 6) / 7, connection.writes.size)
+		assertEquals(listOf(text), connection.frames().map { String(it.data()) })
+		
+		val short = StreamingConnection()
+		short.handler.openTextWriter().use { writer ->
+			writer.write("first ")
+			writer.flush()
+			writer.write("second")
+		}
+		assertEquals(2, short.writes.size)
+		assertEquals(listOf("first second"), short.frames().map { String(it.data()) })
+	}
+	
+	@Test
+	fun testEmptyAndFlushedStreams() {
+		val connection = StreamingConnection()
+		connection.handler.openBinaryStream().close()
+		assertEquals(1, connection.writes.size)
+		assertArrayEquals(byteArrayOf(0x82.toByte(), 0), connection.writes[0])
+		
+		connection.handler.openBinaryStream().use { stream ->
+			stream.write(byteArrayOf(1, 2, 3))
+			stream.flush()
+			stream.flush()
+			assertEquals(2, connection.writes.size)
+			stream.write(byteArrayOf(4))
+		}
+		assertEquals(3, connection.writes.size)
+		assertEquals(listOf(0, 4), connection.frames().map { it.data().size })
+	}
+	
+	@Test
+	fun testOtherMessagesWait() {
+		val connection = StreamingConnection()
+		// Only scheduled sends wait their turn, and streams default to the same fragment size
+		connection.protocol.setOutgoingFragmentSize(100)
+		val stream = connection.handler.openBinaryStream()
+		stream.write(ByteArray(150))
+		
+		val sent = CountDownLatch(1)
+		val sender = Thread {
+			connection.handler.sendText("after")
+			sent.countDown()
+		}
+		sender.start()
+		assertFalse(sent.await(100, TimeUnit.MILLISECONDS))
+		// Control frames don't wait for the message to end
+		val pinger = Thread { connection.handler.sendPing(ByteArray(0)) }
+		pinger.start()
+		pinger.join(5000)
+		assertFalse(pinger.isAlive)
+		// Nor can the same thread start another message part way through
+		assertThrows(IllegalStateException::class.java) { connection.handler.sendText("interleaved") }
+		
+		stream.write(ByteArray(100))
+		stream.close()
+		assertTrue(sent.await(5, TimeUnit.SECONDS))
+		assertEquals(listOf(WebsocketFrameType.PING, WebsocketFrameType.BINARY, WebsocketFrameType.TEXT), connection.frames().map { it.type() })
+		assertEquals(250, connection.frames()[1].data().size)
+	}
+	
+	@Test
+	fun testPooledFragments() {
+		val allocator = PooledBufferAllocator(false, true)
+		val connection = StreamingConnection()
+		connection.protocol.setBufferAllocator(allocator)
+		connection.handler.openBinaryStream(1000).use { stream ->
+			repeat(10) { stream.write(ByteArray(450)) }
+		}
+		assertEquals(5, connection.writes.size)
+		assertEquals(4500, connection.frames()[0].data().size)
+		assertEquals(listOf<Throwable>(), allocator.unreleasedAllocations)
+	}
+	
+	@Test
+	fun testClosedConnection() {
+		val allocator = PooledBufferAllocator(false, true)
+		val connection = StreamingConnection()
+		connection.protocol.setBufferAllocator(allocator)
+		val stream = connection.handler.openBinaryStream(100)
+		stream.write(ByteArray(150))
+		connection.handler.close()
+		assertThrows(IOException::class.java) { stream.write(ByteArray(100)) }
+		stream.close()
+		assertEquals(listOf(WebsocketFrameType.BINARY, WebsocketFrameType.CLOSE), connection.writes.map { WebsocketFrameType.getTypeForOpcode((it[0].toInt() and 0x0F).toByte()) })
+		assertEquals(listOf<Throwable>(), allocator.unreleasedAllocations)
+		
+		// The message lock was let go, so other threads aren't left waiting for it
+		val sender = Thread { connection.handler.sendText("after") }
+		sender.start()
+		sender.join(5000)
+		assertFalse(sender.isAlive)
+	}
+	
+	private class StreamingConnection {
+		
+		val writes = ArrayList<ByteArray>()
+		val protocol: WebSocketServerProtocol
+		lateinit var handler: WebSocketHandler
+		
+		init {
+			val writer = WebSocketWriter { buffers ->
+				val data = ByteArray(buffers.sumOf { it.remaining() })
+				var offset = 0
+				for (buffer in buffers) {
+					val length = buffer.remaining()
+					buffer.get(data, offset, length)
+					offset += length
+				}
+				synchronized(writes) { writes.add(data) }
+			}
+			val callback = object : WebSocketServerCallback {
+				override fun onConnect(obj: WebSocketHandler) {
+					handler = obj
+				}
+			}
+			protocol = WebSocketServerProtocol(callback, writer) { }
+			protocol.onConnect()
+			val upgrade = "GET / HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n".toByteArray()
+			protocol.onRead(upgrade, 0, upgrade.size)
+			writes.clear()
+		}
+		
+		fun frames(): List<WebsocketFrame> {
+			val parser = WebsocketParser()
+			val frames = ArrayList<WebsocketFrame>()
+			for (write in synchronized(writes) { writes.toList() }) {
+				var frame = parser.parseChunk(write, 0, write.size)
+				while (frame != null) {
+					frames.add(frame)
+					frame = parser.parseChunk(null, 0, 0)
+				}
+			}
+			return frames
+		}
+		
+	}
+	
+}
@@ -0,0 +1,172 @@
+package me.joshlarson.websocket.common
+
+import me.joshlarson.websocket.client.WebSocketClientCallback
+import me.joshlarson.websocket.client.WebSocketClientProtocol
+import me.joshlarson.websocket.common.buffer.PooledBufferAllocator
+import me.joshlarson.websocket.common.parser.http.HttpResponse
+import me.joshlarson.websocket.server.WebSocketServerCallback
+import me.joshlarson.websocket.server.nio.NioWebSocketServer
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.SocketChannel
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class TestNioWebSocketServer {
+	
+	@Test
+	fun testEchoAcrossEventLoops() {
+		val serverCallback = object : WebSocketServerCallback {
+			override fun onTextMessage(obj: WebSocketHandler, text: String) {
+				obj.sendText(text)
+			}
+			
+			override fun onBinaryMessage(obj: WebSocketHandler, data: ByteArray) {
+				obj.sendBinary(data)
+			}
+		}
+		
+		NioWebSocketServer(serverCallback, InetSocketAddress("127.0.0.1", 0), 2).use { server ->
+			server.start()
+			val clientCount = 16
+			val echoed = AtomicInteger(0)
+			val disconnected = CountDownLatch(clientCount)
+			// Large enough that the server can't always write it in one go
+			val payload = ByteArray(1024 * 1024) { it.toByte() }
+			
+			val clientCallback = object : WebSocketClientCallback {
+				override fun onUpgrade(obj: WebSocketHandler, response: HttpResponse) {
+					obj.sendText("Hello Server!")
+				}
+				
+				override fun onTextMessage(obj: WebSocketHandler, text: String) {
+					assertEquals("Hello Server!", text)
+					obj.sendBinary(payload)
+				}
+				
+				override fun onBinaryMessage(obj: WebSocketHandler, data: ByteArray) {
+					assertArrayEquals(payload, data)
+					echoed.incrementAndGet()
+					obj.close()
+				}
+				
+				override fun onDisconnect(obj: WebSocketHandler, closeCode: Int, reason: String) {
+					disconnected.countDown()
+				}
+			}
+			
+			val clients = (0 until clientCount).map { connectClient(server.localAddress, clientCallback) }
+			assertTrue(disconnected.await(30, TimeUnit.SECONDS))
+			assertEquals(clientCount, echoed.get())
+			clients.forEach { it.interrupt(); it.join() }
+		}
+	}
+	
+	@Test
+	fun testProtocolInitializer() {
+		val disconnected = CountDownLatch(1)
+		val receivedCloseCode = AtomicInteger(0)
+		
+		NioWebSocketServer(object : WebSocketServerCallback {}, InetSocketAddress("127.0.0.1", 0), 1).use { server ->
+			server.setProtocolInitializer { it.setMaxMessageSize(16) }
+			server.start()
+			
+			val client = connectClient(server.localAddress, object : WebSocketClientCallback {
+				override fun onUpgrade(obj: WebSocketHandler, response: HttpResponse) {
+					obj.sendBinary(ByteArray(32))
+				}
+				
+				override fun onDisconnect(obj: WebSocketHandler, closeCode: Int, reason: String) {
+					receivedCloseCode.set(closeCode)
+					disconnected.countDown()
+				}
+			})
+			assertTrue(disconnected.await(10, TimeUnit.SECONDS))
+			assertEquals(1009, receivedCloseCode.get())
+			client.interrupt()
+			client.join()
+		}
+	}
+	
+	@Test
+	fun testPooledBuffersAreReleased() {
+		val allocator = PooledBufferAllocator(true, true)
+		val serverDisconnected = CountDownLatch(4)
+		val serverCallback = object : WebSocketServerCallback {
+			override fun onBinaryMessage(obj: WebSocketHandler, data: ByteArray) {
+				obj.sendBinary(data)
+			}
+			
+			override fun onDisconnect(obj: WebSocketHandler, closeCode: Int, reason: String) {
+				serverDisconnected.countDown()
+			}
+		}
+		
+		NioWebSocketServer(serverCallback, InetSocketAddress("127.0.0.1", 0), 2).use { server ->
+			server.setProtocolInitializer { it.setBufferAllocator(allocator) }
+			server.start()
+			// Small echoes are encoded into pooled buffers, and enough of them queue up behind the socket
+			val payload = ByteArray(8 * 1024) { it.toByte() }
+			fun createClientCallback() = object : WebSocketClientCallback {
+				var echoes = 0
+				
+				override fun onUpgrade(obj: WebSocketHandler, response: HttpResponse) {
+					repeat(256) { obj.sendBinary(payload) }
+				}
+				
+				override fun onBinaryMessage(obj: WebSocketHandler, data: ByteArray) {
+					assertArrayEquals(payload, data)
+					if (++echoes == 256)
+						obj.close()
+				}
+			}
+			
+			val clients = (0 until 4).map { connectClient(server.localAddress, createClientCallback()) }
+			assertTrue(serverDisconnected.await(30, TimeUnit.SECONDS))
+			clients.forEach { it.join(10_000) }
+			// The parsers are released right after the close handshake completes
+			val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10)
+			while (allocator.unreleasedAllocations.isNotEmpty() && System.nanoTime() < deadline)
+				Thread.sleep(10)
+			assertEquals(0, allocator.unreleasedAllocations.size)
+		}
+	}
+	
+	private fun connectClient(address: InetSocketAddress, callback: WebSocketClientCallback): Thread {
+		val channel = SocketChannel.open(address)
+		val writer = WebSocketWriter { buffers ->
+			synchronized(channel) {
+				try {
+					while (buffers.last().hasRemaining())
+						channel.write(buffers)
+				} catch (e: java.io.IOException) {
+					// The server may already be gone, e.g. when answering its close frame
+					channel.close()
+				}
+			}
+		}
+		val client = WebSocketClientProtocol(callback, "/", writer) { channel.close() }
+		val thread = Thread {
+			val data = ByteBuffer.allocateDirect(16 * 1024)
+			try {
+				client.onConnect()
+				while (channel.isOpen) {
+					if (channel.read(data.clear()) < 0)
+						break
+					client.onRead(data.flip())
+				}
+			} catch (e: java.io.IOException) {
+				// Closed by either side
+			} finally {
+				channel.close()
+				client.onDisconnect()
+			}
+		}
+		thread.start()
+		return thread
+	}
+	
+}
@@ -0,0 +1,124 @@
+package me.joshlarson.websocket.common
+
+import me.joshlarson.websocket.common.parser.ParserByteStream
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import kotlin.random.Random
+
+class TestParserByteStream {
+	
+	@Test
+	fun testInterleavedReadWrite() {
+		val stream = ParserByteStream(16)
+		val expected = ArrayDeque<Byte>()
+		val random = Random(0)
+		for (i in 0 until 10000) {
+			val chunk = random.nextBytes(random.nextInt(0, 40))
+			stream.write(chunk, 0, chunk.size)
+			chunk.forEach { expected.addLast(it) }
+			
+			val count = random.nextInt(0, stream.size + 1)
+			val read = stream.read(count)
+			for (b in read)
+				assertEquals(expected.removeFirst(), b)
+			assertEquals(expected.size, stream.size)
+		}
+	}
+	
+	@Test
+	fun testShrinkAfterBurst() {
+		val stream = ParserByteStream(16)
+		stream.write(ByteArray(1000), 0, 1000)
+		assertTrue(stream.capacity >= 1000)
+		stream.removeFromStart(999)
+		assertTrue(stream.capacity >= 1000)
+		stream.removeFromStart(1)
+		// One drained burst isn't enough, only a run of small ones that leave most of the array unused
+		val burstCapacity = stream.capacity
+		for (i in 0 until 15) {
+			stream.write(ByteArray(100), 0, 100)
+			stream.removeFromStart(100)
+			assertEquals(burstCapacity, stream.capacity)
+		}
+		stream.write(ByteArray(100), 0, 100)
+		stream.removeFromStart(100)
+		assertEquals(16, stream.capacity)
+	}
+	
+	@Test
+	fun testSteadyReadsKeepTheirArray() {
+		// Each read is just past the initial capacity, and drains before the next one
+		val stream = ParserByteStream(1024)
+		stream.write(ByteArray(1494), 0, 1494)
+		val array = stream.byteArray
+		for (i in 0 until 100) {
+			stream.removeFromStart(1494)
+			stream.write(ByteArray(1494), 0, 1494)
+			assertSame(array, stream.byteArray)
+		}
+	}
+	
+	@Test
+	fun testLazyAllocationAndTrim() {
+		val stream = ParserByteStream(16)
+		assertEquals(0, stream.capacity)
+		stream.write(ByteArray(4), 0, 4)
+		assertEquals(16, stream.capacity)
+		
+		stream.write(ByteArray(200), 0, 200)
+		stream.removeFromStart(180)
+		stream.trim()
+		// Keeps what hasn't been read, and the floor it started with
+		assertEquals(24, stream.size)
+		assertEquals(24, stream.capacity)
+		stream.removeFromStart(20)
+		stream.trim()
+		assertEquals(16, stream.capacity)
+		stream.removeFromStart(4)
+		stream.trim()
+		assertEquals(0, stream.capacity)
+	}
+	
+	@Test
+	fun testReserveAndHandOver() {
+		val stream = ParserByteStream(16)
+		stream.reserve(100, 150)
+		assertEquals(100, stream.capacity)
+		stream.write(ByteArray(100), 0, 100)
+		stream.reserve(10, 1000)
+		assertEquals(150, stream.capacity)
+		// Never past the limit, unless the bytes need more
+		stream.reserve(60, 200)
+		assertEquals(200, stream.capacity)
+		stream.reserve(120, 200)
+		assertEquals(220, stream.capacity)
+		
+		stream.write(ByteArray(120) { 7 }, 0, 120)
+		val array = stream.byteArray
+		assertSame(array, stream.read(220))
+		assertEquals(0, stream.capacity)
+		// Anything short of the whole array is copied
+		stream.write(ByteArray(10), 0, 10)
+		assertNotSame(stream.byteArray, stream.read(10))
+	}
+	
+	@Test
+	fun testConsumeWithoutCompaction() {
+		val stream = ParserByteStream(64)
+		val data = ByteArray(48) { it.toByte() }
+		stream.write(data, 0, data.size)
+		stream.removeFromStart(8)
+		assertEquals(8, stream.start)
+		assertEquals(8.toByte(), stream.get(0))
+		assertSame(stream.byteArray, stream.byteArray)
+		
+		// Tail room is exhausted but half the array is free, so the bytes move instead of the array growing
+		stream.removeFromStart(32)
+		stream.write(data, 0, 24)
+		assertEquals(0, stream.start)
+		assertEquals(64, stream.capacity)
+		assertEquals(40.toByte(), stream.get(0))
+		assertEquals(32, stream.size)
+	}
+	
+}
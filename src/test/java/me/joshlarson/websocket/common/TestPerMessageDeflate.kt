@@ -0,0 +1,61 @@
+package me.joshlarson.websocket.common
+
+import me.joshlarson.websocket.common.extension.PerMessageDeflate
+import me.joshlarson.websocket.common.extension.PerMessageDeflateOptions
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+import java.util.zip.Deflater
+
+class TestPerMessageDeflate {
+	
+	@Test
+	fun testAcceptOffer() {
+		val options = PerMessageDeflateOptions.DEFAULT
+		assertNull(PerMessageDeflate.acceptOffer(null, options))
+		assertNull(PerMessageDeflate.acceptOffer("x-webkit-deflate-frame", options))
+		// Deflater can't shrink its window, and unknown or repeated parameters invalidate an offer
+		assertNull(PerMessageDeflate.acceptOffer("permessage-deflate; server_max_window_bits=10", options))
+		assertNull(PerMessageDeflate.acceptOffer("permessage-deflate; unknown_parameter", options))
+		assertNull(PerMessageDeflate.acceptOffer("permessage-deflate; client_no_context_takeover; client_no_context_takeover", options))
+		
+		val accepted = PerMessageDeflate.acceptOffer("x-webkit-deflate-frame, permessage-deflate; server_max_window_bits=10, permessage-deflate; client_max_window_bits; client_no_context_takeover", options)
+		assertEquals("permessage-deflate; server_no_context_takeover; client_no_context_takeover", accepted?.negotiatedHeader)
+		
+		val contextTakeover = PerMessageDeflateOptions(Deflater.DEFAULT_COMPRESSION, false, false, 0)
+		assertEquals("permessage-deflate", PerMessageDeflate.acceptOffer("permessage-deflate; server_max_window_bits=\"15\"", contextTakeover)?.negotiatedHeader)
+	}
+	
+	@Test
+	fun testAcceptResponse() {
+		val options = PerMessageDeflateOptions.DEFAULT
+		assertEquals("permessage-deflate; server_no_context_takeover; client_no_context_takeover", PerMessageDeflate.createOffer(options))
+		assertNotNull(PerMessageDeflate.acceptResponse("permessage-deflate; server_no_context_takeover", options))
+		assertNotNull(PerMessageDeflate.acceptResponse("permessage-deflate; server_max_window_bits=12", options))
+		// Never offered
+		assertNull(PerMessageDeflate.acceptResponse("permessage-deflate; client_max_window_bits=12", options))
+		assertNull(PerMessageDeflate.acceptResponse("permessage-deflate, permessage-deflate", options))
+		assertNull(PerMessageDeflate.acceptResponse("x-webkit-deflate-frame", options))
+	}
+	
+	@Test
+	fun testRoundTrip() {
+		val client = PerMessageDeflate.acceptResponse("permessage-deflate", PerMessageDeflateOptions.DEFAULT)!!
+		val server = PerMessageDeflate.acceptOffer("permessage-deflate", PerMessageDeflateOptions.DEFAULT)!!
+		// Requested even when the offer didn't include it, so neither side keeps an inflater between messages
+		assertEquals("permessage-deflate; server_no_context_takeover; client_no_context_takeover", server.negotiatedHeader)
+		for (message in listOf("a".repeat(100_000), "hello", "", "hello hello hello")) {
+			val compressed = client.compress(message.encodeToByteArray())!!
+			val inflated = ByteArrayOutputStream()
+			val sink = { data: ByteBuffer -> inflated.write(data.array(), data.arrayOffset() + data.position(), data.remaining()) }
+			server.inflate(ByteBuffer.wrap(compressed), Long.MAX_VALUE, sink)
+			server.finishMessage(Long.MAX_VALUE, sink)
+			assertEquals(message, inflated.toString(Charsets.UTF_8))
+		}
+		client.close()
+		server.close()
+		assertNull(client.compress(ByteArray(16)))
+	}
+	
+}
@@ -0,0 +1,203 @@
+package me.joshlarson.websocket.common
+
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrame
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType
+import me.joshlarson.websocket.common.parser.websocket.WebsocketParser
+import me.joshlarson.websocket.server.WebSocketServerCallback
+import me.joshlarson.websocket.server.WebSocketServerProtocol
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executor
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+class TestThreadSafeSends {
+	
+	@Test
+	fun testConcurrentSenders() {
+		val connection = ThreadSafeConnection(null)
+		val start = CountDownLatch(1)
+		val senders = (0 until 8).map { sender ->
+			Thread {
+				start.await()
+				for (i in 0 until 2000) {
+					connection.handler.sendText("$sender:$i")
+					if (i % 100 == 0)
+						connection.handler.sendPing(byteArrayOf(sender.toByte()))
+				}
+			}
+		}
+		senders.forEach { it.start() }
+		start.countDown()
+		senders.forEach { it.join() }
+		
+		assertFalse(connection.overlapped.get())
+		val frames = connection.frames()
+		assertEquals(8 * 2000 + 8 * 20, frames.size)
+		for (sender in 0 until 8) {
+			val texts = frames.filter { it.type() == WebsocketFrameType.TEXT }.map { String(it.data()) }.filter { it.startsWith("$sender:") }
+			assertEquals((0 until 2000).map { "$sender:$it" }, texts)
+		}
+	}
+	
+	@Test
+	fun testOwnerWrites() {
+		val owner = Executors.newSingleThreadExecutor { Thread(it, "connection-owner") }
+		try {
+			val connection = ThreadSafeConnection(owner)
+			repeat(100) { connection.handler.sendBinary(ByteArray(it)) }
+			owner.submit { }.get(5, TimeUnit.SECONDS)
+			assertEquals(100, connection.frames().size)
+			assertEquals(setOf("connection-owner"), connection.writingThreads)
+		} finally {
+			owner.shutdown()
+		}
+	}
+	
+	@Test
+	fun testSingleClose() {
+		val connection = ThreadSafeConnection(null)
+		val start = CountDownLatch(1)
+		val closers = (0 until 8).map {
+			Thread {
+				start.await()
+				connection.handler.close()
+				connection.handler.sendText("too late")
+			}
+		}
+		closers.forEach { it.start() }
+		start.countDown()
+		closers.forEach { it.join() }
+		connection.protocol.onDisconnect()
+		
+		assertEquals(1, connection.disconnects.get())
+		// Nothing follows the CLOSE, and only the one is sent
+		assertEquals(WebsocketFrameType.CLOSE, connection.frames().last().type())
+		assertEquals(1, connection.frames().count { it.type() == WebsocketFrameType.CLOSE })
+	}
+	
+	@Test
+	fun testMessagesFollowStream() {
+		val connection = ThreadSafeConnection(null)
+		val stream = connection.handler.openBinaryStream(100)
+		stream.write(ByteArray(150))
+		
+		// Other threads don't wait for the stream to end, but their messages do
+		val sender = Thread {
+			connection.handler.sendText("after")
+			connection.handler.sendPing(ByteArray(0))
+		}
+		sender.start()
+		sender.join(5000)
+		assertFalse(sender.isAlive)
+		assertEquals(listOf(WebsocketFrameType.BINARY, WebsocketFrameType.PING), connection.rawFrameTypes())
+		
+		stream.close()
+		assertEquals(listOf(WebsocketFrameType.BINARY, WebsocketFrameType.PING, WebsocketFrameType.CONTINUATION, WebsocketFrameType.TEXT), connection.rawFrameTypes())
+	}
+	
+	@Test
+	fun testFragmentedMessages() {
+		val connection = ThreadSafeConnection(null)
+		connection.protocol.setOutgoingFragmentSize(100)
+		val sender = Thread { connection.handler.sendBinary(ByteArray(250) { it.toByte() }) }
+		sender.start()
+		connection.handler.sendPing(ByteArray(0))
+		sender.join()
+		
+		assertEquals(4, connection.rawFrameTypes().size)
+		val frames = connection.frames()
+		// The PING may go out before, after or between the fragments, but never inside one
+		assertEquals(setOf(WebsocketFrameType.BINARY, WebsocketFrameType.PING), frames.map { it.type() }.toSet())
+		assertEquals(2, frames.size)
+		assertArrayEquals(ByteArray(250) { it.toByte() }, frames.first { it.type() == WebsocketFrameType.BINARY }.data())
+	}
+	
+	@Test
+	fun testQueuedBytesCount() {
+		val tasks = ArrayList<Runnable>()
+		val connection = ThreadSafeConnection { tasks.add(it) }
+		connection.protocol.setWriteBufferWatermarks(1000, 2000)
+		repeat(3) { connection.handler.sendBinary(ByteArray(1000)) }
+		// Nothing has been written yet, but the queue already holds more than the high watermark
+		assertEquals(0, connection.writes.size)
+		assertFalse(connection.protocol.isWritable)
+		
+		tasks.forEach { it.run() }
+		connection.protocol.onWritesDrained()
+		assertEquals(3, connection.frames().size)
+		assertTrue(connection.protocol.isWritable)
+	}
+	
+	private class ThreadSafeConnection(owner: Executor?) {
+		
+		val writes = ArrayList<ByteArray>()
+		val writingThreads = HashSet<String>()
+		val overlapped = AtomicBoolean(false)
+		val disconnects = AtomicInteger(0)
+		val protocol: WebSocketServerProtocol
+		lateinit var handler: WebSocketHandler
+		
+		init {
+			val writing = AtomicBoolean(false)
+			val writer = object : WebSocketWriter {
+				override fun write(buffers: Array<ByteBuffer>) {
+					if (!writing.compareAndSet(false, true))
+						this@ThreadSafeConnection.overlapped.set(true)
+					val data = ByteArray(buffers.sumOf { it.remaining() })
+					var offset = 0
+					for (buffer in buffers) {
+						val length = buffer.remaining()
+						buffer.get(data, offset, length)
+						offset += length
+					}
+					synchronized(this@ThreadSafeConnection.writes) {
+						this@ThreadSafeConnection.writes.add(data)
+						this@ThreadSafeConnection.writingThreads.add(Thread.currentThread().name)
+					}
+					writing.set(false)
+				}
+				
+				override fun getOwner(): Executor? = owner
+			}
+			val callback = object : WebSocketServerCallback {
+				override fun onConnect(obj: WebSocketHandler) {
+					handler = obj
+				}
+				
+				override fun onDisconnect(obj: WebSocketHandler, closeCode: Int, reason: String) {
+					this@ThreadSafeConnection.disconnects.incrementAndGet()
+				}
+			}
+			protocol = WebSocketServerProtocol(callback, writer) { }
+			protocol.setThreadSafeSends(true)
+			protocol.onConnect()
+			// The 101 response is the first write, which frames() skips
+			val upgrade = "GET / HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n".toByteArray()
+			protocol.onRead(upgrade, 0, upgrade.size)
+		}
+		
+		fun rawFrameTypes(): List<WebsocketFrameType> {
+			return synchronized(writes) { writes.drop(1) }.map { WebsocketFrameType.getTypeForOpcode((it[0].toInt() and 0x0F).toByte()) }
+		}
+		
+		fun frames(): List<WebsocketFrame> {
+			val parser = WebsocketParser()
+			val frames = ArrayList<WebsocketFrame>()
+			for (write in synchronized(writes) { writes.drop(1) }) {
+				var frame = parser.parseChunk(write, 0, write.size)
+				while (frame != null) {
+					frames.add(frame)
+					frame = parser.parseChunk(null, 0, 0)
+				}
+			}
+			return frames
+		}
+		
+	}
+	
+}
@@ -0,0 +1,71 @@
+package me.joshlarson.websocket.common
+
+import me.joshlarson.websocket.common.parser.http.HttpParser
+import me.joshlarson.websocket.common.parser.http.HttpResponse
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Test
+import java.security.MessageDigest
+import java.util.Base64
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import kotlin.random.Random
+
+class TestWebSocketHandshake {
+	
+	@Test
+	fun testAcceptKey() {
+		// The example from RFC 6455 section 1.3
+		assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", WebSocketHandshake.getAcceptKey("dGhlIHNhbXBsZSBub25jZQ=="))
+		
+		for (i in 0 until 1000) {
+			val key = Base64.getEncoder().encodeToString(Random.nextBytes(16))
+			assertEquals(referenceAcceptKey(key), WebSocketHandshake.getAcceptKey(key))
+		}
+		// Keys that aren't the usual 24 characters still hash correctly
+		for (key in listOf("", "short", "x".repeat(200), "n\u00f6n-\u00e4scii"))
+			assertEquals(referenceAcceptKey(key), WebSocketHandshake.getAcceptKey(key))
+	}
+	
+	@Test
+	fun testAcceptKeyAcrossThreads() {
+		val keys = List(64) { Base64.getEncoder().encodeToString(Random.nextBytes(16)) }
+		val expected = keys.map { referenceAcceptKey(it) }
+		val executor = Executors.newFixedThreadPool(8)
+		try {
+			val results = (0 until 8).map { executor.submit<List<String>> { List(200) { i -> WebSocketHandshake.getAcceptKey(keys[i % keys.size]) } } }
+			for (result in results)
+				assertEquals(List(200) { i -> expected[i % keys.size] }, result.get(10, TimeUnit.SECONDS))
+		} finally {
+			executor.shutdownNow()
+		}
+	}
+	
+	@Test
+	fun testUpgradeResponse() {
+		val plain = parseResponse(WebSocketHandshake.encodeUpgradeResponse("dGhlIHNhbXBsZSBub25jZQ==", null))
+		assertEquals(101, plain.statusCode)
+		assertEquals("Switching Protocols", plain.statusMessage)
+		assertEquals("websocket", plain.getHeaderValue("Upgrade"))
+		assertEquals("Upgrade", plain.getHeaderValue("Connection"))
+		assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", plain.getHeaderValue("Sec-WebSocket-Accept"))
+		assertNull(plain.getHeaderValue("Sec-WebSocket-Extensions"))
+		
+		val compressed = parseResponse(WebSocketHandshake.encodeUpgradeResponse("dGhlIHNhbXBsZSBub25jZQ==", "permessage-deflate; server_no_context_takeover"))
+		assertEquals("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=", compressed.getHeaderValue("Sec-WebSocket-Accept"))
+		assertEquals("permessage-deflate; server_no_context_takeover", compressed.getHeaderValue("Sec-WebSocket-Extensions"))
+	}
+	
+	private fun parseResponse(encoded: ByteArray): HttpResponse {
+		val parser = HttpParser()
+		val response = parser.parseChunk(encoded, 0, encoded.size) as HttpResponse
+		assertEquals(0, parser.buffer.size)
+		return response
+	}
+	
+	private fun referenceAcceptKey(key: String): String {
+		val digest = MessageDigest.getInstance("SHA-1").digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").encodeToByteArray())
+		return Base64.getEncoder().encodeToString(digest)
+	}
+	
+}
@@ -0,0 +1,168 @@
+package me.joshlarson.websocket.common
+
+import me.joshlarson.websocket.common.metrics.WebSocketMetricsAggregator
+import me.joshlarson.websocket.common.parser.http.HttpRequest
+import me.joshlarson.websocket.common.parser.websocket.WebSocketCloseReason
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrame
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType
+import me.joshlarson.websocket.server.WebSocketServerCallback
+import me.joshlarson.websocket.server.WebSocketServerProtocol
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.nio.ByteBuffer
+import java.util.concurrent.Executor
+
+class TestWebSocketMetrics {
+	
+	@Test
+	fun testTraffic() {
+		val metrics = WebSocketMetricsAggregator()
+		val connection = TestConnection(metrics)
+		connection.read(upgradeRequest(true))
+		assertEquals(1, metrics.getHandshakes(true))
+		assertEquals(0, metrics.getHandshakes(false))
+		
+		// A text message split over three frames, with a ping in the middle of it
+		val text = "fragmented".repeat(100).toByteArray()
+		connection.read(WebsocketFrame(WebsocketFrameType.TEXT, text.copyOfRange(0, 300)).encode(false, true, 0x12345678))
+		connection.read(WebsocketFrame(WebsocketFrameType.CONTINUATION, text.copyOfRange(300, 600)).encode(false, true, 0x12345678))
+		connection.read(WebsocketFrame(WebsocketFrameType.PING, ByteArray(4)).encode(true, true, 0x12345678))
+		connection.read(WebsocketFrame(WebsocketFrameType.CONTINUATION, text.copyOfRange(600, 1000)).encode(true, true, 0x12345678))
+		connection.read(WebsocketFrame(WebsocketFrameType.BINARY, ByteArray(16)).encode(true, true, 0x12345678))
+		connection.read(WebsocketFrame(WebsocketFrameType.CLOSE, byteArrayOf(0x03, 0xE8.toByte())).encode(true, true, 0x12345678))
+		
+		assertEquals(1, metrics.getFramesRead(WebsocketFrameType.TEXT))
+		assertEquals(1000, metrics.getPayloadBytesRead(WebsocketFrameType.TEXT))
+		assertEquals(1, metrics.getFramesRead(WebsocketFrameType.BINARY))
+		assertEquals(1, metrics.getFramesRead(WebsocketFrameType.PING))
+		assertEquals(1, metrics.getFramesRead(WebsocketFrameType.CLOSE))
+		assertEquals(1, metrics.getFramesWritten(WebsocketFrameType.PONG))
+		assertEquals(1, metrics.getFramesWritten(WebsocketFrameType.CLOSE))
+		assertEquals(1, metrics.getFragmentedMessages())
+		assertEquals(3, metrics.getFragments())
+		assertEquals(1000, metrics.getLargestFragmentedMessage())
+		assertEquals(1, metrics.getCloseCount(1000))
+		assertEquals(connection.bytesRead, metrics.bytesRead)
+		assertEquals(connection.bytesWritten, metrics.bytesWritten)
+		assertTrue(metrics.bufferHighWaterMark > 0)
+		assertEquals(1L, metrics.snapshot()["frames.read.text"])
+		assertEquals(1L, metrics.snapshot()["close.1000"])
+	}
+	
+	@Test
+	fun testStreamedMessage() {
+		val metrics = WebSocketMetricsAggregator()
+		val connection = TestConnection(metrics)
+		connection.protocol.setStreamingMessages(true)
+		connection.read(upgradeRequest(true))
+		connection.read(WebsocketFrame(WebsocketFrameType.BINARY, ByteArray(100)).encode(false, true, 0x12345678))
+		connection.read(WebsocketFrame(WebsocketFrameType.CONTINUATION, ByteArray(50)).encode(true, true, 0x12345678))
+		
+		assertEquals(1, metrics.getFramesRead(WebsocketFrameType.BINARY))
+		assertEquals(150, metrics.getPayloadBytesRead(WebsocketFrameType.BINARY))
+		assertEquals(1, metrics.getFragmentedMessages())
+		assertEquals(2, metrics.getFragments())
+	}
+	
+	@Test
+	fun testErrors() {
+		val metrics = WebSocketMetricsAggregator()
+		val connection = TestConnection(metrics)
+		connection.read(upgradeRequest(true))
+		val frame = WebsocketFrame(WebsocketFrameType.BINARY, ByteArray(4)).encode(true, true, 0x12345678)
+		frame[0] = (frame[0].toInt() or 0x20).toByte()
+		connection.read(frame)
+		assertTrue(connection.closed)
+		assertEquals(1, metrics.getWebsocketParseErrors(WebSocketCloseReason.PROTOCOL_ERROR))
+		assertEquals(1, metrics.getCloseCount(WebSocketCloseReason.PROTOCOL_ERROR.statusCode.toInt()))
+		
+		val garbage = TestConnection(metrics)
+		garbage.read("GARBAGE\r\n\r\n".toByteArray())
+		garbage.protocol.onDisconnect()
+		assertTrue(garbage.closed)
+		assertEquals(1, metrics.httpParseErrors)
+		assertEquals(1, metrics.getCloseCount(1006))
+		// Never asked to upgrade, so it isn't a handshake
+		assertEquals(1, metrics.getHandshakes(true) + metrics.getHandshakes(false))
+	}
+	
+	@Test
+	fun testFailedHandshake() {
+		val metrics = WebSocketMetricsAggregator()
+		val connection = TestConnection(metrics)
+		connection.read(upgradeRequest(false))
+		connection.protocol.onDisconnect()
+		assertTrue(connection.closed)
+		assertEquals(0, metrics.getHandshakes(true))
+		assertEquals(1, metrics.getHandshakes(false))
+		assertTrue(metrics.handshakeNanos >= 0)
+	}
+	
+	@Test
+	fun testSharedAcrossConnections() {
+		val metrics = WebSocketMetricsAggregator()
+		val connections = List(4) { TestConnection(metrics) }
+		for (connection in connections) {
+			connection.read(upgradeRequest(true))
+			connection.protocol.send(WebsocketFrame(WebsocketFrameType.TEXT, "hello".toByteArray()))
+		}
+		assertEquals(4, metrics.getHandshakes(true))
+		assertEquals(4, metrics.getFramesWritten(WebsocketFrameType.TEXT))
+		assertEquals(20, metrics.getPayloadBytesWritten(WebsocketFrameType.TEXT))
+		assertEquals(connections.sumOf { it.bytesWritten }, metrics.bytesWritten)
+	}
+	
+	@Test
+	fun testDroppedAfterClose() {
+		val metrics = WebSocketMetricsAggregator()
+		val tasks = ArrayList<Runnable>()
+		val writer = object : WebSocketWriter {
+			override fun write(buffers: Array<ByteBuffer>) {}
+			
+			override fun getOwner(): Executor = Executor { tasks.add(it) }
+		}
+		val protocol = WebSocketServerProtocol(object : WebSocketServerCallback {}, writer) { }
+		protocol.setMetrics(metrics)
+		protocol.setThreadSafeSends(true)
+		protocol.onConnect()
+		protocol.onRead(ByteBuffer.wrap(upgradeRequest(true)))
+		tasks.forEach { it.run() }
+		tasks.clear()
+		
+		// Queued behind the CLOSE, so it is discarded instead of written
+		protocol.sendClose()
+		protocol.send(WebsocketFrame(WebsocketFrameType.TEXT, "late".toByteArray()))
+		tasks.forEach { it.run() }
+		assertEquals(1, metrics.getFramesWritten(WebsocketFrameType.CLOSE))
+		assertEquals(0, metrics.getFramesWritten(WebsocketFrameType.TEXT))
+	}
+	
+	private class TestConnection(metrics: WebSocketMetricsAggregator) {
+		
+		var bytesRead = 0L
+		var bytesWritten = 0L
+		var closed = false
+		val protocol: WebSocketServerProtocol
+		
+		init {
+			val writer = WebSocketWriter { buffers -> bytesWritten += buffers.sumOf { it.remaining().toLong() } }
+			protocol = WebSocketServerProtocol(object : WebSocketServerCallback {}, writer) { closed = true }
+			protocol.setMetrics(metrics)
+			protocol.onConnect()
+		}
+		
+		fun read(data: ByteArray) {
+			bytesRead += data.size
+			protocol.onRead(ByteBuffer.wrap(data))
+		}
+		
+	}
+	
+	private fun upgradeRequest(withKey: Boolean): ByteArray {
+		val headers = mutableMapOf("Upgrade" to "websocket", "Connection" to "Upgrade")
+		if (withKey)
+			headers["Sec-WebSocket-Key"] = "dGhlIHNhbXBsZSBub25jZQ=="
+		return HttpRequest("GET", "/", "HTTP/1.1", headers, ByteArray(0)).encode()
+	}
+	
+}
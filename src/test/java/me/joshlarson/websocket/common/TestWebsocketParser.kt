@@ -1,11 +1,19 @@
 package me.joshlarson.websocket.common
 
+import me.joshlarson.websocket.common.extension.PerMessageDeflate
+import me.joshlarson.websocket.common.extension.PerMessageDeflateOptions
+import me.joshlarson.websocket.common.parser.websocket.Utf8Validator
+import me.joshlarson.websocket.common.parser.websocket.WebSocketCloseReason
 import me.joshlarson.websocket.common.parser.websocket.WebsocketFrame
 import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType
+import me.joshlarson.websocket.common.parser.websocket.WebsocketMask
+import me.joshlarson.websocket.common.parser.websocket.WebsocketMessageListener
 import me.joshlarson.websocket.common.parser.websocket.WebsocketParser
 import me.joshlarson.websocket.common.parser.websocket.WebsocketParserException
 import org.junit.jupiter.api.Assertions.*
 import org.junit.jupiter.api.Test
+import java.nio.ByteBuffer
+import java.util.zip.Deflater
 import kotlin.experimental.and
 import kotlin.experimental.or
 import kotlin.experimental.xor
@@ -16,7 +24,7 @@ class TestWebsocketParser {
 	@Test
 	fun testControlMessages() {
 		for (opcode in 8..10) {
-			val data = Random.nextBytes(8)
+			val data = randomText(8)
 			val packet = buildPacket(fin=true, mask=true, opcode=opcode.toByte(), maskingKey=0x01020304, data=data)
 			val parser = WebsocketParser()
 			val finalFrame = feedChunks(parser, packet, 4096)
@@ -149,6 +157,21 @@ class TestWebsocketParser {
 		assertEquals(WebsocketFrameType.getTypeForOpcode(WebsocketFrameType.BINARY.opcode), finalFrame?.type)
 	}
 	
+	@Test
+	fun testLargeFragmentedData() {
+		// Delivered straight from ByteBuffers, so the fragment buffer is the only one that holds the payload
+		val data = Random.nextBytes(3 * 1_000_000)
+		val parser = WebsocketParser()
+		var frame: WebsocketFrame? = null
+		for (packet in WebsocketFrame(WebsocketFrameType.BINARY, data).encodeFragmented(false, 0, 1_000_000)) {
+			for (index in packet.indices step 64 * 1024)
+				frame = parser.parseChunk(ByteBuffer.wrap(packet, index, minOf(64 * 1024, packet.size - index))) ?: frame
+		}
+		assertArrayEquals(data, frame?.data)
+		// Grown by half at a time up to exactly the message size, instead of to the next power of two
+		assertEquals(data.size, parser.bufferHighWaterMark)
+	}
+	
 	@Test
 	fun testInterleavedControlFrames() {
 		val data1 = Random.nextBytes(256)
@@ -174,6 +197,409 @@ class TestWebsocketParser {
 		assertEquals(WebsocketFrameType.getTypeForOpcode(WebsocketFrameType.BINARY.opcode), finalFrame?.type)
 	}
 	
+	@Test
+	fun testDirectBufferParsing() {
+		val payloads = listOf(Random.nextBytes(8), Random.nextBytes(300), Random.nextBytes(70000), Random.nextBytes(0))
+		val packets = payloads.map { buildPacket(fin=true, mask=true, opcode=WebsocketFrameType.BINARY.opcode, maskingKey=0x11223344, data=it) }
+		val allPackets = packets.reduce { a, b -> a + b }
+		
+		// Odd chunk sizes split headers and payloads at every possible boundary
+		for (chunkSize in listOf(1, 3, 13, 4096, allPackets.size)) {
+			val parser = WebsocketParser()
+			val frames = ArrayList<WebsocketFrame>()
+			val chunk = ByteBuffer.allocateDirect(chunkSize)
+			var index = 0
+			while (index < allPackets.size) {
+				val length = minOf(chunkSize, allPackets.size - index)
+				chunk.clear()
+				chunk.put(allPackets, index, length)
+				chunk.flip()
+				index += length
+				while (true) {
+					frames.add(parser.parseChunk(chunk) ?: break)
+				}
+				assertFalse(chunk.hasRemaining())
+			}
+			assertEquals(payloads.size, frames.size)
+			for (i in payloads.indices)
+				assertArrayEquals(payloads[i], frames[i].data)
+		}
+	}
+	
+	@Test
+	fun testEncodeIntoBuffer() {
+		for (dataLength in listOf(0, 125, 126, 65535, 65536)) {
+			val frame = WebsocketFrame(WebsocketFrameType.BINARY, Random.nextBytes(dataLength))
+			for (masked in listOf(false, true)) {
+				val buffer = ByteBuffer.allocateDirect(frame.getEncodedLength(masked))
+				frame.encode(buffer, true, masked, 0x01020304)
+				assertFalse(buffer.hasRemaining())
+				
+				val encoded = ByteArray(buffer.capacity())
+				buffer.flip().get(encoded)
+				assertArrayEquals(frame.encode(true, masked, 0x01020304), encoded)
+			}
+		}
+	}
+	
+	@Test
+	fun testGatheringEncode() {
+		for (dataLength in listOf(0, 125, 126, 65535, 65536)) {
+			val frame = WebsocketFrame(WebsocketFrameType.BINARY, Random.nextBytes(dataLength))
+			val buffers = frame.encodeGathering()
+			assertTrue(buffers[0].remaining() in 2..10)
+			if (dataLength > 0)
+				assertSame(frame.data, buffers[1].array())
+			
+			val encoded = ByteArray(buffers.sumOf { it.remaining() })
+			val gathered = ByteBuffer.wrap(encoded)
+			buffers.forEach { gathered.put(it) }
+			assertArrayEquals(frame.encode(), encoded)
+		}
+	}
+	
+	@Test
+	fun testFragmentedEncode() {
+		val frame = WebsocketFrame(WebsocketFrameType.TEXT, randomText(1000))
+		val encoded = frame.encodeFragmented(300).reduce { a, b -> a + b }
+		val gathered = frame.encodeFragmentedGathering(300).flatMap { it.asList() }
+		assertEquals(4 * 2, gathered.size)
+		val gatheredEncoded = ByteArray(gathered.sumOf { it.remaining() })
+		val gatheredBuffer = ByteBuffer.wrap(gatheredEncoded)
+		gathered.forEach { gatheredBuffer.put(it) }
+		assertArrayEquals(encoded, gatheredEncoded)
+		
+		val parser = WebsocketParser()
+		val parsed = parser.parseChunk(encoded, 0, encoded.size)
+		assertNotNull(parsed)
+		assertEquals(WebsocketFrameType.TEXT, parsed?.type)
+		assertArrayEquals(frame.data, parsed?.data)
+	}
+	
+	@Test
+	fun testMaskKernels() {
+		val maskKey = 0x8899AABB.toInt()
+		val xorBytes = byteArrayOf(0x88.toByte(), 0x99.toByte(), 0xAA.toByte(), 0xBB.toByte())
+		for (length in 0..40) {
+			for (offset in 0..3) {
+				val data = Random.nextBytes(length + offset)
+				val expected = data.copyOf()
+				for (i in 0 until length)
+					expected[offset + i] = expected[offset + i] xor xorBytes[i % 4]
+				
+				val inPlace = data.copyOf()
+				WebsocketMask.mask(inPlace, offset, length, maskKey)
+				assertArrayEquals(expected, inPlace)
+				
+				val copied = data.copyOf()
+				WebsocketMask.mask(data, offset, copied, offset, length, maskKey)
+				assertArrayEquals(expected, copied)
+				
+				val direct = ByteBuffer.allocateDirect(data.size).put(data)
+				WebsocketMask.mask(direct, offset, length, maskKey)
+				val directResult = ByteArray(data.size)
+				direct.flip().get(directResult)
+				assertArrayEquals(expected, directResult)
+				
+				// Unmasking a payload in two pieces has to continue with the rotated key
+				val split = data.copyOf()
+				WebsocketMask.mask(split, offset, length / 2, maskKey)
+				WebsocketMask.mask(split, offset + length / 2, length - length / 2, WebsocketMask.rotateKey(maskKey, (length / 2).toLong()))
+				assertArrayEquals(expected, split)
+			}
+		}
+	}
+	
+	@Test
+	fun testStreamingMessages() {
+		val data1 = randomText(301)
+		val data2 = randomText(70001)
+		val dataPing = Random.nextBytes(8)
+		
+		val packet1 = buildPacket(fin=false, mask=true, opcode=WebsocketFrameType.TEXT.opcode, maskingKey=0x0A0B0C0D, data=data1)
+		val packetPing = buildPacket(fin=true, mask=true, opcode=WebsocketFrameType.PING.opcode, maskingKey=0x01020304, data=dataPing)
+		val packet2 = buildPacket(fin=true, mask=true, opcode=WebsocketFrameType.CONTINUATION.opcode, maskingKey=0x11223344, data=data2)
+		val allPackets = packet1 + packetPing + packet2
+		
+		for (chunkSize in listOf(1, 7, 4096, allPackets.size)) {
+			for (readOnly in listOf(false, true)) {
+				val events = ArrayList<String>()
+				val received = java.io.ByteArrayOutputStream()
+				val parser = WebsocketParser()
+				parser.setMessageListener(object : WebsocketMessageListener {
+					override fun onMessageStart(type: WebsocketFrameType) { events.add("start $type") }
+					override fun onMessageData(data: ByteBuffer) {
+						assertTrue(data.remaining() <= chunkSize)
+						val bytes = ByteArray(data.remaining())
+						data.get(bytes)
+						received.writeBytes(bytes)
+					}
+					override fun onMessageEnd() { events.add("end") }
+				})
+				
+				val frames = ArrayList<WebsocketFrame>()
+				var index = 0
+				while (index < allPackets.size) {
+					val length = minOf(chunkSize, allPackets.size - index)
+					val writableChunk = ByteBuffer.wrap(allPackets.copyOfRange(index, index + length))
+					val chunk = if (readOnly) writableChunk.asReadOnlyBuffer() else writableChunk
+					index += length
+					while (true) {
+						frames.add(parser.parseChunk(chunk) ?: break)
+					}
+				}
+				
+				assertEquals(listOf("start TEXT", "end"), events)
+				assertArrayEquals(data1 + data2, received.toByteArray())
+				assertEquals(1, frames.size)
+				assertEquals(WebsocketFrameType.PING, frames[0].type)
+				assertArrayEquals(dataPing, frames[0].data)
+			}
+		}
+	}
+	
+	@Test
+	fun testStreamingRejectsUnexpectedContinuation() {
+		val parser = WebsocketParser()
+		parser.setMessageListener(object : WebsocketMessageListener {
+			override fun onMessageStart(type: WebsocketFrameType) {}
+			override fun onMessageData(data: ByteBuffer) {}
+			override fun onMessageEnd() {}
+		})
+		val packet = buildPacket(fin=true, mask=false, opcode=WebsocketFrameType.CONTINUATION.opcode, maskingKey=0, data=Random.nextBytes(8))
+		assertThrows(WebsocketParserException::class.java) { feedChunks(parser, packet, 4096) }
+	}
+	
+	@Test
+	fun testMaxFrameSize() {
+		val packet = buildPacket(fin=true, mask=true, opcode=WebsocketFrameType.BINARY.opcode, maskingKey=0x01020304, data=Random.nextBytes(1025))
+		val parser = WebsocketParser()
+		parser.setMaxFrameSize(1024)
+		// The header alone is enough to reject the frame
+		val e = assertThrows(WebsocketParserException::class.java) { parser.parseChunk(packet, 0, 8) }
+		assertEquals(WebSocketCloseReason.MESSAGE_TOO_BIG, e.closeReason)
+		
+		// A 63-bit length is rejected without a limit being configured
+		val hugeHeader = byteArrayOf(0x82.toByte(), 0x7F, 0x7F, -1, -1, -1, -1, -1, -1, -1)
+		val hugeException = assertThrows(WebsocketParserException::class.java) { WebsocketParser().parseChunk(hugeHeader, 0, hugeHeader.size) }
+		assertEquals(WebSocketCloseReason.MESSAGE_TOO_BIG, hugeException.closeReason)
+	}
+	
+	@Test
+	fun testMaxMessageSize() {
+		val packet1 = buildPacket(fin=false, mask=false, opcode=WebsocketFrameType.BINARY.opcode, maskingKey=0, data=Random.nextBytes(600))
+		val packet2 = buildPacket(fin=true, mask=false, opcode=WebsocketFrameType.CONTINUATION.opcode, maskingKey=0, data=Random.nextBytes(600))
+		val parser = WebsocketParser()
+		parser.setMaxFrameSize(1024)
+		parser.setMaxMessageSize(1024)
+		assertNull(feedChunks(parser, packet1, 4096))
+		val e = assertThrows(WebsocketParserException::class.java) { parser.parseChunk(packet2, 0, 4) }
+		assertEquals(WebSocketCloseReason.MESSAGE_TOO_BIG, e.closeReason)
+	}
+	
+	@Test
+	fun testInterleavedMessagesRejected() {
+		// Each new message would otherwise restart the size check while the fragments kept piling up
+		val first = buildPacket(fin=false, mask=false, opcode=WebsocketFrameType.BINARY.opcode, maskingKey=0, data=Random.nextBytes(900))
+		val parser = WebsocketParser()
+		parser.setMaxMessageSize(1000)
+		assertNull(feedChunks(parser, first, 4096))
+		assertThrows(WebsocketParserException::class.java) { feedChunks(parser, first, 4096) }
+	}
+	
+	@Test
+	fun testInterleavedTextRejected() {
+		// A BINARY header part way through would otherwise reset the validator, and the rest would pass as TEXT unchecked
+		val text = buildPacket(fin=false, mask=false, opcode=WebsocketFrameType.TEXT.opcode, maskingKey=0, data="valid".toByteArray())
+		val binary = buildPacket(fin=false, mask=false, opcode=WebsocketFrameType.BINARY.opcode, maskingKey=0, data=byteArrayOf(0xC3.toByte()))
+		val parser = WebsocketParser()
+		assertNull(feedChunks(parser, text, 4096))
+		val e = assertThrows(WebsocketParserException::class.java) { parser.parseChunk(binary, 0, 2) }
+		assertEquals("expected continuation frame", e.message)
+		
+		// And a continuation with nothing to continue is rejected from its header too
+		val orphan = buildPacket(fin=true, mask=false, opcode=WebsocketFrameType.CONTINUATION.opcode, maskingKey=0, data=byteArrayOf(0xFF.toByte()))
+		assertThrows(WebsocketParserException::class.java) { WebsocketParser().parseChunk(orphan, 0, 2) }
+	}
+	
+	@Test
+	fun testCompressedMessages() {
+		// One deflater across both messages, for a client that was allowed to keep its context
+		val contextTakeover = PerMessageDeflateOptions(Deflater.DEFAULT_COMPRESSION, true, false, 64)
+		val deflater = Deflater(Deflater.DEFAULT_COMPRESSION, true)
+		val data1 = "compressible text ".repeat(500).encodeToByteArray()
+		val data2 = "compressible text ".repeat(20).encodeToByteArray()
+		val compressed1 = deflate(deflater, data1)
+		val compressed2 = deflate(deflater, data2)
+		
+		val packet1a = buildPacket(fin=false, mask=true, opcode=WebsocketFrameType.TEXT.opcode, maskingKey=0x0A0B0C0D, data=compressed1.copyOfRange(0, compressed1.size / 2))
+		packet1a[0] = packet1a[0] or 0x40
+		val packet1b = buildPacket(fin=true, mask=true, opcode=WebsocketFrameType.CONTINUATION.opcode, maskingKey=0x11223344, data=compressed1.copyOfRange(compressed1.size / 2, compressed1.size))
+		val packet2 = buildPacket(fin=true, mask=true, opcode=WebsocketFrameType.TEXT.opcode, maskingKey=0x01020304, data=compressed2)
+		packet2[0] = packet2[0] or 0x40
+		
+		for (chunkSize in listOf(1, 7, 4096)) {
+			val parser = WebsocketParser()
+			parser.setInflater(PerMessageDeflate.acceptOffer("permessage-deflate", contextTakeover))
+			val frames = parseAll(parser, packet1a + packet1b + packet2, chunkSize)
+			assertEquals(2, frames.size)
+			assertArrayEquals(data1, frames[0].data)
+			assertArrayEquals(data2, frames[1].data)
+			
+			val streamingParser = WebsocketParser()
+			val received = java.io.ByteArrayOutputStream()
+			streamingParser.setInflater(PerMessageDeflate.acceptOffer("permessage-deflate", contextTakeover))
+			streamingParser.setMessageListener(object : WebsocketMessageListener {
+				override fun onMessageStart(type: WebsocketFrameType) {}
+				override fun onMessageData(data: ByteBuffer) {
+					val bytes = ByteArray(data.remaining())
+					data.get(bytes)
+					received.writeBytes(bytes)
+				}
+				override fun onMessageEnd() {}
+			})
+			assertEquals(0, parseAll(streamingParser, packet1a + packet1b + packet2, chunkSize).size)
+			assertArrayEquals(data1 + data2, received.toByteArray())
+		}
+	}
+	
+	@Test
+	fun testCompressionRequiresNegotiation() {
+		val packet = buildPacket(fin=true, mask=false, opcode=WebsocketFrameType.BINARY.opcode, maskingKey=0, data=deflate(Deflater(Deflater.DEFAULT_COMPRESSION, true), Random.nextBytes(16)))
+		packet[0] = packet[0] or 0x40
+		assertThrows(WebsocketParserException::class.java) { feedChunks(WebsocketParser(), packet, 4096) }
+		
+		// Control frames can never be compressed
+		val ping = buildPacket(fin=true, mask=false, opcode=WebsocketFrameType.PING.opcode, maskingKey=0, data=Random.nextBytes(4))
+		ping[0] = ping[0] or 0x40
+		val parser = WebsocketParser()
+		parser.setInflater(PerMessageDeflate.acceptOffer("permessage-deflate", PerMessageDeflateOptions.DEFAULT))
+		assertThrows(WebsocketParserException::class.java) { feedChunks(parser, ping, 4096) }
+	}
+	
+	@Test
+	fun testCompressedMessageTooBig() {
+		// A megabyte of zeroes deflates to about a kilobyte, so only the inflated size can catch it
+		val packet = buildPacket(fin=true, mask=false, opcode=WebsocketFrameType.BINARY.opcode, maskingKey=0, data=deflate(Deflater(Deflater.DEFAULT_COMPRESSION, true), ByteArray(1024 * 1024)))
+		packet[0] = packet[0] or 0x40
+		val parser = WebsocketParser()
+		parser.setInflater(PerMessageDeflate.acceptOffer("permessage-deflate", PerMessageDeflateOptions.DEFAULT))
+		parser.setMaxMessageSize(64 * 1024)
+		val e = assertThrows(WebsocketParserException::class.java) { feedChunks(parser, packet, 4096) }
+		assertEquals(WebSocketCloseReason.MESSAGE_TOO_BIG, e.closeReason)
+	}
+	
+	@Test
+	fun testUtf8Validator() {
+		val decoder = Charsets.UTF_8.newDecoder()
+		fun jdkValid(bytes: ByteArray) = try { decoder.decode(ByteBuffer.wrap(bytes)); true } catch (e: java.nio.charset.CharacterCodingException) { false }
+		fun check(bytes: ByteArray) {
+			assertEquals(jdkValid(bytes), Utf8Validator.isValid(bytes, 0, bytes.size), bytes.joinToString { "%02X".format(it) })
+		}
+		
+		// Every sequence of up to three bytes, with an ASCII prefix so the word-at-a-time path is crossed too
+		val prefix = "01234567".encodeToByteArray()
+		for (a in 0..255) {
+			check(byteArrayOf(a.toByte()))
+			for (b in 0..255) {
+				check(byteArrayOf(a.toByte(), b.toByte()))
+				if (a >= 0xE0) {
+					for (c in 0x70..0xC0)
+						check(prefix + byteArrayOf(a.toByte(), b.toByte(), c.toByte()))
+				}
+			}
+		}
+		// Four byte sequences around the boundaries of the valid range
+		for (a in listOf(0xF0, 0xF1, 0xF4, 0xF5)) {
+			for (b in listOf(0x7F, 0x80, 0x8F, 0x90, 0xBF, 0xC0))
+				check(byteArrayOf(a.toByte(), b.toByte(), 0x80.toByte(), 0xBF.toByte()))
+		}
+		
+		// Split anywhere, the result stays the same
+		val text = "ascii, \u00E9t\u00E9, \u4E2D\u6587, \uD83D\uDE00 and more ascii".encodeToByteArray()
+		for (split in text.indices) {
+			val validator = Utf8Validator()
+			assertTrue(validator.update(text, 0, split))
+			assertTrue(validator.update(ByteBuffer.allocateDirect(text.size - split).put(text, split, text.size - split).flip()))
+			assertTrue(validator.isComplete)
+			assertFalse(validator.isAscii)
+		}
+		val ascii = Utf8Validator()
+		assertTrue(ascii.update("plain {\"json\": 1}".encodeToByteArray(), 0, 15))
+		assertTrue(ascii.isAscii)
+	}
+	
+	@Test
+	fun testInvalidTextFailsFast() {
+		val valid = "caf\u00E9".encodeToByteArray()
+		val invalid = byteArrayOf(0x61, 0xC3.toByte(), 0x28)
+		val truncated = valid.copyOf(valid.size - 1)
+		
+		// The first fragment is rejected before the rest of the message arrives
+		val packet1 = buildPacket(fin=false, mask=true, opcode=WebsocketFrameType.TEXT.opcode, maskingKey=0x0A0B0C0D, data=invalid)
+		val e = assertThrows(WebsocketParserException::class.java) { parseAll(WebsocketParser(), packet1, 4096) }
+		assertEquals(WebSocketCloseReason.BAD_TEXT, e.closeReason)
+		
+		// So is a single frame, part way through its payload
+		val longPacket = buildPacket(fin=true, mask=true, opcode=WebsocketFrameType.TEXT.opcode, maskingKey=0x0A0B0C0D, data=invalid + ByteArray(10000))
+		val longException = assertThrows(WebsocketParserException::class.java) { parseAll(WebsocketParser(), longPacket.copyOf(100), 4096) }
+		assertEquals(WebSocketCloseReason.BAD_TEXT, longException.closeReason)
+		
+		// A message can't end in the middle of a character, even if every fragment was fine on its own
+		val cut1 = buildPacket(fin=false, mask=false, opcode=WebsocketFrameType.TEXT.opcode, maskingKey=0, data=truncated)
+		val cut2 = buildPacket(fin=true, mask=false, opcode=WebsocketFrameType.CONTINUATION.opcode, maskingKey=0, data=ByteArray(0))
+		assertThrows(WebsocketParserException::class.java) { parseAll(WebsocketParser(), cut1 + cut2, 4096) }
+		
+		// Characters may be split across fragments
+		val split1 = buildPacket(fin=false, mask=false, opcode=WebsocketFrameType.TEXT.opcode, maskingKey=0, data=truncated)
+		val split2 = buildPacket(fin=true, mask=false, opcode=WebsocketFrameType.CONTINUATION.opcode, maskingKey=0, data=valid.copyOfRange(valid.size - 1, valid.size))
+		val parser = WebsocketParser()
+		val frames = parseAll(parser, split1 + split2, 3)
+		assertArrayEquals(valid, frames.single().data)
+		assertFalse(parser.isAsciiText)
+		
+		// Streamed messages are checked as well
+		val streamingParser = WebsocketParser()
+		streamingParser.setMessageListener(object : WebsocketMessageListener {
+			override fun onMessageStart(type: WebsocketFrameType) {}
+			override fun onMessageData(data: ByteBuffer) {}
+			override fun onMessageEnd() {}
+		})
+		assertThrows(WebsocketParserException::class.java) { parseAll(streamingParser, packet1, 4096) }
+		
+		// And so are close reasons
+		val close = buildPacket(fin=true, mask=false, opcode=WebsocketFrameType.CLOSE.opcode, maskingKey=0, data=byteArrayOf(0x03, 0xE8.toByte()) + invalid)
+		assertThrows(WebsocketParserException::class.java) { parseAll(WebsocketParser(), close, 4096) }
+	}
+	
+	private fun parseAll(parser: WebsocketParser, data: ByteArray, chunkSize: Int): List<WebsocketFrame> {
+		val frames = ArrayList<WebsocketFrame>()
+		var index = 0
+		while (index < data.size) {
+			val length = minOf(chunkSize, data.size - index)
+			var frame = parser.parseChunk(data, index, length)
+			while (frame != null) {
+				frames.add(frame)
+				frame = parser.parseChunk(null, 0, 0)
+			}
+			index += length
+		}
+		return frames
+	}
+	
+	private fun randomText(length: Int): ByteArray {
+		// Printable ASCII, so it stays valid for TEXT frames and close reasons
+		return ByteArray(length) { Random.nextInt(0x20, 0x7F).toByte() }
+	}
+	
+	private fun deflate(deflater: Deflater, data: ByteArray): ByteArray {
+		deflater.setInput(data)
+		val output = ByteArray(data.size + 64)
+		val size = deflater.deflate(output, 0, output.size, Deflater.SYNC_FLUSH)
+		// permessage-deflate drops the empty block that ends every flush
+		return output.copyOf(size - 4)
+	}
+	
 	private fun feedChunks(parser: WebsocketParser, data: ByteArray, chunkSize: Int): WebsocketFrame? {
 		if (chunkSize > data.size)
 			return parser.parseChunk(data, 0, data.size)
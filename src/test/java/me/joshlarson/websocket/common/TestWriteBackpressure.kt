@@ -0,0 +1,248 @@
+package me.joshlarson.websocket.common
+
+import me.joshlarson.websocket.common.metrics.WebSocketMetricsAggregator
+import me.joshlarson.websocket.common.parser.http.HttpRequest
+import me.joshlarson.websocket.common.parser.websocket.WebSocketCloseReason
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrame
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType
+import me.joshlarson.websocket.common.parser.websocket.WebsocketParser
+import me.joshlarson.websocket.server.WebSocketServerCallback
+import me.joshlarson.websocket.server.WebSocketServerProtocol
+import me.joshlarson.websocket.server.nio.NioWebSocketServer
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
+import java.nio.channels.SocketChannel
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+class TestWriteBackpressure {
+	
+	@Test
+	fun testWritabilityAndDrop() {
+		val metrics = WebSocketMetricsAggregator()
+		val connection = QueueingConnection(WriteOverflowPolicy.DROP)
+		connection.protocol.setMetrics(metrics)
+		connection.handler.sendBinary(ByteArray(600))
+		assertTrue(connection.handler.isWritable)
+		connection.handler.sendBinary(ByteArray(600))
+		assertFalse(connection.handler.isWritable)
+		assertEquals(listOf(false), connection.writabilityChanges)
+		
+		val pending = connection.pendingBytes
+		connection.handler.sendBinary(ByteArray(600))
+		assertEquals(pending, connection.pendingBytes)
+		assertEquals(1, metrics.getFramesDropped(WebsocketFrameType.BINARY))
+		assertEquals(600, metrics.getPayloadBytesDropped(WebsocketFrameType.BINARY))
+		assertEquals(600L, metrics.snapshot()["payload.dropped.binary"])
+		// Control frames aren't subject to the policy
+		connection.handler.sendPing(ByteArray(4))
+		assertTrue(connection.pendingBytes > pending)
+		
+		connection.drain(connection.pendingBytes - 100)
+		assertTrue(connection.handler.isWritable)
+		assertEquals(listOf(false, true), connection.writabilityChanges)
+		connection.handler.sendText("after")
+		connection.drain(connection.pendingBytes)
+		assertEquals(listOf(WebsocketFrameType.BINARY, WebsocketFrameType.BINARY, WebsocketFrameType.PING, WebsocketFrameType.TEXT), connection.frames().map { it.type() })
+	}
+	
+	@Test
+	fun testClosePolicy() {
+		val connection = QueueingConnection(WriteOverflowPolicy.CLOSE)
+		connection.handler.sendBinary(ByteArray(1200))
+		connection.handler.sendBinary(ByteArray(1200))
+		assertTrue(connection.closed)
+		assertEquals(WebSocketCloseReason.POLICY_VIOLATION.statusCode.toInt(), connection.closeCode)
+		
+		connection.drain(connection.pendingBytes)
+		val frames = connection.frames()
+		assertEquals(listOf(WebsocketFrameType.BINARY, WebsocketFrameType.CLOSE), frames.map { it.type() })
+		assertEquals(WebSocketCloseReason.POLICY_VIOLATION.statusCode.toInt(), ((frames[1].data()[0].toInt() and 0xFF) shl 8) or (frames[1].data()[1].toInt() and 0xFF))
+	}
+	
+	@Test
+	fun testBlockPolicy() {
+		val connection = QueueingConnection(WriteOverflowPolicy.BLOCK)
+		connection.handler.sendBinary(ByteArray(1200))
+		val sent = CountDownLatch(1)
+		val sender = Thread {
+			connection.handler.sendText("blocked")
+			sent.countDown()
+		}
+		sender.start()
+		assertFalse(sent.await(100, TimeUnit.MILLISECONDS))
+		
+		connection.drain(connection.pendingBytes)
+		assertTrue(sent.await(5, TimeUnit.SECONDS))
+		sender.join()
+		connection.drain(connection.pendingBytes)
+		assertEquals(listOf(WebsocketFrameType.BINARY, WebsocketFrameType.TEXT), connection.frames().map { it.type() })
+	}
+	
+	@Test
+	fun testBlockPolicyWithoutBlocking() {
+		// A writer that needs the sending thread to make progress gets the message queued instead
+		val connection = QueueingConnection(WriteOverflowPolicy.BLOCK, mayBlock = false)
+		connection.handler.sendBinary(ByteArray(1200))
+		connection.handler.sendText("queued")
+		connection.drain(connection.pendingBytes)
+		assertEquals(listOf(WebsocketFrameType.BINARY, WebsocketFrameType.TEXT), connection.frames().map { it.type() })
+	}
+	
+	@Test
+	fun testBlockPolicyWakesOnDisconnect() {
+		val connection = QueueingConnection(WriteOverflowPolicy.BLOCK)
+		connection.handler.sendBinary(ByteArray(1200))
+		val sender = Thread { connection.handler.sendText("never sent") }
+		sender.start()
+		Thread.sleep(50)
+		connection.protocol.onDisconnect()
+		sender.join(5000)
+		assertFalse(sender.isAlive)
+		connection.drain(connection.pendingBytes)
+		assertEquals(listOf(WebsocketFrameType.BINARY), connection.frames().map { it.type() })
+	}
+	
+	@Test
+	fun testCorkedBacklogCounts() {
+		val connection = QueueingConnection(WriteOverflowPolicy.DROP)
+		connection.protocol.cork()
+		repeat(20) { connection.handler.sendBinary(ByteArray(100)) }
+		assertFalse(connection.handler.isWritable)
+		connection.protocol.uncork()
+		connection.drain(connection.pendingBytes)
+		assertTrue(connection.handler.isWritable)
+	}
+	
+	@Test
+	fun testSlowNioClient() {
+		val disconnected = CountDownLatch(1)
+		val receivedCloseCode = AtomicInteger(0)
+		val sent = AtomicLong(0)
+		val serverCallback = object : WebSocketServerCallback {
+			override fun onUpgrade(obj: WebSocketHandler, request: HttpRequest) {
+				// The event loop has to stay free to drain, so the flood comes from another thread
+				Thread {
+					val payload = ByteArray(64 * 1024)
+					while (disconnected.count > 0) {
+						obj.sendBinary(payload)
+						sent.addAndGet(payload.size.toLong())
+					}
+				}.start()
+			}
+			
+			override fun onDisconnect(obj: WebSocketHandler, closeCode: Int, reason: String) {
+				receivedCloseCode.set(closeCode)
+				disconnected.countDown()
+			}
+		}
+		
+		NioWebSocketServer(serverCallback, InetSocketAddress("127.0.0.1", 0), 1).use { server ->
+			server.setProtocolInitializer {
+				it.setWriteBufferWatermarks(256 * 1024, 1024 * 1024)
+				it.setWriteOverflowPolicy(WriteOverflowPolicy.CLOSE)
+			}
+			server.start()
+			
+			// Upgrades, then never reads again
+			SocketChannel.open(server.localAddress).use { channel ->
+				val request = "GET / HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n"
+				channel.write(ByteBuffer.wrap(request.toByteArray(StandardCharsets.US_ASCII)))
+				assertTrue(disconnected.await(30, TimeUnit.SECONDS))
+				assertEquals(WebSocketCloseReason.POLICY_VIOLATION.statusCode.toInt(), receivedCloseCode.get())
+				// Whatever the socket buffers took, plus at most the high watermark and one message
+				assertTrue(sent.get() < 64L * 1024 * 1024)
+			}
+		}
+	}
+	
+	private class QueueingConnection(policy: WriteOverflowPolicy, private val mayBlock: Boolean = true) {
+		
+		private val queue = ArrayList<ByteArray>()
+		private val written = java.io.ByteArrayOutputStream()
+		val writabilityChanges = ArrayList<Boolean>()
+		val protocol: WebSocketServerProtocol
+		lateinit var handler: WebSocketHandler
+		var closed = false
+		var closeCode = 0
+		@Volatile var pendingBytes = 0L
+		
+		init {
+			val writer = object : WebSocketWriter {
+				override fun write(buffers: Array<ByteBuffer>) {
+					val data = ByteArray(buffers.sumOf { it.remaining() })
+					var offset = 0
+					for (buffer in buffers) {
+						val length = buffer.remaining()
+						buffer.get(data, offset, length)
+						offset += length
+					}
+					synchronized(queue) {
+						queue.add(data)
+						this@QueueingConnection.pendingBytes += data.size
+					}
+				}
+				
+				override fun getPendingBytes(): Long = this@QueueingConnection.pendingBytes
+				
+				override fun mayBlock(): Boolean = this@QueueingConnection.mayBlock
+			}
+			val callback = object : WebSocketServerCallback {
+				override fun onConnect(obj: WebSocketHandler) {
+					handler = obj
+				}
+				
+				override fun onWritabilityChanged(obj: WebSocketHandler, writable: Boolean) {
+					writabilityChanges.add(writable)
+				}
+				
+				override fun onDisconnect(obj: WebSocketHandler, closeCode: Int, reason: String) {
+					this@QueueingConnection.closeCode = closeCode
+				}
+			}
+			protocol = WebSocketServerProtocol(callback, writer) { closed = true }
+			protocol.onConnect()
+			val upgrade = "GET / HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n".toByteArray()
+			protocol.onRead(upgrade, 0, upgrade.size)
+			synchronized(queue) {
+				queue.clear()
+				pendingBytes = 0
+			}
+			protocol.setWriteBufferWatermarks(500, 1000)
+			protocol.setWriteOverflowPolicy(policy)
+		}
+		
+		// Writes out whole queued writes until at least this many bytes have gone
+		fun drain(bytes: Long) {
+			synchronized(queue) {
+				var remaining = bytes
+				while (remaining > 0 && queue.isNotEmpty()) {
+					val data = queue.removeAt(0)
+					written.write(data)
+					pendingBytes -= data.size
+					remaining -= data.size
+				}
+			}
+			protocol.onWritesDrained()
+		}
+		
+		fun frames(): List<WebsocketFrame> {
+			val data = written.toByteArray()
+			val parser = WebsocketParser()
+			val frames = ArrayList<WebsocketFrame>()
+			var frame = parser.parseChunk(data, 0, data.size)
+			while (frame != null) {
+				frames.add(frame)
+				frame = parser.parseChunk(null, 0, 0)
+			}
+			return frames
+		}
+		
+	}
+	
+}
@@ -0,0 +1,200 @@
+package me.joshlarson.websocket.common
+
+import me.joshlarson.websocket.common.buffer.PooledBuffer
+import me.joshlarson.websocket.common.buffer.PooledBufferAllocator
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrame
+import me.joshlarson.websocket.common.parser.websocket.WebsocketFrameType
+import me.joshlarson.websocket.common.parser.websocket.WebsocketParser
+import me.joshlarson.websocket.server.WebSocketServerCallback
+import me.joshlarson.websocket.server.WebSocketServerProtocol
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class TestWriteCoalescing {
+	
+	@Test
+	fun testCorkedBurst() {
+		val connection = RecordingConnection()
+		connection.protocol.cork()
+		for (i in 0 until 200)
+			connection.handler.sendText("message $i")
+		assertEquals(0, connection.writes.size)
+		
+		connection.protocol.uncork()
+		assertEquals(1, connection.writes.size)
+		assertEquals(List(200) { "message $it" }, connection.texts())
+	}
+	
+	@Test
+	fun testNestedBatches() {
+		val connection = RecordingConnection()
+		connection.handler.batch {
+			connection.handler.sendText("a")
+			connection.handler.batch { connection.handler.sendText("b") }
+			assertEquals(0, connection.writes.size)
+			connection.handler.sendText("c")
+		}
+		assertEquals(1, connection.writes.size)
+		assertEquals(listOf("a", "b", "c"), connection.texts())
+		
+		// Uncorked again, so writes go straight through
+		connection.handler.sendText("d")
+		assertEquals(2, connection.writes.size)
+	}
+	
+	@Test
+	fun testLargeWritesKeepOrder() {
+		val connection = RecordingConnection()
+		val large = "x".repeat(32 * 1024)
+		connection.handler.batch {
+			connection.handler.sendText("before")
+			connection.handler.sendText(large)
+			assertEquals(2, connection.writes.size)
+			connection.handler.sendText("after")
+		}
+		assertEquals(3, connection.writes.size)
+		assertEquals(listOf("before", large, "after"), connection.texts())
+		
+		// Anything past the batch limit is flushed rather than held
+		connection.handler.batch {
+			for (i in 0 until 10)
+				connection.handler.sendText("y".repeat(10 * 1024))
+			assertTrue(connection.writes.size > 3)
+		}
+		assertEquals(13, connection.texts().size)
+	}
+	
+	@Test
+	fun testCloseFlushes() {
+		val connection = RecordingConnection()
+		connection.protocol.cork()
+		connection.handler.sendText("goodbye")
+		connection.handler.close()
+		assertEquals(1, connection.writes.size)
+		val frames = connection.frames()
+		assertEquals(listOf(WebsocketFrameType.TEXT, WebsocketFrameType.CLOSE), frames.map { it.type() })
+	}
+	
+	@Test
+	fun testAutoFlushAfterRead() {
+		val scheduler = Executors.newSingleThreadScheduledExecutor()
+		try {
+			val connection = RecordingConnection()
+			connection.protocol.setAutoFlush(scheduler, 1, TimeUnit.HOURS)
+			// Three pings in one read are answered with a single write
+			val ping = WebsocketFrame(WebsocketFrameType.PING, ByteArray(4)).encode(true, true, 0x12345678)
+			connection.protocol.onRead(ByteBuffer.wrap(ping + ping + ping))
+			assertEquals(1, connection.writes.size)
+			assertEquals(List(3) { WebsocketFrameType.PONG }, connection.frames().map { it.type() })
+		} finally {
+			scheduler.shutdownNow()
+		}
+	}
+	
+	@Test
+	fun testAutoFlushDeadline() {
+		val scheduler = Executors.newSingleThreadScheduledExecutor()
+		try {
+			val flushed = CountDownLatch(1)
+			val connection = RecordingConnection()
+			connection.onWrite = { flushed.countDown() }
+			connection.protocol.setAutoFlush(scheduler, 20, TimeUnit.MILLISECONDS)
+			connection.handler.sendText("one")
+			connection.handler.sendText("two")
+			assertTrue(flushed.await(5, TimeUnit.SECONDS))
+			assertEquals(1, connection.writes.size)
+			assertEquals(listOf("one", "two"), connection.texts())
+			
+			connection.protocol.setAutoFlush(null, 0, TimeUnit.MILLISECONDS)
+			connection.handler.sendText("three")
+			assertEquals(2, connection.writes.size)
+		} finally {
+			scheduler.shutdownNow()
+		}
+	}
+	
+	@Test
+	fun testPooledBatches() {
+		val allocator = PooledBufferAllocator(false, true)
+		val connection = RecordingConnection()
+		connection.protocol.setBufferAllocator(allocator)
+		connection.handler.batch {
+			for (i in 0 until 100)
+				connection.handler.sendBinary(ByteArray(100))
+		}
+		assertEquals(1, connection.writes.size)
+		assertEquals(100, connection.frames().size)
+		
+		// A batch still pending on disconnect goes back to the allocator
+		connection.protocol.cork()
+		connection.handler.sendText("lost")
+		connection.protocol.onDisconnect()
+		assertEquals(listOf<Throwable>(), allocator.unreleasedAllocations)
+	}
+	
+	private class RecordingConnection {
+		
+		var onWrite: () -> Unit = {}
+		val writes = ArrayList<ByteArray>()
+		val protocol: WebSocketServerProtocol
+		lateinit var handler: WebSocketHandler
+		
+		init {
+			val writer = object : WebSocketWriter {
+				override fun write(buffers: Array<ByteBuffer>) {
+					val data = ByteArray(buffers.sumOf { it.remaining() })
+					var offset = 0
+					for (buffer in buffers) {
+						val length = buffer.remaining()
+						buffer.get(data, offset, length)
+						offset += length
+					}
+					synchronized(writes) { writes.add(data) }
+					onWrite()
+				}
+				
+				override fun write(buffer: PooledBuffer) {
+					try {
+						write(arrayOf(buffer.buffer()))
+					} finally {
+						buffer.release()
+					}
+				}
+			}
+			val callback = object : WebSocketServerCallback {
+				override fun onConnect(obj: WebSocketHandler) {
+					handler = obj
+				}
+			}
+			protocol = WebSocketServerProtocol(callback, writer) { }
+			protocol.onConnect()
+			val upgrade = "GET / HTTP/1.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n".toByteArray()
+			protocol.onRead(upgrade, 0, upgrade.size)
+			writes.clear()
+		}
+		
+		fun frames(): List<WebsocketFrame> {
+			val parser = WebsocketParser()
+			val frames = ArrayList<WebsocketFrame>()
+			for (write in synchronized(writes) { writes.toList() }) {
+				var frame = parser.parseChunk(write, 0, write.size)
+				while (frame != null) {
+					frames.add(frame)
+					frame = parser.parseChunk(null, 0, 0)
+				}
+			}
+			return frames
+		}
+		
+		fun texts(): List<String> {
+			return frames().map { String(it.data(), StandardCharsets.UTF_8) }
+		}
+		
+	}
+	
+}